@@ -0,0 +1,23 @@
+package mikera.data;
+
+/**
+ * Interface for objects that write values of a given type to a Serializer and read them back
+ * 
+ * @author Mike Anderson
+ *
+ * @param <T> Type of values handled by the codec
+ */
+public interface Codec<T> {
+	/**
+	 * Writes a value, excluding its type id
+	 */
+	public void write(Serializer s, T value);
+
+	/**
+	 * Reads a value written by write()
+	 * 
+	 * @param reuse An existing instance that may be overwritten and returned, or null
+	 * @return The value read, which may be the reused instance
+	 */
+	public T read(Serializer s, T reuse);
+}
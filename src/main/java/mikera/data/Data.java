@@ -608,6 +608,177 @@ public final class Data extends AbstractList<Byte> implements Cloneable, Compara
 		return size;
 	}
 	
+	/*****************************************************
+	 * Bulk primitive array handling
+	 * 
+	 * Values are written in the same big-endian format as the single value
+	 * methods, using ByteBuffer views over the underlying array
+	 */
+	
+	private static void checkArrayRange(int arrayLength, int offset, int length) {
+		if ((offset<0)||(length<0)||(offset+length>arrayLength)) throw new IndexOutOfBoundsException();
+	}
+	
+	private void checkReadRange(int pos, int bytes) {
+		if ((pos<0)||(bytes<0)||(pos+bytes>count)) throw new IndexOutOfBoundsException();
+	}
+	
+	private ByteBuffer appendView(int bytes) {
+		int pos=count;
+		ensureCapacity(pos+bytes);
+		count+=bytes;
+		return ByteBuffer.wrap(data, pos, bytes);
+	}
+	
+	private ByteBuffer readView(int pos, int bytes) {
+		checkReadRange(pos,bytes);
+		return ByteBuffer.wrap(data, pos, bytes);
+	}
+	
+	public int appendInts(int[] values, int offset, int length) {
+		checkArrayRange(values.length,offset,length);
+		appendView(length*4).asIntBuffer().put(values, offset, length);
+		return length*4;
+	}
+	
+	public void getInts(int pos, int[] dest, int offset, int length) {
+		checkArrayRange(dest.length,offset,length);
+		readView(pos,length*4).asIntBuffer().get(dest, offset, length);
+	}
+	
+	public int appendLongs(long[] values, int offset, int length) {
+		checkArrayRange(values.length,offset,length);
+		appendView(length*8).asLongBuffer().put(values, offset, length);
+		return length*8;
+	}
+	
+	public void getLongs(int pos, long[] dest, int offset, int length) {
+		checkArrayRange(dest.length,offset,length);
+		readView(pos,length*8).asLongBuffer().get(dest, offset, length);
+	}
+	
+	public int appendFloats(float[] values, int offset, int length) {
+		checkArrayRange(values.length,offset,length);
+		appendView(length*4).asFloatBuffer().put(values, offset, length);
+		return length*4;
+	}
+	
+	public void getFloats(int pos, float[] dest, int offset, int length) {
+		checkArrayRange(dest.length,offset,length);
+		readView(pos,length*4).asFloatBuffer().get(dest, offset, length);
+	}
+	
+	public int appendDoubles(double[] values, int offset, int length) {
+		checkArrayRange(values.length,offset,length);
+		appendView(length*8).asDoubleBuffer().put(values, offset, length);
+		return length*8;
+	}
+	
+	public void getDoubles(int pos, double[] dest, int offset, int length) {
+		checkArrayRange(dest.length,offset,length);
+		readView(pos,length*8).asDoubleBuffer().get(dest, offset, length);
+	}
+	
+	/**
+	 * Appends an array of zigzag encoded varints. Capacity is ensured once for the whole
+	 * array rather than for each value.
+	 * 
+	 * @return The number of bytes written
+	 */
+	public int appendVarInts(int[] values, int offset, int length) {
+		checkArrayRange(values.length,offset,length);
+		ensureCapacity(count+length*5);
+		final byte[] dt=data;
+		int pos=count;
+		for (int i=offset; i<offset+length; i++) {
+			int enc=Bits.zigzagEncodeInt(values[i]);
+			while ((enc&(~0x7F))!=0) {
+				dt[pos++]=(byte)(enc|0x80);
+				enc>>>=7;
+			}
+			dt[pos++]=(byte)enc;
+		}
+		int size=pos-count;
+		count=pos;
+		return size;
+	}
+	
+	/**
+	 * Reads an array of varints written by appendVarInts() or appendVarInt()
+	 * 
+	 * @return The position after the last value read
+	 */
+	public int getVarInts(int pos, int[] dest, int offset, int length) {
+		checkArrayRange(dest.length,offset,length);
+		if ((pos<0)||(pos>count)) throw new IndexOutOfBoundsException();
+		final byte[] dt=data;
+		// varints are at most 5 bytes, so bounds are only checked per byte when the values could run past the end
+		boolean checked=(count-pos)<((long)length)*5;
+		for (int i=offset; i<offset+length; i++) {
+			int enc=0;
+			int shift=0;
+			byte b;
+			do {
+				if (checked&&(pos>=count)) throw new IndexOutOfBoundsException();
+				b=dt[pos++];
+				enc|=(b&0x7F)<<shift;
+				shift+=7;
+			} while ((b<0)&&(shift<35));
+			if (b<0) throw new IllegalArgumentException("Malformed varint at position "+pos);
+			dest[i]=Bits.zigzagDecodeInt(enc);
+		}
+		return pos;
+	}
+	
+	/**
+	 * Appends an array of zigzag encoded varlongs
+	 * 
+	 * @return The number of bytes written
+	 */
+	public int appendVarLongs(long[] values, int offset, int length) {
+		checkArrayRange(values.length,offset,length);
+		ensureCapacity(count+length*10);
+		final byte[] dt=data;
+		int pos=count;
+		for (int i=offset; i<offset+length; i++) {
+			long enc=Bits.zigzagEncodeLong(values[i]);
+			while ((enc&(~0x7FL))!=0) {
+				dt[pos++]=(byte)(enc|0x80);
+				enc>>>=7;
+			}
+			dt[pos++]=(byte)enc;
+		}
+		int size=pos-count;
+		count=pos;
+		return size;
+	}
+	
+	/**
+	 * Reads an array of varlongs written by appendVarLongs() or appendVarLong()
+	 * 
+	 * @return The position after the last value read
+	 */
+	public int getVarLongs(int pos, long[] dest, int offset, int length) {
+		checkArrayRange(dest.length,offset,length);
+		if ((pos<0)||(pos>count)) throw new IndexOutOfBoundsException();
+		final byte[] dt=data;
+		boolean checked=(count-pos)<((long)length)*10;
+		for (int i=offset; i<offset+length; i++) {
+			long enc=0;
+			int shift=0;
+			byte b;
+			do {
+				if (checked&&(pos>=count)) throw new IndexOutOfBoundsException();
+				b=dt[pos++];
+				enc|=((long)(b&0x7F))<<shift;
+				shift+=7;
+			} while ((b<0)&&(shift<70));
+			if (b<0) throw new IllegalArgumentException("Malformed varlong at position "+pos);
+			dest[i]=Bits.zigzagDecodeLong(enc);
+		}
+		return pos;
+	}
+	
 	/*****************************************************
 	 * Variable length integer handling
 	 * 
@@ -0,0 +1,194 @@
+package mikera.data;
+
+import mikera.annotations.Mutable;
+import mikera.util.Bits;
+
+/**
+ * Cursor for reading values sequentially from a Data object
+ *
+ * Each read advances the position past the value read, so callers do not need to track
+ * offsets or compute encoded sizes. Varints are decoded directly from the underlying
+ * array. A cursor can be pointed at a different Data with set(), so one instance can be
+ * reused for many reads.
+ *
+ * @author Mike Anderson
+ *
+ */
+@Mutable
+public final class DataCursor {
+	private Data data;
+	private int position;
+
+	public DataCursor(Data data) {
+		this(data,0);
+	}
+
+	public DataCursor(Data data, int position) {
+		set(data,position);
+	}
+
+	/**
+	 * Points the cursor at the given position in a Data object
+	 */
+	public DataCursor set(Data data, int position) {
+		if ((position<0)||(position>data.size())) throw new IndexOutOfBoundsException("Position "+position+" outside data of size "+data.size());
+		this.data=data;
+		this.position=position;
+		return this;
+	}
+
+	public Data getData() {
+		return data;
+	}
+
+	public int getPosition() {
+		return position;
+	}
+
+	public void setPosition(int position) {
+		set(data,position);
+	}
+
+	public int remaining() {
+		return data.size()-position;
+	}
+
+	public boolean hasRemaining() {
+		return position<data.size();
+	}
+
+	public void skip(int n) {
+		setPosition(position+n);
+	}
+
+	private void check(int n) {
+		if (position+n>data.size()) throw new IndexOutOfBoundsException("Read past end of data at position "+position);
+	}
+
+	public byte readByte() {
+		check(1);
+		return data.getInternalData()[position++];
+	}
+
+	public boolean readBoolean() {
+		return readByte()!=0;
+	}
+
+	public short readShort() {
+		short v=data.getShort(position);
+		position+=2;
+		return v;
+	}
+
+	public char readFullChar() {
+		char v=data.getFullChar(position);
+		position+=2;
+		return v;
+	}
+
+	public int readFullInt() {
+		int v=data.getFullInt(position);
+		position+=4;
+		return v;
+	}
+
+	public long readFullLong() {
+		check(8);
+		long v=data.getFullLong(position);
+		position+=8;
+		return v;
+	}
+
+	public float readFloat() {
+		return Float.intBitsToFloat(readFullInt());
+	}
+
+	public double readDouble() {
+		return Double.longBitsToDouble(readFullLong());
+	}
+
+	/**
+	 * Reads the raw unsigned varint at the current position
+	 */
+	private long readRawVarLong(int maxShift) {
+		final byte[] dt=data.getInternalData();
+		final int limit=data.size();
+		long enc=0;
+		int shift=0;
+		int pos=position;
+		byte b;
+		do {
+			if (pos>=limit) throw new IndexOutOfBoundsException("Read past end of data at position "+pos);
+			if (shift>=maxShift) throw new IllegalArgumentException("Malformed varint at position "+position);
+			b=dt[pos++];
+			enc|=((long)(b&0x7F))<<shift;
+			shift+=7;
+		} while (b<0);
+		position=pos;
+		return enc;
+	}
+
+	public int readVarInt() {
+		return Bits.zigzagDecodeInt((int)readRawVarLong(35));
+	}
+
+	public long readVarLong() {
+		return Bits.zigzagDecodeLong(readRawVarLong(70));
+	}
+
+	public char readVarChar() {
+		return (char)readRawVarLong(21);
+	}
+
+	/**
+	 * Reads a varint count or length, checking that it is not negative
+	 */
+	public int readLength() {
+		int n=readVarInt();
+		if (n<0) throw new IllegalArgumentException("Negative length: "+n);
+		return n;
+	}
+
+	public String readString() {
+		int len=readLength();
+		char[] cs=new char[len];
+		for (int i=0; i<len; i++) {
+			cs[i]=readVarChar();
+		}
+		return new String(cs);
+	}
+
+	public void readBytes(byte[] dest, int offset, int length) {
+		check(length);
+		data.copyTo(position, dest, offset, length);
+		position+=length;
+	}
+
+	public void readInts(int[] dest, int offset, int length) {
+		data.getInts(position, dest, offset, length);
+		position+=length*4;
+	}
+
+	public void readLongs(long[] dest, int offset, int length) {
+		data.getLongs(position, dest, offset, length);
+		position+=length*8;
+	}
+
+	public void readFloats(float[] dest, int offset, int length) {
+		data.getFloats(position, dest, offset, length);
+		position+=length*4;
+	}
+
+	public void readDoubles(double[] dest, int offset, int length) {
+		data.getDoubles(position, dest, offset, length);
+		position+=length*8;
+	}
+
+	public void readVarInts(int[] dest, int offset, int length) {
+		position=data.getVarInts(position, dest, offset, length);
+	}
+
+	public void readVarLongs(long[] dest, int offset, int length) {
+		position=data.getVarLongs(position, dest, offset, length);
+	}
+}
@@ -0,0 +1,556 @@
+package mikera.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+import mikera.net.BufferCache;
+import mikera.util.Bits;
+import mikera.util.Maths;
+
+/**
+ * Zero-copy view of a block of bytes held in a ByteBuffer, typically a direct buffer
+ * or a slice of a memory mapped file.
+ *
+ * Provides the same accessors and encodings as Data, so records written with Data can be
+ * parsed in place. The wrapped bytes are never copied: subsets within the wrapped region
+ * share the same storage, and bytes appended after the wrapped region are written to
+ * fixed size chunks taken from the BufferCache. Call release() to return those chunks
+ * when the view is no longer needed.
+ *
+ * Big-endian format is used for numbers, as with Data.
+ *
+ * @author Mike Anderson
+ *
+ */
+public final class DataView implements Comparable<DataView> {
+	private static final int CHUNK_BITS=12;
+	private static final int CHUNK_SIZE=1<<CHUNK_BITS;
+	private static final int CHUNK_MASK=CHUNK_SIZE-1;
+	private static final ByteBuffer EMPTY_BUFFER=ByteBuffer.allocate(0);
+
+	private final ByteBuffer base;
+	private final int baseCount;
+	private ByteBuffer[] chunks=null;
+	private int chunkCount=0;
+	private int count;
+
+	/**
+	 * Creates a view, taking ownership of the given buffer. The buffer must have position 0
+	 * and its limit equal to the number of bytes in the view.
+	 */
+	private DataView(ByteBuffer base) {
+		this.base=base;
+		this.baseCount=base.limit();
+		this.count=baseCount;
+	}
+
+	/**
+	 * Creates an empty view, with all content held in pooled chunks
+	 */
+	public static DataView create() {
+		return new DataView(EMPTY_BUFFER);
+	}
+
+	/**
+	 * Creates a view of the remaining bytes of the given buffer, without copying.
+	 *
+	 * The position and limit of the buffer are not changed.
+	 */
+	public static DataView wrap(ByteBuffer bb) {
+		return new DataView(bb.slice());
+	}
+
+	/**
+	 * Creates a view sharing the internal storage of a Data object. The view is only valid
+	 * until the Data object is next modified.
+	 */
+	public static DataView wrap(Data d) {
+		return new DataView(ByteBuffer.wrap(d.getInternalData(),0,d.size()).slice());
+	}
+
+	/**
+	 * Memory maps a region of a file as a read-only view
+	 *
+	 * @param channel File channel to map
+	 * @param position Position in the file of the first byte
+	 * @param size Number of bytes to map, at most Integer.MAX_VALUE
+	 * @return
+	 * @throws IOException
+	 */
+	public static DataView map(FileChannel channel, long position, int size) throws IOException {
+		if (size<0) throw new IllegalArgumentException("Negative size: "+size);
+		return new DataView(channel.map(MapMode.READ_ONLY, position, size));
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns true if all bytes of this view are held in the wrapped buffer
+	 */
+	public boolean isContiguous() {
+		return count<=baseCount;
+	}
+
+	private void check(int pos, int len) {
+		if ((pos<0)||(pos+len>count)) throw new IndexOutOfBoundsException("Position "+pos+" length "+len+" out of bounds for size "+count);
+	}
+
+	private byte byteAt(int pos) {
+		if (pos<baseCount) return base.get(pos);
+		int offset=pos-baseCount;
+		return chunks[offset>>>CHUNK_BITS].get(offset&CHUNK_MASK);
+	}
+
+	private byte nextVarByte(int pos) {
+		if (pos>=count) throw new IndexOutOfBoundsException("Variable length value runs past end of data");
+		return byteAt(pos);
+	}
+
+	public byte getByte(int pos) {
+		check(pos,1);
+		return byteAt(pos);
+	}
+
+	public boolean getBoolean(int pos) {
+		return getByte(pos)!=0;
+	}
+
+	public int getInt(int pos) {
+		return getVarInt(pos);
+	}
+
+	public int getFullInt(int pos) {
+		check(pos,4);
+		if (pos+4<=baseCount) return base.getInt(pos);
+		return ((byteAt(pos)&255)<<24)
+			|((byteAt(pos+1)&255)<<16)
+			|((byteAt(pos+2)&255)<<8)
+			|(byteAt(pos+3)&255);
+	}
+
+	public char getChar(int pos) {
+		return getVarChar(pos);
+	}
+
+	public char getFullChar(int pos) {
+		return (char)getShort(pos);
+	}
+
+	public short getShort(int pos) {
+		check(pos,2);
+		if (pos+2<=baseCount) return base.getShort(pos);
+		return (short)(((byteAt(pos)&255)<<8)|(byteAt(pos+1)&255));
+	}
+
+	public float getFloat(int pos) {
+		return Float.intBitsToFloat(getFullInt(pos));
+	}
+
+	public long getLong(int pos) {
+		return getVarLong(pos);
+	}
+
+	public long getFullLong(int pos) {
+		check(pos,8);
+		if (pos+8<=baseCount) return base.getLong(pos);
+		long lv=(getFullInt(pos+4))&0xFFFFFFFFl;
+		lv^=((long)getFullInt(pos))<<32;
+		return lv;
+	}
+
+	public double getDouble(int pos) {
+		return Double.longBitsToDouble(getFullLong(pos));
+	}
+
+	public char getVarChar(int pos) {
+		char enc=0;
+		byte b=nextVarByte(pos++);
+		int shift=0;
+		while ((b&0x80)!=0) {
+			enc|=((char)(b&0x7F))<<shift;
+			b=nextVarByte(pos++);
+			shift+=7;
+		}
+		enc|=(b)<<shift;
+		return enc;
+	}
+
+	public int getVarInt(int pos) {
+		int enc=0;
+		byte b=nextVarByte(pos++);
+		int shift=0;
+		while ((b&0x80)!=0) {
+			enc|=((b&0x7F))<<shift;
+			b=nextVarByte(pos++);
+			shift+=7;
+		}
+		enc|=(b)<<shift;
+		return Bits.zigzagDecodeInt(enc);
+	}
+
+	public long getVarLong(int pos) {
+		long enc=0;
+		byte b=nextVarByte(pos++);
+		int shift=0;
+		while ((b&0x80)!=0) {
+			enc|=((long)(b&0x7F))<<shift;
+			b=nextVarByte(pos++);
+			shift+=7;
+		}
+		enc|=((long)b)<<shift;
+		return Bits.zigzagDecodeLong(enc);
+	}
+
+	public String getString(int pos) {
+		return new String(getCharArray(pos));
+	}
+
+	public char[] getCharArray(int pos) {
+		int len=getInt(pos);
+		pos+=Data.sizeOfInt(len);
+
+		char[] cs=new char[len];
+		for (int i=0; i<len; i++) {
+			char c=getChar(pos);
+			pos+=Data.sizeOfChar(c);
+			cs[i]=c;
+		}
+		return cs;
+	}
+
+	/* ****************************************
+	 * Appending
+	 *
+	 * Appended bytes always go to pooled chunks, so
+	 * the wrapped buffer is never modified
+	 */
+
+	private void ensureCapacity(int len) {
+		int needed=len-baseCount;
+		while ((chunkCount<<CHUNK_BITS)<needed) {
+			if (chunks==null) {
+				chunks=new ByteBuffer[4];
+			} else if (chunkCount==chunks.length) {
+				chunks=Arrays.copyOf(chunks, chunkCount*2);
+			}
+			chunks[chunkCount++]=BufferCache.instance().getBuffer(CHUNK_SIZE);
+		}
+	}
+
+	private void putAt(int pos, byte b) {
+		int offset=pos-baseCount;
+		chunks[offset>>>CHUNK_BITS].put(offset&CHUNK_MASK, b);
+	}
+
+	public int appendByte(byte b) {
+		ensureCapacity(count+1);
+		putAt(count++,b);
+		return 1;
+	}
+
+	public int appendBoolean(boolean b) {
+		return appendByte((byte)(b?1:0));
+	}
+
+	public int appendInt(int v) {
+		return appendVarInt(v);
+	}
+
+	public int appendFullInt(int v) {
+		int pos=count;
+		ensureCapacity(pos+4);
+		int offset=pos-baseCount;
+		if ((offset&CHUNK_MASK)<=CHUNK_SIZE-4) {
+			chunks[offset>>>CHUNK_BITS].putInt(offset&CHUNK_MASK, v);
+		} else {
+			putAt(pos,(byte)(v>>>24));
+			putAt(pos+1,(byte)(v>>>16));
+			putAt(pos+2,(byte)(v>>>8));
+			putAt(pos+3,(byte)(v));
+		}
+		count+=4;
+		return 4;
+	}
+
+	public int appendShort(short v) {
+		int pos=count;
+		ensureCapacity(pos+2);
+		putAt(pos,(byte)(v>>>8));
+		putAt(pos+1,(byte)(v));
+		count+=2;
+		return 2;
+	}
+
+	public int appendChar(char v) {
+		return appendVarChar(v);
+	}
+
+	public int appendFullChar(char v) {
+		return appendShort((short)v);
+	}
+
+	public int appendFloat(float v) {
+		return appendFullInt(Float.floatToIntBits(v));
+	}
+
+	public int appendDouble(double v) {
+		return appendFullLong(Double.doubleToLongBits(v));
+	}
+
+	public int appendLong(long v) {
+		return appendVarLong(v);
+	}
+
+	public int appendFullLong(long lv) {
+		appendFullInt((int)(lv>>32));
+		appendFullInt((int)(lv));
+		return 8;
+	}
+
+	public int appendVarChar(char c) {
+		int size=Data.sizeOfVarChar(c);
+		ensureCapacity(count+size);
+		int pos=count;
+		while ((c&(~0x7F))!=0) {
+			putAt(pos++,(byte)(c|0x80));
+			c>>>=7;
+		}
+		putAt(pos,(byte)(c&0x7F));
+		count+=size;
+		return size;
+	}
+
+	public int appendVarInt(int i) {
+		int size=Data.sizeOfVarInt(i);
+		ensureCapacity(count+size);
+		int enc=Bits.zigzagEncodeInt(i);
+		int pos=count;
+		while ((enc&(~0x7F))!=0) {
+			putAt(pos++,(byte)(enc|0x80));
+			enc>>>=7;
+		}
+		putAt(pos,(byte)(enc&0x7F));
+		count+=size;
+		return size;
+	}
+
+	public int appendVarLong(long i) {
+		int size=Data.sizeOfVarLong(i);
+		ensureCapacity(count+size);
+		long enc=Bits.zigzagEncodeLong(i);
+		int pos=count;
+		while ((enc&(~0x7FL))!=0) {
+			putAt(pos++,(byte)(enc|0x80));
+			enc>>>=7;
+		}
+		putAt(pos,(byte)(enc&0x7F));
+		count+=size;
+		return size;
+	}
+
+	public int appendString(CharSequence cs) {
+		int len=cs.length();
+		int size=appendInt(len);
+		for (int i=0; i<len; i++) {
+			size+=appendChar(cs.charAt(i));
+		}
+		return size;
+	}
+
+	public int append(byte[] bs, int offset, int len) {
+		ensureCapacity(count+len);
+		int pos=count;
+		int end=offset+len;
+		while (offset<end) {
+			int chunkOffset=(pos-baseCount)&CHUNK_MASK;
+			int n=Math.min(end-offset, CHUNK_SIZE-chunkOffset);
+			ByteBuffer chunk=chunks[(pos-baseCount)>>>CHUNK_BITS].duplicate();
+			chunk.position(chunkOffset);
+			chunk.put(bs, offset, n);
+			offset+=n;
+			pos+=n;
+		}
+		count+=len;
+		return len;
+	}
+
+	public int append(Data d) {
+		return append(d.getInternalData(),0,d.size());
+	}
+
+	/**
+	 * Appends the remaining bytes of a ByteBuffer, leaving its position unchanged
+	 */
+	public int appendByteBuffer(ByteBuffer bb) {
+		int len=bb.remaining();
+		ensureCapacity(count+len);
+		ByteBuffer src=bb.duplicate();
+		int pos=count;
+		while (src.hasRemaining()) {
+			int chunkOffset=(pos-baseCount)&CHUNK_MASK;
+			int n=Math.min(src.remaining(), CHUNK_SIZE-chunkOffset);
+			ByteBuffer chunk=chunks[(pos-baseCount)>>>CHUNK_BITS].duplicate();
+			chunk.position(chunkOffset);
+			src.limit(src.position()+n);
+			chunk.put(src);
+			src.limit(bb.limit());
+			pos+=n;
+		}
+		count+=len;
+		return len;
+	}
+
+	/* ****************************************
+	 * Views and copies
+	 */
+
+	/**
+	 * Returns a view of a range of this view. Ranges within the wrapped buffer share
+	 * storage with this view, other ranges are copied.
+	 */
+	public DataView subset(int start, int end) {
+		if ((start<0)||(end>count)||(start>end)) throw new IllegalArgumentException();
+		if (end<=baseCount) {
+			ByteBuffer bb=base.duplicate();
+			bb.limit(end);
+			bb.position(start);
+			return new DataView(bb.slice());
+		}
+		DataView result=create();
+		result.ensureCapacity(end-start);
+		ByteBuffer[] bbs=toByteBuffers(start,end);
+		for (ByteBuffer bb: bbs) {
+			result.appendByteBuffer(bb);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns read-only buffers covering the given range, suitable for a gathering write.
+	 * The buffers share storage with this view.
+	 */
+	public ByteBuffer[] toByteBuffers(int start, int end) {
+		if ((start<0)||(end>count)||(start>end)) throw new IllegalArgumentException();
+		int n=0;
+		ByteBuffer[] result=new ByteBuffer[2+Math.max(0,(end-baseCount)>>CHUNK_BITS)];
+		int pos=start;
+		if (pos<baseCount) {
+			ByteBuffer bb=base.asReadOnlyBuffer();
+			bb.limit(Math.min(end,baseCount));
+			bb.position(pos);
+			result[n++]=bb;
+			pos=bb.limit();
+		}
+		while (pos<end) {
+			int offset=pos-baseCount;
+			int chunkOffset=offset&CHUNK_MASK;
+			int len=Math.min(end-pos, CHUNK_SIZE-chunkOffset);
+			ByteBuffer bb=chunks[offset>>>CHUNK_BITS].asReadOnlyBuffer();
+			bb.limit(chunkOffset+len);
+			bb.position(chunkOffset);
+			result[n++]=bb;
+			pos+=len;
+		}
+		return (n==result.length)?result:Arrays.copyOf(result, n);
+	}
+
+	public ByteBuffer[] toByteBuffers() {
+		return toByteBuffers(0,count);
+	}
+
+	public void copyTo(int pos, byte[] dest, int destOffset, int len) {
+		check(pos,len);
+		for (ByteBuffer bb: toByteBuffers(pos,pos+len)) {
+			int n=bb.remaining();
+			bb.get(dest, destOffset, n);
+			destOffset+=n;
+		}
+	}
+
+	public void writeToByteBuffer(ByteBuffer dest) {
+		for (ByteBuffer bb: toByteBuffers()) {
+			dest.put(bb);
+		}
+	}
+
+	/**
+	 * Creates a heap Data object containing a copy of this view
+	 */
+	public Data toData() {
+		byte[] bs=new byte[count];
+		copyTo(0,bs,0,count);
+		return Data.wrap(bs);
+	}
+
+	public byte[] toNewByteArray() {
+		byte[] bs=new byte[count];
+		copyTo(0,bs,0,count);
+		return bs;
+	}
+
+	/**
+	 * Returns any appended chunks to the BufferCache, truncating the view to the
+	 * wrapped buffer contents
+	 */
+	public void release() {
+		for (int i=0; i<chunkCount; i++) {
+			BufferCache.recycle(chunks[i]);
+			chunks[i]=null;
+		}
+		chunkCount=0;
+		count=baseCount;
+	}
+
+	@Override
+	public int hashCode() {
+		int result=0;
+		for(int i=0; i<count; i++) {
+			result^=byteAt(i);
+			result=Integer.rotateRight(result, 1);
+		}
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof DataView) {
+			DataView d=(DataView)o;
+			return (d.count==count)&&(compareTo(d)==0);
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if this view has the same content as the given Data object
+	 */
+	public boolean contentEquals(Data d) {
+		if (d.size()!=count) return false;
+		byte[] bs=d.getInternalData();
+		for (int i=0; i<count; i++) {
+			if (bs[i]!=byteAt(i)) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int compareTo(DataView d) {
+		int n=Maths.min(count, d.count);
+		for (int i=0; i<n; i++) {
+			int bd=byteAt(i)-d.byteAt(i);
+			if (bd!=0) return bd;
+		}
+		if (count<d.count) return -1;
+		if (count>d.count) return 1;
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return toData().toString();
+	}
+}
@@ -0,0 +1,20 @@
+package mikera.data;
+
+/**
+ * Interface for mutable objects that write their own state to a Serializer
+ * 
+ * @author Mike Anderson
+ *
+ */
+public interface Encodable {
+	/**
+	 * Writes the state of this object
+	 */
+	public void encode(Serializer s);
+
+	/**
+	 * Replaces the state of this object with state written by encode(), reusing existing
+	 * storage where possible
+	 */
+	public void decode(Serializer s);
+}
@@ -0,0 +1,186 @@
+package mikera.data;
+
+import java.util.Arrays;
+
+/**
+ * Pure Java implementation of the LZ4 block format
+ *
+ * Uses a single pass greedy match finder with a small hash table, favouring speed
+ * over compression ratio. Output can be decompressed by any LZ4 block decoder.
+ *
+ * @author Mike Anderson
+ *
+ */
+public final class LZ4 {
+	private static final int MIN_MATCH=4;
+	private static final int LAST_LITERALS=5;
+	private static final int MF_LIMIT=12;
+	private static final int MIN_LENGTH=MF_LIMIT+1;
+	private static final int MAX_DISTANCE=65535;
+	private static final int HASH_BITS=12;
+
+	private LZ4() {
+		// static methods only
+	}
+
+	/**
+	 * Returns the maximum compressed size for an input of the given length
+	 */
+	public static int maxCompressedLength(int length) {
+		return length+(length/255)+16;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i]&255)|((b[i+1]&255)<<8)|((b[i+2]&255)<<16)|((b[i+3]&255)<<24);
+	}
+
+	private static int hash(int seq) {
+		return (seq*-1640531535)>>>(32-HASH_BITS);
+	}
+
+	/**
+	 * Compresses a block of bytes
+	 *
+	 * @param src Source array
+	 * @param srcOff Offset of the first byte to compress
+	 * @param srcLen Number of bytes to compress
+	 * @param dst Destination array, with at least maxCompressedLength(srcLen) bytes available
+	 * @param dstOff Offset in the destination at which to write
+	 * @return Number of compressed bytes written
+	 */
+	public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+		int srcEnd=srcOff+srcLen;
+		int anchor=srcOff;
+		int op=dstOff;
+
+		if (srcLen>=MIN_LENGTH) {
+			int[] table=new int[1<<HASH_BITS];
+			Arrays.fill(table, -1);
+			int mfLimit=srcEnd-MF_LIMIT;
+			int matchLimit=srcEnd-LAST_LITERALS;
+			int ip=srcOff;
+			while (ip<mfLimit) {
+				int seq=readInt(src,ip);
+				int h=hash(seq);
+				int ref=table[h];
+				table[h]=ip;
+				if ((ref<0)||(ip-ref>MAX_DISTANCE)||(readInt(src,ref)!=seq)) {
+					ip++;
+					continue;
+				}
+
+				// extend the match backwards over pending literals, then forwards
+				while ((ip>anchor)&&(ref>srcOff)&&(src[ip-1]==src[ref-1])) {
+					ip--;
+					ref--;
+				}
+				int len=MIN_MATCH;
+				while ((ip+len<matchLimit)&&(src[ip+len]==src[ref+len])) {
+					len++;
+				}
+
+				op=writeSequence(src,anchor,ip-anchor,dst,op,ip-ref,len);
+				ip+=len;
+				anchor=ip;
+				if (ip<mfLimit) table[hash(readInt(src,ip-2))]=ip-2;
+			}
+		}
+
+		// final literals
+		int litLen=srcEnd-anchor;
+		dst[op++]=(byte)(Math.min(litLen,15)<<4);
+		if (litLen>=15) op=writeLength(dst,op,litLen-15);
+		System.arraycopy(src, anchor, dst, op, litLen);
+		op+=litLen;
+		return op-dstOff;
+	}
+
+	private static int writeSequence(byte[] src, int litStart, int litLen, byte[] dst, int op, int offset, int matchLen) {
+		int ml=matchLen-MIN_MATCH;
+		dst[op++]=(byte)((Math.min(litLen,15)<<4)|Math.min(ml,15));
+		if (litLen>=15) op=writeLength(dst,op,litLen-15);
+		System.arraycopy(src, litStart, dst, op, litLen);
+		op+=litLen;
+		dst[op++]=(byte)offset;
+		dst[op++]=(byte)(offset>>>8);
+		if (ml>=15) op=writeLength(dst,op,ml-15);
+		return op;
+	}
+
+	private static int writeLength(byte[] dst, int op, int n) {
+		while (n>=255) {
+			dst[op++]=(byte)255;
+			n-=255;
+		}
+		dst[op++]=(byte)n;
+		return op;
+	}
+
+	/**
+	 * Decompresses a block of bytes, checking that the input is well formed
+	 *
+	 * @param src Source array
+	 * @param srcOff Offset of the compressed block
+	 * @param srcLen Length of the compressed block
+	 * @param dst Destination array
+	 * @param dstOff Offset in the destination at which to write
+	 * @param dstLen Maximum number of bytes to write
+	 * @return Number of decompressed bytes written
+	 * @throws IllegalArgumentException if the input is malformed or does not fit in the destination
+	 */
+	public static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+		int ip=srcOff;
+		int srcEnd=srcOff+srcLen;
+		int op=dstOff;
+		int dstEnd=dstOff+dstLen;
+
+		while (true) {
+			if (ip>=srcEnd) throw new IllegalArgumentException("Truncated LZ4 block");
+			int token=src[ip++]&255;
+
+			int litLen=token>>>4;
+			if (litLen==15) {
+				int b;
+				do {
+					if (ip>=srcEnd) throw new IllegalArgumentException("Truncated LZ4 block");
+					b=src[ip++]&255;
+					litLen+=b;
+				} while (b==255);
+			}
+			if ((litLen>srcEnd-ip)||(litLen>dstEnd-op)) throw new IllegalArgumentException("LZ4 literals out of bounds");
+			System.arraycopy(src, ip, dst, op, litLen);
+			ip+=litLen;
+			op+=litLen;
+			if (ip==srcEnd) break; // last sequence has no match
+
+			if (ip+2>srcEnd) throw new IllegalArgumentException("Truncated LZ4 block");
+			int offset=(src[ip]&255)|((src[ip+1]&255)<<8);
+			ip+=2;
+			if ((offset==0)||(offset>op-dstOff)) throw new IllegalArgumentException("Invalid LZ4 match offset "+offset);
+
+			int matchLen=token&15;
+			if (matchLen==15) {
+				int b;
+				do {
+					if (ip>=srcEnd) throw new IllegalArgumentException("Truncated LZ4 block");
+					b=src[ip++]&255;
+					matchLen+=b;
+				} while (b==255);
+			}
+			matchLen+=MIN_MATCH;
+			if (matchLen>dstEnd-op) throw new IllegalArgumentException("LZ4 match out of bounds");
+
+			int ref=op-offset;
+			if (offset>=matchLen) {
+				System.arraycopy(dst, ref, dst, op, matchLen);
+				op+=matchLen;
+			} else {
+				// overlapping copy repeats the last offset bytes
+				for (int i=0; i<matchLen; i++) {
+					dst[op++]=dst[ref++];
+				}
+			}
+		}
+		return op-dstOff;
+	}
+}
@@ -0,0 +1,398 @@
+package mikera.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store of Data records in memory-mapped segment files
+ *
+ * Records are written into fixed size segment files in a directory. Each record is framed
+ * with its length and a CRC32 checksum of its contents, and is identified by a long
+ * address that never changes, so any record can be read in O(1) time without scanning.
+ * The store also keeps an index from record number to address, which is saved to disk by
+ * flush().
+ *
+ * Segment contents live outside the Java heap and are paged by the operating system, so
+ * the store can be much larger than the heap. Nothing is durable until flush() returns.
+ *
+ * On opening, the saved index is loaded and only the records appended after the last
+ * flush are scanned and checked. Scanning stops at the first incomplete or corrupt
+ * record, which is assumed to be a write torn by a crash and is discarded along with
+ * anything after it.
+ *
+ * Appends and flushes are synchronized. Reads may run concurrently with appends.
+ *
+ * @author Mike Anderson
+ *
+ */
+public final class SegmentStore implements Closeable {
+	public static final int DEFAULT_SEGMENT_SIZE=64*1024*1024;
+
+	/**
+	 * Size of the length and checksum header before each record
+	 */
+	public static final int HEADER_LENGTH=8;
+
+	private static final String SEGMENT_SUFFIX=".seg";
+	private static final String INDEX_FILE="store.idx";
+
+	private final File directory;
+	private final int segmentSize;
+	private final ArrayList<MappedByteBuffer> segments=new ArrayList<MappedByteBuffer>();
+	private final FileChannel indexChannel;
+
+	private volatile long[] index=new long[16];
+	private volatile int count=0;
+	private long end=0;
+	private int indexed=0;
+	private int firstDirtySegment=0;
+	private boolean closed=false;
+
+	/**
+	 * Opens the store in the given directory with the default segment size, creating it
+	 * if necessary
+	 */
+	public SegmentStore(File directory) throws IOException {
+		this(directory,DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens the store in the given directory, creating it if necessary. The segment size
+	 * must be the same each time a store is opened, and limits the size of a single record.
+	 */
+	public SegmentStore(File directory, int segmentSize) throws IOException {
+		if (segmentSize<=HEADER_LENGTH) throw new IllegalArgumentException("Segment size too small: "+segmentSize);
+		if (!directory.isDirectory()&&!directory.mkdirs()) throw new IOException("Unable to create directory "+directory);
+		this.directory=directory;
+		this.segmentSize=segmentSize;
+		indexChannel=new RandomAccessFile(new File(directory,INDEX_FILE),"rw").getChannel();
+		try {
+			recover();
+		} catch (IOException e) {
+			indexChannel.close();
+			throw e;
+		}
+	}
+
+	/* ****************************************
+	 * Recovery
+	 */
+
+	private void recover() throws IOException {
+		int n=segmentFileCount();
+		for (int i=0; i<n; i++) {
+			File f=segmentFile(i);
+			if (f.length()!=segmentSize) throw new IOException("Segment "+f+" does not match segment size "+segmentSize);
+			segments.add(map(f));
+		}
+
+		loadIndex();
+		if (count>0) {
+			long last=index[count-1];
+			int len=checkRecord(last);
+			if (len<0) {
+				// the saved index is not consistent with the segments, so rebuild it
+				count=0;
+			} else {
+				end=last+HEADER_LENGTH+len;
+			}
+		}
+		indexed=count;
+
+		scanTail();
+
+		// discard segments that hold no records
+		int used=(int)(end/segmentSize)+1;
+		while (segments.size()>used) {
+			int last=segments.size()-1;
+			segments.remove(last);
+			if (!segmentFile(last).delete()) throw new IOException("Unable to delete empty segment "+segmentFile(last));
+		}
+		indexChannel.truncate(indexed*8L);
+		firstDirtySegment=segmentNumber(end);
+	}
+
+	private void loadIndex() throws IOException {
+		long size=indexChannel.size();
+		int n=(int)Math.min(size/8,Integer.MAX_VALUE);
+		if (n==0) return;
+		ByteBuffer bb=ByteBuffer.allocate(n*8);
+		indexChannel.position(0);
+		while (bb.hasRemaining()) {
+			if (indexChannel.read(bb)<0) break;
+		}
+		bb.flip();
+		long[] addresses=new long[Math.max(16,n)];
+		bb.asLongBuffer().get(addresses, 0, n);
+		index=addresses;
+		count=n;
+	}
+
+	/**
+	 * Scans forward from the end of the last known record, adding valid records to the
+	 * index and clearing any torn record found at the end
+	 */
+	private void scanTail() {
+		while (true) {
+			int seg=segmentNumber(end);
+			if (seg>=segments.size()) return;
+			int offset=segmentOffset(end);
+			int len=(offset+HEADER_LENGTH<=segmentSize)?segments.get(seg).getInt(offset):0;
+			if (len==0) {
+				// the writer may have moved on to the next segment
+				long next=(seg+1L)*segmentSize;
+				if ((seg+1<segments.size())&&(checkRecord(next)>0)) {
+					end=next;
+					continue;
+				}
+				return;
+			}
+			if (checkRecord(end)<0) {
+				clear(seg,offset);
+				return;
+			}
+			addIndex(end);
+			end+=HEADER_LENGTH+len;
+		}
+	}
+
+	/**
+	 * Validates the record at the given address
+	 *
+	 * @return The length of the record, or -1 if the record is not valid
+	 */
+	private int checkRecord(long address) {
+		int seg=segmentNumber(address);
+		if ((address<0)||(seg>=segments.size())) return -1;
+		int offset=segmentOffset(address);
+		if (offset+HEADER_LENGTH>segmentSize) return -1;
+		ByteBuffer bb=segments.get(seg).duplicate();
+		int len=bb.getInt(offset);
+		if ((len<=0)||(len>segmentSize-HEADER_LENGTH-offset)) return -1;
+		int check=bb.getInt(offset+4);
+		byte[] bytes=new byte[len];
+		bb.position(offset+HEADER_LENGTH);
+		bb.get(bytes);
+		if (checksum(bytes,0,len)!=check) return -1;
+		return len;
+	}
+
+	private void clear(int seg, int offset) {
+		ByteBuffer bb=segments.get(seg).duplicate();
+		bb.position(offset);
+		byte[] zeros=new byte[Math.min(bb.remaining(),65536)];
+		while (bb.hasRemaining()) {
+			bb.put(zeros, 0, Math.min(bb.remaining(),zeros.length));
+		}
+	}
+
+	/* ****************************************
+	 * Writing
+	 */
+
+	/**
+	 * Appends a record to the store
+	 *
+	 * @return The address of the new record
+	 */
+	public long append(Data d) throws IOException {
+		return append(d.getInternalData(),0,d.size());
+	}
+
+	/**
+	 * Appends a record to the store
+	 *
+	 * @return The address of the new record
+	 */
+	public synchronized long append(byte[] bytes, int offset, int length) throws IOException {
+		if (closed) throw new IllegalStateException("Store is closed");
+		if ((length<=0)||(length>segmentSize-HEADER_LENGTH)) throw new IllegalArgumentException("Invalid record length: "+length);
+		if ((offset<0)||(offset+length>bytes.length)) throw new IndexOutOfBoundsException("Range "+offset+"+"+length+" outside array of length "+bytes.length);
+		int pos=segmentOffset(end);
+		if (pos+HEADER_LENGTH+length>segmentSize) {
+			end=(segmentNumber(end)+1L)*segmentSize;
+			pos=0;
+		}
+		int seg=segmentNumber(end);
+		while (segments.size()<=seg) {
+			segments.add(map(segmentFile(segments.size())));
+		}
+
+		ByteBuffer bb=segments.get(seg).duplicate();
+		bb.position(pos+HEADER_LENGTH);
+		bb.put(bytes, offset, length);
+		bb.putInt(pos+4, checksum(bytes,offset,length));
+		bb.putInt(pos, length);
+
+		long address=end;
+		addIndex(address);
+		end+=HEADER_LENGTH+length;
+		return address;
+	}
+
+	private void addIndex(long address) {
+		long[] addresses=index;
+		if (count>=addresses.length) {
+			addresses=Arrays.copyOf(addresses, addresses.length*2);
+		}
+		addresses[count]=address;
+		index=addresses;
+		count++;
+	}
+
+	/**
+	 * Forces all appended records and the index to disk
+	 */
+	public synchronized void flush() throws IOException {
+		if (closed) throw new IllegalStateException("Store is closed");
+		for (int i=firstDirtySegment; i<segments.size(); i++) {
+			segments.get(i).force();
+		}
+		firstDirtySegment=segmentNumber(end);
+
+		int n=count-indexed;
+		if (n>0) {
+			ByteBuffer bb=ByteBuffer.allocate(n*8);
+			bb.asLongBuffer().put(index, indexed, n);
+			long pos=indexed*8L;
+			while (bb.hasRemaining()) {
+				pos+=indexChannel.write(bb, pos);
+			}
+			indexChannel.force(false);
+			indexed=count;
+		}
+	}
+
+	/**
+	 * Flushes and closes the store. Reads are not possible after closing.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) return;
+		try {
+			flush();
+		} finally {
+			closed=true;
+			segments.clear();
+			indexChannel.close();
+		}
+	}
+
+	/* ****************************************
+	 * Reading
+	 */
+
+	/**
+	 * Returns the number of records in the store
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the address of the record with the given number, in O(1) time
+	 */
+	public long address(int i) {
+		int n=count;
+		long[] addresses=index;
+		if ((i<0)||(i>=n)) throw new IndexOutOfBoundsException("Record "+i+" outside store of size "+n);
+		return addresses[i];
+	}
+
+	/**
+	 * Returns the total number of bytes used in all segments, including record headers
+	 * and unused space at the end of each full segment
+	 */
+	public synchronized long getEndAddress() {
+		return end;
+	}
+
+	/**
+	 * Reads the record with the given number
+	 */
+	public Data get(int i) {
+		return read(address(i));
+	}
+
+	/**
+	 * Reads the record at the given address
+	 */
+	public Data read(long address) {
+		Data d=new Data();
+		read(address,d);
+		return d;
+	}
+
+	/**
+	 * Reads the record at the given address into a Data object, replacing its contents.
+	 * The checksum of the record is verified.
+	 */
+	public void read(long address, Data dest) {
+		ByteBuffer bb=segmentFor(address).duplicate();
+		int offset=segmentOffset(address);
+		if (offset+HEADER_LENGTH>segmentSize) throw new IllegalArgumentException("Invalid record address: "+address);
+		int len=bb.getInt(offset);
+		if ((len<=0)||(len>segmentSize-HEADER_LENGTH-offset)) throw new IllegalArgumentException("Invalid record address: "+address);
+		dest.clearContents();
+		dest.put(len-1, (byte)0);
+		byte[] bytes=dest.getInternalData();
+		bb.position(offset+HEADER_LENGTH);
+		bb.get(bytes, 0, len);
+		if (checksum(bytes,0,len)!=bb.getInt(offset+4)) throw new IllegalArgumentException("Checksum failure for record at address "+address);
+	}
+
+	/* ****************************************
+	 * Segment handling
+	 */
+
+	private ByteBuffer segmentFor(long address) {
+		int seg=segmentNumber(address);
+		synchronized (this) {
+			if (closed) throw new IllegalStateException("Store is closed");
+			if ((address<0)||(address>=end)) throw new IllegalArgumentException("Invalid record address: "+address);
+			return segments.get(seg);
+		}
+	}
+
+	private int segmentNumber(long address) {
+		return (int)(address/segmentSize);
+	}
+
+	private int segmentOffset(long address) {
+		return (int)(address%segmentSize);
+	}
+
+	private File segmentFile(int i) {
+		return new File(directory,String.format("%08d",i)+SEGMENT_SUFFIX);
+	}
+
+	private int segmentFileCount() {
+		int n=0;
+		while (segmentFile(n).exists()) n++;
+		return n;
+	}
+
+	private MappedByteBuffer map(File f) throws IOException {
+		RandomAccessFile raf=new RandomAccessFile(f,"rw");
+		try {
+			// the mapping remains valid after the file is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static int checksum(byte[] bytes, int offset, int length) {
+		CRC32 c=new CRC32();
+		c.update(bytes, offset, length);
+		return (int)c.getValue();
+	}
+}
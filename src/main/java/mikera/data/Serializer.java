@@ -0,0 +1,724 @@
+package mikera.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import mikera.engine.ArrayGrid;
+import mikera.engine.BitGrid;
+import mikera.engine.ByteGrid;
+import mikera.engine.Grid;
+import mikera.engine.IBlockVisitor;
+import mikera.engine.IntGrid;
+import mikera.engine.PaletteGrid;
+import mikera.engine.PersistentTreeGrid;
+import mikera.engine.ShortGrid;
+import mikera.engine.SparseGrid;
+import mikera.engine.TreeGrid;
+import mikera.persistent.IntMap;
+import mikera.persistent.IntSet;
+import mikera.persistent.ListFactory;
+import mikera.persistent.PersistentHashMap;
+import mikera.persistent.PersistentList;
+import mikera.persistent.Text;
+import mikera.persistent.TextBuilder;
+
+/**
+ * Compact binary serializer for object graphs, writing into Data
+ *
+ * Each value is written as a varint type id followed by the output of the Codec registered
+ * for its type. Codecs write integers as varints and write nested values directly into
+ * the same Data, so no intermediate buffers or streams are created. Native codecs are
+ * built in for boxed primitives, Strings, Text, Data, the persistent collections and the
+ * grid classes. Applications register codecs for their own classes with ids from
+ * FIRST_USER_TYPE_ID upwards.
+ *
+ * Reading can reuse existing instances of mutable types, such as grids, so that repeatedly
+ * decoding snapshots into the same objects creates little garbage.
+ *
+ * Object identity is not preserved: an object referenced twice is written twice.
+ * A Serializer holds the current read position, so it is not thread safe.
+ *
+ * @author Mike Anderson
+ *
+ */
+public final class Serializer {
+	public static final int NULL_TYPE_ID=0;
+	public static final int FIRST_USER_TYPE_ID=64;
+
+	private static final class Registration {
+		private final int id;
+		private final Class<?> type;
+		private final Codec<Object> codec;
+
+		private Registration(int id, Class<?> type, Codec<Object> codec) {
+			this.id=id;
+			this.type=type;
+			this.codec=codec;
+		}
+	}
+
+	private final ArrayList<Registration> byId=new ArrayList<Registration>();
+	private final ArrayList<Registration> registrations=new ArrayList<Registration>();
+	private final HashMap<Class<?>,Registration> byClass=new HashMap<Class<?>,Registration>();
+
+	private Data output;
+	private final DataCursor cursor=new DataCursor(new Data());
+
+	public Serializer() {
+		registerBuiltins();
+	}
+
+	/**
+	 * Registers a codec for a type and all its subtypes. Lookup prefers an exact match on the
+	 * class of a value, then the earliest registered supertype.
+	 *
+	 * @param typeId Id written before each value of this type
+	 */
+	@SuppressWarnings("unchecked")
+	public void register(int typeId, Class<?> type, Codec<?> codec) {
+		if (typeId<=NULL_TYPE_ID) throw new IllegalArgumentException("Invalid type id: "+typeId);
+		if ((typeId<byId.size())&&(byId.get(typeId)!=null)) throw new IllegalArgumentException("Type id already registered: "+typeId);
+		Registration r=new Registration(typeId,type,(Codec<Object>)codec);
+		while (byId.size()<=typeId) {
+			byId.add(null);
+		}
+		byId.set(typeId, r);
+		registrations.add(r);
+		// clear any cached supertype lookups that the new registration may override
+		byClass.clear();
+		for (Registration reg: registrations) {
+			byClass.put(reg.type, reg);
+		}
+	}
+
+	/**
+	 * Registers a mutable type that encodes itself. The factory creates instances to decode
+	 * into when no instance is available for reuse.
+	 */
+	public <T extends Encodable> void registerEncodable(int typeId, Class<T> type, final Supplier<T> factory) {
+		register(typeId, type, new Codec<T>() {
+			@Override
+			public void write(Serializer s, T value) {
+				value.encode(s);
+			}
+
+			@Override
+			public T read(Serializer s, T reuse) {
+				T result=(reuse!=null)?reuse:factory.get();
+				result.decode(s);
+				return result;
+			}
+		});
+	}
+
+	private Registration lookup(Class<?> c) {
+		Registration r=byClass.get(c);
+		if (r!=null) return r;
+		for (Registration reg: registrations) {
+			if (reg.type.isAssignableFrom(c)) {
+				byClass.put(c, reg);
+				return reg;
+			}
+		}
+		throw new IllegalArgumentException("No codec registered for "+c.getName());
+	}
+
+	/* ****************************************
+	 * Writing
+	 */
+
+	/**
+	 * Appends an object to the given Data
+	 *
+	 * @return The number of bytes written
+	 */
+	public int write(Data out, Object o) {
+		Data old=output;
+		output=out;
+		try {
+			int start=out.size();
+			writeObject(o);
+			return out.size()-start;
+		} finally {
+			output=old;
+		}
+	}
+
+	/**
+	 * Returns the Data currently being written to
+	 */
+	public Data getOutput() {
+		return output;
+	}
+
+	public void writeObject(Object o) {
+		if (o==null) {
+			output.appendVarInt(NULL_TYPE_ID);
+			return;
+		}
+		Registration r=lookup(o.getClass());
+		output.appendVarInt(r.id);
+		r.codec.write(this, o);
+	}
+
+	public void writeVarInt(int v) {
+		output.appendVarInt(v);
+	}
+
+	public void writeVarLong(long v) {
+		output.appendVarLong(v);
+	}
+
+	public void writeFullInt(int v) {
+		output.appendFullInt(v);
+	}
+
+	public void writeFullLong(long v) {
+		output.appendFullLong(v);
+	}
+
+	public void writeDouble(double v) {
+		output.appendDouble(v);
+	}
+
+	public void writeFloat(float v) {
+		output.appendFloat(v);
+	}
+
+	public void writeBoolean(boolean v) {
+		output.appendBoolean(v);
+	}
+
+	public void writeByte(byte v) {
+		output.appendByte(v);
+	}
+
+	public void writeString(CharSequence cs) {
+		output.appendString(cs);
+	}
+
+	/* ****************************************
+	 * Reading
+	 */
+
+	/**
+	 * Reads an object from the given position in a Data
+	 */
+	public Object read(Data in, int pos) {
+		return read(in,pos,null);
+	}
+
+	/**
+	 * Reads an object from the given position in a Data, reusing the given instance if it
+	 * is of the type read and its type supports reuse
+	 */
+	public <T> T read(Data in, int pos, T reuse) {
+		setInput(in,pos);
+		return readObject(reuse);
+	}
+
+	/**
+	 * Sets the Data and position for subsequent reads
+	 */
+	public void setInput(Data in, int pos) {
+		cursor.set(in, pos);
+	}
+
+	/**
+	 * Returns the cursor used for reading, positioned at the next byte to be read
+	 */
+	public DataCursor getInput() {
+		return cursor;
+	}
+
+	/**
+	 * Returns the position of the next byte to be read
+	 */
+	public int getPosition() {
+		return cursor.getPosition();
+	}
+
+	public Object readObject() {
+		return readObject(null);
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T> T readObject(T reuse) {
+		int id=readVarInt();
+		if (id==NULL_TYPE_ID) return null;
+		Registration r=(id<byId.size())?byId.get(id):null;
+		if (r==null) throw new IllegalArgumentException("Unknown type id: "+id);
+		Object target=((reuse!=null)&&r.type.isInstance(reuse))?reuse:null;
+		return (T)r.codec.read(this, target);
+	}
+
+	public int readVarInt() {
+		return cursor.readVarInt();
+	}
+
+	/**
+	 * Reads a varint count or length, checking that it is not negative
+	 */
+	public int readLength() {
+		return cursor.readLength();
+	}
+
+	public long readVarLong() {
+		return cursor.readVarLong();
+	}
+
+	public char readVarChar() {
+		return cursor.readVarChar();
+	}
+
+	public int readFullInt() {
+		return cursor.readFullInt();
+	}
+
+	public long readFullLong() {
+		return cursor.readFullLong();
+	}
+
+	public double readDouble() {
+		return cursor.readDouble();
+	}
+
+	public float readFloat() {
+		return cursor.readFloat();
+	}
+
+	public boolean readBoolean() {
+		return cursor.readBoolean();
+	}
+
+	public byte readByte() {
+		return cursor.readByte();
+	}
+
+	public String readString() {
+		return cursor.readString();
+	}
+
+	/**
+	 * Copies bytes from the input into a Data, replacing its contents
+	 */
+	public void readBytes(Data dest, int length) {
+		if (length>cursor.remaining()) throw new IndexOutOfBoundsException("Read past end of data at position "+cursor.getPosition());
+		dest.clearContents();
+		cursor.getData().copyTo(cursor.getPosition(), dest, 0, length);
+		cursor.skip(length);
+	}
+
+	public void readBytes(byte[] dest, int offset, int length) {
+		cursor.readBytes(dest, offset, length);
+	}
+
+	/* ****************************************
+	 * Built in codecs
+	 */
+
+	private static final int BOOLEAN_ID=1;
+	private static final int INTEGER_ID=2;
+	private static final int LONG_ID=3;
+	private static final int DOUBLE_ID=4;
+	private static final int FLOAT_ID=5;
+	private static final int STRING_ID=6;
+	private static final int BYTE_ARRAY_ID=7;
+	private static final int INT_ARRAY_ID=8;
+	private static final int DATA_ID=9;
+	private static final int TEXT_ID=10;
+	private static final int INTSET_ID=11;
+	private static final int INTMAP_ID=12;
+	private static final int HASHMAP_ID=13;
+	private static final int LIST_ID=14;
+	private static final int INTGRID_ID=15;
+	private static final int BITGRID_ID=16;
+	private static final int ARRAYGRID_ID=17;
+	private static final int SPARSEGRID_ID=18;
+	private static final int TREEGRID_ID=19;
+	private static final int PERSISTENTTREEGRID_ID=20;
+	private static final int BYTE_ID=21;
+	private static final int SHORT_ID=22;
+	private static final int BYTEGRID_ID=23;
+	private static final int SHORTGRID_ID=24;
+	private static final int PALETTEGRID_ID=25;
+
+	private void registerBuiltins() {
+		register(BOOLEAN_ID, Boolean.class, new Codec<Boolean>() {
+			@Override
+			public void write(Serializer s, Boolean value) {
+				s.writeBoolean(value);
+			}
+
+			@Override
+			public Boolean read(Serializer s, Boolean reuse) {
+				return s.readBoolean();
+			}
+		});
+
+		register(INTEGER_ID, Integer.class, new Codec<Integer>() {
+			@Override
+			public void write(Serializer s, Integer value) {
+				s.writeVarInt(value);
+			}
+
+			@Override
+			public Integer read(Serializer s, Integer reuse) {
+				return s.readVarInt();
+			}
+		});
+
+		register(BYTE_ID, Byte.class, new Codec<Byte>() {
+			@Override
+			public void write(Serializer s, Byte value) {
+				s.writeByte(value);
+			}
+
+			@Override
+			public Byte read(Serializer s, Byte reuse) {
+				return s.readByte();
+			}
+		});
+
+		register(SHORT_ID, Short.class, new Codec<Short>() {
+			@Override
+			public void write(Serializer s, Short value) {
+				s.writeVarInt(value);
+			}
+
+			@Override
+			public Short read(Serializer s, Short reuse) {
+				return (short)s.readVarInt();
+			}
+		});
+
+		register(LONG_ID, Long.class, new Codec<Long>() {
+			@Override
+			public void write(Serializer s, Long value) {
+				s.writeVarLong(value);
+			}
+
+			@Override
+			public Long read(Serializer s, Long reuse) {
+				return s.readVarLong();
+			}
+		});
+
+		register(DOUBLE_ID, Double.class, new Codec<Double>() {
+			@Override
+			public void write(Serializer s, Double value) {
+				s.writeDouble(value);
+			}
+
+			@Override
+			public Double read(Serializer s, Double reuse) {
+				return s.readDouble();
+			}
+		});
+
+		register(FLOAT_ID, Float.class, new Codec<Float>() {
+			@Override
+			public void write(Serializer s, Float value) {
+				s.writeFloat(value);
+			}
+
+			@Override
+			public Float read(Serializer s, Float reuse) {
+				return s.readFloat();
+			}
+		});
+
+		register(STRING_ID, String.class, new Codec<String>() {
+			@Override
+			public void write(Serializer s, String value) {
+				s.writeString(value);
+			}
+
+			@Override
+			public String read(Serializer s, String reuse) {
+				return s.readString();
+			}
+		});
+
+		register(BYTE_ARRAY_ID, byte[].class, new Codec<byte[]>() {
+			@Override
+			public void write(Serializer s, byte[] value) {
+				s.writeVarInt(value.length);
+				s.getOutput().append(value, 0, value.length);
+			}
+
+			@Override
+			public byte[] read(Serializer s, byte[] reuse) {
+				int n=s.readLength();
+				byte[] result=((reuse!=null)&&(reuse.length==n))?reuse:new byte[n];
+				s.readBytes(result, 0, n);
+				return result;
+			}
+		});
+
+		register(INT_ARRAY_ID, int[].class, new Codec<int[]>() {
+			@Override
+			public void write(Serializer s, int[] value) {
+				s.writeVarInt(value.length);
+				s.getOutput().appendVarInts(value, 0, value.length);
+			}
+
+			@Override
+			public int[] read(Serializer s, int[] reuse) {
+				int n=s.readLength();
+				int[] result=((reuse!=null)&&(reuse.length==n))?reuse:new int[n];
+				s.getInput().readVarInts(result, 0, n);
+				return result;
+			}
+		});
+
+		register(DATA_ID, Data.class, new Codec<Data>() {
+			@Override
+			public void write(Serializer s, Data value) {
+				s.writeVarInt(value.size());
+				s.getOutput().append(value);
+			}
+
+			@Override
+			public Data read(Serializer s, Data reuse) {
+				int n=s.readLength();
+				Data result=(reuse!=null)?reuse:new Data(n);
+				s.readBytes(result, n);
+				return result;
+			}
+		});
+
+		register(TEXT_ID, Text.class, new Codec<Text>() {
+			@Override
+			public void write(Serializer s, Text value) {
+				int n=value.length();
+				s.writeVarInt(n);
+				// copy out one block at a time rather than walking the tree for every char
+				char[] buf=new char[Math.min(n,Text.BLOCK_SIZE)];
+				Data out=s.getOutput();
+				for (int i=0; i<n; i+=buf.length) {
+					int end=Math.min(n, i+buf.length);
+					value.getChars(i, end, buf, 0);
+					for (int j=0; j<end-i; j++) {
+						out.appendVarChar(buf[j]);
+					}
+				}
+			}
+
+			@Override
+			public Text read(Serializer s, Text reuse) {
+				int n=s.readLength();
+				TextBuilder tb=new TextBuilder();
+				for (int i=0; i<n; i++) {
+					tb.append(s.readVarChar());
+				}
+				return tb.toText();
+			}
+		});
+
+		register(INTSET_ID, IntSet.class, new Codec<IntSet>() {
+			@Override
+			public void write(Serializer s, IntSet value) {
+				int[] values=value.toIntArray();
+				s.writeVarInt(values.length);
+				long last=0;
+				for (int v: values) {
+					// sorted, so gaps are small and positive
+					s.writeVarLong(v-last);
+					last=v;
+				}
+			}
+
+			@Override
+			public IntSet read(Serializer s, IntSet reuse) {
+				int n=s.readLength();
+				int[] values=new int[n];
+				long last=0;
+				for (int i=0; i<n; i++) {
+					last+=s.readVarLong();
+					values[i]=(int)last;
+				}
+				return IntSet.create(values);
+			}
+		});
+
+		register(INTMAP_ID, IntMap.class, new Codec<IntMap<Object>>() {
+			@Override
+			public void write(Serializer s, IntMap<Object> value) {
+				s.writeVarInt(value.size());
+				for (Iterator<Map.Entry<Integer,Object>> it=value.entrySet().iterator(); it.hasNext(); ) {
+					Map.Entry<Integer,Object> e=it.next();
+					s.writeVarInt(e.getKey());
+					s.writeObject(e.getValue());
+				}
+			}
+
+			@Override
+			public IntMap<Object> read(Serializer s, IntMap<Object> reuse) {
+				int n=s.readLength();
+				IntMap<Object> result=IntMap.create();
+				for (int i=0; i<n; i++) {
+					int key=s.readVarInt();
+					result=result.include(key, s.readObject());
+				}
+				return result;
+			}
+		});
+
+		register(HASHMAP_ID, PersistentHashMap.class, new Codec<PersistentHashMap<Object,Object>>() {
+			@Override
+			public void write(Serializer s, PersistentHashMap<Object,Object> value) {
+				s.writeVarInt(value.size());
+				for (Iterator<Map.Entry<Object,Object>> it=value.entrySet().iterator(); it.hasNext(); ) {
+					Map.Entry<Object,Object> e=it.next();
+					s.writeObject(e.getKey());
+					s.writeObject(e.getValue());
+				}
+			}
+
+			@Override
+			public PersistentHashMap<Object,Object> read(Serializer s, PersistentHashMap<Object,Object> reuse) {
+				int n=s.readLength();
+				PersistentHashMap.Builder<Object,Object> builder=PersistentHashMap.builder();
+				for (int i=0; i<n; i++) {
+					Object key=s.readObject();
+					builder.include(key, s.readObject());
+				}
+				return builder.toPersistentHashMap();
+			}
+		});
+
+		register(LIST_ID, PersistentList.class, new Codec<PersistentList<Object>>() {
+			@Override
+			public void write(Serializer s, PersistentList<Object> value) {
+				int n=value.size();
+				s.writeVarInt(n);
+				for (int i=0; i<n; i++) {
+					s.writeObject(value.get(i));
+				}
+			}
+
+			@Override
+			public PersistentList<Object> read(Serializer s, PersistentList<Object> reuse) {
+				int n=s.readLength();
+				Object[] values=new Object[n];
+				for (int i=0; i<n; i++) {
+					values[i]=s.readObject();
+				}
+				return ListFactory.createFromArray(values);
+			}
+		});
+
+		registerEncodable(INTGRID_ID, IntGrid.class, new Supplier<IntGrid>() {
+			@Override
+			public IntGrid get() {
+				return new IntGrid();
+			}
+		});
+
+		registerEncodable(BITGRID_ID, BitGrid.class, new Supplier<BitGrid>() {
+			@Override
+			public BitGrid get() {
+				return new BitGrid();
+			}
+		});
+
+		registerEncodable(ARRAYGRID_ID, ArrayGrid.class, new Supplier<ArrayGrid>() {
+			@Override
+			public ArrayGrid<?> get() {
+				return new ArrayGrid<Object>();
+			}
+		});
+
+		registerEncodable(BYTEGRID_ID, ByteGrid.class, new Supplier<ByteGrid>() {
+			@Override
+			public ByteGrid get() {
+				return new ByteGrid();
+			}
+		});
+
+		registerEncodable(SHORTGRID_ID, ShortGrid.class, new Supplier<ShortGrid>() {
+			@Override
+			public ShortGrid get() {
+				return new ShortGrid();
+			}
+		});
+
+		registerEncodable(PALETTEGRID_ID, PaletteGrid.class, new Supplier<PaletteGrid>() {
+			@Override
+			public PaletteGrid<?> get() {
+				return new PaletteGrid<Object>();
+			}
+		});
+
+		register(SPARSEGRID_ID, SparseGrid.class, new BlockGridCodec(new Supplier<Grid<Object>>() {
+			@Override
+			public Grid<Object> get() {
+				return new SparseGrid<Object>();
+			}
+		}));
+
+		register(TREEGRID_ID, TreeGrid.class, new BlockGridCodec(new Supplier<Grid<Object>>() {
+			@Override
+			public Grid<Object> get() {
+				return new TreeGrid<Object>();
+			}
+		}));
+
+		register(PERSISTENTTREEGRID_ID, PersistentTreeGrid.class, new BlockGridCodec(new Supplier<Grid<Object>>() {
+			@Override
+			public Grid<Object> get() {
+				return new PersistentTreeGrid<Object>();
+			}
+		}));
+	}
+
+	/**
+	 * Codec for any grid, writing the blocks of identical values it visits
+	 */
+	private static final class BlockGridCodec implements Codec<Grid<Object>> {
+		private final Supplier<Grid<Object>> factory;
+
+		private BlockGridCodec(Supplier<Grid<Object>> factory) {
+			this.factory=factory;
+		}
+
+		@Override
+		public void write(final Serializer s, Grid<Object> value) {
+			value.visitBlocks(new IBlockVisitor<Object>() {
+				@Override
+				public Object visit(int x1, int y1, int z1, int x2, int y2, int z2, Object v) {
+					s.writeBoolean(true);
+					s.writeVarInt(x1);
+					s.writeVarInt(y1);
+					s.writeVarInt(z1);
+					s.writeVarInt(x2-x1);
+					s.writeVarInt(y2-y1);
+					s.writeVarInt(z2-z1);
+					s.writeObject(v);
+					return null;
+				}
+			});
+			s.writeBoolean(false);
+		}
+
+		@Override
+		public Grid<Object> read(Serializer s, Grid<Object> reuse) {
+			// persistent grids return a new grid from each change
+			Grid<Object> result=(reuse!=null)?reuse.clear():factory.get();
+			while (s.readBoolean()) {
+				int x1=s.readVarInt();
+				int y1=s.readVarInt();
+				int z1=s.readVarInt();
+				int x2=x1+s.readVarInt();
+				int y2=y1+s.readVarInt();
+				int z2=z1+s.readVarInt();
+				result=result.setBlock(x1, y1, z1, x2, y2, z2, s.readObject());
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package mikera.data;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import mikera.persistent.ITrieReducer;
+import mikera.persistent.IntMap;
+import mikera.persistent.PersistentHashMap;
+
+/**
+ * Incremental snapshots of persistent maps in a SegmentStore
+ *
+ * Each interior node of a map's trie is written as a record holding the addresses of its
+ * child nodes, with leaf entries written inline. Because the maps are immutable, a node
+ * that has already been written never changes, so the next snapshot of the same map only
+ * writes the nodes on the paths to changed entries and refers to the existing records
+ * for everything else. Keys and values are written with a Serializer.
+ *
+ * The addresses of written nodes are remembered until the commit() after next, so a
+ * snapshot after each commit() only writes what changed since the previous one. This
+ * keeps the previous version of each map reachable, though it will share almost all of
+ * its structure with the current version. Nodes are not remembered between runs, so the
+ * first snapshot after opening writes each map in full.
+ *
+ * Not thread safe.
+ *
+ * @author Mike Anderson
+ *
+ */
+public final class SnapshotStore {
+	private static final byte BRANCH_TAG=1;
+	private static final byte INTMAP_TAG=2;
+	private static final byte HASHMAP_TAG=3;
+
+	private static final byte REF_KIND=0;
+	private static final byte LEAF_KIND=1;
+
+	private final SegmentStore store;
+	private final Serializer serializer;
+	private final Data buffer=new Data();
+	private IdentityHashMap<Object,Long> previous=new IdentityHashMap<Object,Long>();
+	private IdentityHashMap<Object,Long> current=new IdentityHashMap<Object,Long>();
+	private long nodesWritten=0;
+	private long nodesReused=0;
+	private IOException writeError=null;
+
+	public SnapshotStore(SegmentStore store) {
+		this(store,new Serializer());
+	}
+
+	public SnapshotStore(SegmentStore store, Serializer serializer) {
+		this.store=store;
+		this.serializer=serializer;
+	}
+
+	public SegmentStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Leaf entries, which are written inline in the record of their parent node
+	 */
+	private static final class Leaf {
+		private final List<? extends Map.Entry<?,?>> entries;
+
+		private Leaf(List<? extends Map.Entry<?,?>> entries) {
+			this.entries=entries;
+		}
+	}
+
+	private final class NodeWriter<K,V> implements ITrieReducer<K,V,Object> {
+		@Override
+		public Object cached(Object node) {
+			Long address=current.get(node);
+			if (address==null) {
+				address=previous.get(node);
+				if (address==null) return null;
+				current.put(node, address);
+			}
+			nodesReused++;
+			return address;
+		}
+
+		@Override
+		public Object leaf(Object node, List<Map.Entry<K,V>> entries) {
+			return new Leaf(entries);
+		}
+
+		@Override
+		public Object branch(Object node, List<Object> children) {
+			if (writeError!=null) return Long.valueOf(-1);
+			buffer.clearContents();
+			buffer.appendByte(BRANCH_TAG);
+			buffer.appendVarInt(children.size());
+			for (Object child: children) {
+				writeChild(child);
+			}
+			try {
+				Long address=Long.valueOf(store.append(buffer));
+				current.put(node, address);
+				nodesWritten++;
+				return address;
+			} catch (IOException e) {
+				writeError=e;
+				return Long.valueOf(-1);
+			}
+		}
+	}
+
+	private void writeChild(Object child) {
+		if (child instanceof Leaf) {
+			List<? extends Map.Entry<?,?>> entries=((Leaf)child).entries;
+			buffer.appendByte(LEAF_KIND);
+			buffer.appendVarInt(entries.size());
+			for (Map.Entry<?,?> e: entries) {
+				serializer.write(buffer, e.getKey());
+				serializer.write(buffer, e.getValue());
+			}
+		} else {
+			buffer.appendByte(REF_KIND);
+			buffer.appendVarLong(((Long)child).longValue());
+		}
+	}
+
+	/* ****************************************
+	 * Writing
+	 */
+
+	/**
+	 * Writes a snapshot of an IntMap, writing only the nodes not already in the store
+	 *
+	 * @return The address of the snapshot
+	 */
+	public <V> long write(IntMap<V> map) throws IOException {
+		return writeRoot(INTMAP_TAG,map.reduceTrie(new NodeWriter<Integer,V>()));
+	}
+
+	/**
+	 * Writes a snapshot of a PersistentHashMap, writing only the nodes not already in the store
+	 *
+	 * @return The address of the snapshot
+	 */
+	public <K,V> long write(PersistentHashMap<K,V> map) throws IOException {
+		return writeRoot(HASHMAP_TAG,map.reduceTrie(new NodeWriter<K,V>()));
+	}
+
+	private long writeRoot(byte tag, Object root) throws IOException {
+		if (writeError!=null) {
+			IOException e=writeError;
+			writeError=null;
+			throw e;
+		}
+		buffer.clearContents();
+		buffer.appendByte(tag);
+		writeChild(root);
+		return store.append(buffer);
+	}
+
+	/**
+	 * Flushes the store, and forgets nodes that were only used by snapshots written before
+	 * the previous commit
+	 */
+	public void commit() throws IOException {
+		store.flush();
+		previous=current;
+		current=new IdentityHashMap<Object,Long>();
+	}
+
+	/**
+	 * Returns the number of trie nodes written to the store
+	 */
+	public long getNodesWritten() {
+		return nodesWritten;
+	}
+
+	/**
+	 * Returns the number of times an unchanged subtree was found already in the store
+	 */
+	public long getNodesReused() {
+		return nodesReused;
+	}
+
+	/* ****************************************
+	 * Reading
+	 */
+
+	private interface EntrySink {
+		void accept(Object key, Object value);
+	}
+
+	/**
+	 * Reads an IntMap snapshot written by write(IntMap)
+	 */
+	public IntMap<Object> readIntMap(long address) {
+		IntMapSink sink=new IntMapSink();
+		readRoot(INTMAP_TAG,address,sink);
+		return sink.map;
+	}
+
+	private static final class IntMapSink implements EntrySink {
+		private IntMap<Object> map=IntMap.create();
+
+		@Override
+		public void accept(Object key, Object value) {
+			map=map.include(((Integer)key).intValue(), value);
+		}
+	}
+
+	/**
+	 * Reads a PersistentHashMap snapshot written by write(PersistentHashMap)
+	 */
+	public PersistentHashMap<Object,Object> readHashMap(long address) {
+		final PersistentHashMap.Builder<Object,Object> builder=PersistentHashMap.builder();
+		readRoot(HASHMAP_TAG,address,new EntrySink() {
+			@Override
+			public void accept(Object key, Object value) {
+				builder.include(key, value);
+			}
+		});
+		return builder.toPersistentHashMap();
+	}
+
+	private void readRoot(byte tag, long address, EntrySink sink) {
+		Data d=store.read(address);
+		serializer.setInput(d, 0);
+		if (serializer.readByte()!=tag) throw new IllegalArgumentException("No snapshot of the expected type at address "+address);
+		readChildren(1,sink);
+	}
+
+	/**
+	 * Reads n children from the current input, passing inline entries to the sink and then
+	 * reading referenced nodes
+	 */
+	private void readChildren(int n, EntrySink sink) {
+		long[] refs=null;
+		int refCount=0;
+		for (int i=0; i<n; i++) {
+			byte kind=serializer.readByte();
+			if (kind==LEAF_KIND) {
+				int m=serializer.readLength();
+				for (int j=0; j<m; j++) {
+					Object key=serializer.readObject();
+					sink.accept(key, serializer.readObject());
+				}
+			} else if (kind==REF_KIND) {
+				if (refs==null) refs=new long[n-i];
+				refs[refCount++]=serializer.readVarLong();
+			} else {
+				throw new IllegalArgumentException("Invalid node kind: "+kind);
+			}
+		}
+		for (int i=0; i<refCount; i++) {
+			readBranch(refs[i],sink);
+		}
+	}
+
+	private void readBranch(long address, EntrySink sink) {
+		Data d=store.read(address);
+		serializer.setInput(d, 0);
+		if (serializer.readByte()!=BRANCH_TAG) throw new IllegalArgumentException("No trie node at address "+address);
+		readChildren(serializer.readLength(),sink);
+	}
+}
@@ -2,6 +2,8 @@ package mikera.engine;
 
 import java.util.Arrays;
 
+import mikera.data.Encodable;
+import mikera.data.Serializer;
 import mikera.util.Maths;
 /**
  * Class for storing flexible 3D int arrays
@@ -10,7 +12,7 @@ import mikera.util.Maths;
  * @author Mike Anderson
  *
  */
-public class ArrayGrid<T> extends BaseGrid<T> {
+public class ArrayGrid<T> extends BaseGrid<T> implements Encodable {
 	// base coordinates
 	private int gx;
 	private int gy;
@@ -157,6 +159,54 @@ public class ArrayGrid<T> extends BaseGrid<T> {
 		return nbg;
 	}
 	
+	@Override
+	public void encode(Serializer s) {
+		if (data==null) {
+			s.writeBoolean(false);
+			return;
+		}
+		s.writeBoolean(true);
+		s.writeVarInt(gx);
+		s.writeVarInt(gy);
+		s.writeVarInt(gz);
+		s.writeVarInt(gw);
+		s.writeVarInt(gh);
+		s.writeVarInt(gd);
+		Object[] dt=data;
+		for (int i=0; i<dt.length; i++) {
+			s.writeObject(dt[i]);
+		}
+	}
+	
+	@Override
+	public void decode(Serializer s) {
+		if (!s.readBoolean()) {
+			clear();
+			return;
+		}
+		int ngx=s.readVarInt();
+		int ngy=s.readVarInt();
+		int ngz=s.readVarInt();
+		int ngw=s.readLength();
+		int ngh=s.readLength();
+		int ngd=s.readLength();
+		long n=((long)ngw)*ngh*ngd;
+		if (n>Integer.MAX_VALUE) throw new IllegalArgumentException("Grid too large: "+ngw+"*"+ngh+"*"+ngd);
+		Object[] dt=data;
+		// reuse the existing array if it is the right size
+		if ((dt==null)||(dt.length!=n)) dt=new Object[(int)n];
+		for (int i=0; i<dt.length; i++) {
+			dt[i]=s.readObject();
+		}
+		data=dt;
+		gx=ngx;
+		gy=ngy;
+		gz=ngz;
+		gw=ngw;
+		gh=ngh;
+		gd=ngd;
+	}
+	
 	@Override
 	public ArrayGrid<T> clear() {
 		data=null;
@@ -1,6 +1,8 @@
 package mikera.engine;
 
 import mikera.annotations.Mutable;
+import mikera.data.Encodable;
+import mikera.data.Serializer;
 import mikera.util.Maths;
 /**
  * Class for storing flexible 3D bit arrays
@@ -10,7 +12,7 @@ import mikera.util.Maths;
  *
  */
 @Mutable
-public final class BitGrid extends BaseGrid<Boolean> {
+public final class BitGrid extends BaseGrid<Boolean> implements Encodable {
 	private static final int GROW_BORDER=1;
 	
 	private static final int XLOWBITS=2;
@@ -79,10 +81,6 @@ public final class BitGrid extends BaseGrid<Boolean> {
 	}
 	
 	public int countSetBitsUsingVisitor() {
-		return countSetBits(gx,gy,gz,gx+width(),gy+height(),gz+depth());
-	}
-	
-	public int countSetBits(int x1,int y1, int z1, int x2,int y2, int z2) {
 		final int[] counter=new int[1];
 		visitSetBits(new BlockVisitor<Boolean>(){
 
@@ -93,10 +91,56 @@ public final class BitGrid extends BaseGrid<Boolean> {
 				return null;
 			}
 			
-		},x1,y1,z1, x2,y2, z2);
+		},gx,gy,gz,gx+width(),gy+height(),gz+depth());
 		return counter[0];
 	}
 	
+	/**
+	 * Counts the set bits in a region, including both corners. Whole words inside the
+	 * region are counted directly, and words on its edges are masked.
+	 */
+	public int countSetBits(int x1,int y1, int z1, int x2,int y2, int z2) {
+		int[] dat=data;
+		if (dat==null) return 0;
+		// clip to grid, relative to grid origin
+		int rx1=Math.max(x1-gx,0); int rx2=Math.min(x2-gx, width()-1);
+		int ry1=Math.max(y1-gy,0); int ry2=Math.min(y2-gy, height()-1);
+		int rz1=Math.max(z1-gz,0); int rz2=Math.min(z2-gz, depth()-1);
+		if ((rx1>rx2)||(ry1>ry2)||(rz1>rz2)) return 0;
+		int result=0;
+		for (int bz=rz1>>ZLOWBITS; bz<=(rz2>>ZLOWBITS); bz++) {
+			int zlo=(bz==(rz1>>ZLOWBITS))?(rz1&ZLOWMASK):0;
+			int zhi=(bz==(rz2>>ZLOWBITS))?(rz2&ZLOWMASK):ZLOWMASK;
+			for (int by=ry1>>YLOWBITS; by<=(ry2>>YLOWBITS); by++) {
+				int ylo=(by==(ry1>>YLOWBITS))?(ry1&YLOWMASK):0;
+				int yhi=(by==(ry2>>YLOWBITS))?(ry2&YLOWMASK):YLOWMASK;
+				int sibase=bz*gw*gh+by*gw;
+				for (int bx=rx1>>XLOWBITS; bx<=(rx2>>XLOWBITS); bx++) {
+					int xlo=(bx==(rx1>>XLOWBITS))?(rx1&XLOWMASK):0;
+					int xhi=(bx==(rx2>>XLOWBITS))?(rx2&XLOWMASK):XLOWMASK;
+					int bv=dat[sibase+bx];
+					if (bv==0) continue;
+					result+=Integer.bitCount(bv&blockMask(xlo,ylo,zlo,xhi,yhi,zhi));
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns the mask of bits within a word for a box of cells in its block
+	 */
+	private static int blockMask(int xlo, int ylo, int zlo, int xhi, int yhi, int zhi) {
+		int row=((2<<xhi)-1)&~((1<<xlo)-1);
+		int m=0;
+		for (int z=zlo; z<=zhi; z++) {
+			for (int y=ylo; y<=yhi; y++) {
+				m|=row<<bitPos(0,y,z);
+			}
+		}
+		return m;
+	}
+	
 	@Override
 	public Boolean get(int x, int y, int z) {
 		return test(x,y,z) ? Boolean.TRUE:Boolean.FALSE;
@@ -141,24 +185,18 @@ public final class BitGrid extends BaseGrid<Boolean> {
 					int si= sibase + (rx>>XLOWBITS);
 					int bv=dat[si];
 					if (bv==0) continue;
-					for (int i=0; i<32; i++) {
-						if ((bv&15)==0) {
-							i+=3;
-							bv>>=4;
-							continue;
-						}
-						if ((bv&1)!=0) {
-							int bx=((tgx+ rx)&(XHIGHMASK)) + bitXOffset(i);
-							int by=((tgy+ ry)&(YHIGHMASK)) + bitYOffset(i);
-							int bz=((tgz+ rz)&(ZHIGHMASK)) + bitZOffset(i);
-							if ((bx>=x1)&&(bx<=x2)&&(by>=y1)&&(by<=y2)&&(bz>=z1)&&(bz<=z2)){
-								pv.visit(
-										bx,by,bz,
-										bx,by,bz,
-										Boolean.TRUE);
-							}
+					while (bv!=0) {
+						int i=Integer.numberOfTrailingZeros(bv);
+						bv&=bv-1;
+						int bx=((tgx+ rx)&(XHIGHMASK)) + bitXOffset(i);
+						int by=((tgy+ ry)&(YHIGHMASK)) + bitYOffset(i);
+						int bz=((tgz+ rz)&(ZHIGHMASK)) + bitZOffset(i);
+						if ((bx>=x1)&&(bx<=x2)&&(by>=y1)&&(by<=y2)&&(bz>=z1)&&(bz<=z2)){
+							pv.visit(
+									bx,by,bz,
+									bx,by,bz,
+									Boolean.TRUE);
 						}
-						bv>>=1;
 					}
 				}					
 			}
@@ -217,6 +255,54 @@ public final class BitGrid extends BaseGrid<Boolean> {
 		return nbg;
 	}
 	
+	@Override
+	public void encode(Serializer s) {
+		if (data==null) {
+			s.writeBoolean(false);
+			return;
+		}
+		s.writeBoolean(true);
+		s.writeVarInt(gx);
+		s.writeVarInt(gy);
+		s.writeVarInt(gz);
+		s.writeVarInt(gw);
+		s.writeVarInt(gh);
+		s.writeVarInt(gd);
+		int[] dt=data;
+		for (int i=0; i<dt.length; i++) {
+			s.writeFullInt(dt[i]);
+		}
+	}
+	
+	@Override
+	public void decode(Serializer s) {
+		if (!s.readBoolean()) {
+			clear();
+			return;
+		}
+		int ngx=s.readVarInt();
+		int ngy=s.readVarInt();
+		int ngz=s.readVarInt();
+		int ngw=s.readLength();
+		int ngh=s.readLength();
+		int ngd=s.readLength();
+		long n=((long)ngw)*ngh*ngd;
+		if (n>Integer.MAX_VALUE) throw new IllegalArgumentException("Grid too large: "+ngw+"*"+ngh+"*"+ngd);
+		int[] dt=data;
+		// reuse the existing array if it is the right size
+		if ((dt==null)||(dt.length!=n)) dt=new int[(int)n];
+		for (int i=0; i<dt.length; i++) {
+			dt[i]=s.readFullInt();
+		}
+		data=dt;
+		gx=ngx;
+		gy=ngy;
+		gz=ngz;
+		gw=ngw;
+		gh=ngh;
+		gd=ngd;
+	}
+	
 	@Override
 	public BitGrid clear() {
 		data=null;
@@ -361,6 +447,256 @@ public final class BitGrid extends BaseGrid<Boolean> {
 		return (x&XLOWMASK)+((y&YLOWMASK)<<XLOWBITS)+((z&ZLOWMASK)<<(XLOWBITS+YLOWBITS));
 	}
 
+	/* ****************************************
+	 * Whole grid boolean operations
+	 * 
+	 * Grids are always aligned to block boundaries, so each word of one grid
+	 * corresponds to exactly one word of the other.
+	 */
+	
+	private static final int OP_AND=0;
+	private static final int OP_OR=1;
+	private static final int OP_XOR=2;
+	private static final int OP_ANDNOT=3;
+	
+	/**
+	 * Clears all bits not set in the other grid
+	 */
+	public BitGrid and(BitGrid o) {
+		return combine(o,OP_AND);
+	}
+	
+	/**
+	 * Sets all bits set in the other grid, growing this grid if needed
+	 */
+	public BitGrid or(BitGrid o) {
+		return combine(o,OP_OR);
+	}
+	
+	/**
+	 * Flips all bits set in the other grid, growing this grid if needed
+	 */
+	public BitGrid xor(BitGrid o) {
+		return combine(o,OP_XOR);
+	}
+	
+	/**
+	 * Clears all bits set in the other grid
+	 */
+	public BitGrid andNot(BitGrid o) {
+		return combine(o,OP_ANDNOT);
+	}
+	
+	private BitGrid combine(BitGrid o, int op) {
+		if (o==this) {
+			if ((op==OP_XOR)||(op==OP_ANDNOT)) clearContents();
+			return this;
+		}
+		int[] odat=o.data;
+		if (data==null) {
+			if ((odat!=null)&&((op==OP_OR)||(op==OP_XOR))) set(o);
+			return this;
+		}
+		if (odat==null) {
+			if (op==OP_AND) clearContents();
+			return this;
+		}
+		if ((op==OP_OR)||(op==OP_XOR)) {
+			if ((o.gx<gx)||(o.gy<gy)||(o.gz<gz)||(o.gx+o.width()>gx+width())||(o.gy+o.height()>gy+height())||(o.gz+o.depth()>gz+depth())) {
+				growToIncludeLocal(o.gx,o.gy,o.gz,o.gx+o.width()-1,o.gy+o.height()-1,o.gz+o.depth()-1);
+			}
+		}
+		
+		// overlapping range of blocks, relative to this grid
+		int bx1=Math.max(0, (o.gx-gx)>>XLOWBITS); int bx2=Math.min(gw, ((o.gx-gx)>>XLOWBITS)+o.gw);
+		int by1=Math.max(0, (o.gy-gy)>>YLOWBITS); int by2=Math.min(gh, ((o.gy-gy)>>YLOWBITS)+o.gh);
+		int bz1=Math.max(0, (o.gz-gz)>>ZLOWBITS); int bz2=Math.min(gd, ((o.gz-gz)>>ZLOWBITS)+o.gd);
+		int ox=(gx-o.gx)>>XLOWBITS;
+		int oy=(gy-o.gy)>>YLOWBITS;
+		int oz=(gz-o.gz)>>ZLOWBITS;
+		
+		int[] dat=data;
+		if (op==OP_AND) {
+			// everything outside the other grid is cleared
+			for (int bz=0; bz<gd; bz++) {
+				for (int by=0; by<gh; by++) {
+					int di=(bz*gh+by)*gw;
+					boolean inside=(bz>=bz1)&&(bz<bz2)&&(by>=by1)&&(by<by2);
+					for (int bx=0; bx<gw; bx++) {
+						if (inside&&(bx>=bx1)&&(bx<bx2)) {
+							dat[di+bx]&=odat[(bx+ox)+o.gw*((by+oy)+o.gh*(bz+oz))];
+						} else {
+							dat[di+bx]=0;
+						}
+					}
+				}
+			}
+			return this;
+		}
+		
+		for (int bz=bz1; bz<bz2; bz++) {
+			for (int by=by1; by<by2; by++) {
+				int di=(bz*gh+by)*gw;
+				int si=ox+o.gw*((by+oy)+o.gh*(bz+oz));
+				for (int bx=bx1; bx<bx2; bx++) {
+					int ov=odat[si+bx];
+					switch (op) {
+						case OP_OR: dat[di+bx]|=ov; break;
+						case OP_XOR: dat[di+bx]^=ov; break;
+						default: dat[di+bx]&=~ov; break;
+					}
+				}
+			}
+		}
+		return this;
+	}
+	
+	/**
+	 * Copies the contents of another BitGrid
+	 */
+	public BitGrid set(BitGrid o) {
+		if (o==this) return this;
+		int[] odat=o.data;
+		data=(odat==null)?null:odat.clone();
+		gx=o.gx; gy=o.gy; gz=o.gz;
+		gw=o.gw; gh=o.gh; gd=o.gd;
+		return this;
+	}
+	
+	/* ****************************************
+	 * Morphology
+	 * 
+	 * Neighbours are found by shifting whole words, taking the bits that cross
+	 * a block edge from the adjacent word.
+	 */
+	
+	// bits with x, y or z at the low or high edge of a block
+	private static final int X_LOW_BITS=0x11111111;
+	private static final int X_HIGH_BITS=0x88888888;
+	private static final int Y_LOW_BITS=0x000F000F;
+	private static final int Y_HIGH_BITS=0xF000F000;
+	
+	/**
+	 * Sets every cell with a set neighbour
+	 * 
+	 * @param neighbours 6 for face neighbours only, or 26 to include edges and corners
+	 */
+	public BitGrid dilate(int neighbours) {
+		checkNeighbours(neighbours);
+		if (data==null) return this;
+		growToIncludeLocal(gx-1,gy-1,gz-1,gx+width(),gy+height(),gz+depth());
+		morph(neighbours,false);
+		return this;
+	}
+	
+	/**
+	 * Clears every cell with a clear neighbour. Cells outside the grid are clear.
+	 * 
+	 * @param neighbours 6 for face neighbours only, or 26 to include edges and corners
+	 */
+	public BitGrid erode(int neighbours) {
+		checkNeighbours(neighbours);
+		if (data==null) return this;
+		morph(neighbours,true);
+		return this;
+	}
+	
+	private static void checkNeighbours(int neighbours) {
+		if ((neighbours!=6)&&(neighbours!=26)) throw new IllegalArgumentException("Neighbours must be 6 or 26: "+neighbours);
+	}
+	
+	private void morph(int neighbours, boolean erode) {
+		if (neighbours==26) {
+			// 3*3*3 neighbourhood is separable into one pass along each axis
+			data=shiftPass(shiftPass(shiftPass(data,0,erode),1,erode),2,erode);
+			return;
+		}
+		int[] src=data;
+		int[] x=shiftPass(src,0,erode);
+		int[] y=shiftPass(src,1,erode);
+		int[] z=shiftPass(src,2,erode);
+		for (int i=0; i<src.length; i++) {
+			x[i]=erode?(x[i]&y[i]&z[i]):(x[i]|y[i]|z[i]);
+		}
+		data=x;
+	}
+	
+	/**
+	 * Combines each cell with its two neighbours along one axis
+	 * 
+	 * @param axis 0, 1 or 2 for x, y or z
+	 * @param and true to AND the cells together, false to OR them
+	 */
+	private int[] shiftPass(int[] src, int axis, boolean and) {
+		int n=src.length;
+		int[] dst=new int[n];
+		int stride=(axis==0)?1:((axis==1)?gw:gw*gh);
+		int extent=(axis==0)?gw:((axis==1)?gh:gd);
+		for (int i=0; i<n; i++) {
+			int w=src[i];
+			int pos=(i/stride)%extent;
+			int lo=(pos>0)?src[i-stride]:0;
+			int hi=(pos<extent-1)?src[i+stride]:0;
+			int fromLo;
+			int fromHi;
+			switch (axis) {
+				case 0:
+					fromLo=((w<<1)&~X_LOW_BITS)|((lo&X_HIGH_BITS)>>>3);
+					fromHi=((w>>>1)&~X_HIGH_BITS)|((hi&X_LOW_BITS)<<3);
+					break;
+				case 1:
+					fromLo=((w<<4)&~Y_LOW_BITS)|((lo&Y_HIGH_BITS)>>>12);
+					fromHi=((w>>>4)&~Y_HIGH_BITS)|((hi&Y_LOW_BITS)<<12);
+					break;
+				default:
+					fromLo=(w<<16)|(lo>>>16);
+					fromHi=(w>>>16)|(hi<<16);
+					break;
+			}
+			dst[i]=and?(w&fromLo&fromHi):(w|fromLo|fromHi);
+		}
+		return dst;
+	}
+	
+	/* ****************************************
+	 * Scanning
+	 */
+	
+	/**
+	 * Returns the index of the first set bit at or after the given index, or -1 if there
+	 * is none. Indexes run through the bits of each word in storage order, and are only
+	 * valid until the grid is resized. Use with indexX, indexY and indexZ:
+	 * 
+	 * for (long i=bg.nextSetBit(0); i>=0; i=bg.nextSetBit(i+1)) {...}
+	 */
+	public long nextSetBit(long index) {
+		int[] dat=data;
+		if ((dat==null)||(index<0)) return -1;
+		int wi=(int)(index>>>5);
+		if (wi>=dat.length) return -1;
+		int bv=dat[wi]&(-1<<(index&31));
+		while (bv==0) {
+			if (++wi>=dat.length) return -1;
+			bv=dat[wi];
+		}
+		return (((long)wi)<<5)+Integer.numberOfTrailingZeros(bv);
+	}
+	
+	public int indexX(long index) {
+		int wi=(int)(index>>>5);
+		return gx+((wi%gw)<<XLOWBITS)+bitXOffset((int)(index&31));
+	}
+	
+	public int indexY(long index) {
+		int wi=(int)(index>>>5);
+		return gy+(((wi/gw)%gh)<<YLOWBITS)+bitYOffset((int)(index&31));
+	}
+	
+	public int indexZ(long index) {
+		int wi=(int)(index>>>5);
+		return gz+((wi/(gw*gh))<<ZLOWBITS)+bitZOffset((int)(index&31));
+	}
+
 	@Override
 	public int countNonNull() {
 		// return countSetBits();
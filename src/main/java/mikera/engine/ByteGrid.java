@@ -0,0 +1,303 @@
+package mikera.engine;
+
+import java.util.Arrays;
+
+import mikera.data.Encodable;
+import mikera.data.Serializer;
+import mikera.util.Maths;
+
+/**
+ * Dense 3D grid of byte values, using one byte per cell
+ *
+ * Zero is the empty value, and is seen through the Grid interface as null. The grid
+ * grows to include each non-zero value set.
+ *
+ * @author Mike Anderson
+ *
+ */
+public final class ByteGrid extends BaseGrid<Byte> implements Encodable {
+	// base coordinates
+	private int gx;
+	private int gy;
+	private int gz;
+
+	// width, height and depth
+	private int gw;
+	private int gh;
+	private int gd;
+
+	private byte[] data=null;
+
+	public ByteGrid() {
+	}
+
+	public ByteGrid(int x, int y, int z) {
+		init(x,y,z);
+	}
+
+	public int width() {
+		return gw;
+	}
+
+	public int height() {
+		return gh;
+	}
+
+	public int depth() {
+		return gd;
+	}
+
+	@Override
+	public int countNonNull() {
+		byte[] dt=data;
+		if (dt==null) return 0;
+		int result=0;
+		for (int i=0; i<dt.length; i++) {
+			if (dt[i]!=0) result++;
+		}
+		return result;
+	}
+
+	public byte getByte(int x, int y, int z) {
+		if (!inRange(x,y,z)) return 0;
+		return data[dataIndexRelative(x-gx,y-gy,z-gz)];
+	}
+
+	@Override
+	public Byte get(int x, int y, int z) {
+		byte v=getByte(x,y,z);
+		return (v==0)?null:Byte.valueOf(v);
+	}
+
+	/**
+	 * Visits runs of equal non-zero values along the x axis
+	 */
+	@Override
+	public void visitBlocks(IBlockVisitor<Byte> bf) {
+		if (data==null) return;
+		visitBlocks(bf,gx,gy,gz,gx+gw-1,gy+gh-1,gz+gd-1);
+	}
+
+	@Override
+	public void visitBlocks(IBlockVisitor<Byte> bf, int xmin, int ymin, int zmin, int xmax, int ymax, int zmax) {
+		if (data==null) return;
+		xmin=Math.max(xmin, gx);
+		xmax=Math.min(xmax, gx+gw-1);
+		ymin=Math.max(ymin, gy);
+		ymax=Math.min(ymax, gy+gh-1);
+		zmin=Math.max(zmin, gz);
+		zmax=Math.min(zmax, gz+gd-1);
+		for (int z=zmin; z<=zmax; z++) {
+			for (int y=ymin; y<=ymax; y++) {
+				int di=dataIndexRelative(xmin-gx,y-gy,z-gz);
+				int x=xmin;
+				while (x<=xmax) {
+					byte v=data[di];
+					int end=x;
+					while ((end<xmax)&&(data[di+1]==v)) {
+						end++;
+						di++;
+					}
+					if (v!=0) bf.visit(x,y,z,end,y,z,Byte.valueOf(v));
+					x=end+1;
+					di++;
+				}
+			}
+		}
+	}
+
+	@Override
+	public ByteGrid clone() {
+		ByteGrid nbg;
+		try {
+			nbg = (ByteGrid)super.clone();
+			byte[] dt=data;
+			if (dt!=null) {
+				nbg.data=dt.clone();
+			}
+		} catch (CloneNotSupportedException e) {
+			throw new Error(e);
+		}
+		return nbg;
+	}
+
+	@Override
+	public void encode(Serializer s) {
+		if (data==null) {
+			s.writeBoolean(false);
+			return;
+		}
+		s.writeBoolean(true);
+		s.writeVarInt(gx);
+		s.writeVarInt(gy);
+		s.writeVarInt(gz);
+		s.writeVarInt(gw);
+		s.writeVarInt(gh);
+		s.writeVarInt(gd);
+		s.getOutput().append(data, 0, data.length);
+	}
+
+	@Override
+	public void decode(Serializer s) {
+		if (!s.readBoolean()) {
+			clear();
+			return;
+		}
+		int ngx=s.readVarInt();
+		int ngy=s.readVarInt();
+		int ngz=s.readVarInt();
+		int ngw=s.readLength();
+		int ngh=s.readLength();
+		int ngd=s.readLength();
+		long n=((long)ngw)*ngh*ngd;
+		if (n>Integer.MAX_VALUE) throw new IllegalArgumentException("Grid too large: "+ngw+"*"+ngh+"*"+ngd);
+		byte[] dt=data;
+		// reuse the existing array if it is the right size
+		if ((dt==null)||(dt.length!=n)) dt=new byte[(int)n];
+		s.readBytes(dt, 0, dt.length);
+		data=dt;
+		gx=ngx;
+		gy=ngy;
+		gz=ngz;
+		gw=ngw;
+		gh=ngh;
+		gd=ngd;
+	}
+
+	@Override
+	public ByteGrid clear() {
+		data=null;
+		return this;
+	}
+
+	@Override
+	public ByteGrid clearContents() {
+		if (data!=null) Arrays.fill(data, (byte)0);
+		return this;
+	}
+
+	public int dataLength() {
+		if (data==null) return 0;
+		return data.length;
+	}
+
+	private void init(int x, int y, int z) {
+		gx=x;
+		gy=y;
+		gz=z;
+		data=new byte[1];
+		gw=1; gh=1; gd=1;
+	}
+
+	public void growToInclude(int x, int y, int z) {
+		if (data==null) {init(x,y,z); return;}
+		if (!inRange(x,y,z)) growToIncludeLocal(x,y,z);
+	}
+
+	private void growToIncludeLocal(int x, int y, int z) {
+		// assumes a change in size
+		int ngx=Maths.min(gx,x);
+		int ngy=Maths.min(gy,y);
+		int ngz=Maths.min(gz,z);
+		int ngw=(Maths.max(gx+width(), x+1)-ngx);
+		int ngh=(Maths.max(gy+height(),y+1)-ngy);
+		int ngd=(Maths.max(gz+depth(), z+1)-ngz);
+		resize(ngx,ngy,ngz,ngw,ngh,ngd);
+	}
+
+	private void resize(int ngx, int ngy, int ngz, int ngw, int ngh, int ngd) {
+		int nl=ngw*ngh*ngd;
+		byte[] ndata=new byte[nl];
+		int si=0;
+		int di=(gz-ngz)*ngw*ngh+(gy-ngy)*ngw+(gx-ngx);
+		for (int z=0; z<gd; z++) {
+			for (int y=0; y<gh; y++) {
+				System.arraycopy(data, si, ndata, di, gw);
+				si+=gw;
+				di+=ngw;
+			}
+			di+=ngw*(ngh-gh);
+		}
+		data=ndata;
+		gx=ngx;
+		gy=ngy;
+		gz=ngz;
+		gw=ngw;
+		gh=ngh;
+		gd=ngd;
+	}
+
+	@Override
+	public ByteGrid paste(Grid<Byte> t) {
+		return paste(t,0,0,0);
+	}
+
+	@Override
+	public ByteGrid paste(Grid<Byte> t, final int dx, final int dy, final int dz) {
+		return (ByteGrid) super.paste(t,dx,dy,dz);
+	}
+
+	@Override
+	public ByteGrid set(int x, int y, int z, Byte v) {
+		return set(x,y,z,(v==null)?0:v.byteValue());
+	}
+
+	public ByteGrid set(int x, int y, int z, byte v) {
+		if (v==0) {
+			// no need to grow to store the empty value
+			if (inRange(x,y,z)) data[dataIndexRelative(x-gx,y-gy,z-gz)]=0;
+			return this;
+		}
+		growToInclude(x,y,z);
+		data[dataIndexRelative(x-gx,y-gy,z-gz)]=v;
+		return this;
+	}
+
+	@Override
+	public ByteGrid setBlock(int x1, int y1, int z1, int x2, int y2, int z2, Byte v) {
+		return setBlock(x1,y1,z1,x2,y2,z2,(v==null)?0:v.byteValue());
+	}
+
+	public ByteGrid setBlock(int x1, int y1, int z1, int x2, int y2, int z2, byte v) {
+		if ((x1>x2)||(y1>y2)||(z1>z2)) return this;
+		if (v==0) {
+			if (data==null) return this;
+			x1=Math.max(x1, gx); x2=Math.min(x2, gx+gw-1);
+			y1=Math.max(y1, gy); y2=Math.min(y2, gy+gh-1);
+			z1=Math.max(z1, gz); z2=Math.min(z2, gz+gd-1);
+			if ((x1>x2)||(y1>y2)||(z1>z2)) return this;
+		} else {
+			growToInclude(x1,y1,z1);
+			growToInclude(x2,y2,z2);
+		}
+		int w=x2-x1+1;
+		for (int z=z1; z<=z2; z++) {
+			for (int y=y1; y<=y2; y++) {
+				int di=dataIndexRelative(x1-gx,y-gy,z-gz);
+				Arrays.fill(data,di,di+w,v);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Check if coordinate is within the existing range
+	 */
+	public boolean inRange(int x, int y, int z) {
+		if (data==null) return false;
+		if ((x<gx)||(y<gy)||(z<gz)) return false;
+		if ((x>=gx+gw)||(y>=gy+gh)||(z>=gz+gd)) return false;
+		return true;
+	}
+
+	/**
+	 * Get data array index relative to grid origin
+	 * @param rx x-coord relative to gx
+	 * @param ry y-coord relative to gy
+	 * @param rz z-coord relative to gz
+	 * @return
+	 */
+	private int dataIndexRelative(int rx, int ry, int rz) {
+		return rx+gw*(ry+gh*rz);
+	}
+}
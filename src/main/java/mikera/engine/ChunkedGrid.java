@@ -0,0 +1,596 @@
+package mikera.engine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import mikera.data.Data;
+import mikera.data.SegmentStore;
+import mikera.data.Serializer;
+import mikera.util.Maths;
+import mikera.util.Tools;
+
+/**
+ * Grid divided into fixed size chunks of 32*32*32 cells, paged to and from a SegmentStore
+ *
+ * Chunks are created when first written, so the grid never needs to be reallocated as it
+ * grows. At most a fixed number of chunks are held in memory, in least recently used
+ * order. When a chunk is evicted it is written to the store if it has changed, and it is
+ * read back when next accessed. Changes are therefore written behind in whole chunks,
+ * and are only durable after flush().
+ *
+ * Each chunk is written as a record of run-length encoded values using a Serializer, so
+ * values must be of types the Serializer can write. A new record is written each time a
+ * changed chunk is evicted or flushed, and flush() also writes an index of the latest
+ * record of every chunk. Opening a grid on an existing store reads the latest index and
+ * scans only the records written after it.
+ *
+ * The store is append only, so superseded records still take space. getLiveBytes() can be
+ * compared with the size of the store to decide when to call compactTo(), which copies
+ * just the latest records to a new store.
+ *
+ * The store must be used only by this grid.
+ *
+ * Without a store, the grid is held entirely in memory and chunks are never evicted.
+ *
+ * Coordinates must be between MIN_COORD and MAX_COORD. Not thread safe.
+ *
+ * @author Mike Anderson
+ *
+ * @param <T>
+ */
+public final class ChunkedGrid<T> extends BaseGrid<T> {
+	public static final int CHUNK_BITS=5;
+	public static final int CHUNK_SIZE=1<<CHUNK_BITS;
+	public static final int DEFAULT_MAX_LOADED_CHUNKS=256;
+
+	private static final int CHUNK_MASK=CHUNK_SIZE-1;
+	private static final int CHUNK_VOLUME=CHUNK_SIZE*CHUNK_SIZE*CHUNK_SIZE;
+
+	private static final int KEY_BITS=21;
+	private static final long KEY_MASK=(1L<<KEY_BITS)-1;
+
+	public static final int MIN_COORD=-(1<<(KEY_BITS-1+CHUNK_BITS));
+	public static final int MAX_COORD=(1<<(KEY_BITS-1+CHUNK_BITS))-1;
+
+	private static final byte CHUNK_TAG=1;
+	private static final byte CLEAR_TAG=2;
+	private static final byte INDEX_TAG=3;
+	private static final byte INDEX_END_TAG=4;
+
+	private static final int INDEX_ENTRIES_PER_RECORD=1024;
+
+	private static final class Chunk {
+		private final Object[] data=new Object[CHUNK_VOLUME];
+		private int nonNull=0;
+		private boolean dirty=false;
+	}
+
+	private static final class StoredChunk {
+		private final long address;
+		private final int count;
+		private final int length;
+
+		private StoredChunk(long address, int count, int length) {
+			this.address=address;
+			this.count=count;
+			this.length=length;
+		}
+	}
+
+	private SegmentStore store;
+	private final Serializer serializer;
+	private final int maxLoadedChunks;
+	private final Data buffer=new Data();
+
+	// latest records of stored chunks
+	private final HashMap<Long,StoredChunk> stored=new HashMap<Long,StoredChunk>();
+	private long liveBytes=0;
+	// true if records have been written since the last index
+	private boolean indexStale=false;
+	private final LinkedHashMap<Long,Chunk> loaded=new LinkedHashMap<Long,Chunk>(16,0.75f,true);
+	private int nonNull=0;
+
+	// most recently used chunk, to avoid map lookups for runs of nearby accesses
+	private long lastKey;
+	private Chunk lastChunk=null;
+
+	/**
+	 * Creates a grid held entirely in memory
+	 */
+	public ChunkedGrid() {
+		store=null;
+		serializer=null;
+		maxLoadedChunks=Integer.MAX_VALUE;
+	}
+
+	public ChunkedGrid(SegmentStore store) throws IOException {
+		this(store,new Serializer(),DEFAULT_MAX_LOADED_CHUNKS);
+	}
+
+	/**
+	 * Opens a grid on a store, which may contain chunks written by an earlier grid
+	 *
+	 * @param store Store used only by this grid
+	 * @param serializer Serializer for cell values
+	 * @param maxLoadedChunks Maximum number of chunks to hold in memory
+	 */
+	public ChunkedGrid(SegmentStore store, Serializer serializer, int maxLoadedChunks) throws IOException {
+		if (maxLoadedChunks<1) throw new IllegalArgumentException("Must allow at least one loaded chunk: "+maxLoadedChunks);
+		this.store=store;
+		this.serializer=serializer;
+		this.maxLoadedChunks=maxLoadedChunks;
+		scanStore();
+	}
+
+	private void scanStore() {
+		int n=store.size();
+		int start=0;
+		// find the latest complete index, so that only the records after it are scanned
+		for (int i=n-1; i>=0; i--) {
+			store.read(store.address(i),buffer);
+			serializer.setInput(buffer, 0);
+			if (serializer.readByte()!=INDEX_END_TAG) continue;
+			int records=serializer.readLength();
+			if (records>i) throw new IllegalArgumentException("Invalid index at record "+i);
+			for (int j=i-records; j<i; j++) {
+				readIndex(store.address(j));
+			}
+			start=i+1;
+			break;
+		}
+		for (int i=start; i<n; i++) {
+			long address=store.address(i);
+			store.read(address,buffer);
+			serializer.setInput(buffer, 0);
+			byte tag=serializer.readByte();
+			if (tag==CLEAR_TAG) {
+				stored.clear();
+			} else if (tag==CHUNK_TAG) {
+				Long key=Long.valueOf(serializer.readVarLong());
+				int count=serializer.readLength();
+				if (count==0) {
+					stored.remove(key);
+				} else {
+					stored.put(key, new StoredChunk(address,count,buffer.size()+SegmentStore.HEADER_LENGTH));
+				}
+			} else if (tag==INDEX_TAG) {
+				// index records without an end record were cut short, and are ignored
+			} else {
+				throw new IllegalArgumentException("Not a chunk record at address "+address);
+			}
+		}
+		for (StoredChunk sc: stored.values()) {
+			nonNull+=sc.count;
+			liveBytes+=sc.length;
+		}
+		indexStale=(start<n);
+	}
+
+	private void readIndex(long address) {
+		store.read(address,buffer);
+		serializer.setInput(buffer, 0);
+		if (serializer.readByte()!=INDEX_TAG) throw new IllegalArgumentException("Not an index record at address "+address);
+		int entries=serializer.readLength();
+		for (int i=0; i<entries; i++) {
+			Long key=Long.valueOf(serializer.readVarLong());
+			long chunkAddress=serializer.readVarLong();
+			int count=serializer.readLength();
+			int length=serializer.readLength();
+			stored.put(key, new StoredChunk(chunkAddress,count,length));
+		}
+	}
+
+	/**
+	 * Writes the latest record of every stored chunk as a run of index records, followed
+	 * by an end record giving the length of the run
+	 */
+	private void writeIndex() throws IOException {
+		ArrayList<Map.Entry<Long,StoredChunk>> entries=new ArrayList<Map.Entry<Long,StoredChunk>>(stored.entrySet());
+		int records=0;
+		int i=0;
+		do {
+			int end=Maths.min(entries.size(),i+INDEX_ENTRIES_PER_RECORD);
+			buffer.clearContents();
+			buffer.appendByte(INDEX_TAG);
+			buffer.appendVarInt(end-i);
+			for (; i<end; i++) {
+				Map.Entry<Long,StoredChunk> e=entries.get(i);
+				StoredChunk sc=e.getValue();
+				buffer.appendVarLong(e.getKey().longValue());
+				buffer.appendVarLong(sc.address);
+				buffer.appendVarInt(sc.count);
+				buffer.appendVarInt(sc.length);
+			}
+			store.append(buffer);
+			records++;
+		} while (i<entries.size());
+		buffer.clearContents();
+		buffer.appendByte(INDEX_END_TAG);
+		buffer.appendVarInt(records);
+		store.append(buffer);
+		indexStale=false;
+	}
+
+	/* ****************************************
+	 * Chunk keys
+	 */
+
+	private static long chunkKey(int cx, int cy, int cz) {
+		return ((cz&KEY_MASK)<<(2*KEY_BITS))|((cy&KEY_MASK)<<KEY_BITS)|(cx&KEY_MASK);
+	}
+
+	private static int keyX(long key) {
+		return (int)((key<<(64-KEY_BITS))>>(64-KEY_BITS));
+	}
+
+	private static int keyY(long key) {
+		return (int)((key<<(64-2*KEY_BITS))>>(64-KEY_BITS));
+	}
+
+	private static int keyZ(long key) {
+		return (int)((key<<(64-3*KEY_BITS))>>(64-KEY_BITS));
+	}
+
+	private static boolean inRange(int x, int y, int z) {
+		return (x>=MIN_COORD)&&(x<=MAX_COORD)&&(y>=MIN_COORD)&&(y<=MAX_COORD)&&(z>=MIN_COORD)&&(z<=MAX_COORD);
+	}
+
+	private static void checkRange(int x, int y, int z) {
+		if (!inRange(x,y,z)) throw new IndexOutOfBoundsException("Position outside chunked grid: "+x+","+y+","+z);
+	}
+
+	private static int index(int x, int y, int z) {
+		return ((z&CHUNK_MASK)<<(2*CHUNK_BITS))|((y&CHUNK_MASK)<<CHUNK_BITS)|(x&CHUNK_MASK);
+	}
+
+	/* ****************************************
+	 * Chunk loading and eviction
+	 */
+
+	/**
+	 * Returns the chunk with the given key, loading it if necessary
+	 *
+	 * @param create If true, creates the chunk if it does not exist
+	 * @return The chunk, or null if it does not exist and create is false
+	 */
+	private Chunk getChunk(long key, boolean create) {
+		if ((lastChunk!=null)&&(key==lastKey)) return lastChunk;
+		Long k=Long.valueOf(key);
+		Chunk c=loaded.get(k);
+		if (c==null) {
+			StoredChunk sc=stored.get(k);
+			if (sc!=null) {
+				c=readChunk(sc.address);
+			} else if (create) {
+				c=new Chunk();
+			} else {
+				return null;
+			}
+			loaded.put(k, c);
+			evict();
+		}
+		lastKey=key;
+		lastChunk=c;
+		return c;
+	}
+
+	private void evict() {
+		if (loaded.size()<=maxLoadedChunks) return;
+		Iterator<Map.Entry<Long,Chunk>> it=loaded.entrySet().iterator();
+		while (loaded.size()>maxLoadedChunks) {
+			Map.Entry<Long,Chunk> e=it.next();
+			Chunk c=e.getValue();
+			if (c.dirty) {
+				try {
+					writeChunk(e.getKey(),c);
+				} catch (IOException ex) {
+					throw new Error("Chunk write failed",ex);
+				}
+			}
+			if (c==lastChunk) lastChunk=null;
+			it.remove();
+		}
+	}
+
+	private Chunk readChunk(long address) {
+		store.read(address,buffer);
+		serializer.setInput(buffer, 0);
+		if (serializer.readByte()!=CHUNK_TAG) throw new IllegalArgumentException("Not a chunk record at address "+address);
+		serializer.readVarLong();
+		Chunk c=new Chunk();
+		c.nonNull=serializer.readLength();
+		int i=0;
+		while (i<CHUNK_VOLUME) {
+			int run=serializer.readLength();
+			if ((run==0)||(i+run>CHUNK_VOLUME)) throw new IllegalArgumentException("Invalid chunk record at address "+address);
+			Object value=serializer.readObject();
+			Arrays.fill(c.data, i, i+run, value);
+			i+=run;
+		}
+		return c;
+	}
+
+	/**
+	 * Writes a chunk as run-length encoded values. Empty chunks are removed from the store.
+	 */
+	private void writeChunk(Long key, Chunk c) throws IOException {
+		c.dirty=false;
+		StoredChunk old=stored.get(key);
+		if ((c.nonNull==0)&&(old==null)) return;
+		buffer.clearContents();
+		buffer.appendByte(CHUNK_TAG);
+		buffer.appendVarLong(key.longValue());
+		buffer.appendVarInt(c.nonNull);
+		if (c.nonNull>0) {
+			Object[] data=c.data;
+			int i=0;
+			while (i<CHUNK_VOLUME) {
+				Object value=data[i];
+				int j=i+1;
+				while ((j<CHUNK_VOLUME)&&Tools.equalsWithNulls(data[j],value)) j++;
+				buffer.appendVarInt(j-i);
+				serializer.write(buffer, value);
+				i=j;
+			}
+		}
+		long address=store.append(buffer);
+		indexStale=true;
+		if (old!=null) liveBytes-=old.length;
+		if (c.nonNull>0) {
+			StoredChunk sc=new StoredChunk(address,c.nonNull,buffer.size()+SegmentStore.HEADER_LENGTH);
+			stored.put(key, sc);
+			liveBytes+=sc.length;
+		} else {
+			stored.remove(key);
+		}
+	}
+
+	/**
+	 * Writes all changed chunks and an index of the stored chunks to the store, and
+	 * flushes it
+	 */
+	public void flush() throws IOException {
+		if (store==null) return;
+		for (Map.Entry<Long,Chunk> e: loaded.entrySet()) {
+			Chunk c=e.getValue();
+			if (c.dirty) writeChunk(e.getKey(),c);
+		}
+		if (indexStale) writeIndex();
+		store.flush();
+	}
+
+	/**
+	 * Copies the latest record of each chunk to an empty store, writes any changed chunks
+	 * there and flushes it. The grid then uses the new store, and the old one may be
+	 * closed and deleted by the caller.
+	 */
+	public void compactTo(SegmentStore target) throws IOException {
+		if (store==null) throw new IllegalStateException("Grid has no store");
+		if (target.size()>0) throw new IllegalArgumentException("Target store is not empty");
+		HashMap<Long,StoredChunk> moved=new HashMap<Long,StoredChunk>();
+		for (Map.Entry<Long,StoredChunk> e: stored.entrySet()) {
+			Chunk c=loaded.get(e.getKey());
+			// changed chunks are written by the flush below
+			if ((c!=null)&&c.dirty) continue;
+			StoredChunk sc=e.getValue();
+			store.read(sc.address,buffer);
+			long address=target.append(buffer);
+			moved.put(e.getKey(), new StoredChunk(address,sc.count,sc.length));
+		}
+		store=target;
+		stored.clear();
+		stored.putAll(moved);
+		liveBytes=0;
+		for (StoredChunk sc: moved.values()) {
+			liveBytes+=sc.length;
+		}
+		indexStale=true;
+		flush();
+	}
+
+	public SegmentStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Returns the number of bytes taken in the store by the latest record of each chunk,
+	 * including record headers. The rest of the store is superseded records and indexes,
+	 * which compactTo() leaves behind.
+	 */
+	public long getLiveBytes() {
+		return liveBytes;
+	}
+
+	/**
+	 * Returns the number of chunks currently held in memory
+	 */
+	public int getLoadedChunkCount() {
+		return loaded.size();
+	}
+
+	/* ****************************************
+	 * Grid methods
+	 */
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T get(int x, int y, int z) {
+		if (!inRange(x,y,z)) return null;
+		Chunk c=getChunk(chunkKey(x>>CHUNK_BITS,y>>CHUNK_BITS,z>>CHUNK_BITS),false);
+		if (c==null) return null;
+		return (T)c.data[index(x,y,z)];
+	}
+
+	@Override
+	public ChunkedGrid<T> set(int x, int y, int z, T value) {
+		checkRange(x,y,z);
+		Chunk c=getChunk(chunkKey(x>>CHUNK_BITS,y>>CHUNK_BITS,z>>CHUNK_BITS),value!=null);
+		if (c==null) return this;
+		int i=index(x,y,z);
+		Object old=c.data[i];
+		if (Tools.equalsWithNulls(old,value)) return this;
+		if (old==null) {
+			c.nonNull++;
+			nonNull++;
+		} else if (value==null) {
+			c.nonNull--;
+			nonNull--;
+		}
+		c.data[i]=value;
+		c.dirty=true;
+		return this;
+	}
+
+	@Override
+	public ChunkedGrid<T> setBlock(int x1, int y1, int z1, int x2, int y2, int z2, T value) {
+		if ((x1>x2)||(y1>y2)||(z1>z2)) return this;
+		checkRange(x1,y1,z1);
+		checkRange(x2,y2,z2);
+		for (int cz=z1>>CHUNK_BITS; cz<=(z2>>CHUNK_BITS); cz++) {
+			for (int cy=y1>>CHUNK_BITS; cy<=(y2>>CHUNK_BITS); cy++) {
+				for (int cx=x1>>CHUNK_BITS; cx<=(x2>>CHUNK_BITS); cx++) {
+					Chunk c=getChunk(chunkKey(cx,cy,cz),value!=null);
+					if (c==null) continue;
+					setChunkBlock(c,
+							Maths.max(x1,cx<<CHUNK_BITS),Maths.max(y1,cy<<CHUNK_BITS),Maths.max(z1,cz<<CHUNK_BITS),
+							Maths.min(x2,(cx<<CHUNK_BITS)+CHUNK_MASK),Maths.min(y2,(cy<<CHUNK_BITS)+CHUNK_MASK),Maths.min(z2,(cz<<CHUNK_BITS)+CHUNK_MASK),
+							value);
+				}
+			}
+		}
+		return this;
+	}
+
+	private void setChunkBlock(Chunk c, int x1, int y1, int z1, int x2, int y2, int z2, T value) {
+		Object[] data=c.data;
+		int count=c.nonNull;
+		for (int z=z1; z<=z2; z++) {
+			for (int y=y1; y<=y2; y++) {
+				int start=index(x1,y,z);
+				int end=start+(x2-x1);
+				for (int i=start; i<=end; i++) {
+					if (data[i]!=null) count--;
+				}
+				Arrays.fill(data, start, end+1, value);
+				if (value!=null) count+=end+1-start;
+			}
+		}
+		nonNull+=count-c.nonNull;
+		c.nonNull=count;
+		c.dirty=true;
+	}
+
+	@Override
+	public ChunkedGrid<T> clear() {
+		if (store!=null) {
+			buffer.clearContents();
+			buffer.appendByte(CLEAR_TAG);
+			try {
+				store.append(buffer);
+			} catch (IOException e) {
+				throw new Error("Chunk store write failed",e);
+			}
+			indexStale=true;
+		}
+		stored.clear();
+		liveBytes=0;
+		loaded.clear();
+		lastChunk=null;
+		nonNull=0;
+		return this;
+	}
+
+	@Override
+	public ChunkedGrid<T> clearContents() {
+		return clear();
+	}
+
+	@Override
+	public ChunkedGrid<T> paste(Grid<T> src, int dx, int dy, int dz) {
+		super.paste(src, dx, dy, dz);
+		return this;
+	}
+
+	@Override
+	public int countNonNull() {
+		return nonNull;
+	}
+
+	/**
+	 * Returns the number of chunks, including those not currently in memory
+	 */
+	@Override
+	public int countNodes() {
+		int n=stored.size();
+		for (Long key: loaded.keySet()) {
+			if (!stored.containsKey(key)) n++;
+		}
+		return n;
+	}
+
+	private ArrayList<Long> chunkKeys() {
+		ArrayList<Long> keys=new ArrayList<Long>(stored.keySet());
+		for (Long key: loaded.keySet()) {
+			if (!stored.containsKey(key)) keys.add(key);
+		}
+		return keys;
+	}
+
+	@Override
+	public void visitBlocks(IBlockVisitor<T> bf) {
+		visitBlocks(bf,MIN_COORD,MIN_COORD,MIN_COORD,MAX_COORD,MAX_COORD,MAX_COORD);
+	}
+
+	/**
+	 * Visits runs of equal values along the x axis within the given bounds. Chunks
+	 * outside the bounds are not loaded.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public void visitBlocks(IBlockVisitor<T> bf, int xmin, int ymin, int zmin, int xmax, int ymax, int zmax) {
+		// chunks are looked up again for each row, as the visitor may change the grid
+		for (Long key: chunkKeys()) {
+			long k=key.longValue();
+			int bx=keyX(k)<<CHUNK_BITS;
+			int by=keyY(k)<<CHUNK_BITS;
+			int bz=keyZ(k)<<CHUNK_BITS;
+			int x1=Maths.max(xmin,bx); int x2=Maths.min(xmax,bx+CHUNK_MASK);
+			int y1=Maths.max(ymin,by); int y2=Maths.min(ymax,by+CHUNK_MASK);
+			int z1=Maths.max(zmin,bz); int z2=Maths.min(zmax,bz+CHUNK_MASK);
+			if ((x1>x2)||(y1>y2)||(z1>z2)) continue;
+			for (int z=z1; z<=z2; z++) {
+				for (int y=y1; y<=y2; y++) {
+					Chunk c=getChunk(k,false);
+					if (c==null) break;
+					Object[] data=c.data;
+					int x=x1;
+					while (x<=x2) {
+						Object value=data[index(x,y,z)];
+						int end=x;
+						while ((end<x2)&&(data[index(end+1,y,z)]==value)) end++;
+						if (value!=null) bf.visit(x, y, z, end, y, z, (T)value);
+						x=end+1;
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public void validate() {
+		if (loaded.size()>maxLoadedChunks) throw new Error("Too many loaded chunks: "+loaded.size());
+		for (Chunk c: loaded.values()) {
+			int n=0;
+			for (Object o: c.data) {
+				if (o!=null) n++;
+			}
+			if (n!=c.nonNull) throw new Error("Chunk count mismatch: "+n+" vs "+c.nonNull);
+		}
+		if (nonNull<0) throw new Error("Negative count: "+nonNull);
+	}
+}
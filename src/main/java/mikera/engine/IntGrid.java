@@ -3,6 +3,8 @@ package mikera.engine;
 import java.util.Arrays;
 
 import mikera.annotations.Mutable;
+import mikera.data.Encodable;
+import mikera.data.Serializer;
 import mikera.util.Maths;
 /**
  * Class for storing flexible 3D int arrays
@@ -12,7 +14,7 @@ import mikera.util.Maths;
  *
  */
 @Mutable
-public final class IntGrid  implements Cloneable {
+public final class IntGrid  implements Cloneable, Encodable {
 	// base coordinates
 	private int gx;
 	private int gy;
@@ -107,6 +109,54 @@ public final class IntGrid  implements Cloneable {
 		return nbg;
 	}
 	
+	@Override
+	public void encode(Serializer s) {
+		if (data==null) {
+			s.writeBoolean(false);
+			return;
+		}
+		s.writeBoolean(true);
+		s.writeVarInt(gx);
+		s.writeVarInt(gy);
+		s.writeVarInt(gz);
+		s.writeVarInt(gw);
+		s.writeVarInt(gh);
+		s.writeVarInt(gd);
+		int[] dt=data;
+		for (int i=0; i<dt.length; i++) {
+			s.writeVarInt(dt[i]);
+		}
+	}
+	
+	@Override
+	public void decode(Serializer s) {
+		if (!s.readBoolean()) {
+			clear();
+			return;
+		}
+		int ngx=s.readVarInt();
+		int ngy=s.readVarInt();
+		int ngz=s.readVarInt();
+		int ngw=s.readLength();
+		int ngh=s.readLength();
+		int ngd=s.readLength();
+		long n=((long)ngw)*ngh*ngd;
+		if (n>Integer.MAX_VALUE) throw new IllegalArgumentException("Grid too large: "+ngw+"*"+ngh+"*"+ngd);
+		int[] dt=data;
+		// reuse the existing array if it is the right size
+		if ((dt==null)||(dt.length!=n)) dt=new int[(int)n];
+		for (int i=0; i<dt.length; i++) {
+			dt[i]=s.readVarInt();
+		}
+		data=dt;
+		gx=ngx;
+		gy=ngy;
+		gz=ngz;
+		gw=ngw;
+		gh=ngh;
+		gd=ngd;
+	}
+	
 	public IntGrid clear() {
 		data=null;
 		return this;
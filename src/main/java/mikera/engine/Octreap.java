@@ -1,6 +1,10 @@
 package mikera.engine;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 
 import mikera.util.Rand;
 
@@ -332,14 +336,307 @@ public final class Octreap<T> extends BaseGrid<T> {
 		return true;
 	}
 	
+	/*
+	 * Connected regions
+	 * 
+	 * Regions of face-connected cells with the same value are searched in units of blocks:
+	 * the largest aligned z-order ranges within a node, or within a gap between nodes for
+	 * empty space. Each block is a box of cells, so the work done is proportional to the
+	 * number of blocks in and around a region rather than its volume.
+	 */
+	
+	private static final int MIN_COORD=-(BITS_POWER2>>1);
+	private static final int MAX_COORD=(BITS_POWER2>>1)-1;
+	
+	/**
+	 * Bounding box and volume of a connected region of cells
+	 */
+	public static final class Region {
+		public int x1=MAX_COORD;
+		public int y1=MAX_COORD;
+		public int z1=MAX_COORD;
+		public int x2=MIN_COORD;
+		public int y2=MIN_COORD;
+		public int z2=MIN_COORD;
+		public long volume=0;
+		
+		private void include(long lo, long hi) {
+			volume+=hi-lo+1;
+			x1=Math.min(x1, lowerBound(extractX(lo),extractX(hi)));
+			y1=Math.min(y1, lowerBound(extractY(lo),extractY(hi)));
+			z1=Math.min(z1, lowerBound(extractZ(lo),extractZ(hi)));
+			x2=Math.max(x2, upperBound(extractX(lo),extractX(hi)));
+			y2=Math.max(y2, upperBound(extractY(lo),extractY(hi)));
+			z2=Math.max(z2, upperBound(extractZ(lo),extractZ(hi)));
+		}
+	}
+	
+	/*
+	 * Bounds of a block on one axis, given the coordinates of its first and last cells.
+	 * Only a block spanning the sign bit has a first cell above the last, and then it
+	 * covers the whole axis.
+	 */
+	private static int lowerBound(int a, int b) {
+		return (a<=b)?a:MIN_COORD;
+	}
+	
+	private static int upperBound(int a, int b) {
+		return (a<=b)?b:MAX_COORD;
+	}
+	
+	private static interface BlockHandler {
+		public void handle(long lo, long hi);
+	}
+	
+	/**
+	 * Breadth first search over the blocks of a connected region
+	 */
+	private final class RegionSearch {
+		private final T fromValue;
+		private final HashSet<Long> visited=new HashSet<Long>();
+		private long[] queue=new long[64];
+		private int queueHead=0;
+		private int queueTail=0;
+		
+		// uniform range containing the last position passed to findRange
+		private long rangeStart;
+		private long rangeEnd;
+		private boolean rangeMatches;
+		
+		private RegionSearch(T fromValue) {
+			this.fromValue=fromValue;
+		}
+		
+		/**
+		 * Adds the block containing a cell, if the cell has the value being searched for
+		 * and has not already been visited
+		 * 
+		 * @return true if a new block was added
+		 */
+		private boolean start(long zz) {
+			findRange(zz);
+			if (!rangeMatches) return false;
+			return addBlock(zz,zz);
+		}
+		
+		/**
+		 * Visits every block connected to the blocks added so far
+		 */
+		private void run(BlockHandler handler) {
+			while (queueHead<queueTail) {
+				long lo=queue[queueHead++];
+				long hi=queue[queueHead++];
+				handler.handle(lo, hi);
+				visitNeighbours(lo,hi);
+			}
+			queueHead=0;
+			queueTail=0;
+		}
+		
+		/**
+		 * Finds the largest range with the same value containing zz, which is either a
+		 * node or a gap between nodes
+		 */
+		private void findRange(long zz) {
+			ZNode n=getNode(zz);
+			if (n!=null) {
+				rangeStart=n.z1;
+				rangeEnd=n.z2;
+				rangeMatches=(fromValue!=null)&&fromValue.equals(n.object);
+				return;
+			}
+			long start=MIN_ZVALUE;
+			long end=MAX_ZVALUE;
+			ZNode ze=head;
+			while (ze!=null) {
+				if (ze.z2<zz) {
+					start=Math.max(start, ze.z2+1);
+					ze=ze.right;
+				} else {
+					end=Math.min(end, ze.z1-1);
+					ze=ze.left;
+				}
+			}
+			rangeStart=start;
+			rangeEnd=end;
+			rangeMatches=(fromValue==null);
+		}
+		
+		/**
+		 * Grows an aligned block to the largest aligned block within the current range,
+		 * and adds it to the queue if not already visited
+		 */
+		private boolean addBlock(long lo, long hi) {
+			long size=hi-lo+1;
+			while (size<=FULL_MASK) {
+				long parentSize=size<<1;
+				long parentLo=lo&~(parentSize-1);
+				long parentHi=parentLo+parentSize-1;
+				if ((parentLo<rangeStart)||(parentHi>rangeEnd)) break;
+				lo=parentLo;
+				hi=parentHi;
+				size=parentSize;
+			}
+			if (!visited.add(lo)) return false;
+			if (queueTail+2>queue.length) {
+				if (queueHead>0) {
+					System.arraycopy(queue, queueHead, queue, 0, queueTail-queueHead);
+					queueTail-=queueHead;
+					queueHead=0;
+				}
+				if (queueTail+2>queue.length) queue=Arrays.copyOf(queue, queue.length*2);
+			}
+			queue[queueTail++]=lo;
+			queue[queueTail++]=hi;
+			return true;
+		}
+		
+		private void visitNeighbours(long lo, long hi) {
+			int x1=lowerBound(extractX(lo),extractX(hi));
+			int y1=lowerBound(extractY(lo),extractY(hi));
+			int z1=lowerBound(extractZ(lo),extractZ(hi));
+			int x2=upperBound(extractX(lo),extractX(hi));
+			int y2=upperBound(extractY(lo),extractY(hi));
+			int z2=upperBound(extractZ(lo),extractZ(hi));
+			if (x1>MIN_COORD) searchBox(x1-1,y1,z1,x1-1,y2,z2);
+			if (x2<MAX_COORD) searchBox(x2+1,y1,z1,x2+1,y2,z2);
+			if (y1>MIN_COORD) searchBox(x1,y1-1,z1,x2,y1-1,z2);
+			if (y2<MAX_COORD) searchBox(x1,y2+1,z1,x2,y2+1,z2);
+			if (z1>MIN_COORD) searchBox(x1,y1,z1-1,x2,y2,z1-1);
+			if (z2<MAX_COORD) searchBox(x1,y1,z2+1,x2,y2,z2+1);
+		}
+		
+		/**
+		 * Adds all matching blocks that intersect a box
+		 */
+		private void searchBox(int x1, int y1, int z1, int x2, int y2, int z2) {
+			// z-order is only monotonic within each sign, so split boxes that cross zero
+			if ((x1<0)&&(x2>=0)) {
+				searchBox(x1,y1,z1,-1,y2,z2);
+				searchBox(0,y1,z1,x2,y2,z2);
+				return;
+			}
+			if ((y1<0)&&(y2>=0)) {
+				searchBox(x1,y1,z1,x2,-1,z2);
+				searchBox(x1,0,z1,x2,y2,z2);
+				return;
+			}
+			if ((z1<0)&&(z2>=0)) {
+				searchBox(x1,y1,z1,x2,y2,-1);
+				searchBox(x1,y1,0,x2,y2,z2);
+				return;
+			}
+			
+			// start from the smallest aligned block containing the box
+			long zlo=calculateZ(x1,y1,z1);
+			long zhi=calculateZ(x2,y2,z2);
+			int bits=64-Long.numberOfLeadingZeros(zlo^zhi);
+			long mask=(1L<<bits)-1;
+			searchBlock(zlo&~mask,zlo|mask,x1,y1,z1,x2,y2,z2);
+		}
+		
+		private void searchBlock(long lo, long hi, int x1, int y1, int z1, int x2, int y2, int z2) {
+			if ((extractX(hi)<x1)||(extractX(lo)>x2)) return;
+			if ((extractY(hi)<y1)||(extractY(lo)>y2)) return;
+			if ((extractZ(hi)<z1)||(extractZ(lo)>z2)) return;
+			findRange(lo);
+			if (rangeEnd>=hi) {
+				// whole block has the same value
+				if (rangeMatches) addBlock(lo,hi);
+				return;
+			}
+			long half=(hi-lo+1)>>1;
+			searchBlock(lo,lo+half-1,x1,y1,z1,x2,y2,z2);
+			searchBlock(lo+half,hi,x1,y1,z1,x2,y2,z2);
+		}
+	}
+	
 	public void floodFill(int x, int y, int z, T value) {
 		T fromValue=get(x,y,z);
 		if (checkEquals(value,fromValue)) return;
 		floodFill(x,y,z,value,fromValue);
 	}
 	
+	/**
+	 * Sets all cells face-connected to (x,y,z) that have the value fromValue, including
+	 * (x,y,z) itself, to the given value. Does nothing if (x,y,z) does not have the value
+	 * fromValue. Either value may be null: filling empty space that is not enclosed will
+	 * fill the entire grid.
+	 */
 	public void floodFill(int x, int y, int z, T value, T fromValue) {
-		throw new Error("Not yet supported");
+		if (checkEquals(value,fromValue)) return;
+		RegionSearch rs=new RegionSearch(fromValue);
+		if (!rs.start(calculateZ(x,y,z))) return;
+		final ArrayList<long[]> blocks=new ArrayList<long[]>();
+		rs.run(new BlockHandler() {
+			@Override
+			public void handle(long lo, long hi) {
+				blocks.add(new long[] {lo,hi});
+			}
+		});
+		for (long[] b: blocks) {
+			setRange(b[0],b[1],value);
+		}
+	}
+	
+	/**
+	 * Finds the bounding box and volume of the region of face-connected cells with the
+	 * same value as (x,y,z), including (x,y,z) itself. The cell may be empty, in which case
+	 * the region is the connected empty space around it.
+	 */
+	public Region getRegion(int x, int y, int z) {
+		long zz=calculateZ(x,y,z);
+		RegionSearch rs=new RegionSearch(get(zz));
+		final Region region=new Region();
+		rs.start(zz);
+		rs.run(new BlockHandler() {
+			@Override
+			public void handle(long lo, long hi) {
+				region.include(lo, hi);
+			}
+		});
+		return region;
+	}
+	
+	public Octreap<Integer> labelComponents(T value) {
+		return labelComponents(value,null);
+	}
+	
+	/**
+	 * Labels each connected component of cells with the given value. The result has the
+	 * label of the component at each cell with the value, and is empty elsewhere. Labels
+	 * are numbered from zero in z-order of the first cell of each component.
+	 * 
+	 * @param value Non-null value to label
+	 * @param regions List to receive the Region of each component in label order, or null
+	 * @return Grid of labels
+	 */
+	public Octreap<Integer> labelComponents(T value, List<Region> regions) {
+		if (value==null) throw new IllegalArgumentException("Cannot label empty space");
+		final Octreap<Integer> labels=new Octreap<Integer>();
+		RegionSearch rs=new RegionSearch(value);
+		int count=0;
+		for (ZNode n=getFirstNode(); n!=null; n=nextNode(n.z1)) {
+			if (!value.equals(n.object)) continue;
+			long pos=n.z1;
+			while (pos<=n.z2) {
+				long size=blockSize(pos,n);
+				if (rs.start(pos)) {
+					final Integer label=Integer.valueOf(count++);
+					final Region region=(regions==null)?null:new Region();
+					rs.run(new BlockHandler() {
+						@Override
+						public void handle(long lo, long hi) {
+							labels.setRange(lo, hi, label);
+							if (region!=null) region.include(lo, hi);
+						}
+					});
+					if (regions!=null) regions.add(region);
+				}
+				pos+=size;
+			}
+		}
+		return labels;
 	}
 	
 	public Octreap<T> expand() {
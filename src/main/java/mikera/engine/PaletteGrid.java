@@ -0,0 +1,416 @@
+package mikera.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import mikera.data.Encodable;
+import mikera.data.Serializer;
+import mikera.util.Maths;
+
+/**
+ * Sparse grid of 16*16*16 chunks, each storing indexes into its own palette of values
+ *
+ * Each chunk keeps a small palette of the distinct values it contains, and packs the
+ * palette index of each cell into an array of longs using 1, 2, 4 or 8 bits per cell, as
+ * needed for the size of the palette. A chunk holding a few materials therefore uses a
+ * bit or two per cell however large the values are. The width grows when a chunk needs
+ * more than 256 values, up to 16 bits, and never shrinks except through compact().
+ *
+ * Values are compared with equals(), so equal values share one palette entry. Chunks are
+ * created when first written and removed when they become empty.
+ *
+ * Coordinates must be between MIN_COORD and MAX_COORD.
+ *
+ * @author Mike Anderson
+ *
+ * @param <T>
+ */
+public final class PaletteGrid<T> extends BaseGrid<T> implements Encodable {
+	public static final int CHUNK_BITS=4;
+	public static final int CHUNK_SIZE=1<<CHUNK_BITS;
+
+	private static final int CHUNK_MASK=CHUNK_SIZE-1;
+	private static final int CHUNK_VOLUME=CHUNK_SIZE*CHUNK_SIZE*CHUNK_SIZE;
+	private static final int MAX_BITS=16;
+
+	private static final int KEY_BITS=21;
+	private static final long KEY_MASK=(1L<<KEY_BITS)-1;
+
+	public static final int MIN_COORD=-(1<<(KEY_BITS-1+CHUNK_BITS));
+	public static final int MAX_COORD=(1<<(KEY_BITS-1+CHUNK_BITS))-1;
+
+	private static final class Chunk {
+		// entry 0 is always null, and entries with no cells are free for reuse
+		private Object[] palette;
+		private int[] counts;
+		private int paletteSize;
+		private int bits;
+		private long[] words;
+		private int nonNull;
+
+		private Chunk(int bits, int paletteCapacity) {
+			this.bits=bits;
+			palette=new Object[paletteCapacity];
+			counts=new int[paletteCapacity];
+			paletteSize=1;
+			words=new long[CHUNK_VOLUME*bits/64];
+			counts[0]=CHUNK_VOLUME;
+		}
+
+		private int getIndex(int i) {
+			int shift=i*bits;
+			return (int)(words[shift>>>6]>>>(shift&63))&((1<<bits)-1);
+		}
+
+		private void setIndex(int i, int p) {
+			int shift=i*bits;
+			long mask=((1L<<bits)-1)<<(shift&63);
+			int w=shift>>>6;
+			words[w]=(words[w]&~mask)|(((long)p)<<(shift&63));
+		}
+
+		/**
+		 * Returns the palette index for a value, adding it to the palette if necessary
+		 */
+		private int paletteIndex(Object value) {
+			int free=-1;
+			for (int i=1; i<paletteSize; i++) {
+				if (counts[i]==0) {
+					if (free<0) free=i;
+				} else if (value.equals(palette[i])) {
+					return i;
+				}
+			}
+			if (free>0) {
+				palette[free]=value;
+				return free;
+			}
+			if (paletteSize>=palette.length) {
+				palette=Arrays.copyOf(palette, palette.length*2);
+				counts=Arrays.copyOf(counts, counts.length*2);
+			}
+			if (paletteSize>=(1<<bits)) resize(bits*2);
+			palette[paletteSize]=value;
+			return paletteSize++;
+		}
+
+		private void resize(int newBits) {
+			long[] old=words;
+			int oldBits=bits;
+			words=new long[CHUNK_VOLUME*newBits/64];
+			bits=newBits;
+			int mask=(1<<oldBits)-1;
+			for (int i=0; i<CHUNK_VOLUME; i++) {
+				int shift=i*oldBits;
+				setIndex(i,(int)(old[shift>>>6]>>>(shift&63))&mask);
+			}
+		}
+
+		/**
+		 * Sets a cell, returning the change in the number of non-null cells
+		 */
+		private int set(int i, Object value) {
+			int old=getIndex(i);
+			if ((value==null)?(old==0):((old!=0)&&value.equals(palette[old]))) return 0;
+			int p=(value==null)?0:paletteIndex(value);
+			setIndex(i,p);
+			counts[old]--;
+			counts[p]++;
+			if (counts[old]==0) palette[old]=null;
+			int delta=((p==0)?0:1)-((old==0)?0:1);
+			nonNull+=delta;
+			return delta;
+		}
+	}
+
+	private final HashMap<Long,Chunk> chunks=new HashMap<Long,Chunk>();
+	private int nonNull=0;
+
+	public PaletteGrid() {
+	}
+
+	private static long chunkKey(int cx, int cy, int cz) {
+		return ((cz&KEY_MASK)<<(2*KEY_BITS))|((cy&KEY_MASK)<<KEY_BITS)|(cx&KEY_MASK);
+	}
+
+	private static int keyX(long key) {
+		return (int)((key<<(64-KEY_BITS))>>(64-KEY_BITS));
+	}
+
+	private static int keyY(long key) {
+		return (int)((key<<(64-2*KEY_BITS))>>(64-KEY_BITS));
+	}
+
+	private static int keyZ(long key) {
+		return (int)((key<<(64-3*KEY_BITS))>>(64-KEY_BITS));
+	}
+
+	private static boolean inRange(int x, int y, int z) {
+		return (x>=MIN_COORD)&&(x<=MAX_COORD)&&(y>=MIN_COORD)&&(y<=MAX_COORD)&&(z>=MIN_COORD)&&(z<=MAX_COORD);
+	}
+
+	private static void checkRange(int x, int y, int z) {
+		if (!inRange(x,y,z)) throw new IndexOutOfBoundsException("Position outside palette grid: "+x+","+y+","+z);
+	}
+
+	private static int index(int x, int y, int z) {
+		return ((z&CHUNK_MASK)<<(2*CHUNK_BITS))|((y&CHUNK_MASK)<<CHUNK_BITS)|(x&CHUNK_MASK);
+	}
+
+	private Chunk getChunk(int x, int y, int z) {
+		return chunks.get(Long.valueOf(chunkKey(x>>CHUNK_BITS,y>>CHUNK_BITS,z>>CHUNK_BITS)));
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T get(int x, int y, int z) {
+		if (!inRange(x,y,z)) return null;
+		Chunk c=getChunk(x,y,z);
+		if (c==null) return null;
+		return (T)c.palette[c.getIndex(index(x,y,z))];
+	}
+
+	@Override
+	public PaletteGrid<T> set(int x, int y, int z, T value) {
+		checkRange(x,y,z);
+		Long key=Long.valueOf(chunkKey(x>>CHUNK_BITS,y>>CHUNK_BITS,z>>CHUNK_BITS));
+		Chunk c=chunks.get(key);
+		if (c==null) {
+			if (value==null) return this;
+			c=new Chunk(1,4);
+			chunks.put(key, c);
+		}
+		nonNull+=c.set(index(x,y,z),value);
+		if (c.nonNull==0) chunks.remove(key);
+		return this;
+	}
+
+	@Override
+	public PaletteGrid<T> setBlock(int x1, int y1, int z1, int x2, int y2, int z2, T value) {
+		if ((x1>x2)||(y1>y2)||(z1>z2)) return this;
+		checkRange(x1,y1,z1);
+		checkRange(x2,y2,z2);
+		for (int cz=z1>>CHUNK_BITS; cz<=(z2>>CHUNK_BITS); cz++) {
+			for (int cy=y1>>CHUNK_BITS; cy<=(y2>>CHUNK_BITS); cy++) {
+				for (int cx=x1>>CHUNK_BITS; cx<=(x2>>CHUNK_BITS); cx++) {
+					int bx=cx<<CHUNK_BITS; int by=cy<<CHUNK_BITS; int bz=cz<<CHUNK_BITS;
+					int sx=Maths.max(x1,bx); int ex=Maths.min(x2,bx+CHUNK_MASK);
+					int sy=Maths.max(y1,by); int ey=Maths.min(y2,by+CHUNK_MASK);
+					int sz=Maths.max(z1,bz); int ez=Maths.min(z2,bz+CHUNK_MASK);
+					Long key=Long.valueOf(chunkKey(cx,cy,cz));
+					Chunk c=chunks.get(key);
+					if ((sx==bx)&&(sy==by)&&(sz==bz)&&(ex==bx+CHUNK_MASK)&&(ey==by+CHUNK_MASK)&&(ez==bz+CHUNK_MASK)) {
+						// the whole chunk is replaced
+						if (c!=null) nonNull-=c.nonNull;
+						if (value==null) {
+							chunks.remove(key);
+						} else {
+							chunks.put(key, uniformChunk(value));
+							nonNull+=CHUNK_VOLUME;
+						}
+						continue;
+					}
+					if (c==null) {
+						if (value==null) continue;
+						c=new Chunk(1,4);
+						chunks.put(key, c);
+					}
+					for (int z=sz; z<=ez; z++) {
+						for (int y=sy; y<=ey; y++) {
+							for (int x=sx; x<=ex; x++) {
+								nonNull+=c.set(index(x,y,z),value);
+							}
+						}
+					}
+					if (c.nonNull==0) chunks.remove(key);
+				}
+			}
+		}
+		return this;
+	}
+
+	private static Chunk uniformChunk(Object value) {
+		Chunk c=new Chunk(1,4);
+		c.palette[1]=value;
+		c.paletteSize=2;
+		c.counts[0]=0;
+		c.counts[1]=CHUNK_VOLUME;
+		c.nonNull=CHUNK_VOLUME;
+		Arrays.fill(c.words, -1L);
+		return c;
+	}
+
+	/**
+	 * Rebuilds each chunk's palette without unused entries, using the fewest bits per cell
+	 */
+	public void compact() {
+		for (Map.Entry<Long,Chunk> e: chunks.entrySet()) {
+			Chunk c=e.getValue();
+			int used=0;
+			for (int i=0; i<c.paletteSize; i++) {
+				if ((i==0)||(c.counts[i]>0)) used++;
+			}
+			if ((used==c.paletteSize)&&(bitsFor(used)==c.bits)) continue;
+			Chunk n=new Chunk(bitsFor(used),Math.max(4,used));
+			for (int i=0; i<CHUNK_VOLUME; i++) {
+				Object v=c.palette[c.getIndex(i)];
+				if (v!=null) n.set(i, v);
+			}
+			e.setValue(n);
+		}
+	}
+
+	private static int bitsFor(int paletteSize) {
+		int bits=1;
+		while ((1<<bits)<paletteSize) bits*=2;
+		return bits;
+	}
+
+	/**
+	 * Returns the number of bytes used to store palette indexes
+	 */
+	public long dataBytes() {
+		long n=0;
+		for (Chunk c: chunks.values()) {
+			n+=c.words.length*8L;
+		}
+		return n;
+	}
+
+	@Override
+	public PaletteGrid<T> clear() {
+		chunks.clear();
+		nonNull=0;
+		return this;
+	}
+
+	@Override
+	public PaletteGrid<T> clearContents() {
+		return clear();
+	}
+
+	@Override
+	public PaletteGrid<T> paste(Grid<T> src, int dx, int dy, int dz) {
+		super.paste(src, dx, dy, dz);
+		return this;
+	}
+
+	@Override
+	public int countNonNull() {
+		return nonNull;
+	}
+
+	/**
+	 * Returns the number of chunks
+	 */
+	@Override
+	public int countNodes() {
+		return chunks.size();
+	}
+
+	@Override
+	public void visitBlocks(IBlockVisitor<T> bf) {
+		visitBlocks(bf,MIN_COORD,MIN_COORD,MIN_COORD,MAX_COORD,MAX_COORD,MAX_COORD);
+	}
+
+	/**
+	 * Visits runs of equal values along the x axis within the given bounds
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public void visitBlocks(IBlockVisitor<T> bf, int xmin, int ymin, int zmin, int xmax, int ymax, int zmax) {
+		// copy the keys, as the visitor may change the grid
+		for (Long key: new ArrayList<Long>(chunks.keySet())) {
+			long k=key.longValue();
+			int bx=keyX(k)<<CHUNK_BITS;
+			int by=keyY(k)<<CHUNK_BITS;
+			int bz=keyZ(k)<<CHUNK_BITS;
+			int x1=Maths.max(xmin,bx); int x2=Maths.min(xmax,bx+CHUNK_MASK);
+			int y1=Maths.max(ymin,by); int y2=Maths.min(ymax,by+CHUNK_MASK);
+			int z1=Maths.max(zmin,bz); int z2=Maths.min(zmax,bz+CHUNK_MASK);
+			if ((x1>x2)||(y1>y2)||(z1>z2)) continue;
+			for (int z=z1; z<=z2; z++) {
+				for (int y=y1; y<=y2; y++) {
+					Chunk c=chunks.get(key);
+					if (c==null) break;
+					int x=x1;
+					while (x<=x2) {
+						int p=c.getIndex(index(x,y,z));
+						int end=x;
+						while ((end<x2)&&(c.getIndex(index(end+1,y,z))==p)) end++;
+						if (p!=0) bf.visit(x, y, z, end, y, z, (T)c.palette[p]);
+						x=end+1;
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public void encode(Serializer s) {
+		s.writeVarInt(chunks.size());
+		for (Map.Entry<Long,Chunk> e: chunks.entrySet()) {
+			Chunk c=e.getValue();
+			s.writeVarLong(e.getKey().longValue());
+			s.writeVarInt(c.bits);
+			s.writeVarInt(c.paletteSize);
+			for (int i=1; i<c.paletteSize; i++) {
+				s.writeObject((c.counts[i]>0)?c.palette[i]:null);
+			}
+			s.getOutput().appendLongs(c.words, 0, c.words.length);
+		}
+	}
+
+	@Override
+	public void decode(Serializer s) {
+		clear();
+		int n=s.readLength();
+		for (int j=0; j<n; j++) {
+			Long key=Long.valueOf(s.readVarLong());
+			int bits=s.readLength();
+			if ((bits<1)||(bits>MAX_BITS)||(Integer.bitCount(bits)!=1)) throw new IllegalArgumentException("Invalid bits per cell: "+bits);
+			int size=s.readLength();
+			if ((size<1)||(size>(1<<bits))) throw new IllegalArgumentException("Invalid palette size: "+size);
+			Chunk c=new Chunk(bits,Math.max(4,size));
+			c.paletteSize=size;
+			for (int i=1; i<size; i++) {
+				c.palette[i]=s.readObject();
+			}
+			s.getInput().readLongs(c.words, 0, c.words.length);
+			c.counts[0]=0;
+			for (int i=0; i<CHUNK_VOLUME; i++) {
+				int p=c.getIndex(i);
+				if ((p>=size)||((p>0)&&(c.palette[p]==null))) throw new IllegalArgumentException("Invalid palette index: "+p);
+				c.counts[p]++;
+			}
+			c.nonNull=CHUNK_VOLUME-c.counts[0];
+			if (c.nonNull==0) continue;
+			chunks.put(key, c);
+			nonNull+=c.nonNull;
+		}
+	}
+
+	@Override
+	public void validate() {
+		int total=0;
+		for (Chunk c: chunks.values()) {
+			int[] counts=new int[c.paletteSize];
+			for (int i=0; i<CHUNK_VOLUME; i++) {
+				int p=c.getIndex(i);
+				if (p>=c.paletteSize) throw new Error("Palette index out of range: "+p);
+				counts[p]++;
+			}
+			for (int i=0; i<c.paletteSize; i++) {
+				if (counts[i]!=c.counts[i]) throw new Error("Palette count mismatch for entry "+i);
+				if ((i>0)&&(counts[i]>0)&&(c.palette[i]==null)) throw new Error("Null palette entry in use: "+i);
+			}
+			if (c.palette[0]!=null) throw new Error("Palette entry 0 must be null");
+			if (c.nonNull!=CHUNK_VOLUME-counts[0]) throw new Error("Chunk count mismatch");
+			if (c.nonNull==0) throw new Error("Empty chunk");
+			total+=c.nonNull;
+		}
+		if (total!=nonNull) throw new Error("Count mismatch: "+total+" vs "+nonNull);
+	}
+}
@@ -0,0 +1,168 @@
+package mikera.engine;
+
+/**
+ * Copy-on-write grid for one writer thread and any number of reader threads
+ *
+ * Writes go to a working version, which is a PersistentTreeGrid, so each write only copies
+ * the path to the changed cells and never disturbs earlier versions. After a batch of
+ * writes the writer calls publish(), which makes the working version visible to readers
+ * with a single volatile write.
+ *
+ * Readers call snapshot() to get the latest published version in O(1) time. Snapshots are
+ * immutable, so they can be read without locks for as long as a reader likes, and never
+ * see a partly applied batch.
+ *
+ * The Grid methods of this class read and write the working version, and must only be
+ * called by the writer thread. Only snapshot() and getVersion() may be called by readers.
+ *
+ * @author Mike Anderson
+ *
+ * @param <T>
+ */
+public final class SnapshotGrid<T> extends BaseGrid<T> {
+	/**
+	 * Published version and its number, swapped as a unit so readers see a consistent pair
+	 */
+	private static final class Version<T> {
+		private final PersistentTreeGrid<T> grid;
+		private final long number;
+
+		private Version(PersistentTreeGrid<T> grid, long number) {
+			this.grid=grid;
+			this.number=number;
+		}
+	}
+
+	private volatile Version<T> published;
+	private PersistentTreeGrid<T> working;
+
+	@SuppressWarnings("unchecked")
+	public SnapshotGrid() {
+		this((PersistentTreeGrid<T>) PersistentTreeGrid.EMPTY);
+	}
+
+	/**
+	 * Creates a SnapshotGrid with the given grid as both the working and published version
+	 */
+	public SnapshotGrid(PersistentTreeGrid<T> initial) {
+		working=initial;
+		published=new Version<T>(initial,0);
+	}
+
+	/* ****************************************
+	 * Reader methods, safe on any thread
+	 */
+
+	/**
+	 * Returns the latest published version of the grid. The result is immutable.
+	 */
+	public PersistentTreeGrid<T> snapshot() {
+		return published.grid;
+	}
+
+	/**
+	 * Returns the number of times the grid has been published with changes. Readers can
+	 * compare this with the number of a snapshot they hold to see if it is out of date.
+	 */
+	public long getVersion() {
+		return published.number;
+	}
+
+	/* ****************************************
+	 * Writer methods
+	 */
+
+	/**
+	 * Makes all writes since the last publish visible to readers
+	 *
+	 * @return The newly published version
+	 */
+	public PersistentTreeGrid<T> publish() {
+		Version<T> v=published;
+		if (v.grid!=working) {
+			published=new Version<T>(working,v.number+1);
+		}
+		return working;
+	}
+
+	/**
+	 * Discards all writes since the last publish
+	 */
+	public void rollback() {
+		working=published.grid;
+	}
+
+	/**
+	 * Returns true if there are writes that have not been published
+	 */
+	public boolean isModified() {
+		return working!=published.grid;
+	}
+
+	/**
+	 * Returns the working version, including unpublished writes
+	 */
+	public PersistentTreeGrid<T> getWorkingGrid() {
+		return working;
+	}
+
+	@Override
+	public T get(int x, int y, int z) {
+		return working.get(x, y, z);
+	}
+
+	@Override
+	public SnapshotGrid<T> set(int x, int y, int z, T value) {
+		working=working.set(x, y, z, value);
+		return this;
+	}
+
+	@Override
+	public SnapshotGrid<T> setBlock(int x1, int y1, int z1, int x2, int y2, int z2, T value) {
+		working=working.setBlock(x1, y1, z1, x2, y2, z2, value);
+		return this;
+	}
+
+	@Override
+	public SnapshotGrid<T> clear() {
+		working=working.clear();
+		return this;
+	}
+
+	@Override
+	public SnapshotGrid<T> clearContents() {
+		return clear();
+	}
+
+	@Override
+	public SnapshotGrid<T> paste(Grid<T> src, int dx, int dy, int dz) {
+		super.paste(src, dx, dy, dz);
+		return this;
+	}
+
+	@Override
+	public int countNodes() {
+		return working.countNodes();
+	}
+
+	@Override
+	public int countNonNull() {
+		return working.countNonNull();
+	}
+
+	@Override
+	public void visitBlocks(IBlockVisitor<T> bf) {
+		working.visitBlocks(bf);
+	}
+
+	@Override
+	public void visitBlocks(IBlockVisitor<T> bf, int x1, int y1, int z1, int x2, int y2, int z2) {
+		working.visitBlocks(bf, x1, y1, z1, x2, y2, z2);
+	}
+
+	@Override
+	public void validate() {
+		working.validate();
+		published.grid.validate();
+	}
+}
@@ -0,0 +1,18 @@
+package mikera.net;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public interface BatchMessageHandler {
+	/**
+	 * Called with all complete messages received by a single read from the connection
+	 * 
+	 * The buffers are slices over a shared receive buffer, each containing one message
+	 * excluding any header. They are only valid for the duration of the call, so any data
+	 * needed later must be copied. The handler must not recycle them.
+	 * 
+	 * @param messages the messages, in the order received
+	 * @param c the connection on which the messages were received
+	 */
+	public void handleMessages(List<ByteBuffer> messages, Connection c);
+}
@@ -1,59 +1,383 @@
 package mikera.net;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Cache to enable recycling of NIO ByteBuffers
- * 
+ * Cache to enable recycling of direct NIO ByteBuffers
+ *
+ * Buffers are pooled in power of two size classes. Each thread keeps a small magazine
+ * of free buffers per size class, so most get / recycle pairs on the same thread touch
+ * no shared state. Magazines overflow into, and refill from, shared free lists which
+ * are bounded per size class, so the amount of pooled direct memory is limited.
+ * Buffers larger than the biggest size class are allocated on demand and never pooled.
+ *
+ * Optional leak tracking records every buffer handed out. Buffers that are garbage
+ * collected without being recycled are then counted as leaks, with the stack trace of
+ * their allocation. Recycling a buffer that is not outstanding, for example recycling
+ * it twice, is counted as an invalid recycle and the buffer is not pooled, so that it
+ * can never be handed out to two users at once.
+ *
  * @author Mike
  *
  */
 public final class BufferCache {
-	public TreeMap<Integer,ByteBuffer> buffers=new TreeMap<Integer, ByteBuffer>();
-	
+	private static final int MIN_CLASS_BITS=6;
+	private static final int MAX_CLASS_BITS=24;
+	private static final int CLASS_COUNT=MAX_CLASS_BITS-MIN_CLASS_BITS+1;
+	private static final int MAX_MAGAZINE_SIZE=8;
+	private static final int MAGAZINE_BYTES=1<<18;
+
+	/**
+	 * Default bound on the bytes held in each shared free list
+	 */
+	public static final int DEFAULT_MAX_POOLED_BYTES_PER_CLASS=1<<22;
+
+	private final SizeClass[] classes=new SizeClass[CLASS_COUNT];
+
+	private final ThreadLocal<Magazine[]> magazines=new ThreadLocal<Magazine[]>() {
+		@Override
+		protected Magazine[] initialValue() {
+			Magazine[] mags=new Magazine[CLASS_COUNT];
+			for (int i=0; i<CLASS_COUNT; i++) {
+				mags[i]=new Magazine(magazineSize(i));
+			}
+			return mags;
+		}
+	};
+
+	private final LongAdder allocations=new LongAdder();
+	private final LongAdder allocatedBytes=new LongAdder();
+	private final LongAdder reuses=new LongAdder();
+	private final LongAdder recycles=new LongAdder();
+	private final LongAdder discards=new LongAdder();
+	private final LongAdder outstandingBytes=new LongAdder();
+	private final LongAdder leaks=new LongAdder();
+	private final LongAdder invalidRecycles=new LongAdder();
+
+	private volatile boolean trackLeaks=false;
+	private final ConcurrentHashMap<Tracked,Throwable> tracked=new ConcurrentHashMap<Tracked,Throwable>();
+	private final ReferenceQueue<ByteBuffer> collected=new ReferenceQueue<ByteBuffer>();
+	private final ConcurrentLinkedQueue<Throwable> leakSites=new ConcurrentLinkedQueue<Throwable>();
+
 	private BufferCache() {
+		this(DEFAULT_MAX_POOLED_BYTES_PER_CLASS);
+	}
+
+	/**
+	 * Creates a separate buffer cache
+	 *
+	 * @param maxPooledBytesPerClass Maximum bytes held in the shared free list of each size class
+	 */
+	public BufferCache(int maxPooledBytesPerClass) {
+		for (int i=0; i<CLASS_COUNT; i++) {
+			int size=classSize(i);
+			classes[i]=new SizeClass(Math.max(1,maxPooledBytesPerClass/size));
+		}
+	}
+
+	private static int classSize(int index) {
+		return 1<<(index+MIN_CLASS_BITS);
+	}
+
+	private static int magazineSize(int index) {
+		return Math.max(1,Math.min(MAX_MAGAZINE_SIZE, MAGAZINE_BYTES/classSize(index)));
+	}
 
+	/**
+	 * Returns the smallest size class that can hold the given size, or -1 if too large to pool
+	 */
+	private static int classForRequest(int size) {
+		if (size<=(1<<MIN_CLASS_BITS)) return 0;
+		int bits=32-Integer.numberOfLeadingZeros(size-1);
+		if (bits>MAX_CLASS_BITS) return -1;
+		return bits-MIN_CLASS_BITS;
 	}
-	
-	public synchronized ByteBuffer getBuffer(int size) {
-		SortedMap<Integer,ByteBuffer> sm=buffers.tailMap(size);
-		if ((sm==null)||(sm.isEmpty())) {
-			ByteBuffer newItem=create(size);	
-			return newItem;
+
+	/**
+	 * Returns the largest size class that a buffer of the given capacity can serve, or -1 if none
+	 */
+	private static int classForCapacity(int capacity) {
+		int bits=31-Integer.numberOfLeadingZeros(capacity);
+		if ((bits<MIN_CLASS_BITS)||(bits>MAX_CLASS_BITS)) return -1;
+		return bits-MIN_CLASS_BITS;
+	}
+
+	/**
+	 * Gets a cleared direct buffer with at least the given capacity
+	 */
+	public ByteBuffer getBuffer(int size) {
+		if (size<0) throw new IllegalArgumentException("Negative buffer size: "+size);
+		int c=classForRequest(size);
+		ByteBuffer bb=null;
+		if (c>=0) {
+			bb=magazines.get()[c].pop();
+			if (bb==null) bb=classes[c].poll();
 		}
-		Integer k=sm.firstKey();
-		ByteBuffer bb=sm.remove(k);
-		if (bb==null) throw new Error("Expected ByteBuffer with entry length "+k+" not found!!");
+		if (bb==null) {
+			bb=create((c>=0)?classSize(c):size);
+		} else {
+			reuses.increment();
+		}
+		outstandingBytes.add(bb.capacity());
+		if (trackLeaks) track(bb);
 		return bb;
 	}
-	
+
 	public static void recycle(ByteBuffer bb) {
 		if (bb==null) throw new Error("Null ByteBuffer!!");
 		instance().recycleBuffer(bb);
 	}
-	
-	public synchronized void recycleBuffer(ByteBuffer bb) {
+
+	/**
+	 * Returns a buffer to the cache. The buffer must not be used afterwards.
+	 */
+	public void recycleBuffer(ByteBuffer bb) {
+		if (trackLeaks&&!untrack(bb)) {
+			invalidRecycles.increment();
+			return;
+		}
+		recycles.increment();
+		outstandingBytes.add(-bb.capacity());
+
+		int c=bb.isDirect()&&!bb.isReadOnly()?classForCapacity(bb.capacity()):-1;
+		if (c<0) {
+			discards.increment();
+			return;
+		}
 		bb.clear();
-		buffers.put(bb.capacity(),bb);
+		Magazine mag=magazines.get()[c];
+		if (mag.push(bb)) return;
+
+		// magazine full, so move half of it to the shared list
+		SizeClass sc=classes[c];
+		for (int i=Math.max(1,mag.capacity()>>1); i>0; i--) {
+			if (!sc.offer(mag.pop())) discards.increment();
+		}
+		mag.push(bb);
 	}
-	
-	public synchronized ByteBuffer grow(ByteBuffer bb, int size) {
-		ByteBuffer target=create(size);
+
+	/**
+	 * Gets a larger buffer containing the flipped contents of the given buffer, recycling the original
+	 */
+	public ByteBuffer grow(ByteBuffer bb, int size) {
+		ByteBuffer target=getBuffer(size);
 		bb.flip();
 		target.put(bb);
-		recycle(bb);
+		recycleBuffer(bb);
 		return target;
 	}
-	
+
 	private ByteBuffer create(int size) {
-		// TODO: Consider allocateDirect here?
+		allocations.increment();
+		allocatedBytes.add(size);
 		return ByteBuffer.allocateDirect(size);
 	}
-	
+
+	/* ****************************************
+	 * Leak tracking
+	 */
+
+	/**
+	 * Enables or disables leak tracking. Only buffers handed out while tracking is enabled
+	 * are tracked.
+	 */
+	public void setLeakTracking(boolean enabled) {
+		trackLeaks=enabled;
+		if (!enabled) tracked.clear();
+	}
+
+	public boolean isLeakTracking() {
+		return trackLeaks;
+	}
+
+	private void track(ByteBuffer bb) {
+		pollLeaks();
+		tracked.put(new Tracked(bb,collected), new Throwable("Buffer allocation site"));
+	}
+
+	private boolean untrack(ByteBuffer bb) {
+		pollLeaks();
+		return tracked.remove(new Tracked(bb,null))!=null;
+	}
+
+	private void pollLeaks() {
+		Object ref;
+		while ((ref=collected.poll())!=null) {
+			Throwable site=tracked.remove(ref);
+			if (site!=null) {
+				leaks.increment();
+				leakSites.add(site);
+			}
+		}
+	}
+
+	/**
+	 * Returns the allocation sites of buffers that were garbage collected without being recycled,
+	 * clearing the list
+	 */
+	public List<Throwable> drainLeakReports() {
+		pollLeaks();
+		ArrayList<Throwable> result=new ArrayList<Throwable>();
+		Throwable t;
+		while ((t=leakSites.poll())!=null) {
+			result.add(t);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of tracked buffers currently handed out
+	 */
+	public int getTrackedCount() {
+		pollLeaks();
+		return tracked.size();
+	}
+
+	/* ****************************************
+	 * Metrics
+	 */
+
+	/**
+	 * Number of buffers newly allocated
+	 */
+	public long getAllocationCount() {
+		return allocations.sum();
+	}
+
+	public long getAllocatedBytes() {
+		return allocatedBytes.sum();
+	}
+
+	/**
+	 * Number of requests served by a pooled buffer
+	 */
+	public long getReuseCount() {
+		return reuses.sum();
+	}
+
+	public long getRecycleCount() {
+		return recycles.sum();
+	}
+
+	/**
+	 * Number of recycled buffers dropped because the pool was full or the buffer unsuitable
+	 */
+	public long getDiscardCount() {
+		return discards.sum();
+	}
+
+	/**
+	 * Total capacity of buffers handed out and not yet recycled
+	 */
+	public long getOutstandingBytes() {
+		return outstandingBytes.sum();
+	}
+
+	public long getLeakCount() {
+		pollLeaks();
+		return leaks.sum();
+	}
+
+	/**
+	 * Number of recycled buffers that were not outstanding while leak tracking was enabled
+	 */
+	public long getInvalidRecycleCount() {
+		return invalidRecycles.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "BufferCache[allocations="+getAllocationCount()+", allocatedBytes="+getAllocatedBytes()
+			+", reuses="+getReuseCount()+", recycles="+getRecycleCount()+", discards="+getDiscardCount()
+			+", outstandingBytes="+getOutstandingBytes()+", leaks="+getLeakCount()+", invalidRecycles="+getInvalidRecycleCount()+"]";
+	}
+
+	private static final class SizeClass {
+		private final ConcurrentLinkedQueue<ByteBuffer> free=new ConcurrentLinkedQueue<ByteBuffer>();
+		private final AtomicInteger count=new AtomicInteger(0);
+		private final int maxCount;
+
+		private SizeClass(int maxCount) {
+			this.maxCount=maxCount;
+		}
+
+		private ByteBuffer poll() {
+			ByteBuffer bb=free.poll();
+			if (bb!=null) count.decrementAndGet();
+			return bb;
+		}
+
+		private boolean offer(ByteBuffer bb) {
+			if (count.incrementAndGet()>maxCount) {
+				count.decrementAndGet();
+				return false;
+			}
+			free.add(bb);
+			return true;
+		}
+	}
+
+	private static final class Magazine {
+		private final ByteBuffer[] buffers;
+		private int size=0;
+
+		private Magazine(int capacity) {
+			buffers=new ByteBuffer[capacity];
+		}
+
+		private int capacity() {
+			return buffers.length;
+		}
+
+		private ByteBuffer pop() {
+			if (size==0) return null;
+			ByteBuffer bb=buffers[--size];
+			buffers[size]=null;
+			return bb;
+		}
+
+		private boolean push(ByteBuffer bb) {
+			if (size==buffers.length) return false;
+			buffers[size++]=bb;
+			return true;
+		}
+	}
+
+	/**
+	 * Identity based weak key for tracked buffers
+	 */
+	private static final class Tracked extends WeakReference<ByteBuffer> {
+		private final int hash;
+
+		private Tracked(ByteBuffer bb, ReferenceQueue<ByteBuffer> queue) {
+			super(bb,queue);
+			hash=System.identityHashCode(bb);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o==this) return true;
+			if (!(o instanceof Tracked)) return false;
+			ByteBuffer bb=get();
+			return (bb!=null)&&(bb==((Tracked)o).get());
+		}
+	}
+
 	private static final BufferCache directInstance=new BufferCache();
-	
+
 	public static BufferCache instance() {
 		return directInstance;
 	}
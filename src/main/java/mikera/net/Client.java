@@ -2,12 +2,14 @@ package mikera.net;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 
 import mikera.data.Data;
 
 public class Client {
 	protected ClientConnector clientConnector=new ClientConnector();
 	protected Connection connection=null;
+	protected final RequestDispatcher requestDispatcher=new RequestDispatcher();
 	
 	private ArrayList<Data> incomingMessages=new ArrayList<Data>();
 	private ArrayList<Data> requeueMessages=new ArrayList<Data>();
@@ -17,13 +19,15 @@ public class Client {
 	}
 	
 	public void connect(String address, int port) {
-		clientConnector.setMessageHandler(new Receiver());
+		requestDispatcher.setMessageHandler(new Receiver());
+		clientConnector.setMessageHandler(requestDispatcher);
 		closeConnection();
 		connection=clientConnector.connect(address, port);		
 	}
 	
 	private void closeConnection() {
 		if (connection!=null) {
+			// pending requests are failed by the dispatcher when the connection closes
 			connection.close();
 			connection=null;
 		}
@@ -37,6 +41,15 @@ public class Client {
 		connection.write(bb);
 	}
 	
+	/**
+	 * Sends a request to the server, returning a future for the response. Responses are
+	 * not added to the incoming messages.
+	 */
+	public CompletableFuture<Data> request(Data data) {
+		if (connection==null) throw new Error("Connection not established!");
+		return requestDispatcher.request(connection, data);
+	}
+	
 	public void getIncomingMessages(ArrayList<Data> dest) {
 		synchronized (incomingMessages) {
 			dest.addAll(incomingMessages);
@@ -16,6 +16,7 @@ public class ClientConnector {
 	
 	Connection connection=null;
 	private MessageHandler handler;
+	private BatchMessageHandler batchHandler;
 	
 	public ClientConnector() {
 		
@@ -26,6 +27,15 @@ public class ClientConnector {
 		handler=mh;
 	}
 	
+	/**
+	 * Sets a handler receiving all messages from each read as a batch. When set, this is
+	 * used instead of the MessageHandler.
+	 */
+	public void setBatchMessageHandler(BatchMessageHandler bh) {
+		if (connection!=null) connection.batchHandler=bh;
+		batchHandler=bh;
+	}
+	
 	public Connection connect(InetAddress address, int port) {
 		SocketAddress a = new InetSocketAddress(address, port);
 		return connect(a);
@@ -48,9 +58,10 @@ public class ClientConnector {
 			
 			Connection c=new Connection(clientChannel,selector);
 			c.handler=handler;
+			c.batchHandler=batchHandler;
 			connection=c;
 			
-			clientChannel.register(selector, SelectionKey.OP_READ,c);
+			c.registered(clientChannel.register(selector, SelectionKey.OP_READ,c));
 			
 			new Thread(listener).start();
 			
@@ -64,10 +75,11 @@ public class ClientConnector {
 		@Override
 		public void run() {
 			try {
-				while (selector!=null) {
+				Selector s;
+				while ((s=selector)!=null) {
 					try {
-						selector.select(1000); // 1 sec heartbeat				
-						Set<SelectionKey> keys = selector.selectedKeys();
+						s.select(1000); // 1 sec heartbeat				
+						Set<SelectionKey> keys = s.selectedKeys();
 						
 						if (keys.size()==0) {
 							// System.err.println("Client listening.... nobody calling");
@@ -0,0 +1,14 @@
+package mikera.net;
+
+public interface CloseListener {
+	/**
+	 * Called once when a connection is closed, whether locally or because the remote
+	 * side disconnected
+	 *
+	 * Called on whichever thread closed the connection, which may be a selector thread,
+	 * so the listener must not block.
+	 *
+	 * @param c the connection
+	 */
+	public void connectionClosed(Connection c);
+}
@@ -7,6 +7,11 @@ import mikera.data.Data;
 public class CommonMessages {
 	public static final byte JOIN_GAME=0;
 	
+	// message types used by RequestDispatcher, each followed by a 4 byte request id
+	public static final byte REQUEST=(byte)0xF0;
+	public static final byte RESPONSE=(byte)0xF1;
+	public static final byte ERROR_RESPONSE=(byte)0xF2;
+	
 	public static void addJoinMessage(ByteBuffer dest, String name, String pass) {
 		dest.put(CommonMessages.JOIN_GAME);
 		Util.writeASCIIString(dest, name);
@@ -1,25 +1,88 @@
 package mikera.net;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import mikera.data.Data;
+import mikera.util.MpscQueue;
 
 public class Connection {
 	private static final boolean DEBUG = false;
 	
-	// header uses one int for message length, can be zero
+	/**
+	 * Action taken when the bytes queued on a connection reach its high watermark
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Writers wait until the queue drains to the low watermark. Writes from the thread
+		 * handling the connection's events are queued regardless, as blocking there would
+		 * stop the queue from draining.
+		 */
+		BLOCK,
+		/**
+		 * The oldest queued messages are dropped to bring the queue back under the high
+		 * watermark. Messages already partly written, encoded messages and control messages
+		 * are never dropped.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Messages written with writeCoalesced() are held back until the connection is writable
+		 * again, keeping only the latest message for each key. Other messages are queued as usual.
+		 */
+		COALESCE_BY_KEY,
+		/**
+		 * The connection is closed and all queued messages are discarded
+		 */
+		DISCONNECT
+	}
+	
+	// header uses one int for message length including the header, with the top two bits as flags
 	private static final int HEADER_LENGTH=4;
+	private static final int CONTROL_FLAG=0x80000000;
+	private static final int ENCODED_FLAG=0x40000000;
+	private static final int LENGTH_MASK=0x3FFFFFFF;
+	
+	// control message types, each followed by a features byte
+	private static final int CODEC_OFFER=1;
+	private static final int CODEC_ACCEPT=2;
 
 	public int MAX_MESSAGE_SIZE=10000000;
 	
 	private SocketChannel channel;
 	private Selector selector;
-	MessageHandler handler;
+	volatile MessageHandler handler;
+	volatile BatchMessageHandler batchHandler;
+	
+	/**
+	 * Selection key and reactor for this connection, set when the channel is registered
+	 */
+	volatile SelectionKey key;
+	Reactor reactor;
+	
+	/**
+	 * Executor for message handling, or null to handle messages on the selector thread
+	 */
+	Executor handlerExecutor;
 	
 	/**
 	 * Tag that identifies the connection to the server, assigned on creation
@@ -35,9 +98,70 @@ public class Connection {
 	// temporary receiving buffer for one message
 	private ByteBuffer receiveBuffer;
 	
-	// write queue, can hold multiple messages
-	// we synchronise access to writeQueue on writeQueue itself
-	private LinkedList<ByteBuffer> writeQueue=new LinkedList<ByteBuffer>();
+	/**
+	 * Maximum number of queued messages passed to a single gathering write
+	 */
+	public static final int MAX_GATHER=64;
+	
+	// lock-free write queue of framed messages, consumed only by the holder of the flushing flag
+	private final MpscQueue<ByteBuffer> writeQueue=new MpscQueue<ByteBuffer>();
+	private final AtomicInteger queuedMessages=new AtomicInteger(0);
+	private final AtomicLong queuedBytes=new AtomicLong(0);
+	private final AtomicBoolean flushing=new AtomicBoolean(false);
+	private volatile boolean writeInterest=false;
+	
+	// coalescing window for outgoing messages, disabled by default
+	private volatile long coalesceMicros=0;
+	private volatile int coalesceBytes=0;
+	private final AtomicBoolean flushScheduled=new AtomicBoolean(false);
+	private final Runnable scheduledFlush=new Runnable() {
+		@Override
+		public void run() {
+			flushScheduled.set(false);
+			tryFlush();
+		}
+	};
+	
+	private static final ScheduledExecutorService COALESCE_TIMER=Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t=new Thread(r,"Connection coalescing timer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	// flow control, unbounded by default
+	private volatile long highWatermark=Long.MAX_VALUE;
+	private volatile long lowWatermark=0;
+	private volatile OverflowPolicy overflowPolicy=OverflowPolicy.BLOCK;
+	private volatile WritabilityListener writabilityListener;
+	private final AtomicBoolean writable=new AtomicBoolean(true);
+	private final Object writabilityMonitor=new Object();
+	private final LinkedHashMap<Object,ByteBuffer> coalesced=new LinkedHashMap<Object,ByteBuffer>(); // guarded by itself
+	private volatile Thread eventThread;
+	private final AtomicBoolean closed=new AtomicBoolean(false);
+	private final CopyOnWriteArrayList<CloseListener> closeListeners=new CopyOnWriteArrayList<CloseListener>();
+	
+	// queue metrics, with write latency sampled for one queued message at a time
+	private final AtomicLong peakQueuedBytes=new AtomicLong(0);
+	private final AtomicLong droppedMessages=new AtomicLong(0);
+	private final AtomicLong coalescedMessages=new AtomicLong(0);
+	private final AtomicReference<LatencySample> latencySample=new AtomicReference<LatencySample>();
+	private volatile long lastWriteLatency=0;
+	private volatile long maxWriteLatency=0;
+	private volatile long averageWriteLatency=0;
+	
+	// payload codecs, replaced only while holding codecLock and the lock of the old encoder
+	private final Object codecLock=new Object();
+	private volatile int codecSupport=PayloadCodec.ALL_FEATURES;
+	private volatile PayloadCodec encoder=null;
+	private PayloadCodec decoder=null; // used only by the reading thread
+	
+	// messages taken from the queue but not yet fully written, guarded by its own lock and
+	// otherwise only used by the holder of the flushing flag
+	private final ByteBuffer[] writeBatch=new ByteBuffer[MAX_GATHER];
+	private int batchSize=0;
 
 	public Connection(SocketChannel clientChannel, Selector s) {
 		channel = clientChannel;
@@ -91,9 +215,42 @@ public class Connection {
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		if (!closed.compareAndSet(false, true)) return;
+		for (CloseListener listener : closeListeners) {
+			// whichever thread removes a listener notifies it, so it is called only once
+			if (closeListeners.remove(listener)) notifyClosed(listener);
+		}
+	}
+	
+	private void notifyClosed(CloseListener listener) {
+		try {
+			listener.connectionClosed(this);
+		} catch (Exception e) {
+			System.err.println("Error in connectionClosed!");
+			e.printStackTrace();
+		}
+	}
+	
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+	
+	/**
+	 * Adds a listener called when this connection is closed. If it is already closed, the
+	 * listener is called immediately.
+	 */
+	public void addCloseListener(CloseListener listener) {
+		closeListeners.add(listener);
+		// close() may have missed a listener added while it was notifying
+		if (closed.get() && closeListeners.remove(listener)) notifyClosed(listener);
+	}
+	
+	public void removeCloseListener(CloseListener listener) {
+		closeListeners.remove(listener);
 	}
 
 	void handleEvent(SelectionKey key) {
+		eventThread=Thread.currentThread();
 		if (key.isWritable()) {
 			handleWrite(key);
 		}
@@ -104,84 +261,187 @@ public class Connection {
 	}
 	
 	/**
-	 * Handles incoming data from the client checking applied to ensure complete
-	 * message is received passes on buffered data excluding message length
+	 * Handles incoming data from the client. Reads as much as is available into the
+	 * receive buffer, then delivers every complete message it contains, excluding the
+	 * message length header. Any incomplete trailing message is kept for the next read.
 	 * 
 	 * @param key
 	 */
 	private void handleRead(SelectionKey key) {
 		try {
-
 			ByteBuffer buffer = getReceiveBuffer();
+			int bytesread = channel.read(buffer);
+			if (bytesread == -1) {
+				// end of stream so close client
+				close();
+				return;
+			}
 
-			if (buffer.position() < 4) {
-				// get message length
-				buffer.limit(4);
-				int bytesread = channel.read(buffer);
-
-				if (bytesread == -1) {
-					// end of stream so close client
+			int end = buffer.position();
+			int pos = 0;
+			ArrayList<ByteBuffer> frames = null;
+			BitSet decoded = null;
+			while (end - pos >= HEADER_LENGTH) {
+				int header = buffer.getInt(pos);
+				int messageLength = header & LENGTH_MASK;
+				if ((messageLength > MAX_MESSAGE_SIZE) || (messageLength < HEADER_LENGTH)) {
+					System.err.println("Invalid message length: " + messageLength + " bytes");
 					close();
 					return;
 				}
-
-				// if (bytesread>0)
-				// System.err.println("Connection: Reading "+bytesread+" bytes");
-
-				int receivedBytes = buffer.position();
-				if (receivedBytes < 4) {
-					// return and continue to wait for rest of header
+				if (end - pos < messageLength) break;
+				
+				ByteBuffer body = slice(buffer, pos + HEADER_LENGTH, pos + messageLength);
+				pos += messageLength;
+				if ((header & CONTROL_FLAG) != 0) {
+					handleControl(body);
+					continue;
+				}
+				if (frames == null) frames = new ArrayList<ByteBuffer>();
+				if ((header & ENCODED_FLAG) != 0) {
+					if (decoder == null) throw new IllegalArgumentException("Encoded message received without a negotiated codec");
+					if (decoded == null) decoded = new BitSet();
+					decoded.set(frames.size());
+					frames.add(decoder.decode(body, MAX_MESSAGE_SIZE));
+				} else {
+					frames.add(body);
+				}
+			}
+			
+			if (frames != null) {
+				debugMessage("Connection.handleRead(): Read " + frames.size() + " messages in " + pos + " bytes");
+				try {
+					deliver(frames, decoded, buffer, pos, end);
+				} catch (Throwable t) {
+					t.printStackTrace();
+					key.cancel();
 					return;
 				}
 			}
-
-			int messageLength = buffer.getInt(0);
-			if (messageLength>MAX_MESSAGE_SIZE) {
-				System.err.println("Message too large: "+messageLength+" bytes");
-				close();
+			
+			// keep any partial message at the start of the receive buffer
+			buffer = receiveBuffer;
+			if (buffer == null) {
+				if (pos == end) return;
+				throw new Error("Receive buffer released with unread data");
 			}
-
-			if (messageLength > buffer.capacity()) {
-				debugMessage("Connection.handleReadEvent(): Growing receive buffer to "
-						+ messageLength + " bytes");
-				buffer = growReceiveBuffer(messageLength);
+			if (pos > 0) {
+				ByteBuffer rest = slice(buffer, pos, end);
+				buffer.clear();
+				buffer.put(rest);
 			}
-			buffer.limit(messageLength);
-
-			int bytesread = channel.read(buffer);
-			if (bytesread == -1) {
-				// end of stream so close client
-				close();
-				return;
+			if (buffer.position() >= HEADER_LENGTH) {
+				int messageLength = buffer.getInt(0) & LENGTH_MASK;
+				if (messageLength > buffer.capacity()) {
+					debugMessage("Connection.handleRead(): Growing receive buffer to "
+							+ messageLength + " bytes");
+					growReceiveBuffer(messageLength);
+				}
 			}
-
-			if (buffer.position() < messageLength) {
-				// still waiting for data
-				// receiveBuffer should be fully updated so exit
+		} catch (Exception e) {
+			// close the connection
+			close();
+			e.printStackTrace();
+			return;
+		}
+	}
+	
+	private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+		ByteBuffer bb = buffer.duplicate();
+		bb.limit(end);
+		bb.position(start);
+		return bb.slice();
+	}
+	
+	/**
+	 * Delivers complete messages held in the receive buffer between 0 and pos. Data between
+	 * pos and end belongs to a following message. Frames flagged in decoded are buffers
+	 * owned by this connection rather than slices of the receive buffer.
+	 */
+	private void deliver(List<ByteBuffer> frames, BitSet decoded, ByteBuffer buffer, int pos, int end) {
+		BatchMessageHandler bh = batchHandler;
+		if (bh != null) {
+			if (handlerExecutor == null) {
+				// slices over the receive buffer are only used during the call
+				handleMessages(bh, frames);
+				recycleDecoded(frames, decoded);
 				return;
 			}
+			// copy the whole batch once so that the receive buffer can be reused
+			int total = 0;
+			for (ByteBuffer f : frames) {
+				total += f.remaining();
+			}
+			ByteBuffer copy = bufferCache.getBuffer(total);
+			final ArrayList<ByteBuffer> copied = new ArrayList<ByteBuffer>(frames.size());
+			int offset = 0;
+			for (ByteBuffer f : frames) {
+				int n = f.remaining();
+				copy.put(f);
+				copied.add(slice(copy, offset, offset + n));
+				offset += n;
+			}
+			recycleDecoded(frames, decoded);
+			final ByteBuffer batchBuffer = copy;
+			final BatchMessageHandler handler = bh;
+			handlerExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					handleMessages(handler, copied);
+					BufferCache.recycle(batchBuffer);
+				}
+			});
+			return;
+		}
+		
+		for (int i = 0; i < frames.size(); i++) {
+			ByteBuffer data;
+			if ((decoded != null) && decoded.get(i)) {
+				// decoded messages are already in their own buffer
+				data = frames.get(i);
+			} else if ((frames.size() == 1) && (pos == end) && (frames.get(i).remaining() + HEADER_LENGTH == pos)) {
+				// a single message fills the buffer, so hand over the receive buffer itself
+				data = buffer;
+				data.limit(pos);
+				data.position(HEADER_LENGTH);
+				clearReceiveBuffer(false);
+			} else {
+				// message handlers may keep their buffer, so give each its own copy
+				ByteBuffer f = frames.get(i);
+				data = bufferCache.getBuffer(f.remaining());
+				data.put(f);
+				data.flip();
+			}
+			if (handlerExecutor != null) {
+				dispatchMessage(data);
+			} else if (handleMessage(data)) {
+				BufferCache.recycle(data);
+			}
+		}
+	}
 
-			debugMessage("Connection.handleReadEvent(): Read full message of "
-					+ messageLength + " bytes including header");
+	private static void recycleDecoded(List<ByteBuffer> frames, BitSet decoded) {
+		if (decoded == null) return;
+		for (int i = decoded.nextSetBit(0); i >= 0; i = decoded.nextSetBit(i + 1)) {
+			BufferCache.recycle(frames.get(i));
+		}
+	}
 
-			// we now have a full buffered message!
-			try {
-				// prepare to read
-				buffer.flip();
-				buffer.getInt(); // take away the message length
-				//System.err.println("Buffer recd: "+buffer.remaining());
-				boolean recycleBuffer=handleMessage(buffer);
-				clearReceiveBuffer(recycleBuffer);
-			} catch (Throwable t) {
-				t.printStackTrace();
-				key.cancel();
+	private void dispatchMessage(final ByteBuffer data) {
+		handlerExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (handleMessage(data)) BufferCache.recycle(data);
 			}
-
+		});
+	}
+	
+	private void handleMessages(BatchMessageHandler bh, List<ByteBuffer> messages) {
+		try {
+			bh.handleMessages(messages, this);
 		} catch (Exception e) {
-			// close the connection
-			close();
+			System.err.println("Error in handleMessages!");
 			e.printStackTrace();
-			return;
 		}
 	}
 
@@ -202,105 +462,656 @@ public class Connection {
 	 * Write data, prepending total message length as an integer
 	 * Assumes data is already flipped
 	 * 
+	 * May be called from any thread without locking. The message is appended to a lock-free
+	 * queue and written immediately if no other thread is currently writing.
+	 * 
 	 * @param data
 	 * @return number of bytes in message, excluding header
 	 */
 	public int write(ByteBuffer data) {
-		synchronized (this) {
-			try {
-				int fullMessageLength = data.remaining() + HEADER_LENGTH;
-				ByteBuffer bb = bufferCache.getBuffer(fullMessageLength);
-				debugMessage("Connection.write(): writing " + fullMessageLength
-						+ " bytes including header");
-				bb.putInt(fullMessageLength);
-
-				// flip bb to make it ready for writing
-				bb.put(data);
-				bb.flip();
-
-				// try to write, but if not then defer writing
-				tryWrite(bb);
-
-				return fullMessageLength - HEADER_LENGTH;
-			} catch (Throwable e) {
-				debugMessage("Error writing data to connection");
-				e.printStackTrace();
-				throw new Error(e);
+		if (encoder != null) return write(-1, data);
+		admit();
+		if (!channel.isOpen()) throw new Error("Write failed: connection closed");
+		int messageLength = data.remaining();
+		int fullMessageLength = messageLength + HEADER_LENGTH;
+		ByteBuffer bb = bufferCache.getBuffer(fullMessageLength);
+		debugMessage("Connection.write(): writing " + fullMessageLength
+				+ " bytes including header");
+		bb.putInt(fullMessageLength);
+		bb.put(data);
+		bb.flip();
+		enqueue(bb);
+		return messageLength;
+	}
+	
+	public int write(Data data) {
+		ByteBuffer bb=data.toFlippedByteBuffer();
+		int result=write(bb);
+		BufferCache.recycle(bb);
+		return result;
+	}
+	
+	/**
+	 * Writes a message on a logical channel. If a codec has been negotiated, the message
+	 * is compressed and may be delta encoded against the previous message written on the
+	 * same channel, otherwise it is written unchanged.
+	 * 
+	 * @param channelId Logical channel for delta encoding, or negative for none
+	 * @param data Flipped message data
+	 * @return number of bytes in message, excluding header
+	 */
+	public int write(int channelId, ByteBuffer data) {
+		admit();
+		if (!channel.isOpen()) throw new Error("Write failed: connection closed");
+		while (true) {
+			PayloadCodec enc=encoder;
+			if (enc==null) return writeRaw(data);
+			int messageLength=data.remaining();
+			ByteBuffer bb=bufferCache.getBuffer(HEADER_LENGTH+PayloadCodec.maxEncodedLength(messageLength));
+			// encode and enqueue together, so that the peer decodes in the order we encoded
+			synchronized (enc) {
+				if (enc==encoder) {
+					bb.position(HEADER_LENGTH);
+					int n=enc.encode(channelId, data, bb);
+					bb.putInt(0, (n+HEADER_LENGTH)|ENCODED_FLAG);
+					bb.flip();
+					enqueue(bb);
+					return messageLength;
+				}
 			}
+			// codec changed concurrently, so try again with the new one
+			BufferCache.recycle(bb);
 		}
 	}
 	
-	public int write(Data data) {
+	public int write(int channelId, Data data) {
 		ByteBuffer bb=data.toFlippedByteBuffer();
-		return write(bb);
+		int result=write(channelId, bb);
+		BufferCache.recycle(bb);
+		return result;
 	}
-
 	
-	private void handleWrite(SelectionKey key) {
-		try {		
-			synchronized (writeQueue) {
-				while (!writeQueue.isEmpty()) {
-					ByteBuffer bb=writeQueue.getFirst();
-					if (!bb.hasRemaining()) {
-						// message completed so recycle buffer
-						writeQueue.removeFirst();
-						BufferCache.recycle(bb);
-						continue;
-					}
-					
-					int byteswritten=channel.write(bb);
-					if ((byteswritten==0)||bb.hasRemaining()) {
-						// escape if unable to complete write
-						break;
-					}
+	private int writeRaw(ByteBuffer data) {
+		int messageLength = data.remaining();
+		int fullMessageLength = messageLength + HEADER_LENGTH;
+		ByteBuffer bb = bufferCache.getBuffer(fullMessageLength);
+		bb.putInt(fullMessageLength);
+		bb.put(data);
+		bb.flip();
+		enqueue(bb);
+		return messageLength;
+	}
+	
+	/* ****************************************
+	 * Codec negotiation
+	 */
+	
+	/**
+	 * Sets the codec features this side accepts when the peer offers them. Defaults to all features.
+	 */
+	public void setCodecSupport(int features) {
+		if ((features&~PayloadCodec.ALL_FEATURES)!=0) throw new IllegalArgumentException("Unknown codec features: "+features);
+		codecSupport=features;
+	}
+	
+	public int getCodecSupport() {
+		return codecSupport;
+	}
+	
+	/**
+	 * Offers the given codec features to the peer. Messages are written unencoded until the
+	 * peer accepts, after which both directions use the features supported by both sides.
+	 */
+	public void requestCodec(int features) {
+		if ((features&~PayloadCodec.ALL_FEATURES)!=0) throw new IllegalArgumentException("Unknown codec features: "+features);
+		switchEncoder(null, CODEC_OFFER, features);
+	}
+	
+	/**
+	 * Returns the codec features currently used for outgoing messages, or zero if none
+	 */
+	public int getCodecFeatures() {
+		PayloadCodec enc=encoder;
+		return (enc==null)?0:enc.getFeatures();
+	}
+	
+	/**
+	 * Sends a control message and replaces the encoder, so that every message queued after
+	 * the control message uses the new encoder. A type of zero sends no control message.
+	 */
+	private void switchEncoder(PayloadCodec newEncoder, int type, int features) {
+		synchronized (codecLock) {
+			PayloadCodec old=encoder;
+			if (old==null) {
+				if (type!=0) writeControl(type, features);
+				encoder=newEncoder;
+			} else {
+				synchronized (old) {
+					if (type!=0) writeControl(type, features);
+					encoder=newEncoder;
 				}
-				
-				if (writeQueue.isEmpty()) {
-					// deregister for writing
-					channel.register(selector, SelectionKey.OP_READ,this);
+			}
+		}
+	}
+	
+	private void writeControl(int type, int features) {
+		if (!channel.isOpen()) throw new Error("Write failed: connection closed");
+		int fullMessageLength=HEADER_LENGTH+2;
+		ByteBuffer bb=bufferCache.getBuffer(fullMessageLength);
+		bb.putInt(fullMessageLength|CONTROL_FLAG);
+		bb.put((byte)type);
+		bb.put((byte)features);
+		bb.flip();
+		enqueue(bb);
+	}
+	
+	/**
+	 * Handles a control message on the reading thread. The peer changes its encoder only after
+	 * sending a control message, so the decoder is replaced here at the matching point in the stream.
+	 */
+	private void handleControl(ByteBuffer body) {
+		if (body.remaining()<2) throw new IllegalArgumentException("Invalid control message");
+		int type=body.get();
+		int agreed=body.get()&codecSupport;
+		PayloadCodec codec=(agreed==0)?null:new PayloadCodec(agreed);
+		switch (type) {
+			case CODEC_OFFER:
+				decoder=codec;
+				switchEncoder((agreed==0)?null:new PayloadCodec(agreed), CODEC_ACCEPT, agreed);
+				break;
+			case CODEC_ACCEPT:
+				decoder=codec;
+				switchEncoder((agreed==0)?null:new PayloadCodec(agreed), 0, 0);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown control message type: "+type);
+		}
+	}
+	
+	/**
+	 * Creates a framed message that can be written to any number of connections with
+	 * writeFrame(), without copying the message for each connection
+	 * 
+	 * @param data Flipped message data, excluding header
+	 * @return Read-only buffer containing the message including header
+	 */
+	public static ByteBuffer createFrame(ByteBuffer data) {
+		int fullMessageLength = data.remaining() + HEADER_LENGTH;
+		ByteBuffer bb = ByteBuffer.allocateDirect(fullMessageLength);
+		bb.putInt(fullMessageLength);
+		bb.put(data);
+		bb.flip();
+		return bb.asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Writes a message previously framed with createFrame(). The frame is shared, not copied,
+	 * and is never recycled.
+	 * 
+	 * @param frame
+	 * @return number of bytes in message, excluding header
+	 */
+	public int writeFrame(ByteBuffer frame) {
+		if (!tryWriteFrame(frame)) throw new Error("Write failed: connection closed");
+		return frame.remaining() - HEADER_LENGTH;
+	}
+	
+	/**
+	 * Writes a message previously framed with createFrame(), unless the connection is closed
+	 * 
+	 * @return true if the message was queued, false if the connection is closed
+	 */
+	boolean tryWriteFrame(ByteBuffer frame) {
+		if (!frame.isReadOnly()) throw new IllegalArgumentException("Frame must be read-only, use createFrame()");
+		admit();
+		if (!channel.isOpen()) return false;
+		enqueue(frame.duplicate());
+		return true;
+	}
+	
+	private void enqueue(ByteBuffer bb) {
+		// count before offering so that a flusher never sees an empty count with a message in the queue
+		queuedMessages.incrementAndGet();
+		long bytes=queuedBytes.addAndGet(bb.remaining());
+		if (latencySample.get()==null) latencySample.compareAndSet(null, new LatencySample(bb));
+		writeQueue.offer(bb);
+		long peak;
+		while ((bytes>(peak=peakQueuedBytes.get()))&&!peakQueuedBytes.compareAndSet(peak, bytes)) {
+			// retry
+		}
+		
+		if ((coalesceMicros<=0)||(bytes>=coalesceBytes)) {
+			tryFlush();
+		} else if (flushScheduled.compareAndSet(false, true)) {
+			COALESCE_TIMER.schedule(scheduledFlush, coalesceMicros, TimeUnit.MICROSECONDS);
+		}
+		if (queuedBytes.get()>=highWatermark) overflow();
+	}
+	
+	/* ****************************************
+	 * Flow control
+	 */
+	
+	/**
+	 * Sets the watermarks for queued bytes. The connection becomes unwritable, and the overflow
+	 * policy applies, when the queued bytes reach the high watermark. It becomes writable again
+	 * once the queue drains to the low watermark.
+	 */
+	public void setWatermarks(long low, long high) {
+		if ((low<0)||(low>high)) throw new IllegalArgumentException("Invalid watermarks: low="+low+", high="+high);
+		lowWatermark=low;
+		highWatermark=high;
+		if (queuedBytes.get()>=high) overflow();
+		checkWritable();
+	}
+	
+	public long getLowWatermark() {
+		return lowWatermark;
+	}
+	
+	public long getHighWatermark() {
+		return highWatermark;
+	}
+	
+	public void setOverflowPolicy(OverflowPolicy policy) {
+		if (policy==null) throw new IllegalArgumentException("Null overflow policy");
+		overflowPolicy=policy;
+	}
+	
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+	
+	public void setWritabilityListener(WritabilityListener listener) {
+		writabilityListener=listener;
+	}
+	
+	/**
+	 * Returns false from when the queued bytes reach the high watermark until they drain to the low watermark
+	 */
+	public boolean isWritable() {
+		return writable.get();
+	}
+	
+	/**
+	 * Writes a message that replaces any earlier message with the same key still held back by
+	 * the COALESCE_BY_KEY overflow policy. Suited to state updates where only the latest matters.
+	 * 
+	 * @param key Key identifying the message, for example an entity id
+	 * @param data Flipped message data
+	 * @return number of bytes in message, excluding header
+	 */
+	public int writeCoalesced(Object key, ByteBuffer data) {
+		if (key==null) throw new IllegalArgumentException("Null coalescing key");
+		if ((overflowPolicy!=OverflowPolicy.COALESCE_BY_KEY)||writable.get()) return write(data);
+		if (!channel.isOpen()) throw new Error("Write failed: connection closed");
+		int messageLength=data.remaining();
+		ByteBuffer copy=bufferCache.getBuffer(messageLength);
+		copy.put(data);
+		copy.flip();
+		ByteBuffer old;
+		synchronized (coalesced) {
+			old=coalesced.put(key, copy);
+		}
+		if (old!=null) {
+			BufferCache.recycle(old);
+			coalescedMessages.incrementAndGet();
+		}
+		// the connection may have become writable before the message was stored
+		if (writable.get()) releaseCoalesced();
+		return messageLength;
+	}
+	
+	/**
+	 * Applies the BLOCK overflow policy before a message is queued
+	 */
+	private void admit() {
+		if (writable.get()||(overflowPolicy!=OverflowPolicy.BLOCK)) return;
+		if (Thread.currentThread()==eventThread) return;
+		synchronized (writabilityMonitor) {
+			while (!writable.get()&&channel.isOpen()) {
+				try {
+					writabilityMonitor.wait(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
 				}
 			}
+		}
+	}
+	
+	/**
+	 * Called when the queued bytes have reached the high watermark
+	 */
+	private void overflow() {
+		if (writable.compareAndSet(true, false)) {
+			fireWritabilityChanged(false);
+		}
+		switch (overflowPolicy) {
+			case DROP_OLDEST:
+				dropOldest();
+				break;
+			case DISCONNECT:
+				debugMessage("Connection.overflow(): disconnecting with "+queuedBytes.get()+" bytes queued");
+				close();
+				synchronized (writeBatch) {
+					discardWriteQueue();
+				}
+				discardCoalesced();
+				break;
+			default:
+				break;
+		}
+		// the queue may have drained while we were changing state
+		checkWritable();
+	}
+	
+	/**
+	 * Makes the connection writable again if the queue has drained to the low watermark
+	 */
+	private void checkWritable() {
+		if (writable.get()||(queuedBytes.get()>lowWatermark)) return;
+		if (!writable.compareAndSet(false, true)) return;
+		synchronized (writabilityMonitor) {
+			writabilityMonitor.notifyAll();
+		}
+		fireWritabilityChanged(true);
+		releaseCoalesced();
+	}
+	
+	private void fireWritabilityChanged(boolean isWritable) {
+		WritabilityListener listener=writabilityListener;
+		if (listener==null) return;
+		try {
+			listener.writabilityChanged(this, isWritable);
 		} catch (Exception e) {
+			System.err.println("Error in writabilityChanged!");
 			e.printStackTrace();
-			return;
 		}
 	}
-
-	// synchronised to avoid simultaneous Queue creation
-	private void tryWrite(ByteBuffer bb)
-			throws ClosedChannelException {
-
-		synchronized (writeQueue) {
-			boolean empty=writeQueue.isEmpty();
-			if (!empty) {
-				// queue immediately
-				writeQueue.add(bb);
-				return;
-			}
-			
-			try {
-				channel.write(bb);
-			} catch (Exception e) {
-				throw new Error("Write Failed!");
+	
+	/**
+	 * Drops the oldest droppable messages until the queue is below the high watermark. Queued
+	 * messages are moved into the write batch as needed, which keeps them in order.
+	 */
+	private void dropOldest() {
+		synchronized (writeBatch) {
+			int i=0;
+			while (queuedBytes.get()>=highWatermark) {
+				if (i==batchSize) {
+					if (batchSize==MAX_GATHER) break;
+					ByteBuffer next=writeQueue.poll();
+					if (next==null) break;
+					writeBatch[batchSize++]=next;
+				}
+				ByteBuffer bb=writeBatch[i];
+				if ((bb.position()>0)||((bb.getInt(0)&(CONTROL_FLAG|ENCODED_FLAG))!=0)) {
+					i++;
+					continue;
+				}
+				System.arraycopy(writeBatch, i+1, writeBatch, i, batchSize-i-1);
+				writeBatch[--batchSize]=null;
+				queuedMessages.decrementAndGet();
+				queuedBytes.addAndGet(-bb.limit());
+				droppedMessages.incrementAndGet();
+				releaseWriteBuffer(bb, false);
 			}
-			
-			// recycle buffer and exit if write is fully completed
-			if (!bb.hasRemaining()) {
-				BufferCache.recycle(bb);
-				return;
+		}
+	}
+	
+	/**
+	 * Queues the messages held back by the COALESCE_BY_KEY policy
+	 */
+	private void releaseCoalesced() {
+		ArrayList<ByteBuffer> held;
+		synchronized (coalesced) {
+			if (coalesced.isEmpty()) return;
+			held=new ArrayList<ByteBuffer>(coalesced.values());
+			coalesced.clear();
+		}
+		for (ByteBuffer bb: held) {
+			if (channel.isOpen()) write(bb);
+			BufferCache.recycle(bb);
+		}
+	}
+	
+	private void discardCoalesced() {
+		synchronized (coalesced) {
+			for (Iterator<ByteBuffer> it=coalesced.values().iterator(); it.hasNext(); ) {
+				BufferCache.recycle(it.next());
+				it.remove();
 			}
-			
-			// initiate write queue with this element
-			if (selector==null) throw new Error("FGEGREH");
-			writeQueue.add(bb);
-			
-			// if queue was originally empty, we need to register for write events
-			if (empty) {
-				channel.register(selector, SelectionKey.OP_WRITE|SelectionKey.OP_READ,this);
+		}
+	}
+	
+	/**
+	 * Highest number of bytes queued at once
+	 */
+	public long getPeakQueuedBytes() {
+		return peakQueuedBytes.get();
+	}
+	
+	/**
+	 * Number of messages dropped by the DROP_OLDEST overflow policy
+	 */
+	public long getDroppedMessageCount() {
+		return droppedMessages.get();
+	}
+	
+	/**
+	 * Number of messages replaced by a later message with the same key under the COALESCE_BY_KEY policy
+	 */
+	public long getCoalescedMessageCount() {
+		return coalescedMessages.get();
+	}
+	
+	/**
+	 * Time in nanoseconds between queueing and completing the write of the most recently sampled message
+	 */
+	public long getLastWriteLatencyNanos() {
+		return lastWriteLatency;
+	}
+	
+	public long getMaxWriteLatencyNanos() {
+		return maxWriteLatency;
+	}
+	
+	/**
+	 * Exponentially weighted average of sampled write latencies, in nanoseconds
+	 */
+	public long getAverageWriteLatencyNanos() {
+		return averageWriteLatency;
+	}
+	
+	private static final class LatencySample {
+		private final ByteBuffer buffer;
+		private final long start=System.nanoTime();
+		
+		private LatencySample(ByteBuffer buffer) {
+			this.buffer=buffer;
+		}
+	}
+	
+	/**
+	 * Sets a coalescing window for outgoing messages. Messages written while the window is
+	 * open are held back for up to the given time, or until the given number of bytes is
+	 * queued, and then sent together in a single write. Zero disables coalescing.
+	 * 
+	 * @param micros Maximum delay in microseconds before queued messages are sent
+	 * @param bytes Number of queued bytes that triggers an immediate send
+	 */
+	public void setCoalescing(long micros, int bytes) {
+		if ((micros<0)||(bytes<0)) throw new IllegalArgumentException("Coalescing window must not be negative");
+		coalesceBytes=bytes;
+		coalesceMicros=micros;
+		if (micros==0) flush();
+	}
+	
+	public long getCoalescingMicros() {
+		return coalesceMicros;
+	}
+	
+	public int getCoalescingBytes() {
+		return coalesceBytes;
+	}
+	
+	/**
+	 * Sends any messages held back by the coalescing window
+	 */
+	public void flush() {
+		tryFlush();
+	}
+	
+	/**
+	 * Number of bytes queued, including headers, and not yet fully written to the socket
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+	
+	/**
+	 * Number of messages queued and not yet fully written to the socket
+	 */
+	public int getQueuedMessageCount() {
+		return queuedMessages.get();
+	}
+	
+	/**
+	 * Writes queued messages if no other thread is doing so. The flushing flag gives the
+	 * holder exclusive use of the consumer side of the write queue. If the socket cannot
+	 * accept all the data, the flag is kept and handed over to the selector thread, which
+	 * completes the flush when the socket becomes writable.
+	 */
+	private void tryFlush() {
+		while ((queuedMessages.get()>0)&&flushing.compareAndSet(false, true)) {
+			if (!drainWriteQueue()) break;
+			flushing.set(false);
+		}
+		checkWritable();
+	}
+	
+	private void handleWrite(SelectionKey key) {
+		if (!writeInterest) return;
+		if (drainWriteQueue()) {
+			setWriteInterest(false);
+			flushing.set(false);
+			tryFlush();
+		} else {
+			checkWritable();
+		}
+	}
+	
+	/**
+	 * Writes as many queued messages as possible, gathering up to MAX_GATHER messages into
+	 * each channel write. Must only be called by the holder of the flushing flag.
+	 * 
+	 * @return true if the queue was fully written, false if the socket applied back pressure
+	 */
+	private boolean drainWriteQueue() {
+		synchronized (writeBatch) {
+			return drainWriteBatch();
+		}
+	}
+	
+	private boolean drainWriteBatch() {
+		try {
+			while (true) {
+				ByteBuffer bb;
+				while ((batchSize<MAX_GATHER)&&((bb=writeQueue.poll())!=null)) {
+					writeBatch[batchSize++]=bb;
+				}
+				if (batchSize==0) return true;
+				
+				channel.write(writeBatch, 0, batchSize);
+				
+				int done=0;
+				long doneBytes=0;
+				while ((done<batchSize)&&!writeBatch[done].hasRemaining()) {
+					doneBytes+=writeBatch[done].limit();
+					releaseWriteBuffer(writeBatch[done], true);
+					done++;
+				}
+				if (done>0) {
+					System.arraycopy(writeBatch, done, writeBatch, 0, batchSize-done);
+					Arrays.fill(writeBatch, batchSize-done, batchSize, null);
+					batchSize-=done;
+					queuedMessages.addAndGet(-done);
+					queuedBytes.addAndGet(-doneBytes);
+				}
 				
-				// wake up selector so that it picks up new registration
-				selector.wakeup();
+				if (batchSize>0) {
+					// socket buffer full, so wait until the selector reports it writable
+					setWriteInterest(true);
+					return false;
+				}
 			}
+		} catch (IOException e) {
+			debugMessage("Error writing data to connection: "+e);
+			close();
+			discardWriteQueue();
+			return true;
+		}
+	}
+	
+	private void releaseWriteBuffer(ByteBuffer bb, boolean written) {
+		LatencySample sample=latencySample.get();
+		if ((sample!=null)&&(sample.buffer==bb)) {
+			if (written) recordLatency(System.nanoTime()-sample.start);
+			latencySample.set(null);
+		}
+		// shared frames are read-only and not owned by this connection
+		if (!bb.isReadOnly()) BufferCache.recycle(bb);
+	}
+	
+	private void recordLatency(long nanos) {
+		// only called by the writing thread, so plain updates are safe
+		lastWriteLatency=nanos;
+		if (nanos>maxWriteLatency) maxWriteLatency=nanos;
+		long avg=averageWriteLatency;
+		averageWriteLatency=(avg==0)?nanos:avg+((nanos-avg)>>3);
+	}
+	
+	private void discardWriteQueue() {
+		int discarded=0;
+		long discardedBytes=0;
+		for (int i=0; i<batchSize; i++) {
+			discardedBytes+=writeBatch[i].limit();
+			releaseWriteBuffer(writeBatch[i], false);
+			writeBatch[i]=null;
+			discarded++;
+		}
+		batchSize=0;
+		ByteBuffer bb;
+		while ((bb=writeQueue.poll())!=null) {
+			discardedBytes+=bb.limit();
+			releaseWriteBuffer(bb, false);
+			discarded++;
 		}
+		queuedMessages.addAndGet(-discarded);
+		queuedBytes.addAndGet(-discardedBytes);
+	}
+	
+	private void setWriteInterest(boolean on) {
+		writeInterest=on;
+		SelectionKey k=key;
+		if (k==null) k=channel.keyFor(selector);
+		if ((k==null)||!k.isValid()) return; // registration will pick up write interest
+		try {
+			k.interestOps(on?(SelectionKey.OP_READ|SelectionKey.OP_WRITE):SelectionKey.OP_READ);
+		} catch (CancelledKeyException e) {
+			return;
+		}
+		if (on&&((reactor==null)||!reactor.inReactorThread())) {
+			// wake up selector so that it picks up the new interest set
+			selector.wakeup();
+		}
+	}
+	
+	/**
+	 * Called when the channel has been registered with its selector
+	 */
+	void registered(SelectionKey k) {
+		key=k;
+		if (writeInterest) setWriteInterest(true);
 	}
-}
\ No newline at end of file
+}
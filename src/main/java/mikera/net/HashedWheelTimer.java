@@ -0,0 +1,201 @@
+package mikera.net;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timer for large numbers of short timeouts, most of which are cancelled before expiry
+ *
+ * Timeouts are placed in the bucket of a circular wheel for the tick in which they expire.
+ * A single thread advances the wheel once per tick and runs the tasks in the current
+ * bucket, so scheduling and cancelling are O(1) and need no locks. Expiry is accurate to
+ * one tick, which is fine for request timeouts but not for precise scheduling.
+ *
+ * New timeouts are handed to the timer thread through a lock-free queue. Cancelled
+ * timeouts are removed when their bucket is next visited.
+ *
+ * Tasks run on the timer thread, so they should be short and must not block.
+ *
+ * @author Mike Anderson
+ *
+ */
+public final class HashedWheelTimer {
+	private static final int PENDING=0;
+	private static final int CANCELLED=1;
+	private static final int EXPIRED=2;
+
+	/**
+	 * Handle for a scheduled task
+	 */
+	public static final class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private long remainingRounds;
+		private final AtomicInteger state=new AtomicInteger(PENDING);
+
+		private Timeout(Runnable task, long deadline) {
+			this.task=task;
+			this.deadline=deadline;
+		}
+
+		/**
+		 * Cancels the task if it has not already run
+		 *
+		 * @return true if the task was cancelled, false if it has already run or been cancelled
+		 */
+		public boolean cancel() {
+			return state.compareAndSet(PENDING, CANCELLED);
+		}
+
+		public boolean isCancelled() {
+			return state.get()==CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get()==EXPIRED;
+		}
+	}
+
+	private final long tickNanos;
+	private final int mask;
+	private final ArrayList<ArrayList<Timeout>> wheel;
+	private final ConcurrentLinkedQueue<Timeout> newTimeouts=new ConcurrentLinkedQueue<Timeout>();
+	private final AtomicInteger pending=new AtomicInteger(0);
+	private final long startTime=System.nanoTime();
+	private long tick=0; // used only by the timer thread
+	private volatile Thread thread;
+	private volatile boolean stopped=false;
+
+	private final Runnable worker=new Runnable() {
+		@Override
+		public void run() {
+			while (!stopped) {
+				long deadline=(tick+1)*tickNanos;
+				long sleepNanos=deadline-(System.nanoTime()-startTime);
+				if (sleepNanos>0) {
+					try {
+						Thread.sleep(sleepNanos/1000000, (int)(sleepNanos%1000000));
+					} catch (InterruptedException e) {
+						if (stopped) return;
+					}
+					continue;
+				}
+				transferNewTimeouts();
+				expire(wheel.get((int)(tick&mask)));
+				tick++;
+			}
+		}
+	};
+
+	/**
+	 * Creates a timer with a 10ms tick and 512 buckets
+	 */
+	public HashedWheelTimer() {
+		this(10,TimeUnit.MILLISECONDS,512);
+	}
+
+	/**
+	 * Creates a timer. The thread is started when the first task is scheduled.
+	 *
+	 * @param tickDuration Duration of each tick, which is the accuracy of the timer
+	 * @param unit Unit of tickDuration
+	 * @param ticksPerWheel Number of buckets, rounded up to a power of two
+	 */
+	public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+		if (tickDuration<=0) throw new IllegalArgumentException("Tick duration must be positive: "+tickDuration);
+		if ((ticksPerWheel<=0)||(ticksPerWheel>(1<<30))) throw new IllegalArgumentException("Invalid ticks per wheel: "+ticksPerWheel);
+		tickNanos=Math.max(1,unit.toNanos(tickDuration));
+		int n=Integer.highestOneBit(ticksPerWheel);
+		if (n<ticksPerWheel) n<<=1;
+		mask=n-1;
+		wheel=new ArrayList<ArrayList<Timeout>>(n);
+		for (int i=0; i<n; i++) {
+			wheel.add(new ArrayList<Timeout>());
+		}
+	}
+
+	/**
+	 * Schedules a task to run once after the given delay
+	 *
+	 * @return A Timeout that can be used to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		if (stopped) throw new IllegalStateException("Timer is stopped");
+		start();
+		long deadline=System.nanoTime()-startTime+Math.max(0,unit.toNanos(delay));
+		Timeout t=new Timeout(task,deadline);
+		pending.incrementAndGet();
+		newTimeouts.add(t);
+		return t;
+	}
+
+	private void start() {
+		if (thread!=null) return;
+		synchronized (this) {
+			if (thread!=null) return;
+			Thread t=new Thread(worker,"Hashed wheel timer");
+			t.setDaemon(true);
+			t.start();
+			thread=t;
+		}
+	}
+
+	/**
+	 * Stops the timer thread. Tasks that have not yet run are abandoned.
+	 */
+	public void stop() {
+		stopped=true;
+		Thread t=thread;
+		if (t!=null) t.interrupt();
+	}
+
+	/**
+	 * Returns the number of scheduled tasks that have not yet run or been removed after cancellation
+	 */
+	public int pendingTimeouts() {
+		return pending.get();
+	}
+
+	private void transferNewTimeouts() {
+		Timeout t;
+		while ((t=newTimeouts.poll())!=null) {
+			if (t.isCancelled()) {
+				pending.decrementAndGet();
+				continue;
+			}
+			long expiryTick=t.deadline/tickNanos;
+			t.remainingRounds=(expiryTick-tick)>>Integer.bitCount(mask);
+			// a deadline already passed goes in the current bucket
+			long bucketTick=Math.max(expiryTick, tick);
+			wheel.get((int)(bucketTick&mask)).add(t);
+		}
+	}
+
+	private void expire(ArrayList<Timeout> bucket) {
+		int n=bucket.size();
+		int j=0;
+		for (int i=0; i<n; i++) {
+			Timeout t=bucket.get(i);
+			if (t.isCancelled()) {
+				pending.decrementAndGet();
+			} else if (t.remainingRounds<=0) {
+				pending.decrementAndGet();
+				if (t.state.compareAndSet(PENDING, EXPIRED)) {
+					try {
+						t.task.run();
+					} catch (Throwable e) {
+						e.printStackTrace();
+					}
+				}
+			} else {
+				t.remainingRounds--;
+				bucket.set(j++, t);
+			}
+		}
+		for (int i=n-1; i>=j; i--) {
+			bucket.remove(i);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package mikera.net;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import mikera.data.LZ4;
+
+/**
+ * Per-connection, per-direction codec for message payloads
+ *
+ * Each message is either sent raw, LZ4 compressed, or delta encoded against the previous
+ * message on the same channel and then compressed, whichever is smallest. Delta encoding
+ * XORs the message with the previous one, so unchanged bytes become zeros which compress
+ * to almost nothing. Messages with a negative channel id are never delta encoded.
+ *
+ * An encoder and the decoder at the other end of the connection must see the same
+ * sequence of messages, so a codec instance must only be used by one thread at a time.
+ *
+ * Encoded format: flags byte, compacted channel id, compacted raw length, body
+ *
+ * @author Mike Anderson
+ *
+ */
+public final class PayloadCodec {
+	/**
+	 * Feature bit for LZ4 compression of payloads
+	 */
+	public static final int LZ4_COMPRESSION=1;
+
+	/**
+	 * Feature bit for delta encoding against the previous message on the same channel
+	 */
+	public static final int DELTA_ENCODING=2;
+
+	public static final int ALL_FEATURES=LZ4_COMPRESSION|DELTA_ENCODING;
+
+	/**
+	 * Messages shorter than this are never compressed
+	 */
+	public static final int MIN_COMPRESS_LENGTH=32;
+
+	private static final int FLAG_COMPRESSED=1;
+	private static final int FLAG_DELTA=2;
+
+	private final int features;
+	private final HashMap<Integer,byte[]> history=new HashMap<Integer,byte[]>();
+
+	// scratch arrays, reused between messages
+	private byte[] input=new byte[256];
+	private byte[] delta=new byte[256];
+	private byte[] output=new byte[256];
+	private byte[] deltaOutput=new byte[256];
+
+	public PayloadCodec(int features) {
+		if ((features&~ALL_FEATURES)!=0) throw new IllegalArgumentException("Unknown codec features: "+features);
+		this.features=features;
+	}
+
+	public int getFeatures() {
+		return features;
+	}
+
+	private boolean keepsHistory(int channel) {
+		return (channel>=0)&&((features&DELTA_ENCODING)!=0);
+	}
+
+	/**
+	 * Returns the maximum encoded size of a message of the given length
+	 */
+	public static int maxEncodedLength(int length) {
+		return 1+5+5+Math.max(length, LZ4.maxCompressedLength(length));
+	}
+
+	/**
+	 * Encodes the remaining bytes of a message into the destination buffer
+	 *
+	 * @param channel Channel id for delta encoding, or negative for none
+	 * @param message Message to encode, which is consumed
+	 * @param dest Destination with at least maxEncodedLength() bytes remaining
+	 * @return Number of bytes written to dest
+	 */
+	public int encode(int channel, ByteBuffer message, ByteBuffer dest) {
+		int start=dest.position();
+		int len=message.remaining();
+		input=ensure(input,len);
+		message.get(input, 0, len);
+
+		int flags=0;
+		byte[] body=input;
+		int bodyLength=len;
+
+		if (len>=MIN_COMPRESS_LENGTH) {
+			if ((features&LZ4_COMPRESSION)!=0) {
+				output=ensure(output,LZ4.maxCompressedLength(len));
+				int n=LZ4.compress(input, 0, len, output, 0);
+				if (n<bodyLength) {
+					body=output;
+					bodyLength=n;
+					flags=FLAG_COMPRESSED;
+				}
+			}
+
+			byte[] prev=keepsHistory(channel)?history.get(channel):null;
+			if (prev!=null) {
+				delta=ensure(delta,len);
+				xor(input,prev,delta,len);
+				deltaOutput=ensure(deltaOutput,LZ4.maxCompressedLength(len));
+				int n=LZ4.compress(delta, 0, len, deltaOutput, 0);
+				if (n<bodyLength) {
+					body=deltaOutput;
+					bodyLength=n;
+					flags=FLAG_COMPRESSED|FLAG_DELTA;
+				}
+			}
+		}
+
+		if (keepsHistory(channel)) remember(channel,input,len);
+
+		dest.put((byte)flags);
+		Util.writeCompacted(dest, channel);
+		Util.writeCompacted(dest, len);
+		dest.put(body, 0, bodyLength);
+		return dest.position()-start;
+	}
+
+	/**
+	 * Decodes an encoded message
+	 *
+	 * @param encoded Encoded message, which is consumed
+	 * @param maxLength Maximum permitted decoded length
+	 * @return Flipped buffer from the BufferCache containing the decoded message
+	 * @throws IllegalArgumentException if the message is malformed
+	 */
+	public ByteBuffer decode(ByteBuffer encoded, int maxLength) {
+		int flags=encoded.get();
+		int channel=(int)Util.readCompacted(encoded);
+		long rawLength=Util.readCompacted(encoded);
+		if ((rawLength<0)||(rawLength>maxLength)) throw new IllegalArgumentException("Invalid decoded length: "+rawLength);
+		int len=(int)rawLength;
+
+		int bodyLength=encoded.remaining();
+		input=ensure(input,bodyLength);
+		encoded.get(input, 0, bodyLength);
+
+		byte[] result;
+		if ((flags&FLAG_COMPRESSED)!=0) {
+			output=ensure(output,len);
+			int n=LZ4.decompress(input, 0, bodyLength, output, 0, len);
+			if (n!=len) throw new IllegalArgumentException("Decompressed "+n+" bytes, expected "+len);
+			result=output;
+		} else {
+			if (bodyLength!=len) throw new IllegalArgumentException("Raw body of "+bodyLength+" bytes, expected "+len);
+			result=input;
+		}
+
+		if ((flags&FLAG_DELTA)!=0) {
+			byte[] prev=keepsHistory(channel)?history.get(channel):null;
+			if (prev==null) throw new IllegalArgumentException("Delta message with no previous message on channel "+channel);
+			delta=ensure(delta,len);
+			xor(result,prev,delta,len);
+			result=delta;
+		}
+
+		if (keepsHistory(channel)) remember(channel,result,len);
+
+		ByteBuffer bb=BufferCache.instance().getBuffer(len);
+		bb.put(result, 0, len);
+		bb.flip();
+		return bb;
+	}
+
+	/**
+	 * XORs a message with the previous one. Bytes beyond the end of the previous message are copied.
+	 */
+	private static void xor(byte[] src, byte[] prev, byte[] dst, int len) {
+		int n=Math.min(len, prev.length);
+		for (int i=0; i<n; i++) {
+			dst[i]=(byte)(src[i]^prev[i]);
+		}
+		if (len>n) System.arraycopy(src, n, dst, n, len-n);
+	}
+
+	private void remember(int channel, byte[] data, int len) {
+		Integer key=Integer.valueOf(channel);
+		byte[] h=history.get(key);
+		if ((h==null)||(h.length!=len)) {
+			h=new byte[len];
+			history.put(key, h);
+		}
+		System.arraycopy(data, 0, h, 0, len);
+	}
+
+	private static byte[] ensure(byte[] a, int size) {
+		if (a.length>=size) return a;
+		return Arrays.copyOf(a, Math.max(size, a.length*2));
+	}
+}
@@ -0,0 +1,125 @@
+package mikera.net;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector loop running on its own thread, handling read and write events for
+ * the connections registered with it.
+ * 
+ * Other threads interact with the selector only by submitting tasks, which are run
+ * on the reactor thread between selections.
+ * 
+ * @author Mike Anderson
+ *
+ */
+final class Reactor implements Runnable {
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks=new ConcurrentLinkedQueue<Runnable>();
+	private final Thread thread;
+	private volatile boolean live=true;
+	
+	Reactor(String name) throws IOException {
+		selector=Selector.open();
+		thread=new Thread(this,name);
+		thread.setDaemon(true);
+	}
+	
+	void start() {
+		thread.start();
+	}
+	
+	Selector getSelector() {
+		return selector;
+	}
+	
+	boolean inReactorThread() {
+		return Thread.currentThread()==thread;
+	}
+	
+	/**
+	 * Runs a task on the reactor thread, waking the selector if necessary
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Registers a channel for reading with this reactor
+	 */
+	void register(final SocketChannel channel, final Connection connection) {
+		connection.reactor=this;
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					connection.registered(channel.register(selector, SelectionKey.OP_READ, connection));
+				} catch (ClosedChannelException e) {
+					connection.close();
+				}
+			}
+		});
+	}
+	
+	@Override
+	public void run() {
+		while (live) {
+			try {
+				selector.select(1000); // 1 sec heartbeat
+				runTasks();
+				Set<SelectionKey> keys=selector.selectedKeys();
+				if (keys.size()>0) {
+					handleKeys(keys);
+				}
+			} catch (ClosedSelectorException e) {
+				// bailout, reactor has been closed
+				return;
+			} catch (Exception e) {
+				// report error but try to continue
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private void runTasks() {
+		Runnable task;
+		while ((task=tasks.poll())!=null) {
+			try {
+				task.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private void handleKeys(Set<SelectionKey> keys) {
+		for (Iterator<SelectionKey> i=keys.iterator(); i.hasNext();) {
+			SelectionKey key=i.next();
+			i.remove();
+			if (!key.isValid()) continue;
+			
+			Connection c=(Connection)key.attachment();
+			c.handleEvent(key);
+		}
+	}
+	
+	void close() {
+		live=false;
+		try {
+			for (SelectionKey key: selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package mikera.net;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mikera.data.Data;
+
+/**
+ * Request/response messaging over connections
+ *
+ * Requests are sent with a request id, and return a CompletableFuture that completes when
+ * the response with the same id arrives. Any number of requests may be in flight on a
+ * connection at once, and responses may arrive in any order. Requests that receive no
+ * response within their timeout complete exceptionally with a TimeoutException.
+ *
+ * A RequestDispatcher is installed as the MessageHandler of a connector. It answers
+ * incoming requests with its RequestHandler, and passes all other messages on to its
+ * own MessageHandler.
+ *
+ * Responses only complete requests sent on the connection they arrive on. When a connection
+ * closes, any requests still awaiting a response on it fail immediately.
+ *
+ * Futures are completed directly on the thread that handles messages for the connection,
+ * normally a selector thread, or on the timer thread for timeouts. Dependent actions
+ * attached with the non-async CompletableFuture methods also run there, so they must not
+ * block. Use the async methods for any slow work.
+ *
+ * @author Mike Anderson
+ *
+ */
+public class RequestDispatcher implements MessageHandler {
+	public static final long DEFAULT_TIMEOUT_MILLIS=10000;
+
+	/**
+	 * Length of the request header: message type byte and request id
+	 */
+	public static final int REQUEST_HEADER_LENGTH=5;
+
+	private static volatile HashedWheelTimer defaultTimer;
+
+	private final HashedWheelTimer timer;
+	private final ConcurrentHashMap<Integer,Pending> pending=new ConcurrentHashMap<Integer,Pending>();
+	// connections with a close listener installed by this dispatcher
+	private final ConcurrentHashMap<Connection,Boolean> watched=new ConcurrentHashMap<Connection,Boolean>();
+	private final AtomicInteger nextId=new AtomicInteger(0);
+	private volatile MessageHandler handler;
+	private volatile RequestHandler requestHandler;
+	private volatile long timeoutMillis=DEFAULT_TIMEOUT_MILLIS;
+
+	private final class Pending implements Runnable {
+		private final int id;
+		private final Connection connection;
+		private final CompletableFuture<Data> future=new CompletableFuture<Data>();
+		private volatile HashedWheelTimer.Timeout timeout;
+
+		private Pending(int id, Connection connection) {
+			this.id=id;
+			this.connection=connection;
+		}
+
+		/**
+		 * Called by the timer when the request times out
+		 */
+		@Override
+		public void run() {
+			if (pending.remove(id, this)) {
+				future.completeExceptionally(new TimeoutException("No response to request "+id));
+			}
+		}
+
+		private void cancelTimeout() {
+			HashedWheelTimer.Timeout t=timeout;
+			if (t!=null) t.cancel();
+		}
+	}
+
+	private final CloseListener closeListener=new CloseListener() {
+		@Override
+		public void connectionClosed(Connection c) {
+			watched.remove(c);
+			failPending(c, new Error("Connection closed"));
+		}
+	};
+
+	/**
+	 * Creates a dispatcher using a timer shared by all dispatchers
+	 */
+	public RequestDispatcher() {
+		this(getDefaultTimer());
+	}
+
+	public RequestDispatcher(HashedWheelTimer timer) {
+		this.timer=timer;
+	}
+
+	private static HashedWheelTimer getDefaultTimer() {
+		HashedWheelTimer t=defaultTimer;
+		if (t!=null) return t;
+		synchronized (RequestDispatcher.class) {
+			if (defaultTimer==null) defaultTimer=new HashedWheelTimer();
+			return defaultTimer;
+		}
+	}
+
+	/**
+	 * Sets the handler for messages that are not requests or responses
+	 */
+	public void setMessageHandler(MessageHandler mh) {
+		handler=mh;
+	}
+
+	/**
+	 * Sets the handler that answers incoming requests. If none is set, requests are
+	 * answered with an error.
+	 */
+	public void setRequestHandler(RequestHandler rh) {
+		requestHandler=rh;
+	}
+
+	/**
+	 * Sets the timeout for requests that do not specify one
+	 */
+	public void setTimeout(long millis) {
+		if (millis<=0) throw new IllegalArgumentException("Timeout must be positive: "+millis);
+		timeoutMillis=millis;
+	}
+
+	public long getTimeout() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * Returns the number of requests awaiting a response
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/* ****************************************
+	 * Sending requests
+	 */
+
+	public CompletableFuture<Data> request(Connection c, Data data) {
+		return request(c,data,timeoutMillis,TimeUnit.MILLISECONDS);
+	}
+
+	public CompletableFuture<Data> request(Connection c, Data data, long timeout, TimeUnit unit) {
+		ByteBuffer bb=data.toFlippedByteBuffer();
+		try {
+			return request(c,bb,timeout,unit);
+		} finally {
+			BufferCache.recycle(bb);
+		}
+	}
+
+	public CompletableFuture<Data> request(Connection c, ByteBuffer data) {
+		return request(c,data,timeoutMillis,TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends a request on a connection. May be called from any thread.
+	 *
+	 * @param c Connection to send the request on
+	 * @param data Flipped request data
+	 * @param timeout Time to wait for a response
+	 * @param unit Unit of timeout
+	 * @return A future that completes with the response data
+	 */
+	public CompletableFuture<Data> request(Connection c, ByteBuffer data, long timeout, TimeUnit unit) {
+		int id=nextId.incrementAndGet();
+		Pending p=new Pending(id,c);
+		pending.put(id, p);
+		p.timeout=timer.schedule(p, timeout, unit);
+		if (watched.putIfAbsent(c, Boolean.TRUE)==null) c.addCloseListener(closeListener);
+		try {
+			send(c,CommonMessages.REQUEST,id,data);
+		} catch (Throwable t) {
+			pending.remove(id, p);
+			p.cancelTimeout();
+			p.future.completeExceptionally(t);
+		}
+		return p.future;
+	}
+
+	/**
+	 * Fails all requests awaiting a response on the given connection, for example when it
+	 * is closed
+	 */
+	public void failPending(Connection c, Throwable cause) {
+		for (Iterator<Map.Entry<Integer,Pending>> it=pending.entrySet().iterator(); it.hasNext();) {
+			Pending p=it.next().getValue();
+			if ((p.connection==c)&&pending.remove(p.id, p)) {
+				p.cancelTimeout();
+				p.future.completeExceptionally(cause);
+			}
+		}
+	}
+
+	private static void send(Connection c, byte type, int id, ByteBuffer data) {
+		ByteBuffer bb=BufferCache.instance().getBuffer(REQUEST_HEADER_LENGTH+data.remaining());
+		try {
+			bb.put(type);
+			bb.putInt(id);
+			bb.put(data);
+			bb.flip();
+			c.write(bb);
+		} finally {
+			BufferCache.recycle(bb);
+		}
+	}
+
+	/* ****************************************
+	 * Receiving messages
+	 */
+
+	@Override
+	public boolean handleMessage(ByteBuffer data, Connection c) {
+		int pos=data.position();
+		if (data.remaining()>=REQUEST_HEADER_LENGTH) {
+			byte type=data.get(pos);
+			if (type==CommonMessages.REQUEST) {
+				int id=data.getInt(pos+1);
+				data.position(pos+REQUEST_HEADER_LENGTH);
+				handleRequest(id,data,c);
+				return true;
+			} else if ((type==CommonMessages.RESPONSE)||(type==CommonMessages.ERROR_RESPONSE)) {
+				int id=data.getInt(pos+1);
+				data.position(pos+REQUEST_HEADER_LENGTH);
+				handleResponse(id,type==CommonMessages.ERROR_RESPONSE,data,c);
+				return true;
+			}
+		}
+		MessageHandler mh=handler;
+		if (mh==null) return true;
+		return mh.handleMessage(data, c);
+	}
+
+	private void handleResponse(int id, boolean error, ByteBuffer data, Connection c) {
+		Pending p=pending.get(id);
+		// ignore responses to requests that have timed out or were sent on another connection
+		if ((p==null)||(p.connection!=c)||!pending.remove(id, p)) return;
+		p.cancelTimeout();
+		if (error) {
+			Data d=Data.create(data);
+			p.future.completeExceptionally(new IllegalStateException("Request "+id+" failed: "+d.getString(0)));
+		} else {
+			p.future.complete(Data.create(data));
+		}
+	}
+
+	private void handleRequest(int id, ByteBuffer data, Connection c) {
+		RequestHandler rh=requestHandler;
+		Data response;
+		try {
+			if (rh==null) throw new IllegalStateException("No request handler");
+			response=rh.handleRequest(data, c);
+		} catch (Throwable t) {
+			Data d=new Data();
+			d.appendString(String.valueOf(t.getMessage()));
+			sendResponse(c,CommonMessages.ERROR_RESPONSE,id,d);
+			return;
+		}
+		if (response!=null) sendResponse(c,CommonMessages.RESPONSE,id,response);
+	}
+
+	private static void sendResponse(Connection c, byte type, int id, Data data) {
+		ByteBuffer bb=data.toFlippedByteBuffer();
+		try {
+			send(c,type,id,bb);
+		} finally {
+			BufferCache.recycle(bb);
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package mikera.net;
+
+import java.nio.ByteBuffer;
+
+import mikera.data.Data;
+
+public interface RequestHandler {
+	/**
+	 * Called when a request is received by a RequestDispatcher
+	 * 
+	 * Called on the thread handling messages for the connection, which is normally a
+	 * selector thread, so the handler must not block. If the handler throws an exception,
+	 * the requester's future completes exceptionally with the exception message.
+	 * 
+	 * @param request the request data, excluding the request header. Only valid for the duration of the call.
+	 * @param c the connection on which the request was received
+	 * @return the response, or null to send no response, in which case the request will time out
+	 */
+	public Data handleRequest(ByteBuffer request, Connection c);
+}
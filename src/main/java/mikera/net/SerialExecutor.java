@@ -0,0 +1,54 @@
+package mikera.net;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Executor that runs tasks one at a time, in submission order, on an underlying executor.
+ * 
+ * Used to preserve per-connection message ordering while handlers for different
+ * connections run in parallel.
+ * 
+ * @author Mike Anderson
+ *
+ */
+final class SerialExecutor implements Executor, Runnable {
+	private final Executor executor;
+	private final ConcurrentLinkedQueue<Runnable> queue=new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean scheduled=new AtomicBoolean(false);
+	
+	SerialExecutor(Executor executor) {
+		this.executor=executor;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		queue.add(task);
+		schedule();
+	}
+	
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			executor.execute(this);
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			Runnable task;
+			while ((task=queue.poll())!=null) {
+				try {
+					task.run();
+				} catch (Throwable t) {
+					t.printStackTrace();
+				}
+			}
+		} finally {
+			scheduled.set(false);
+			// pick up any task added after the queue was seen empty
+			if (!queue.isEmpty()) schedule();
+		}
+	}
+}
@@ -8,37 +8,100 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Class to manage incoming server messages All incoming messages are handled on
- * one thread Outgoing messages are handled by the appropriate connection or
+ * Class to manage incoming server messages
+ * 
+ * By default all accept, read, write and message handling events are handled on
+ * one thread. Outgoing messages are handled by the appropriate connection or
  * delayed if underlying socket not ready
  * 
+ * In multi-reactor mode the listening thread only accepts connections, handing
+ * each new channel round-robin to one of several reactors, each running its own
+ * selector thread for reads and writes. Messages can also be dispatched to an
+ * executor so that slow handlers do not hold up the selector threads. Messages
+ * from any one connection are always handled in the order received.
+ * 
  * @author Mike
  * 
  */
 public class ServerConnector {
 	private static final boolean DEBUG = false;
 
-	// TODO: have a separate thread and selector for writing queue
 	Selector selector;
 
 	ServerSocketChannel server;
 	SelectionKey serverKey;
 
-	private MessageHandler handler;
-	private HashMap<Object, Connection> connections = new HashMap<Object, Connection>();
+	private volatile MessageHandler handler;
+	private volatile BatchMessageHandler batchHandler;
+	private volatile long coalesceMicros = 0;
+	private volatile int coalesceBytes = 0;
+	private volatile long lowWatermark = 0;
+	private volatile long highWatermark = Long.MAX_VALUE;
+	private volatile Connection.OverflowPolicy overflowPolicy = Connection.OverflowPolicy.BLOCK;
+	private volatile WritabilityListener writabilityListener;
+	private ConcurrentHashMap<Object, Connection> connections = new ConcurrentHashMap<Object, Connection>();
 
 	// private static final int MAX_BACKLOG=5;
 
 	protected boolean live = false;
 
+	private final int reactorCount;
+	private final Executor handlerExecutor;
+	private Reactor[] reactors=new Reactor[0];
+	private int nextReactor=0;
 
+	/**
+	 * Creates a connector handling all events and messages on a single thread
+	 */
 	public ServerConnector() {
+		this(0,null);
+	}
+
+	/**
+	 * Creates a multi-reactor connector
+	 * 
+	 * @param reactorCount Number of read/write selector threads, or zero to handle all events on the listening thread
+	 * @param handlerExecutor Executor for message handling, or null to handle messages on the selector threads
+	 */
+	public ServerConnector(int reactorCount, Executor handlerExecutor) {
+		if (reactorCount<0) throw new IllegalArgumentException("Negative reactor count: "+reactorCount);
+		this.reactorCount=reactorCount;
+		this.handlerExecutor=handlerExecutor;
+	}
+
+	/**
+	 * Returns a reactor count suitable for this machine, one per available processor
+	 */
+	public static int defaultReactorCount() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Creates an executor that runs each task on a new virtual thread, for use as a
+	 * message handler executor.
+	 * 
+	 * @throws UnsupportedOperationException if the runtime does not support virtual threads
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			// looked up reflectively so that the library still runs on older runtimes
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("Virtual threads not supported by this runtime",e);
+		}
+	}
 
+	public int getReactorCount() {
+		return reactorCount;
 	}
 
 	private static void debugMessage(String s) {
@@ -60,6 +123,34 @@ public class ServerConnector {
 		return connections.get(tag);
 	}
 
+	/**
+	 * Writes the same message to every connection. The message is framed once and shared
+	 * between all connection write queues.
+	 * 
+	 * @param data Flipped message data
+	 * @return Number of connections written to
+	 */
+	public int broadcast(ByteBuffer data) {
+		ByteBuffer frame = Connection.createFrame(data);
+		int n = 0;
+		for (Connection c : connections.values()) {
+			// connections closing concurrently may still be in the map, and are skipped
+			if (c.tryWriteFrame(frame)) n++;
+		}
+		return n;
+	}
+
+	private final CloseListener closeListener = new CloseListener() {
+		@Override
+		public void connectionClosed(Connection c) {
+			connections.remove(c.internalTag, c);
+			debugMessage("Removed client ID=" + c.internalTag);
+		}
+	};
+
+	/**
+	 * Returns the number of open connections
+	 */
 	public int countConnections() {
 		return connections.size();
 	}
@@ -73,6 +164,12 @@ public class ServerConnector {
 			server.configureBlocking(false);
 			serverKey = server.register(selector, SelectionKey.OP_ACCEPT);
 
+			reactors=new Reactor[reactorCount];
+			for (int i=0; i<reactorCount; i++) {
+				reactors[i]=new Reactor("ServerConnector reactor "+i+" port "+port);
+				reactors[i].start();
+			}
+
 			// start listening thread
 			new Thread(listener).start();
 		} catch (Exception e) {
@@ -134,6 +231,65 @@ public class ServerConnector {
 		}
 	}
 
+	/**
+	 * Sets a handler receiving all messages from each read as a batch. When set, this is
+	 * used instead of the MessageHandler.
+	 */
+	public void setBatchMessageHandler(BatchMessageHandler bh) {
+		batchHandler = bh;
+		for (Connection c : connections.values()) {
+			c.batchHandler = bh;
+		}
+	}
+
+	/**
+	 * Sets the outgoing message coalescing window for all current and future connections
+	 * 
+	 * @see Connection#setCoalescing(long, int)
+	 */
+	public void setCoalescing(long micros, int bytes) {
+		coalesceMicros = micros;
+		coalesceBytes = bytes;
+		for (Connection c : connections.values()) {
+			c.setCoalescing(micros, bytes);
+		}
+	}
+
+	/**
+	 * Sets the queued byte watermarks for all current and future connections
+	 * 
+	 * @see Connection#setWatermarks(long, long)
+	 */
+	public void setWatermarks(long low, long high) {
+		if ((low < 0) || (low > high)) throw new IllegalArgumentException("Invalid watermarks: low=" + low + ", high=" + high);
+		lowWatermark = low;
+		highWatermark = high;
+		for (Connection c : connections.values()) {
+			c.setWatermarks(low, high);
+		}
+	}
+
+	/**
+	 * Sets the overflow policy for all current and future connections
+	 */
+	public void setOverflowPolicy(Connection.OverflowPolicy policy) {
+		if (policy == null) throw new IllegalArgumentException("Null overflow policy");
+		overflowPolicy = policy;
+		for (Connection c : connections.values()) {
+			c.setOverflowPolicy(policy);
+		}
+	}
+
+	/**
+	 * Sets the writability listener for all current and future connections
+	 */
+	public void setWritabilityListener(WritabilityListener listener) {
+		writabilityListener = listener;
+		for (Connection c : connections.values()) {
+			c.setWritabilityListener(listener);
+		}
+	}
+
 	private void handleServerKey(SelectionKey key) {
 		if (key.isAcceptable()) {
 			try {
@@ -155,35 +311,53 @@ public class ServerConnector {
 		}
 	}
 
-	private int tag_id = 1;
+	private AtomicInteger tag_id = new AtomicInteger(1);
 
 	private Object createTag() {
-		return Integer.valueOf(tag_id++);
+		return Integer.valueOf(tag_id.getAndIncrement());
 	}
 
 	private Connection createClientConnection(SocketChannel clientChannel,
 			Selector s) {
 		Connection cr = new Connection(clientChannel, s);
 		cr.handler = handler;
+		cr.batchHandler = batchHandler;
+		if (coalesceMicros > 0) cr.setCoalescing(coalesceMicros, coalesceBytes);
+		cr.setWatermarks(lowWatermark, highWatermark);
+		cr.setOverflowPolicy(overflowPolicy);
+		cr.setWritabilityListener(writabilityListener);
 		cr.internalTag = createTag();
+		if (handlerExecutor!=null) {
+			cr.handlerExecutor = new SerialExecutor(handlerExecutor);
+		}
 		connections.put(cr.internalTag, cr);
+		cr.addCloseListener(closeListener);
 		return cr;
 	}
 
-	private SelectionKey addClient(SocketChannel clientChannel)
+	private void addClient(SocketChannel clientChannel)
 			throws ClosedChannelException {
-		Connection connection = createClientConnection(clientChannel, selector);
-		SelectionKey clientKey = clientChannel.register(selector,
-				SelectionKey.OP_READ, connection);
-
+		if (reactors.length==0) {
+			Connection connection = createClientConnection(clientChannel, selector);
+			connection.registered(clientChannel.register(selector,
+					SelectionKey.OP_READ, connection));
+			debugMessage("Added client ID=" + connection.internalTag);
+			return;
+		}
+		
+		Reactor reactor = reactors[nextReactor];
+		nextReactor = (nextReactor + 1) % reactors.length;
+		Connection connection = createClientConnection(clientChannel, reactor.getSelector());
+		reactor.register(clientChannel, connection);
 		debugMessage("Added client ID=" + connection.internalTag);
-
-		return clientKey;
 	}
 
 	public void close() {
 		try {
 			connections.clear();
+			for (Reactor r : reactors) {
+				r.close();
+			}
 			server.close();
 			selector.close();
 		} catch (IOException e) {
@@ -0,0 +1,16 @@
+package mikera.net;
+
+public interface WritabilityListener {
+	/**
+	 * Called when the bytes queued on a connection rise to the high watermark, and again
+	 * when they fall back to the low watermark. Producers should stop writing while the
+	 * connection is not writable.
+	 *
+	 * Called on whichever thread caused the change, which may be a selector thread, so the
+	 * listener must not block.
+	 *
+	 * @param c the connection
+	 * @param writable true if the connection has become writable, false if it has become full
+	 */
+	public void writabilityChanged(Connection c, boolean writable);
+}
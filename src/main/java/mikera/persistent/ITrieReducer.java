@@ -0,0 +1,35 @@
+package mikera.persistent;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interface for callback objects that reduce the internal trie of a persistent map, bottom up.
+ * 
+ * Trie nodes are shared between versions of a map, so a reducer can remember the result
+ * computed for a node and return it from cached() to avoid descending into subtrees that
+ * have not changed. Nodes should be compared by identity.
+ * 
+ * @author Mike Anderson
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ * @param <R> Result type
+ */
+public interface ITrieReducer<K,V,R> {
+	/**
+	 * Returns a previously computed result for a node, or null if the node should be reduced
+	 */
+	R cached(Object node);
+	
+	/**
+	 * Reduces a leaf node. A leaf holds a single entry, several entries with colliding
+	 * hashes, or no entries if the map is empty.
+	 */
+	R leaf(Object node, List<Map.Entry<K,V>> entries);
+	
+	/**
+	 * Reduces an interior node, given the results for its children in trie order
+	 */
+	R branch(Object node, List<R> children);
+}
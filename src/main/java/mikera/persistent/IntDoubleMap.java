@@ -0,0 +1,208 @@
+package mikera.persistent;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import mikera.annotations.Immutable;
+import mikera.persistent.impl.KeySetWrapper;
+import mikera.persistent.impl.ValueCollectionWrapper;
+
+/**
+ * Persistent map from primitive int keys to primitive double values.
+ * 
+ * Each node stores its inline keys and values in parallel primitive arrays,
+ * with a second bitmap for child nodes, so the primitive get/include/delete
+ * methods never allocate wrapper objects. Boxing only occurs when the map is
+ * accessed through the java.util.Map interface.
+ * 
+ * @author Mike Anderson
+ */
+@Immutable
+public final class IntDoubleMap extends PersistentMap<Integer,Double> {
+	private static final long serialVersionUID = -319850027525035893L;
+
+	public static final int SHIFT_AMOUNT=IntTrieNode.SHIFT_AMOUNT;
+	public static final int LOW_MASK=IntTrieNode.LOW_MASK;
+	
+	private static final IntTrieNode.Values<double[],Double> VALUES=new IntTrieNode.Values<double[],Double>() {
+		@Override
+		double[] newArray(int length) {
+			return new double[length];
+		}
+
+		@Override
+		boolean equal(double[] a, int i, double[] b, int j) {
+			return Double.doubleToLongBits(a[i])==Double.doubleToLongBits(b[j]);
+		}
+
+		@Override
+		Double box(double[] a, int i) {
+			return Double.valueOf(a[i]);
+		}
+	};
+	
+	private static final IntTrieNode<double[]> EMPTY_NODE=IntTrieNode.createEmpty(VALUES);
+	
+	public static final IntDoubleMap EMPTY=new IntDoubleMap(EMPTY_NODE);
+	
+	private final IntTrieNode<double[]> root;
+	
+	private IntDoubleMap(IntTrieNode<double[]> newRoot) {
+		root=newRoot;
+	}
+	
+	public static IntDoubleMap create() {
+		return EMPTY;
+	}
+	
+	public static IntDoubleMap create(int key, double value) {
+		return EMPTY.include(key,value);
+	}
+	
+	public static IntDoubleMap create(Map<Integer,Double> values) {
+		return EMPTY.include(values);
+	}
+	
+	/*
+	 * Primitive access methods
+	 */
+	
+	public boolean containsKey(int key) {
+		return IntTrieNode.find(root,key)!=null;
+	}
+	
+	/**
+	 * Gets the value for the given key, or 0.0 if not present
+	 */
+	public double get(int key) {
+		return get(key,0.0);
+	}
+	
+	/**
+	 * Gets the value for the given key, or the specified notFound value if not present
+	 */
+	public double get(int key, double notFound) {
+		IntTrieNode<double[]> n=IntTrieNode.find(root,key);
+		if (n==null) return notFound;
+		return n.values[n.indexOf(key)];
+	}
+	
+	public IntDoubleMap include(int key, double value) {
+		IntTrieNode<double[]> newRoot=root.include(key,new double[] {value},0,VALUES);
+		if (newRoot==root) return this;
+		return new IntDoubleMap(newRoot);
+	}
+	
+	public IntDoubleMap delete(int key) {
+		IntTrieNode<double[]> newRoot=root.delete(key,VALUES);
+		if (newRoot==root) return this;
+		if (newRoot==null) return EMPTY;
+		return new IntDoubleMap(newRoot);
+	}
+	
+	/*
+	 * IPersistentMap methods
+	 */
+	
+	@Override
+	public boolean containsKey(Object key) {
+		if (!(key instanceof Integer)) return false;
+		return containsKey(((Integer)key).intValue());
+	}
+
+	@Override
+	public Double get(Object key) {
+		if (!(key instanceof Integer)) return null;
+		int k=((Integer)key).intValue();
+		if (!containsKey(k)) return null;
+		return Double.valueOf(get(k));
+	}
+	
+	@Override
+	public Map.Entry<Integer,Double> getMapEntry(Object key) {
+		if (!containsKey(key)) return null;
+		int k=((Integer)key).intValue();
+		return new MapEntry<Integer,Double>(Integer.valueOf(k),Double.valueOf(get(k)));
+	}
+
+	@Override
+	public IntDoubleMap include(Integer key, Double value) {
+		return include(key.intValue(),value.doubleValue());
+	}
+	
+	@Override
+	public IntDoubleMap include(Map<Integer,Double> values) {
+		IntDoubleMap m=this;
+		for (Map.Entry<Integer,Double> ent: values.entrySet()) {
+			m=m.include(ent.getKey().intValue(),ent.getValue().doubleValue());
+		}
+		return m;
+	}
+
+	@Override
+	public IntDoubleMap delete(Integer key) {
+		return delete(key.intValue());
+	}
+
+	@Override
+	public int size() {
+		return root.count;
+	}
+
+	@Override
+	public PersistentSet<Map.Entry<Integer,Double>> entrySet() {
+		return new IDMEntrySet();
+	}
+
+	@Override
+	public PersistentSet<Integer> keySet() {
+		return new KeySetWrapper<Integer,Double>(entrySet());
+	}
+
+	@Override
+	public PersistentCollection<Double> values() {
+		return new ValueCollectionWrapper<Integer,Double>(entrySet());
+	}
+
+	@Override
+	public boolean allowsNullKey() {
+		return false;
+	}
+	
+	@Override
+	public void validate() {
+		super.validate();
+		root.validate();
+	}
+	
+	/**
+	 * EntrySet view, boxing keys and values as entries are produced
+	 */
+	protected final class IDMEntrySet extends PersistentSet<Map.Entry<Integer,Double>> {
+		private static final long serialVersionUID = 3674758256874408928L;
+
+		@Override
+		public int size() {
+			return IntDoubleMap.this.size();
+		}
+		
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry<?,?>)) return false;
+			Map.Entry<?,?> ent=(Map.Entry<?,?>)o;
+			Object k=ent.getKey();
+			if (!IntDoubleMap.this.containsKey(k)) return false;
+			return IntDoubleMap.this.get(k).equals(ent.getValue());
+		}
+
+		@Override
+		public Iterator<Map.Entry<Integer,Double>> iterator() {
+			return new IntTrieNode.EntryIterator<double[],Double>(root,VALUES);
+		}
+
+		@Override
+		public PersistentSet<Map.Entry<Integer,Double>> include(Map.Entry<Integer,Double> value) {
+			return SetFactory.create(this).include(value);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package mikera.persistent;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import mikera.annotations.Immutable;
+import mikera.persistent.impl.KeySetWrapper;
+import mikera.persistent.impl.ValueCollectionWrapper;
+
+/**
+ * Persistent map from primitive int keys to primitive int values.
+ * 
+ * Each node stores its inline keys and values in parallel primitive arrays,
+ * with a second bitmap for child nodes, so the primitive get/include/delete
+ * methods never allocate wrapper objects. Boxing only occurs when the map is
+ * accessed through the java.util.Map interface.
+ * 
+ * @author Mike Anderson
+ */
+@Immutable
+public final class IntIntMap extends PersistentMap<Integer,Integer> {
+	private static final long serialVersionUID = -2557990164069516899L;
+
+	public static final int SHIFT_AMOUNT=IntTrieNode.SHIFT_AMOUNT;
+	public static final int LOW_MASK=IntTrieNode.LOW_MASK;
+	
+	private static final IntTrieNode.Values<int[],Integer> VALUES=new IntTrieNode.Values<int[],Integer>() {
+		@Override
+		int[] newArray(int length) {
+			return new int[length];
+		}
+
+		@Override
+		boolean equal(int[] a, int i, int[] b, int j) {
+			return a[i]==b[j];
+		}
+
+		@Override
+		Integer box(int[] a, int i) {
+			return Integer.valueOf(a[i]);
+		}
+	};
+	
+	private static final IntTrieNode<int[]> EMPTY_NODE=IntTrieNode.createEmpty(VALUES);
+	
+	public static final IntIntMap EMPTY=new IntIntMap(EMPTY_NODE);
+	
+	private final IntTrieNode<int[]> root;
+	
+	private IntIntMap(IntTrieNode<int[]> newRoot) {
+		root=newRoot;
+	}
+	
+	public static IntIntMap create() {
+		return EMPTY;
+	}
+	
+	public static IntIntMap create(int key, int value) {
+		return EMPTY.include(key,value);
+	}
+	
+	public static IntIntMap create(Map<Integer,Integer> values) {
+		return EMPTY.include(values);
+	}
+	
+	/*
+	 * Primitive access methods
+	 */
+	
+	public boolean containsKey(int key) {
+		return IntTrieNode.find(root,key)!=null;
+	}
+	
+	/**
+	 * Gets the value for the given key, or 0 if not present
+	 */
+	public int get(int key) {
+		return get(key,0);
+	}
+	
+	/**
+	 * Gets the value for the given key, or the specified notFound value if not present
+	 */
+	public int get(int key, int notFound) {
+		IntTrieNode<int[]> n=IntTrieNode.find(root,key);
+		if (n==null) return notFound;
+		return n.values[n.indexOf(key)];
+	}
+	
+	public IntIntMap include(int key, int value) {
+		IntTrieNode<int[]> newRoot=root.include(key,new int[] {value},0,VALUES);
+		if (newRoot==root) return this;
+		return new IntIntMap(newRoot);
+	}
+	
+	public IntIntMap delete(int key) {
+		IntTrieNode<int[]> newRoot=root.delete(key,VALUES);
+		if (newRoot==root) return this;
+		if (newRoot==null) return EMPTY;
+		return new IntIntMap(newRoot);
+	}
+	
+	/*
+	 * IPersistentMap methods
+	 */
+	
+	@Override
+	public boolean containsKey(Object key) {
+		if (!(key instanceof Integer)) return false;
+		return containsKey(((Integer)key).intValue());
+	}
+
+	@Override
+	public Integer get(Object key) {
+		if (!(key instanceof Integer)) return null;
+		int k=((Integer)key).intValue();
+		if (!containsKey(k)) return null;
+		return Integer.valueOf(get(k));
+	}
+	
+	@Override
+	public Map.Entry<Integer,Integer> getMapEntry(Object key) {
+		if (!containsKey(key)) return null;
+		int k=((Integer)key).intValue();
+		return new MapEntry<Integer,Integer>(Integer.valueOf(k),Integer.valueOf(get(k)));
+	}
+
+	@Override
+	public IntIntMap include(Integer key, Integer value) {
+		return include(key.intValue(),value.intValue());
+	}
+	
+	@Override
+	public IntIntMap include(Map<Integer,Integer> values) {
+		IntIntMap m=this;
+		for (Map.Entry<Integer,Integer> ent: values.entrySet()) {
+			m=m.include(ent.getKey().intValue(),ent.getValue().intValue());
+		}
+		return m;
+	}
+
+	@Override
+	public IntIntMap delete(Integer key) {
+		return delete(key.intValue());
+	}
+
+	@Override
+	public int size() {
+		return root.count;
+	}
+
+	@Override
+	public PersistentSet<Map.Entry<Integer,Integer>> entrySet() {
+		return new IIMEntrySet();
+	}
+
+	@Override
+	public PersistentSet<Integer> keySet() {
+		return new KeySetWrapper<Integer,Integer>(entrySet());
+	}
+
+	@Override
+	public PersistentCollection<Integer> values() {
+		return new ValueCollectionWrapper<Integer,Integer>(entrySet());
+	}
+
+	@Override
+	public boolean allowsNullKey() {
+		return false;
+	}
+	
+	@Override
+	public void validate() {
+		super.validate();
+		root.validate();
+	}
+	
+	/**
+	 * EntrySet view, boxing keys and values as entries are produced
+	 */
+	protected final class IIMEntrySet extends PersistentSet<Map.Entry<Integer,Integer>> {
+		private static final long serialVersionUID = -2037665623954925858L;
+
+		@Override
+		public int size() {
+			return IntIntMap.this.size();
+		}
+		
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry<?,?>)) return false;
+			Map.Entry<?,?> ent=(Map.Entry<?,?>)o;
+			Object k=ent.getKey();
+			if (!IntIntMap.this.containsKey(k)) return false;
+			return IntIntMap.this.get(k).equals(ent.getValue());
+		}
+
+		@Override
+		public Iterator<Map.Entry<Integer,Integer>> iterator() {
+			return new IntTrieNode.EntryIterator<int[],Integer>(root,VALUES);
+		}
+
+		@Override
+		public PersistentSet<Map.Entry<Integer,Integer>> include(Map.Entry<Integer,Integer> value) {
+			return SetFactory.create(this).include(value);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package mikera.persistent;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import mikera.annotations.Immutable;
+import mikera.persistent.impl.KeySetWrapper;
+import mikera.persistent.impl.ValueCollectionWrapper;
+
+/**
+ * Persistent map from primitive int keys to primitive long values.
+ * 
+ * Each node stores its inline keys and values in parallel primitive arrays,
+ * with a second bitmap for child nodes, so the primitive get/include/delete
+ * methods never allocate wrapper objects. Boxing only occurs when the map is
+ * accessed through the java.util.Map interface.
+ * 
+ * @author Mike Anderson
+ */
+@Immutable
+public final class IntLongMap extends PersistentMap<Integer,Long> {
+	private static final long serialVersionUID = -2720983794578792279L;
+
+	public static final int SHIFT_AMOUNT=IntTrieNode.SHIFT_AMOUNT;
+	public static final int LOW_MASK=IntTrieNode.LOW_MASK;
+	
+	private static final IntTrieNode.Values<long[],Long> VALUES=new IntTrieNode.Values<long[],Long>() {
+		@Override
+		long[] newArray(int length) {
+			return new long[length];
+		}
+
+		@Override
+		boolean equal(long[] a, int i, long[] b, int j) {
+			return a[i]==b[j];
+		}
+
+		@Override
+		Long box(long[] a, int i) {
+			return Long.valueOf(a[i]);
+		}
+	};
+	
+	private static final IntTrieNode<long[]> EMPTY_NODE=IntTrieNode.createEmpty(VALUES);
+	
+	public static final IntLongMap EMPTY=new IntLongMap(EMPTY_NODE);
+	
+	private final IntTrieNode<long[]> root;
+	
+	private IntLongMap(IntTrieNode<long[]> newRoot) {
+		root=newRoot;
+	}
+	
+	public static IntLongMap create() {
+		return EMPTY;
+	}
+	
+	public static IntLongMap create(int key, long value) {
+		return EMPTY.include(key,value);
+	}
+	
+	public static IntLongMap create(Map<Integer,Long> values) {
+		return EMPTY.include(values);
+	}
+	
+	/*
+	 * Primitive access methods
+	 */
+	
+	public boolean containsKey(int key) {
+		return IntTrieNode.find(root,key)!=null;
+	}
+	
+	/**
+	 * Gets the value for the given key, or 0 if not present
+	 */
+	public long get(int key) {
+		return get(key,0);
+	}
+	
+	/**
+	 * Gets the value for the given key, or the specified notFound value if not present
+	 */
+	public long get(int key, long notFound) {
+		IntTrieNode<long[]> n=IntTrieNode.find(root,key);
+		if (n==null) return notFound;
+		return n.values[n.indexOf(key)];
+	}
+	
+	public IntLongMap include(int key, long value) {
+		IntTrieNode<long[]> newRoot=root.include(key,new long[] {value},0,VALUES);
+		if (newRoot==root) return this;
+		return new IntLongMap(newRoot);
+	}
+	
+	public IntLongMap delete(int key) {
+		IntTrieNode<long[]> newRoot=root.delete(key,VALUES);
+		if (newRoot==root) return this;
+		if (newRoot==null) return EMPTY;
+		return new IntLongMap(newRoot);
+	}
+	
+	/*
+	 * IPersistentMap methods
+	 */
+	
+	@Override
+	public boolean containsKey(Object key) {
+		if (!(key instanceof Integer)) return false;
+		return containsKey(((Integer)key).intValue());
+	}
+
+	@Override
+	public Long get(Object key) {
+		if (!(key instanceof Integer)) return null;
+		int k=((Integer)key).intValue();
+		if (!containsKey(k)) return null;
+		return Long.valueOf(get(k));
+	}
+	
+	@Override
+	public Map.Entry<Integer,Long> getMapEntry(Object key) {
+		if (!containsKey(key)) return null;
+		int k=((Integer)key).intValue();
+		return new MapEntry<Integer,Long>(Integer.valueOf(k),Long.valueOf(get(k)));
+	}
+
+	@Override
+	public IntLongMap include(Integer key, Long value) {
+		return include(key.intValue(),value.longValue());
+	}
+	
+	@Override
+	public IntLongMap include(Map<Integer,Long> values) {
+		IntLongMap m=this;
+		for (Map.Entry<Integer,Long> ent: values.entrySet()) {
+			m=m.include(ent.getKey().intValue(),ent.getValue().longValue());
+		}
+		return m;
+	}
+
+	@Override
+	public IntLongMap delete(Integer key) {
+		return delete(key.intValue());
+	}
+
+	@Override
+	public int size() {
+		return root.count;
+	}
+
+	@Override
+	public PersistentSet<Map.Entry<Integer,Long>> entrySet() {
+		return new ILMEntrySet();
+	}
+
+	@Override
+	public PersistentSet<Integer> keySet() {
+		return new KeySetWrapper<Integer,Long>(entrySet());
+	}
+
+	@Override
+	public PersistentCollection<Long> values() {
+		return new ValueCollectionWrapper<Integer,Long>(entrySet());
+	}
+
+	@Override
+	public boolean allowsNullKey() {
+		return false;
+	}
+	
+	@Override
+	public void validate() {
+		super.validate();
+		root.validate();
+	}
+	
+	/**
+	 * EntrySet view, boxing keys and values as entries are produced
+	 */
+	protected final class ILMEntrySet extends PersistentSet<Map.Entry<Integer,Long>> {
+		private static final long serialVersionUID = -2883313826028008850L;
+
+		@Override
+		public int size() {
+			return IntLongMap.this.size();
+		}
+		
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry<?,?>)) return false;
+			Map.Entry<?,?> ent=(Map.Entry<?,?>)o;
+			Object k=ent.getKey();
+			if (!IntLongMap.this.containsKey(k)) return false;
+			return IntLongMap.this.get(k).equals(ent.getValue());
+		}
+
+		@Override
+		public Iterator<Map.Entry<Integer,Long>> iterator() {
+			return new IntTrieNode.EntryIterator<long[],Long>(root,VALUES);
+		}
+
+		@Override
+		public PersistentSet<Map.Entry<Integer,Long>> include(Map.Entry<Integer,Long> value) {
+			return SetFactory.create(this).include(value);
+		}
+	}
+}
@@ -1,10 +1,22 @@
 package mikera.persistent;
 
 import java.io.ObjectStreamException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import mikera.persistent.impl.KeySetWrapper;
+import mikera.persistent.impl.ParallelOps;
 import mikera.persistent.impl.ValueCollectionWrapper;
 import mikera.util.Bits;
 import mikera.util.TODOException;
@@ -700,6 +712,11 @@ public final class IntMap<V> extends PersistentMap<Integer,V> {
 		public Iterator<Map.Entry<Integer,V>> iterator() {
 			return new IMEntrySetIterator<V>(IntMap.this);
 		}
+		
+		@Override
+		public Spliterator<Map.Entry<Integer,V>> spliterator() {
+			return IntMap.this.spliterator();
+		}
 
 		@Override
 		public PersistentSet<Map.Entry<Integer,V>> include(
@@ -723,7 +740,11 @@ public final class IntMap<V> extends PersistentMap<Integer,V> {
 		public int index=0;
 		
 		private IMEntrySetIterator(IntMap<V> IM) {
-			root=IM.root;
+			this(IM.root);
+		}
+		
+		private IMEntrySetIterator(IMNode<V> node) {
+			root=node;
 			findNext();
 		}
 
@@ -749,6 +770,218 @@ public final class IntMap<V> extends PersistentMap<Integer,V> {
 		}
 	}
 
+	/**
+	 * Spliterator over a range of sibling IMNodes. 
+	 * 
+	 * Splits by dividing the range of nodes, descending into the child nodes
+	 * when only a single interior node remains.
+	 */
+	private static final class IMSpliterator<V> implements Spliterator<Map.Entry<Integer,V>> {
+		private IMNode<V>[] nodes;
+		private int from;
+		private int to;
+		private IMEntrySetIterator<V> it=null; // iterator for nodes[from], once started
+		private long remaining;
+		
+		private IMSpliterator(IMNode<V>[] nodes, int from, int to) {
+			this.nodes=nodes;
+			this.from=from;
+			this.to=to;
+			long n=0;
+			for (int i=from; i<to; i++) {
+				n+=nodes[i].size();
+			}
+			remaining=n;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Map.Entry<Integer,V>> action) {
+			while (true) {
+				if (it!=null) {
+					if (it.hasNext()) {
+						remaining--;
+						action.accept(it.next());
+						return true;
+					}
+					it=null;
+					from++;
+				}
+				if (from>=to) return false;
+				it=new IMEntrySetIterator<V>(nodes[from]);
+			}
+		}
+
+		@Override
+		public Spliterator<Map.Entry<Integer,V>> trySplit() {
+			if ((it==null)&&(to-from==1)) {
+				IMNode<V> n=nodes[from];
+				if (n.isLeaf()) return null;
+				nodes=childrenOf(n);
+				from=0;
+				to=nodes.length;
+			}
+			// the split is a prefix, so it takes nodes[from] along with its iterator if already being iterated
+			int lo=(it==null)?from:from+1;
+			if ((to-lo)<((it==null)?2:1)) return null;
+			int mid=(lo+to)>>>1;
+			IMSpliterator<V> split=new IMSpliterator<V>(nodes,from,mid);
+			split.it=it;
+			it=null;
+			from=mid;
+			long n=0;
+			for (int i=from; i<to; i++) {
+				n+=nodes[i].size();
+			}
+			split.remaining=remaining-n;
+			remaining=n;
+			return split;
+		}
+
+		@Override
+		public long estimateSize() {
+			return remaining;
+		}
+
+		@Override
+		public int characteristics() {
+			return DISTINCT|SIZED|SUBSIZED|IMMUTABLE|NONNULL;
+		}
+	}
+	
+	/**
+	 * Fork/join task that maps values node by node, preserving the trie structure
+	 */
+	private static final class IMMapValuesTask<V,R> extends RecursiveTask<IMNode<R>> {
+		private static final long serialVersionUID = 3047915466003126917L;
+
+		private final IMNode<V> node;
+		private final Function<? super V, ? extends R> f;
+		
+		private IMMapValuesTask(IMNode<V> node, Function<? super V, ? extends R> f) {
+			this.node=node;
+			this.f=f;
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected IMNode<R> compute() {
+			if ((node.size()<=ParallelOps.SPLIT_THRESHOLD)||node.isLeaf()) {
+				return mapValues(node,f);
+			}
+			IMNode<V>[] data=childrenOf(node);
+			IMMapValuesTask<V,R>[] tasks=new IMMapValuesTask[data.length];
+			for (int i=0; i<data.length; i++) {
+				tasks[i]=new IMMapValuesTask<V, R>(data[i],f);
+			}
+			invokeAll(tasks);
+			IMNode<R>[] newData=new IMNode[data.length];
+			for (int i=0; i<data.length; i++) {
+				newData[i]=tasks[i].join();
+			}
+			return withChildren(node,newData);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <V,R> IMNode<R> mapValues(IMNode<V> node, Function<? super V, ? extends R> f) {
+		if (node instanceof IMEntry<?>) {
+			IMEntry<V> e=(IMEntry<V>)node;
+			return new IMEntry<R>(e.key,f.apply(e.value));
+		} 
+		if (node.size()==0) return (IMNode<R>)EMPTY_NODE_LIST;
+		IMNode<V>[] data=childrenOf(node);
+		IMNode<R>[] newData=new IMNode[data.length];
+		for (int i=0; i<data.length; i++) {
+			newData[i]=mapValues(data[i],f);
+		}
+		return withChildren(node,newData);
+	}
+	
+	private static <V> IMNode<V>[] childrenOf(IMNode<V> node) {
+		if (node instanceof IMFullNode<?>) return ((IMFullNode<V>)node).data;
+		return ((IMBitMapNode<V>)node).data;
+	}
+	
+	/**
+	 * Creates a new interior node with the same shape as the given node but different children
+	 */
+	private static <V,R> IMNode<R> withChildren(IMNode<V> node, IMNode<R>[] newData) {
+		if (node instanceof IMFullNode<?>) {
+			return new IMFullNode<R>(newData,((IMFullNode<V>)node).shift);
+		}
+		IMBitMapNode<V> bn=(IMBitMapNode<V>)node;
+		return new IMBitMapNode<R>(newData,bn.shift,bn.bitmap);
+	}
+	
+	/**
+	 * Reduces the internal trie of this map bottom up with the given reducer.
+	 * 
+	 * Used to write incremental snapshots, where subtrees shared with a previously written
+	 * version of the map do not need to be written again.
+	 */
+	public <R> R reduceTrie(ITrieReducer<Integer,V,R> reducer) {
+		return reduceTrie(root,reducer);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <V,R> R reduceTrie(IMNode<V> node, ITrieReducer<Integer,V,R> reducer) {
+		R cached=reducer.cached(node);
+		if (cached!=null) return cached;
+		if (node.isLeaf()) {
+			if (node.size()==0) return reducer.leaf(node, Collections.<Map.Entry<Integer,V>>emptyList());
+			return reducer.leaf(node, Collections.<Map.Entry<Integer,V>>singletonList((IMEntry<V>)node));
+		}
+		IMNode<V>[] data=childrenOf(node);
+		Object[] results=new Object[data.length];
+		for (int i=0; i<data.length; i++) {
+			results[i]=reduceTrie(data[i],reducer);
+		}
+		return reducer.branch(node, (List<R>)Arrays.asList(results));
+	}
+	
+	/*
+	 * Parallel operations
+	 */
+	
+	@SuppressWarnings("unchecked")
+	public Spliterator<Map.Entry<Integer,V>> spliterator() {
+		return new IMSpliterator<V>(new IMNode[] {root},0,1);
+	}
+	
+	public void parallelForEach(BiConsumer<Integer, ? super V> action) {
+		parallelForEach(action,ParallelOps.defaultPool());
+	}
+	
+	public void parallelForEach(final BiConsumer<Integer, ? super V> action, ForkJoinPool pool) {
+		ParallelOps.forEach(spliterator(), new Consumer<Map.Entry<Integer,V>>() {
+			@Override
+			public void accept(Map.Entry<Integer,V> e) {
+				action.accept(e.getKey(),e.getValue());
+			}
+		}, pool);
+	}
+	
+	public <R> R parallelReduce(R identity, BiFunction<R,? super Map.Entry<Integer,V>,R> accumulator, BinaryOperator<R> combiner) {
+		return parallelReduce(identity,accumulator,combiner,ParallelOps.defaultPool());
+	}
+	
+	public <R> R parallelReduce(R identity, BiFunction<R,? super Map.Entry<Integer,V>,R> accumulator, BinaryOperator<R> combiner, ForkJoinPool pool) {
+		return ParallelOps.reduce(spliterator(),identity,accumulator,combiner,pool);
+	}
+	
+	/**
+	 * Returns a new map with the same keys and values transformed by the given function.
+	 * 
+	 * The result is built in parallel with the same trie structure as this map.
+	 */
+	public <R> IntMap<R> mapValues(Function<? super V, ? extends R> f) {
+		return mapValues(f,ParallelOps.defaultPool());
+	}
+	
+	public <R> IntMap<R> mapValues(Function<? super V, ? extends R> f, ForkJoinPool pool) {
+		return new IntMap<R>(pool.invoke(new IMMapValuesTask<V, R>(root,f)));
+	}
+
 	/*
 	 *  IPersistentMap methods
 	 */
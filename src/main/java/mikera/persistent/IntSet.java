@@ -3,17 +3,26 @@ package mikera.persistent;
 import java.io.ObjectStreamException;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import mikera.annotations.Immutable;
 import mikera.persistent.impl.BasePersistentSet;
+import mikera.persistent.impl.IntContainer;
 import mikera.util.Arrays;
 import mikera.util.HashCache;
 import mikera.util.Tools;
 
 /**
- * Immutable small set of integers, stored as a sorted array
- * Stored hashcode designed to enable fast hashtable lookups
+ * Immutable set of integers, stored as a sorted sequence of containers each holding
+ * the members that share the same high 16 bits.
+ * 
+ * Each container is a sorted array, a bitmap or a run list depending on which is
+ * smallest, so dense ranges cost far less than four bytes per member. Set algebra
+ * works container by container, and containers untouched by an operation are shared
+ * between the source and result sets.
+ * 
+ * Stored hashcode designed to enable fast hashtable lookups. Small sets are interned.
  * 
  * Should never contain duplicates
  * 
@@ -23,35 +32,78 @@ import mikera.util.Tools;
 @Immutable
 public final class IntSet extends BasePersistentSet<Integer> {
 	private static final long serialVersionUID = 2677550392326589873L;
-	private static final HashCache<IntSet> cache=new HashCache<IntSet>(401);
+	private static final int CACHE_SIZE=16384;
+	private static final HashCache<IntSet> cache=new HashCache<IntSet>(CACHE_SIZE,HashCache.Policy.CLOCK);
+	
+	/**
+	 * Largest IntSet that will be interned
+	 */
+	public static final int MAX_INTERN_SIZE=1024;
 
-	public static final IntSet EMPTY_INTSET=intern(new IntSet(mikera.util.Arrays.NULL_INTS));
+	private static final IntContainer[] NO_CONTAINERS=new IntContainer[0];
+	
+	public static final IntSet EMPTY_INTSET=intern(new IntSet(NO_CONTAINERS));
 
 	/**
-	 * data field contains an ordered list of unique integers
+	 * containers in ascending order of key, none of which are empty
+	 */
+	private final IntContainer[] containers;
+	
+	/**
+	 * index of the first member of each container
 	 */
-	private final int[] data;
+	private final int[] offsets;
+	private final int size;
 	private final int hash;	
 	
-	private IntSet(int[] values) {
-		data =values;
-		hash=calcHashCode();
+	private IntSet(IntContainer[] containers) {
+		this.containers=containers;
+		int n=containers.length;
+		offsets=new int[n];
+		int total=0;
+		int h=0;
+		for (int i=0; i<n; i++) {
+			IntContainer c=containers[i];
+			offsets[i]=total;
+			int card=c.cardinality();
+			total+=card;
+			h=Integer.rotateRight(h,card)^c.hash();
+		}
+		size=total;
+		hash=h;
 	}
 	
-	public boolean containsAll(IntSet a) {
-		int[] adata=a.data;
-		int[] sdata=data;
-		int ai=0;
-		int si=0;
-		while (ai<adata.length) {
-			int needed=adata[ai++];
-			while (true) {
-				int s=sdata[si++];
-				if (s>needed) return false; // not found
-				if (s==needed) break;
-				if (si>=sdata.length) return false;
+	/**
+	 * Finds the index of the container for the given key, or -(insertion point)-1 if none
+	 */
+	private int findContainer(int key) {
+		int lo=0;
+		int hi=containers.length-1;
+		while (lo<=hi) {
+			int m=(lo+hi)>>>1;
+			int k=containers[m].key();
+			if (k==key) return m;
+			if (k<key) {
+				lo=m+1;
+			} else {
+				hi=m-1;
 			}
 		}
+		return -(lo+1);
+	}
+	
+	IntContainer containerFor(int value) {
+		int ci=findContainer(IntContainer.keyOf(value));
+		return (ci>=0)?containers[ci]:null;
+	}
+	
+	public boolean containsAll(IntSet a) {
+		if (a.size>size) return false;
+		for (IntContainer ac: a.containers) {
+			int ci=findContainer(ac.key());
+			if (ci<0) return false;
+			if (!ac.isSubsetOf(containers[ci])) return false;
+		}
 		return true;
 	}
 	
@@ -61,40 +113,55 @@ public final class IntSet extends BasePersistentSet<Integer> {
 	 * @return
 	 */
 	public boolean hasProblem() {
-		for (int i=0; i<data.length-1; i++) {
-			if (data[i]>=data[i+1]) return true;
+		for (int i=0; i<containers.length-1; i++) {
+			if (containers[i].key()>=containers[i+1].key()) return true;
 		}
 		return false;
 	}
 
 	public boolean contains (int v) {
-		return findIndex(v,0,data.length)>=0;
+		int ci=findContainer(IntContainer.keyOf(v));
+		if (ci<0) return false;
+		return containers[ci].contains(IntContainer.lowOf(v));
 	}
 	
 	public int[] toIntArray() {
-		return data.clone();
+		int[] result=new int[size];
+		for (int i=0; i<containers.length; i++) {
+			containers[i].copyTo(result,offsets[i]);
+		}
+		return result;
 	}
 	
 	public int findIndex(int v) {
-		return findIndex(v,0,data.length);
+		int ci=findContainer(IntContainer.keyOf(v));
+		if (ci<0) return -1;
+		IntContainer c=containers[ci];
+		int low=IntContainer.lowOf(v);
+		if (!c.contains(low)) return -1;
+		return offsets[ci]+c.rank(low);
 	}
 	
 	public int getIndex(int i) {
-		return data[i];
-	}
-
-	public int findIndex(int v, int lo, int hi) {
+		if ((i<0)||(i>=size)) throw new IndexOutOfBoundsException();
+		int lo=0;
+		int hi=containers.length-1;
 		while (lo<hi) {
-			int m=(lo+hi)>>>1;
-			int dv=data[m];
-			if (dv==v) return m;
-			if (dv<v) {
-				lo = m+1;
+			int m=(lo+hi+1)>>>1;
+			if (offsets[m]<=i) {
+				lo=m;
 			} else {
-				hi = m;
+				hi=m-1;
 			}
-		} 
-		return -1;
+		}
+		IntContainer c=containers[lo];
+		return (c.key()<<IntContainer.BLOCK_BITS)|c.select(i-offsets[lo]);
+	}
+
+	public int findIndex(int v, int lo, int hi) {
+		int i=findIndex(v);
+		if ((i<lo)||(i>=hi)) return -1;
+		return i;
 	}
 
 	/**
@@ -113,9 +180,9 @@ public final class IntSet extends BasePersistentSet<Integer> {
 	 * @return
 	 */
 	public static IntSet create(int value) {
-		int hc=Tools.hashCode(value);
+		int hc=Tools.hashCode(new int[] {value});
 		IntSet is=cache.getCachedValueForHashCode(hc);
-		if ((is!=null)&&(is.size()==1)&&(is.data[0]==value)) return is;
+		if ((is!=null)&&(is.size()==1)&&(is.contains(value))) return is;
 		return createLocal(new int[] {value});
 	}
 
@@ -145,130 +212,129 @@ public final class IntSet extends BasePersistentSet<Integer> {
 		return createLocal(idata);
 	}
 
+	/**
+	 * Creates an IntSet containing all integers in the range [from,to)
+	 */
+	public static IntSet createRange(int from, int to) {
+		if (from>=to) return EMPTY_INTSET;
+		int last=to-1;
+		int firstKey=IntContainer.keyOf(from);
+		int lastKey=IntContainer.keyOf(last);
+		IntContainer[] cs=new IntContainer[lastKey-firstKey+1];
+		for (int k=firstKey; k<=lastKey; k++) {
+			int lo=(k==firstKey)?IntContainer.lowOf(from):0;
+			int hi=(k==lastKey)?IntContainer.lowOf(last):IntContainer.LOW_MASK;
+			cs[k-firstKey]=IntContainer.createRange(k,lo,hi);
+		}
+		return createFromContainers(cs,cs.length);
+	}
+
 	public static IntSet createMerged(IntSet a, IntSet b) {
+		if ((a==b)||(b.size==0)) return a;
+		if (a.size==0) return b;
+		IntContainer[] ac=a.containers;
+		IntContainer[] bc=b.containers;
+		IntContainer[] rc=new IntContainer[ac.length+bc.length];
 		int ai=0;
 		int bi=0;
-		int nsize=0;
-		while ((ai<a.data.length)&&(bi<b.data.length)) {
-			int c=a.data[ai]-b.data[bi];
-			if (c>0) {
-				bi++;
-			} else if (c<0) {
-				ai++;
+		int n=0;
+		while ((ai<ac.length)&&(bi<bc.length)) {
+			int ak=ac[ai].key();
+			int bk=bc[bi].key();
+			if (ak<bk) {
+				rc[n++]=ac[ai++];
+			} else if (ak>bk) {
+				rc[n++]=bc[bi++];
 			} else {
-				ai++;
-				bi++;
+				rc[n++]=IntContainer.union(ac[ai++],bc[bi++]);
 			}
-			nsize++;
 		}
-		nsize+=a.data.length+b.data.length-ai-bi;	
-		int[] ndata=new int[nsize];
-		ai=0;
-		bi=0;
-		for (int i=0; i<nsize; i++) {
-			if (ai>=a.data.length) {ndata[i]=b.data[bi++]; continue;}
-			if (bi>=b.data.length) {ndata[i]=a.data[ai++]; continue;}
-			int c=a.data[ai]-b.data[bi];
-			if (c>0) {
-				ndata[i]=b.data[bi++];
-			} else if (c<0) {
-				ndata[i]=a.data[ai++];
-			} else {
-				ndata[i]=a.data[ai++];
-				bi++;
-			}
-		}
-		return createLocal(ndata);
+		while (ai<ac.length) rc[n++]=ac[ai++];
+		while (bi<bc.length) rc[n++]=bc[bi++];
+		return createFromContainers(rc,n);
 	}
 	
 	public static IntSet createMerged(IntSet is, int v) {
-		if (is.contains(v)) return is;
-		int[] data=is.data;
-		int ol=data.length;
-		int[] ndata=new int[ol+1];
-		int i=0;
-		while ((i<ol)) {
-			int dv=data[i];
-			if (dv>v) {
-				break;
-			}
-			ndata[i++]=dv;
+		int key=IntContainer.keyOf(v);
+		int low=IntContainer.lowOf(v);
+		int ci=is.findContainer(key);
+		if (ci>=0) {
+			IntContainer c=is.containers[ci];
+			IntContainer nc=c.include(low);
+			if (nc==c) return is;
+			return is.withContainer(ci,nc);
 		}
-		ndata[i++]=v;
-		while (i<=ol) {
-			ndata[i]=data[i-1];
-			i++;
-		}
-		return createLocal(ndata);
+		int ip=-(ci+1);
+		IntContainer[] cs=is.containers;
+		IntContainer[] ncs=new IntContainer[cs.length+1];
+		System.arraycopy(cs, 0, ncs, 0, ip);
+		ncs[ip]=IntContainer.createRange(key,low,low);
+		System.arraycopy(cs, ip, ncs, ip+1, cs.length-ip);
+		return createFromContainers(ncs,ncs.length);
 	}
 	
 	public static IntSet createWithout(IntSet is, int v) {
-		int pos=is.findIndex(v);
-		if (pos<0) return is; // no removal
-		int[] data=is.data;
-		int ol=data.length;
-		int[] ndata=new int[ol-1];
-		System.arraycopy(data, 0, ndata, 0, pos);
-		System.arraycopy(data, pos+1, ndata, pos, ol-pos-1);
-		return createLocal(ndata);
+		int ci=is.findContainer(IntContainer.keyOf(v));
+		if (ci<0) return is; // no removal
+		IntContainer c=is.containers[ci];
+		IntContainer nc=c.delete(IntContainer.lowOf(v));
+		if (nc==c) return is;
+		return is.withContainer(ci,nc);
 	}
 	
 	public static IntSet createWithout(IntSet source, IntSet values) {
 		if ((source.size()==0)||source.equals(values)) return IntSet.EMPTY_INTSET;
 		if (values.size()==0) return source;
-		int sourceLength=source.data.length;
-		int valuesLength=values.data.length;
-		int[] td=new int[sourceLength];
-		int tdi=0;
-		int vi=0;
-		for (int i=0; i<sourceLength; i++) {
-			int s=source.data[i];
-			if (vi<valuesLength) {
-				int v=values.data[vi];
-				while (v<s) {
-					vi++;
-					if (vi<valuesLength) {
-						v=values.data[vi];
-					} else {
-						break;
-					}
-				}
-				if (s==v) continue;	
-			}
-			td[tdi++]=s;
+		IntContainer[] sc=source.containers;
+		IntContainer[] rc=new IntContainer[sc.length];
+		int n=0;
+		boolean changed=false;
+		for (IntContainer c: sc) {
+			IntContainer vc=values.containerFor(c.key()<<IntContainer.BLOCK_BITS);
+			IntContainer nc=IntContainer.difference(c,vc);
+			if (nc!=c) changed=true;
+			if (nc!=null) rc[n++]=nc;
 		}
-		if (tdi==sourceLength) return source;
-		int[] ndata=new int[tdi];
-		System.arraycopy(td, 0, ndata, 0, tdi);
-		return createLocal(ndata);
+		if (!changed) return source;
+		return createFromContainers(rc,n);
 	}
 	
 	public static IntSet createIntersection(IntSet a, IntSet b) {
 		if (a.equals(b)) return a;
-		int alen=a.size(); if (alen==0) return IntSet.EMPTY_INTSET;
-		int blen=b.size(); if (blen==0) return IntSet.EMPTY_INTSET;
-		
-		int[] td=new int[Math.min(alen, blen)];
-		int ii=0;
-		int ai=0;
-		int bi=0;
-		while ((ai<alen)&&(bi<blen)) {
-			int av=a.data[ai];
-			int bv=b.data[bi];
-			if (av==bv) {
-				td[ii++]=av;
-				ai++;
-				bi++;
-			} else if (av<bv){
-				ai++;
-			} else {
-				bi++;
-			}
+		if (a.size()==0) return IntSet.EMPTY_INTSET;
+		if (b.size()==0) return IntSet.EMPTY_INTSET;
+		if (a.containers.length>b.containers.length) {
+			IntSet t=a; a=b; b=t;
 		}
-		
-		int[] ndata=new int[ii];
-		System.arraycopy(td, 0, ndata, 0, ii);
-		return createLocal(ndata);		
+		IntContainer[] rc=new IntContainer[a.containers.length];
+		int n=0;
+		for (IntContainer c: a.containers) {
+			IntContainer bc=b.containerFor(c.key()<<IntContainer.BLOCK_BITS);
+			IntContainer nc=IntContainer.intersection(c,bc);
+			if (nc!=null) rc[n++]=nc;
+		}
+		return createFromContainers(rc,n);
+	}
+	
+	private IntSet withContainer(int ci, IntContainer nc) {
+		IntContainer[] cs=containers;
+		if (nc==null) {
+			IntContainer[] ncs=new IntContainer[cs.length-1];
+			System.arraycopy(cs, 0, ncs, 0, ci);
+			System.arraycopy(cs, ci+1, ncs, ci, ncs.length-ci);
+			return createFromContainers(ncs,ncs.length);
+		}
+		IntContainer[] ncs=cs.clone();
+		ncs[ci]=nc;
+		return createFromContainers(ncs,ncs.length);
+	}
+	
+	private static IntSet createFromContainers(IntContainer[] cs, int n) {
+		if (n==0) return EMPTY_INTSET;
+		if (n<cs.length) cs=java.util.Arrays.copyOf(cs,n);
+		IntSet is=new IntSet(cs);
+		if (is.size<=MAX_INTERN_SIZE) return intern(is);
+		return is;
 	}
 	
 	/**
@@ -301,11 +367,22 @@ public final class IntSet extends BasePersistentSet<Integer> {
 	 * @return
 	 */
 	private static IntSet createLocal(int[] sortedData) {
-		return intern(new IntSet(sortedData));
+		int n=sortedData.length;
+		IntContainer[] cs=new IntContainer[n];
+		int count=0;
+		int start=0;
+		while (start<n) {
+			int key=IntContainer.keyOf(sortedData[start]);
+			int end=start+1;
+			while ((end<n)&&(IntContainer.keyOf(sortedData[end])==key)) end++;
+			cs[count++]=IntContainer.create(key,sortedData,start,end);
+			start=end;
+		}
+		return createFromContainers(cs,count);
 	}
 	
 	/**
-	 * Interns the given IntSet in a static fixed-size cache.
+	 * Interns the given IntSet in a static concurrent cache.
 	 * 
 	 * @param is
 	 * @return
@@ -314,6 +391,13 @@ public final class IntSet extends BasePersistentSet<Integer> {
 		is=cache.cache(is);
 		return is;
 	}
+	
+	/**
+	 * Returns the cache used for interning IntSets, e.g. to monitor hit rates
+	 */
+	public static HashCache<IntSet> getInternCache() {
+		return cache;
+	}
 
 	/**
 	 * Calculates the hashcode of an IntSet
@@ -323,10 +407,6 @@ public final class IntSet extends BasePersistentSet<Integer> {
 		return hash;
 	}
 	
-	private int calcHashCode() {
-		return Tools.hashCode(data);	
-	}
-	
 	@Override 
 	public boolean hasFastHashCode() {
 		return true;
@@ -342,10 +422,11 @@ public final class IntSet extends BasePersistentSet<Integer> {
 	
 	public boolean equals(IntSet intset) {
 		if (intset==this) return true;
-		int size=size();
-		if (intset.size()!=size) return false;
-		for (int i=0; i<size; i++) {
-			if (data[i]!=intset.data[i]) return false;
+		if ((intset.size!=size)||(intset.hash!=hash)) return false;
+		IntContainer[] cs=intset.containers;
+		if (cs.length!=containers.length) return false;
+		for (int i=0; i<cs.length; i++) {
+			if (!containers[i].equals(cs[i])) return false;
 		}
 		return true;
 	}
@@ -404,16 +485,24 @@ public final class IntSet extends BasePersistentSet<Integer> {
 	@Override
 	public Iterator<Integer> iterator() {
 		return new Iterator<Integer>() {
-			int pos=0;
+			int ci=0;
+			int low=(containers.length>0)?containers[0].nextLow(0):-1;
 			
 			@Override
 			public boolean hasNext() {
-				return pos<size();
+				return low>=0;
 			}
 
 			@Override
 			public Integer next() {
-				return Integer.valueOf(data[pos++]);
+				if (low<0) throw new NoSuchElementException();
+				IntContainer c=containers[ci];
+				int result=(c.key()<<IntContainer.BLOCK_BITS)|low;
+				low=(low<IntContainer.LOW_MASK)?c.nextLow(low+1):-1;
+				if ((low<0)&&(++ci<containers.length)) {
+					low=containers[ci].nextLow(0);
+				}
+				return Integer.valueOf(result);
 			}
 
 			@Override
@@ -440,7 +529,7 @@ public final class IntSet extends BasePersistentSet<Integer> {
 
 	@Override
 	public int size() {
-		return data.length;
+		return size;
 	}
 	
 	@Override
@@ -451,7 +540,6 @@ public final class IntSet extends BasePersistentSet<Integer> {
 	@Override
 	@SuppressWarnings("unchecked")
 	public <T> T[] toArray(T[] a) {
-		int size=data.length;
 		if (a.length<size) {
 			a=(T[])new Integer[size];
 		}
@@ -460,7 +548,8 @@ public final class IntSet extends BasePersistentSet<Integer> {
 	
 	@SuppressWarnings("unchecked")
 	private <T> T[] toArrayLocal(T[] a) {
-		for (int i=0; i<a.length; i++) {
+		int[] data=toIntArray();
+		for (int i=0; i<data.length; i++) {
 			a[i]=(T)Integer.valueOf(data[i]);
 		}
 		return a;
@@ -495,7 +584,8 @@ public final class IntSet extends BasePersistentSet<Integer> {
 	private Object readResolve() throws ObjectStreamException {
 		// needed for deserialisation to the correct static instance
 		if (size()==0) return EMPTY_INTSET;
-		return intern(this);
+		if (size<=MAX_INTERN_SIZE) return intern(this);
+		return this;
 	}
 	
 	@Override
@@ -0,0 +1,335 @@
+package mikera.persistent;
+
+import java.lang.reflect.Array;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Node of a persistent bitmapped trie from primitive int keys to values held in a primitive
+ * array, shared by IntIntMap, IntLongMap and IntDoubleMap.
+ *
+ * Each node stores its inline keys and values in parallel arrays, plus child nodes.
+ * entryMap and nodeMap are disjoint bitmaps of the slots used at this node's level.
+ *
+ * The trie never touches individual values directly. Values are moved between arrays with
+ * System.arraycopy and are always identified by an array and an index, so each map only
+ * supplies a Values instance for its primitive array type.
+ *
+ * @author Mike Anderson
+ *
+ * @param <A> Primitive value array type, e.g. int[]
+ */
+final class IntTrieNode<A> extends PersistentObject {
+	private static final long serialVersionUID = 6093560981839627148L;
+
+	static final int SHIFT_AMOUNT=5;
+	static final int LOW_MASK=(1<<SHIFT_AMOUNT)-1;
+
+	// maximum depth of the trie, one level per slot of a 32 bit key
+	private static final int MAX_DEPTH=(32+SHIFT_AMOUNT-1)/SHIFT_AMOUNT;
+
+	private static final int[] NO_KEYS=new int[0];
+	@SuppressWarnings("rawtypes")
+	private static final IntTrieNode[] NO_NODES=new IntTrieNode[0];
+
+	/**
+	 * Storage for one primitive value type
+	 *
+	 * @param <A> Primitive value array type
+	 * @param <V> Boxed value type
+	 */
+	abstract static class Values<A,V> {
+		private final A empty;
+
+		Values() {
+			empty=newArray(0);
+		}
+
+		abstract A newArray(int length);
+
+		/**
+		 * Tests whether a[i] and b[j] are the same value
+		 */
+		abstract boolean equal(A a, int i, A b, int j);
+
+		abstract V box(A a, int i);
+	}
+
+	final int shift;
+	final int entryMap;
+	final int nodeMap;
+	final int[] keys;
+	final A values;
+	final IntTrieNode<A>[] nodes;
+	final int count;
+
+	private IntTrieNode(int shift, int entryMap, int nodeMap, int[] keys, A values, IntTrieNode<A>[] nodes) {
+		this.shift=shift;
+		this.entryMap=entryMap;
+		this.nodeMap=nodeMap;
+		this.keys=keys;
+		this.values=values;
+		this.nodes=nodes;
+		int c=keys.length;
+		for (IntTrieNode<A> n: nodes) {
+			c+=n.count;
+		}
+		count=c;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <A> IntTrieNode<A> createEmpty(Values<A,?> v) {
+		return new IntTrieNode<A>(0,0,0,NO_KEYS,v.empty,NO_NODES);
+	}
+
+	private static int index(int map, int bit) {
+		return Integer.bitCount(map&(bit-1));
+	}
+
+	private int bit(int key) {
+		return 1<<((key>>>shift)&LOW_MASK);
+	}
+
+	/**
+	 * Finds the node holding the given key as an inline entry
+	 * @return The node, or null if the key is not present
+	 */
+	static <A> IntTrieNode<A> find(IntTrieNode<A> n, int key) {
+		while (true) {
+			int bit=n.bit(key);
+			if ((n.entryMap&bit)!=0) {
+				return (n.keys[index(n.entryMap,bit)]==key)?n:null;
+			}
+			if ((n.nodeMap&bit)==0) return null;
+			n=n.nodes[index(n.nodeMap,bit)];
+		}
+	}
+
+	/**
+	 * Returns the position of a key in the keys and values of a node returned by find()
+	 */
+	int indexOf(int key) {
+		return index(entryMap,bit(key));
+	}
+
+	/**
+	 * Includes the key with the value src[si]
+	 */
+	IntTrieNode<A> include(int key, A src, int si, Values<A,?> v) {
+		int bit=bit(key);
+		if ((entryMap&bit)!=0) {
+			int i=index(entryMap,bit);
+			if (keys[i]==key) {
+				if (v.equal(values,i,src,si)) return this;
+				A nvalues=v.newArray(keys.length);
+				System.arraycopy(values, 0, nvalues, 0, keys.length);
+				System.arraycopy(src, si, nvalues, i, 1);
+				return new IntTrieNode<A>(shift,entryMap,nodeMap,keys,nvalues,nodes);
+			}
+			// push the existing entry down into a new child node
+			IntTrieNode<A> child=pair(keys[i],values,i,key,src,si,shift+SHIFT_AMOUNT,v);
+			return new IntTrieNode<A>(shift,entryMap&~bit,nodeMap|bit,
+					removeKey(keys,i),removeValue(values,i,v),
+					insertNode(nodes,index(nodeMap,bit),child));
+		}
+		if ((nodeMap&bit)!=0) {
+			int i=index(nodeMap,bit);
+			IntTrieNode<A> n=nodes[i];
+			IntTrieNode<A> dn=n.include(key,src,si,v);
+			if (dn==n) return this;
+			IntTrieNode<A>[] nnodes=nodes.clone();
+			nnodes[i]=dn;
+			return new IntTrieNode<A>(shift,entryMap,nodeMap,keys,values,nnodes);
+		}
+		int i=index(entryMap,bit);
+		return new IntTrieNode<A>(shift,entryMap|bit,nodeMap,
+				insertKey(keys,i,key),insertValue(values,i,src,si,v),nodes);
+	}
+
+	/**
+	 * Deletes a key from this node
+	 * @return The updated node, this node if key not present, or null if the node is now empty
+	 */
+	IntTrieNode<A> delete(int key, Values<A,?> v) {
+		int bit=bit(key);
+		if ((entryMap&bit)!=0) {
+			int i=index(entryMap,bit);
+			if (keys[i]!=key) return this;
+			if (count==1) return null;
+			return new IntTrieNode<A>(shift,entryMap&~bit,nodeMap,removeKey(keys,i),removeValue(values,i,v),nodes);
+		}
+		if ((nodeMap&bit)!=0) {
+			int i=index(nodeMap,bit);
+			IntTrieNode<A> n=nodes[i];
+			IntTrieNode<A> dn=n.delete(key,v);
+			if (dn==n) return this;
+			if ((dn==null)||((dn.nodeMap==0)&&(dn.keys.length==1))) {
+				// remove the child node, pulling up any single remaining entry
+				IntTrieNode<A>[] nnodes=removeNode(nodes,i);
+				if (dn==null) {
+					if ((keys.length==0)&&(nnodes.length==0)) return null;
+					return new IntTrieNode<A>(shift,entryMap,nodeMap&~bit,keys,values,nnodes);
+				}
+				int j=index(entryMap,bit);
+				return new IntTrieNode<A>(shift,entryMap|bit,nodeMap&~bit,
+						insertKey(keys,j,dn.keys[0]),insertValue(values,j,dn.values,0,v),nnodes);
+			}
+			IntTrieNode<A>[] nnodes=nodes.clone();
+			nnodes[i]=dn;
+			return new IntTrieNode<A>(shift,entryMap,nodeMap,keys,values,nnodes);
+		}
+		return this;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <A> IntTrieNode<A> pair(int k0, A a0, int i0, int k1, A a1, int i1, int shift, Values<A,?> v) {
+		// distinct int keys always differ within the slots for shift<=30
+		int s0=(k0>>>shift)&LOW_MASK;
+		int s1=(k1>>>shift)&LOW_MASK;
+		if (s0==s1) {
+			IntTrieNode<A> child=pair(k0,a0,i0,k1,a1,i1,shift+SHIFT_AMOUNT,v);
+			return new IntTrieNode<A>(shift,0,1<<s0,NO_KEYS,v.empty,new IntTrieNode[] {child});
+		}
+		int map=(1<<s0)|(1<<s1);
+		A nvalues=v.newArray(2);
+		if (s0<s1) {
+			System.arraycopy(a0, i0, nvalues, 0, 1);
+			System.arraycopy(a1, i1, nvalues, 1, 1);
+			return new IntTrieNode<A>(shift,map,0,new int[] {k0,k1},nvalues,NO_NODES);
+		}
+		System.arraycopy(a1, i1, nvalues, 0, 1);
+		System.arraycopy(a0, i0, nvalues, 1, 1);
+		return new IntTrieNode<A>(shift,map,0,new int[] {k1,k0},nvalues,NO_NODES);
+	}
+
+	@Override
+	public void validate() {
+		if ((entryMap&nodeMap)!=0) throw new Error("Overlapping bitmaps");
+		if (keys.length!=Integer.bitCount(entryMap)) throw new Error();
+		if (Array.getLength(values)!=keys.length) throw new Error();
+		if (nodes.length!=Integer.bitCount(nodeMap)) throw new Error();
+		int c=keys.length;
+		for (IntTrieNode<A> n: nodes) {
+			if (n.count<2) throw new Error("Child node should have been inlined");
+			if (n.shift!=shift+SHIFT_AMOUNT) throw new Error("Child node at wrong level");
+			n.validate();
+			c+=n.count;
+		}
+		if (c!=count) throw new Error();
+	}
+
+	private static int[] insertKey(int[] a, int i, int key) {
+		int[] na=new int[a.length+1];
+		System.arraycopy(a, 0, na, 0, i);
+		System.arraycopy(a, i, na, i+1, a.length-i);
+		na[i]=key;
+		return na;
+	}
+
+	private static int[] removeKey(int[] a, int i) {
+		if (a.length==1) return NO_KEYS;
+		int[] na=new int[a.length-1];
+		System.arraycopy(a, 0, na, 0, i);
+		System.arraycopy(a, i+1, na, i, a.length-i-1);
+		return na;
+	}
+
+	// values arrays always have the same length as the keys of their node
+
+	private A insertValue(A a, int i, A src, int si, Values<A,?> v) {
+		int n=keys.length;
+		A na=v.newArray(n+1);
+		System.arraycopy(a, 0, na, 0, i);
+		System.arraycopy(a, i, na, i+1, n-i);
+		System.arraycopy(src, si, na, i, 1);
+		return na;
+	}
+
+	private A removeValue(A a, int i, Values<A,?> v) {
+		int n=keys.length;
+		if (n==1) return v.empty;
+		A na=v.newArray(n-1);
+		System.arraycopy(a, 0, na, 0, i);
+		System.arraycopy(a, i+1, na, i, n-i-1);
+		return na;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <A> IntTrieNode<A>[] insertNode(IntTrieNode<A>[] a, int i, IntTrieNode<A> node) {
+		IntTrieNode<A>[] na=new IntTrieNode[a.length+1];
+		System.arraycopy(a, 0, na, 0, i);
+		System.arraycopy(a, i, na, i+1, a.length-i);
+		na[i]=node;
+		return na;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <A> IntTrieNode<A>[] removeNode(IntTrieNode<A>[] a, int i) {
+		if (a.length==1) return NO_NODES;
+		IntTrieNode<A>[] na=new IntTrieNode[a.length-1];
+		System.arraycopy(a, 0, na, 0, i);
+		System.arraycopy(a, i+1, na, i, a.length-i-1);
+		return na;
+	}
+
+	/**
+	 * Depth first iterator over node entries, boxing keys and values as entries are produced
+	 */
+	static final class EntryIterator<A,V> implements Iterator<Map.Entry<Integer,V>> {
+		private final Values<A,V> v;
+		// stack of nodes and positions, sized for the maximum trie depth
+		@SuppressWarnings("unchecked")
+		private final IntTrieNode<A>[] nodeStack=new IntTrieNode[MAX_DEPTH];
+		private final int[] posStack=new int[MAX_DEPTH];
+		private int depth=0;
+
+		EntryIterator(IntTrieNode<A> root, Values<A,V> v) {
+			this.v=v;
+			nodeStack[0]=root;
+			posStack[0]=0;
+			advance();
+		}
+
+		/**
+		 * Moves to the next node with a pending inline entry, or sets depth to -1 if finished
+		 */
+		private void advance() {
+			while (depth>=0) {
+				IntTrieNode<A> n=nodeStack[depth];
+				int pos=posStack[depth];
+				int nk=n.keys.length;
+				if (pos<nk) return;
+				int ni=pos-nk;
+				if (ni<n.nodes.length) {
+					posStack[depth]=pos+1;
+					depth++;
+					nodeStack[depth]=n.nodes[ni];
+					posStack[depth]=0;
+				} else {
+					depth--;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return depth>=0;
+		}
+
+		@Override
+		public Map.Entry<Integer,V> next() {
+			if (depth<0) throw new NoSuchElementException();
+			IntTrieNode<A> n=nodeStack[depth];
+			int pos=posStack[depth]++;
+			Map.Entry<Integer,V> result=new MapEntry<Integer,V>(Integer.valueOf(n.keys[pos]),v.box(n.values,pos));
+			advance();
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -121,11 +121,11 @@ public class ListFactory<T> {
 	}
 
 	public static <T> PersistentList<T> concat(PersistentList<T> a, T v) {
-		return concat(a,ListFactory.create(v));
+		return CompositeList.concat(a,ListFactory.<T>create(v));
 	}
 	
 	public static <T> PersistentList<T> concat(T v, PersistentList<T> a) {
-		return concat(ListFactory.create(v),a);
+		return CompositeList.concat(ListFactory.<T>create(v),a);
 	}
 	
 	public static <T> PersistentList<T> concat(PersistentList<T> a, PersistentList<T> b) {
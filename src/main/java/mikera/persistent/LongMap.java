@@ -1,48 +1,73 @@
 package mikera.persistent;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import mikera.util.Bits;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import mikera.persistent.impl.ParallelOps;
 import mikera.util.Tools;
 
 /**
- * Persistent specialised Map implementation for long keys
- * inspired by Clojure's persistent hash map data structures.
- * 
- * Implemented using nested IntMap structures
- * 
+ * Persistent specialised Map implementation for long keys.
+ *
+ * Implemented as a path-compressed radix trie over the key bits, taking the most
+ * significant digit first. Keys are stored directly in long[] arrays within each
+ * node, so lookups never allocate. Because the trie is ordered by key, iteration
+ * is in ascending key order and range scans only visit the relevant nodes.
+ *
+ * Clustered keys (e.g. timestamps or sequence IDs) share their high digits, which
+ * the path compression skips so the trie depth depends only on the low-order
+ * digits that actually differ.
+ *
  * @author Mike Anderson
  *
  * @param <V> Value type
  */
 
 public final class LongMap<V> extends PersistentMap<Long,V> {
-	private static final long serialVersionUID = 4829272016323285638L;
+	private static final long serialVersionUID = 6294104452127693457L;
 
-	public static final LongMap<?> EMPTY = new LongMap<Object>();
-	
-	// nested IntMap using high words
-	private IntMap<IntMap<MapEntry<Long,V>>> data;
+	public static final int SHIFT_AMOUNT=5;
+	public static final int LOW_MASK=(1<<SHIFT_AMOUNT)-1;
 
-	// we use a long count internally
-	private long count;
-	
-	private IntMap<MapEntry<Long,V>> getInner(long key) {
-		return data.get(Bits.highWord(key));
-	}
-	
-	@SuppressWarnings("unchecked")
+	// shift of the most significant digit, which only covers the top 4 key bits
+	private static final int TOP_SHIFT=60;
+
+	// maximum depth of the trie, one level per digit
+	private static final int MAX_DEPTH=TOP_SHIFT/SHIFT_AMOUNT+1;
+
+	private static final long[] NO_KEYS=new long[0];
+	private static final Object[] NO_VALUES=new Object[0];
+	private static final LMNode[] NO_NODES=new LMNode[0];
+
+	private static final Object NOT_FOUND=new Object();
+
+	private static final LMNode EMPTY_NODE=new LMNode(TOP_SHIFT,0L,0,0,NO_KEYS,NO_VALUES,NO_NODES);
+
+	public static final LongMap<?> EMPTY = new LongMap<Object>(EMPTY_NODE);
+
+	private final LMNode root;
+
+	/**
+	 * Creates an empty LongMap. create() avoids the allocation by sharing a single empty map.
+	 */
 	public LongMap() {
-		data=(IntMap<IntMap<MapEntry<Long, V>>>) IntMap.EMPTY;
-		count=0;
+		this(EMPTY_NODE);
 	}
-	
-	private LongMap(IntMap<IntMap<MapEntry<Long,V>>> data,long count) {
-		this.data=data;
-		this.count=count;
+
+	private LongMap(LMNode root) {
+		this.root=root;
 	}
-	
+
 	/**
 	 * Returns an empty LongMap
 	 * @return
@@ -51,42 +76,635 @@ public final class LongMap<V> extends PersistentMap<Long,V> {
 	public static <T> LongMap<T> create() {
 		return (LongMap<T>) EMPTY;
 	}
-	
+
+	/**
+	 * Creates a LongMap from parallel key and value arrays. Later duplicates of a key take priority.
+	 */
+	public static <T> LongMap<T> create(long[] keys, T[] values) {
+		LongMap<T> m=create();
+		return m.includeAll(keys,values);
+	}
+
+	/*
+	 * Keys are flipped in the sign bit so that unsigned digit order matches signed key order
+	 */
+	private static long order(long key) {
+		return key^Long.MIN_VALUE;
+	}
+
+	private static int digit(long orderedKey, int shift) {
+		return ((int)(orderedKey>>>shift))&LOW_MASK;
+	}
+
+	// mask of the key bits above the digit at the given shift
+	private static long highMask(int shift) {
+		if (shift>=TOP_SHIFT) return 0L;
+		return -1L<<(shift+SHIFT_AMOUNT);
+	}
+
+	// shift of the highest digit at which two ordered keys differ
+	private static int branchShift(long u0, long u1) {
+		int b=63-Long.numberOfLeadingZeros(u0^u1);
+		return (b/SHIFT_AMOUNT)*SHIFT_AMOUNT;
+	}
+
+	/**
+	 * Trie node containing inline entries in parallel key/value arrays, plus child nodes.
+	 *
+	 * entryMap and nodeMap are disjoint bitmaps of the slots used at this node's digit.
+	 * All keys below this node share the prefix bits above that digit.
+	 */
+	private static final class LMNode extends PersistentObject {
+		private static final long serialVersionUID = -5118402365904236213L;
+
+		private final int shift;
+		private final long prefix;
+		private final int entryMap;
+		private final int nodeMap;
+		private final long[] keys;
+		private final Object[] values;
+		private final LMNode[] nodes;
+		private final long count;
+
+		private LMNode(int shift, long prefix, int entryMap, int nodeMap, long[] keys, Object[] values, LMNode[] nodes) {
+			this.shift=shift;
+			this.prefix=prefix;
+			this.entryMap=entryMap;
+			this.nodeMap=nodeMap;
+			this.keys=keys;
+			this.values=values;
+			this.nodes=nodes;
+			long c=keys.length;
+			for (LMNode n: nodes) {
+				c+=n.count;
+			}
+			count=c;
+		}
+
+		private static int index(int map, int bit) {
+			return Integer.bitCount(map&(bit-1));
+		}
+
+		// smallest key that could be stored under this node
+		private long minKey() {
+			return order(prefix);
+		}
+
+		// largest key that could be stored under this node
+		private long maxKey() {
+			return order(prefix|~highMask(shift));
+		}
+
+		private LMNode include(long key, Object value) {
+			long u=order(key);
+			if (((u^prefix)&highMask(shift))!=0) {
+				// key is outside this node's prefix, so branch above this node
+				int t=branchShift(u,prefix);
+				return new LMNode(t,u&highMask(t),1<<digit(u,t),1<<digit(prefix,t),
+						new long[] {key},new Object[] {value},new LMNode[] {this});
+			}
+			int bit=1<<digit(u,shift);
+			if ((entryMap&bit)!=0) {
+				int i=index(entryMap,bit);
+				if (keys[i]==key) {
+					if (values[i]==value) return this;
+					Object[] nvalues=values.clone();
+					nvalues[i]=value;
+					return new LMNode(shift,prefix,entryMap,nodeMap,keys,nvalues,nodes);
+				}
+				// push the existing entry down into a new child node
+				LMNode child=pair(keys[i],values[i],key,value);
+				return new LMNode(shift,prefix,entryMap&~bit,nodeMap|bit,
+						removeKey(keys,i),removeValue(values,i),
+						insertNode(nodes,index(nodeMap,bit),child));
+			}
+			if ((nodeMap&bit)!=0) {
+				int i=index(nodeMap,bit);
+				LMNode n=nodes[i];
+				LMNode dn=n.include(key,value);
+				if (dn==n) return this;
+				LMNode[] nnodes=nodes.clone();
+				nnodes[i]=dn;
+				return new LMNode(shift,prefix,entryMap,nodeMap,keys,values,nnodes);
+			}
+			int i=index(entryMap,bit);
+			return new LMNode(shift,prefix,entryMap|bit,nodeMap,
+					insertKey(keys,i,key),insertValue(values,i,value),nodes);
+		}
+
+		/**
+		 * Deletes a key from this node
+		 * @return The updated node, this node if key not present, or null if the node is now empty
+		 */
+		private LMNode delete(long key) {
+			int bit=1<<digit(order(key),shift);
+			if ((entryMap&bit)!=0) {
+				int i=index(entryMap,bit);
+				if (keys[i]!=key) return this;
+				if (count==1) return null;
+				return new LMNode(shift,prefix,entryMap&~bit,nodeMap,removeKey(keys,i),removeValue(values,i),nodes);
+			}
+			if ((nodeMap&bit)!=0) {
+				int i=index(nodeMap,bit);
+				LMNode n=nodes[i];
+				LMNode dn=n.delete(key);
+				if (dn==n) return this;
+				if ((dn==null)||((dn.nodeMap==0)&&(dn.keys.length==1))) {
+					// remove the child node, pulling up any single remaining entry
+					LMNode[] nnodes=removeNode(nodes,i);
+					if (dn==null) {
+						if ((keys.length==0)&&(nnodes.length==0)) return null;
+						return new LMNode(shift,prefix,entryMap,nodeMap&~bit,keys,values,nnodes);
+					}
+					int j=index(entryMap,bit);
+					return new LMNode(shift,prefix,entryMap|bit,nodeMap&~bit,
+							insertKey(keys,j,dn.keys[0]),insertValue(values,j,dn.values[0]),nnodes);
+				}
+				if ((dn.entryMap==0)&&(dn.nodes.length==1)) {
+					// child with a single grandchild can be skipped entirely
+					dn=dn.nodes[0];
+				}
+				LMNode[] nnodes=nodes.clone();
+				nnodes[i]=dn;
+				return new LMNode(shift,prefix,entryMap,nodeMap,keys,values,nnodes);
+			}
+			return this;
+		}
+
+		private static LMNode pair(long k0, Object v0, long k1, Object v1) {
+			long u0=order(k0);
+			long u1=order(k1);
+			int t=branchShift(u0,u1);
+			int s0=digit(u0,t);
+			int s1=digit(u1,t);
+			int map=(1<<s0)|(1<<s1);
+			if (s0<s1) {
+				return new LMNode(t,u0&highMask(t),map,0,new long[] {k0,k1},new Object[] {v0,v1},NO_NODES);
+			}
+			return new LMNode(t,u0&highMask(t),map,0,new long[] {k1,k0},new Object[] {v1,v0},NO_NODES);
+		}
+
+		private <R> LMNode mapValues(Function<Object,R> f) {
+			Object[] nvalues=new Object[values.length];
+			for (int i=0; i<nvalues.length; i++) {
+				nvalues[i]=f.apply(values[i]);
+			}
+			LMNode[] nnodes=new LMNode[nodes.length];
+			for (int i=0; i<nnodes.length; i++) {
+				nnodes[i]=nodes[i].mapValues(f);
+			}
+			return withValues(nvalues,nnodes);
+		}
+
+		private LMNode withValues(Object[] nvalues, LMNode[] nnodes) {
+			if (nnodes.length==0) nnodes=NO_NODES;
+			if (nvalues.length==0) nvalues=NO_VALUES;
+			return new LMNode(shift,prefix,entryMap,nodeMap,keys,nvalues,nnodes);
+		}
+
+		@Override
+		public void validate() {
+			if ((entryMap&nodeMap)!=0) throw new Error("Overlapping bitmaps");
+			if (keys.length!=Integer.bitCount(entryMap)) throw new Error();
+			if (values.length!=keys.length) throw new Error();
+			if (nodes.length!=Integer.bitCount(nodeMap)) throw new Error();
+			if ((prefix&~highMask(shift))!=0) throw new Error("Prefix has low bits set");
+			for (int i=0; i<keys.length; i++) {
+				long u=order(keys[i]);
+				if (((u^prefix)&highMask(shift))!=0) throw new Error("Key outside node prefix");
+				if (index(entryMap,1<<digit(u,shift))!=i) throw new Error("Key in wrong slot");
+			}
+			long c=keys.length;
+			for (int i=0; i<nodes.length; i++) {
+				LMNode n=nodes[i];
+				if (n.shift>=shift) throw new Error("Child node not below parent");
+				if (n.count<2) throw new Error("Child node should have been inlined");
+				if (((n.prefix^prefix)&highMask(shift))!=0) throw new Error("Child outside node prefix");
+				if (index(nodeMap,1<<digit(n.prefix,shift))!=i) throw new Error("Child in wrong slot");
+				n.validate();
+				c+=n.count;
+			}
+			if (c!=count) throw new Error();
+		}
+	}
+
+	private static long[] insertKey(long[] a, int i, long key) {
+		long[] na=new long[a.length+1];
+		System.arraycopy(a, 0, na, 0, i);
+		System.arraycopy(a, i, na, i+1, a.length-i);
+		na[i]=key;
+		return na;
+	}
+
+	private static long[] removeKey(long[] a, int i) {
+		if (a.length==1) return NO_KEYS;
+		long[] na=new long[a.length-1];
+		System.arraycopy(a, 0, na, 0, i);
+		System.arraycopy(a, i+1, na, i, a.length-i-1);
+		return na;
+	}
+
+	private static Object[] insertValue(Object[] a, int i, Object value) {
+		Object[] na=new Object[a.length+1];
+		System.arraycopy(a, 0, na, 0, i);
+		System.arraycopy(a, i, na, i+1, a.length-i);
+		na[i]=value;
+		return na;
+	}
+
+	private static Object[] removeValue(Object[] a, int i) {
+		if (a.length==1) return NO_VALUES;
+		Object[] na=new Object[a.length-1];
+		System.arraycopy(a, 0, na, 0, i);
+		System.arraycopy(a, i+1, na, i, a.length-i-1);
+		return na;
+	}
+
+	private static LMNode[] insertNode(LMNode[] a, int i, LMNode node) {
+		LMNode[] na=new LMNode[a.length+1];
+		System.arraycopy(a, 0, na, 0, i);
+		System.arraycopy(a, i, na, i+1, a.length-i);
+		na[i]=node;
+		return na;
+	}
+
+	private static LMNode[] removeNode(LMNode[] a, int i) {
+		if (a.length==1) return NO_NODES;
+		LMNode[] na=new LMNode[a.length-1];
+		System.arraycopy(a, 0, na, 0, i);
+		System.arraycopy(a, i+1, na, i, a.length-i-1);
+		return na;
+	}
+
+	/*
+	 * Bulk construction
+	 */
+
+	/**
+	 * Builds a node at the given shift from the entries with indexes idx[lo..hi), which must
+	 * all share the key bits above that shift. Entries are bucketed by digit with a stable
+	 * counting sort, so where a key is duplicated the entry with the highest index wins.
+	 */
+	private static LMNode build(long[] ukeys, long[] keys, Object[] values, int[] idx, int[] tmp, int lo, int hi, int shift) {
+		int[] starts=new int[LOW_MASK+2];
+		for (int j=lo; j<hi; j++) {
+			starts[digit(ukeys[idx[j]],shift)+1]++;
+		}
+		for (int d=0; d<=LOW_MASK; d++) {
+			starts[d+1]+=starts[d];
+		}
+		int[] pos=starts.clone();
+		for (int j=lo; j<hi; j++) {
+			int ix=idx[j];
+			tmp[lo+(pos[digit(ukeys[ix],shift)]++)]=ix;
+		}
+		System.arraycopy(tmp, lo, idx, lo, hi-lo);
+
+		int entryMap=0;
+		int nodeMap=0;
+		int entryCount=0;
+		int nodeCount=0;
+		long[] nkeys=new long[LOW_MASK+1];
+		Object[] nvalues=new Object[LOW_MASK+1];
+		LMNode[] nnodes=new LMNode[LOW_MASK+1];
+		for (int d=0; d<=LOW_MASK; d++) {
+			int a=lo+starts[d];
+			int b=lo+starts[d+1];
+			if (a==b) continue;
+			long u0=ukeys[idx[a]];
+			long diff=0;
+			for (int j=a+1; j<b; j++) {
+				diff|=ukeys[idx[j]]^u0;
+			}
+			if (diff==0) {
+				int last=idx[b-1];
+				entryMap|=1<<d;
+				nkeys[entryCount]=keys[last];
+				nvalues[entryCount++]=values[last];
+			} else {
+				int t=branchShift(0L,diff);
+				nodeMap|=1<<d;
+				nnodes[nodeCount++]=build(ukeys,keys,values,idx,tmp,a,b,t);
+			}
+		}
+
+		long[] rkeys=NO_KEYS;
+		Object[] rvalues=NO_VALUES;
+		LMNode[] rnodes=NO_NODES;
+		if (entryCount>0) {
+			rkeys=new long[entryCount];
+			System.arraycopy(nkeys, 0, rkeys, 0, entryCount);
+			rvalues=new Object[entryCount];
+			System.arraycopy(nvalues, 0, rvalues, 0, entryCount);
+		}
+		if (nodeCount>0) {
+			rnodes=new LMNode[nodeCount];
+			System.arraycopy(nnodes, 0, rnodes, 0, nodeCount);
+		}
+		long prefix=ukeys[idx[lo]]&highMask(shift);
+		return new LMNode(shift,prefix,entryMap,nodeMap,rkeys,rvalues,rnodes);
+	}
+
+	private static LMNode build(long[] keys, Object[] values, int n) {
+		long[] ukeys=new long[n];
+		int[] idx=new int[n];
+		for (int i=0; i<n; i++) {
+			ukeys[i]=order(keys[i]);
+			idx[i]=i;
+		}
+		return build(ukeys,keys,values,idx,new int[n],0,n,TOP_SHIFT);
+	}
+
+	/**
+	 * Includes all entries from parallel key and value arrays. Where a key appears more than
+	 * once, the last occurrence takes priority.
+	 *
+	 * Small batches relative to the size of this map are included one at a time. Larger
+	 * batches rebuild the trie bottom-up in a single pass, which avoids copying a path
+	 * for every included key.
+	 */
+	public LongMap<V> includeAll(long[] keys, V[] values) {
+		int n=keys.length;
+		if (values.length!=n) throw new IllegalArgumentException("Key and value arrays must have the same length");
+		if (n==0) return this;
+
+		long count=root.count;
+		if (count>8L*n) {
+			LMNode r=root;
+			for (int i=0; i<n; i++) {
+				r=r.include(keys[i],values[i]);
+			}
+			if (r==root) return this;
+			return new LongMap<V>(r);
+		}
+
+		if (count+n>Integer.MAX_VALUE) throw new IllegalArgumentException("Too many entries for bulk include");
+		int total=(int)(count+n);
+		long[] allKeys=new long[total];
+		Object[] allValues=new Object[total];
+		int i=0;
+		Iterator<Map.Entry<Long,V>> it=entrySetIterator();
+		while (it.hasNext()) {
+			Map.Entry<Long,V> e=it.next();
+			allKeys[i]=e.getKey();
+			allValues[i++]=e.getValue();
+		}
+		System.arraycopy(keys, 0, allKeys, i, n);
+		System.arraycopy(values, 0, allValues, i, n);
+		return new LongMap<V>(build(allKeys,allValues,total));
+	}
+
+	/**
+	 * Looks up a batch of keys, writing the value for each key (or null if not present)
+	 * to the corresponding position in the output array.
+	 *
+	 * @return The number of keys found
+	 */
+	@SuppressWarnings("unchecked")
+	public int getAll(long[] keys, V[] out) {
+		int n=keys.length;
+		if (out.length<n) throw new IllegalArgumentException("Output array too small");
+		int found=0;
+		for (int i=0; i<n; i++) {
+			Object v=find(keys[i]);
+			if (v==NOT_FOUND) {
+				out[i]=null;
+			} else {
+				out[i]=(V)v;
+				found++;
+			}
+		}
+		return found;
+	}
+
+	/*
+	 * Primitive access methods
+	 */
+
+	private Object find(long key) {
+		long u=order(key);
+		LMNode n=root;
+		while (true) {
+			int bit=1<<digit(u,n.shift);
+			if ((n.entryMap&bit)!=0) {
+				int i=LMNode.index(n.entryMap,bit);
+				if (n.keys[i]==key) return n.values[i];
+				return NOT_FOUND;
+			}
+			if ((n.nodeMap&bit)==0) return NOT_FOUND;
+			n=n.nodes[LMNode.index(n.nodeMap,bit)];
+		}
+	}
+
+	public boolean containsKey(long key) {
+		return find(key)!=NOT_FOUND;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		Object v=find(key);
+		if (v==NOT_FOUND) return null;
+		return (V)v;
+	}
+
+	public LongMap<V> include(long key, V value) {
+		LMNode newRoot=root.include(key,value);
+		if (newRoot==root) return this;
+		return new LongMap<V>(newRoot);
+	}
+
+	public LongMap<V> delete(long key) {
+		LMNode newRoot=root.delete(key);
+		if (newRoot==root) return this;
+		if (newRoot==null) return create();
+		return new LongMap<V>(newRoot);
+	}
+
+	/*
+	 * Ordered iteration
+	 */
+
+	/**
+	 * Iterator over entries in ascending key order, restricted to the inclusive key range [from,to].
+	 *
+	 * Child nodes entirely outside the range are skipped without being visited.
+	 */
+	private static final class LMEntryIterator<V> implements Iterator<Map.Entry<Long,V>> {
+		private final LMNode[] nodeStack=new LMNode[MAX_DEPTH];
+		private final int[] slotStack=new int[MAX_DEPTH];
+		private int depth;
+		private final long from;
+		private final long to;
+		private MapEntry<Long,V> next;
+
+		private LMEntryIterator(LMNode root, long from, long to) {
+			this.from=from;
+			this.to=to;
+			depth=-1;
+			if (from>to) return;
+			push(root);
+			findNext();
+		}
+
+		private void push(LMNode n) {
+			depth++;
+			nodeStack[depth]=n;
+			slotStack[depth]=(n.minKey()<from)?digit(order(from),n.shift):0;
+		}
+
+		@SuppressWarnings("unchecked")
+		private void findNext() {
+			next=null;
+			while (depth>=0) {
+				LMNode n=nodeStack[depth];
+				int slot=slotStack[depth];
+				if (slot>LOW_MASK) {
+					nodeStack[depth--]=null;
+					continue;
+				}
+				slotStack[depth]=slot+1;
+				int bit=1<<slot;
+				if ((n.entryMap&bit)!=0) {
+					int i=LMNode.index(n.entryMap,bit);
+					long k=n.keys[i];
+					if (k<from) continue;
+					if (k>to) break;
+					next=new MapEntry<Long,V>(k,(V)n.values[i]);
+					return;
+				} else if ((n.nodeMap&bit)!=0) {
+					LMNode c=n.nodes[LMNode.index(n.nodeMap,bit)];
+					if (c.maxKey()<from) continue;
+					if (c.minKey()>to) break;
+					push(c);
+				}
+			}
+			depth=-1;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next!=null;
+		}
+
+		@Override
+		public Map.Entry<Long, V> next() {
+			MapEntry<Long,V> result=next;
+			if (result==null) throw new NoSuchElementException();
+			findNext();
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Returns an iterator over all entries in ascending key order
+	 */
+	public Iterator<Map.Entry<Long, V>> entrySetIterator() {
+		return new LMEntryIterator<V>(root,Long.MIN_VALUE,Long.MAX_VALUE);
+	}
+
+	/**
+	 * Returns an iterator over the entries with keys in the range [fromInclusive,toExclusive),
+	 * in ascending key order
+	 */
+	public Iterator<Map.Entry<Long, V>> rangeIterator(long fromInclusive, long toExclusive) {
+		if (toExclusive==Long.MIN_VALUE) return new LMEntryIterator<V>(root,1,0);
+		return new LMEntryIterator<V>(root,fromInclusive,toExclusive-1);
+	}
+
+	/**
+	 * Returns a map containing only the entries with keys in the range [fromInclusive,toExclusive)
+	 */
+	public LongMap<V> subMap(long fromInclusive, long toExclusive) {
+		if ((root.count==0)||((firstEntry().getKey()>=fromInclusive)&&(lastEntry().getKey()<toExclusive))) return this;
+		long[] keys=new long[16];
+		Object[] values=new Object[16];
+		int n=0;
+		Iterator<Map.Entry<Long,V>> it=rangeIterator(fromInclusive,toExclusive);
+		while (it.hasNext()) {
+			Map.Entry<Long,V> e=it.next();
+			if (n==keys.length) {
+				keys=Arrays.copyOf(keys,n*2);
+				values=Arrays.copyOf(values,n*2);
+			}
+			keys[n]=e.getKey();
+			values[n++]=e.getValue();
+		}
+		if (n==0) return create();
+		return new LongMap<V>(build(keys,values,n));
+	}
+
+	/**
+	 * Returns the entry with the lowest key, or null if the map is empty
+	 */
+	public Map.Entry<Long,V> firstEntry() {
+		Iterator<Map.Entry<Long,V>> it=entrySetIterator();
+		if (!it.hasNext()) return null;
+		return it.next();
+	}
+
+	/**
+	 * Returns the entry with the highest key, or null if the map is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public Map.Entry<Long,V> lastEntry() {
+		LMNode n=root;
+		if (n.count==0) return null;
+		while (true) {
+			int topEntry=31-Integer.numberOfLeadingZeros(n.entryMap);
+			int topNode=31-Integer.numberOfLeadingZeros(n.nodeMap);
+			if (topEntry>topNode) {
+				int i=n.keys.length-1;
+				return new MapEntry<Long,V>(n.keys[i],(V)n.values[i]);
+			}
+			n=n.nodes[n.nodes.length-1];
+		}
+	}
+
+	/*
+	 * IPersistentMap methods
+	 */
+
 	@Override
 	public boolean allowsNullKey() {
 		return false;
 	}
-	
+
 	private long toKey(Object key) {
 		if (!(key instanceof Long)) {
 			throw new IllegalArgumentException("Key must be Long!");
 		}
-		return (Long)key;		
+		return (Long)key;
 	}
 
 	@Override
 	public boolean containsKey(Object key) {
-		long k = toKey(key);
-		IntMap<MapEntry<Long,V>> im = getInner(k);
-		if (im==null) return false;
-		return im.containsKey(Bits.lowWord(k));
+		return containsKey(toKey(key));
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public java.util.Map.Entry<Long, V> getMapEntry(Object key) {
-		long k = toKey(key);
-		IntMap<MapEntry<Long,V>> im = getInner(k);
-		if (im==null) return null;
-		MapEntry<Long,V> entry = im.get(Bits.lowWord(k));
-		if (entry==null) return null;
-		return entry;
+		long k=toKey(key);
+		Object v=find(k);
+		if (v==NOT_FOUND) return null;
+		return new MapEntry<Long,V>(k,(V)v);
+	}
+
+	@Override
+	public V get(Object key) {
+		return get(toKey(key));
 	}
 
 	@Override
 	public PersistentSet<java.util.Map.Entry<Long, V>> entrySet() {
 		return new LMEntrySet();
 	}
-	
+
 	private final class LMEntrySet extends PersistentSet<java.util.Map.Entry<Long, V>> {
 		private static final long serialVersionUID = 3640862932626136516L;
 
@@ -95,14 +713,19 @@ public final class LongMap<V> extends PersistentMap<Long,V> {
 			return LongMap.this.entrySetIterator();
 		}
 
+		@Override
+		public Spliterator<Map.Entry<Long, V>> spliterator() {
+			return LongMap.this.spliterator();
+		}
+
 		@Override
 		public PersistentSet<java.util.Map.Entry<Long, V>> include(
 				java.util.Map.Entry<Long, V> entry) {
 			return SetFactory.createFrom(this).include(entry);
 		}
-		
+
 		@SuppressWarnings("unchecked")
-		@Override 
+		@Override
 		public boolean contains(Object o) {
 			if (!(o instanceof java.util.Map.Entry<?, ?>)) return false;
 			java.util.Map.Entry<Long, V> entry=(java.util.Map.Entry<Long, V>)o;
@@ -118,134 +741,221 @@ public final class LongMap<V> extends PersistentMap<Long,V> {
 		}
 	}
 
+	@Override
+	public PersistentSet<Long> keySet() {
+		return new Wrappers.KeySet<Long>(this);
+	}
 
 	@Override
-	public V get(Object key) {
-		long k = toKey(key);
-		IntMap<MapEntry<Long,V>> im = getInner(k);
-		if (im==null) return null;
-		MapEntry<Long,V> entry = im.get(Bits.lowWord(k));
-		if (entry==null) return null;
-		return entry.getValue();
-	}
-	
-	
-	private final class LMEntryIterator implements Iterator<Map.Entry<Long,V>> {
-		private Iterator<java.util.Map.Entry<Integer, IntMap<MapEntry<Long, V>>>> mainIterator;
-		private Iterator<java.util.Map.Entry<Integer, MapEntry<Long, V>>> subIterator;
-		
-		private Iterator<java.util.Map.Entry<Integer, IntMap<MapEntry<Long, V>>>> getMainIterator() {
-			return LongMap.this.data.entrySet().iterator();
-		}
-		
-		private LMEntryIterator() {
-			mainIterator=getMainIterator();
-		}
-		
+	public int size() {
+		return (int)root.count;
+	}
+
+	public long longSize() {
+		return root.count;
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	public PersistentCollection<V> values() {
+		Iterator<Map.Entry<Long, V>> entryIterator = this.entrySet().iterator();
+		return ListFactory.createFromIterator(new Iterators.ValueIterator(entryIterator));
+	}
+
+	@Override
+	public LongMap<V> delete(Long key) {
+		return delete(toKey(key));
+	}
+
+	@Override
+	public LongMap<V> include(Long key, V value) {
+		return include(key.longValue(),value);
+	}
+
+	@Override
+	public void validate() {
+		super.validate();
+		if (root.shift!=TOP_SHIFT) throw new Error("Root must be at top shift");
+		root.validate();
+	}
+
+	/*
+	 * Parallel operations
+	 */
+
+	/**
+	 * Spliterator over a range of slots within one node, in ascending key order. Splits
+	 * take a prefix of the occupied slots, and once only one child node remains it
+	 * descends into that node so that work can keep being divided along node boundaries.
+	 */
+	private static final class LMSpliterator<V> implements Spliterator<Map.Entry<Long,V>> {
+		private LMNode node;
+		private int slot;
+		private int end;
+		private Iterator<Map.Entry<Long,V>> it;
+		private long remaining;
+
+		private LMSpliterator(LMNode node, int slot, int end, Iterator<Map.Entry<Long,V>> it, long remaining) {
+			this.node=node;
+			this.slot=slot;
+			this.end=end;
+			this.it=it;
+			this.remaining=remaining;
+		}
+
+		@SuppressWarnings("unchecked")
 		@Override
-		public boolean hasNext() {
-			if ((subIterator!=null)&&subIterator.hasNext()) return true;
-			
-			while (mainIterator.hasNext()) {
-				subIterator=(mainIterator.next().getValue()).entrySet().iterator();
-				if ((subIterator!=null)&&subIterator.hasNext()) return true;
+		public boolean tryAdvance(Consumer<? super Map.Entry<Long, V>> action) {
+			while (true) {
+				if (it!=null) {
+					if (it.hasNext()) {
+						remaining--;
+						action.accept(it.next());
+						return true;
+					}
+					it=null;
+				}
+				if (slot>=end) return false;
+				int bit=1<<(slot++);
+				if ((node.entryMap&bit)!=0) {
+					int i=LMNode.index(node.entryMap,bit);
+					remaining--;
+					action.accept(new MapEntry<Long,V>(node.keys[i],(V)node.values[i]));
+					return true;
+				} else if ((node.nodeMap&bit)!=0) {
+					it=new LMEntryIterator<V>(node.nodes[LMNode.index(node.nodeMap,bit)],Long.MIN_VALUE,Long.MAX_VALUE);
+				}
 			}
-			
-			return false;
+		}
+
+		// bitmap of the occupied slots from slot up to end
+		private int occupied() {
+			long mask=((1L<<end)-1)&~((1L<<slot)-1);
+			return (node.entryMap|node.nodeMap)&(int)mask;
 		}
 
 		@Override
-		public MapEntry<Long, V> next() {
-			if ((subIterator!=null)&&subIterator.hasNext()) {
-				java.util.Map.Entry<Integer, MapEntry<Long, V>> entry=subIterator.next();
-				return entry.getValue();
-			}
-			
-			while (mainIterator.hasNext()) {
-				subIterator=(mainIterator.next().getValue()).entrySet().iterator();
-				if ((subIterator!=null)&&subIterator.hasNext()) {
-					return subIterator.next().getValue();
+		public Spliterator<Map.Entry<Long, V>> trySplit() {
+			int occ=occupied();
+			while ((it==null)&&(Integer.bitCount(occ)==1)&&((node.nodeMap&occ)!=0)) {
+				node=node.nodes[LMNode.index(node.nodeMap,occ)];
+				slot=0;
+				end=LOW_MASK+1;
+				occ=occupied();
+			}
+			// the split takes any partially consumed child plus the first half of the slots
+			int k=Integer.bitCount(occ)/2;
+			if ((it==null)?(k==0):(occ==0)) return null;
+			for (int i=0; i<k; i++) {
+				occ&=occ-1;
+			}
+			int mid=Integer.numberOfTrailingZeros(occ);
+			long rest=0;
+			for (int s=mid; s<end; s++) {
+				int bit=1<<s;
+				if ((node.entryMap&bit)!=0) {
+					rest++;
+				} else if ((node.nodeMap&bit)!=0) {
+					rest+=node.nodes[LMNode.index(node.nodeMap,bit)].count;
 				}
 			}
-				
-			throw new NoSuchElementException();
+			LMSpliterator<V> split=new LMSpliterator<V>(node,slot,mid,it,remaining-rest);
+			slot=mid;
+			it=null;
+			remaining=rest;
+			return split;
 		}
 
 		@Override
-		public void remove() {
-			throw new UnsupportedOperationException();
+		public long estimateSize() {
+			return remaining;
 		}
-	}
-	
-	public Iterator<Map.Entry<Long, V>> entrySetIterator() {
-		return new LMEntryIterator();
-	}
 
-	public V get(long key) {
-		IntMap<MapEntry<Long,V>> im = getInner(key);
-		if (im==null) return null;
-		MapEntry<Long,V> entry = im.get(Bits.lowWord(key));
-		if (entry==null) return null;
-		return entry.getValue();
+		@Override
+		public int characteristics() {
+			return ORDERED|DISTINCT|IMMUTABLE|NONNULL|SIZED;
+		}
 	}
 
-	@Override
-	public PersistentSet<Long> keySet() {
-		return new Wrappers.KeySet<Long>(this);
+	public Spliterator<Map.Entry<Long,V>> spliterator() {
+		return new LMSpliterator<V>(root,0,LOW_MASK+1,null,root.count);
 	}
 
-	@Override
-	public int size() {
-		return (int)count;
-	}
-	
-	public long longSize() {
-		return count;
+	public void parallelForEach(BiConsumer<Long, ? super V> action) {
+		parallelForEach(action,ParallelOps.defaultPool());
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	@Override
-	public PersistentCollection<V> values() {
-		Iterator<Map.Entry<Long, V>> entryIterator = this.entrySet().iterator();
-		return ListFactory.createFromIterator(new Iterators.ValueIterator(entryIterator));
+	public void parallelForEach(final BiConsumer<Long, ? super V> action, ForkJoinPool pool) {
+		ParallelOps.forEach(spliterator(), new Consumer<Map.Entry<Long,V>>() {
+			@Override
+			public void accept(Map.Entry<Long,V> e) {
+				action.accept(e.getKey(),e.getValue());
+			}
+		}, pool);
 	}
 
-	@Override
-	public PersistentMap<Long, V> delete(Long key) {
-		long k=toKey(key);
-		return delete(k);
+	public <R> R parallelReduce(R identity, BiFunction<R,? super Map.Entry<Long,V>,R> accumulator, BinaryOperator<R> combiner) {
+		return parallelReduce(identity,accumulator,combiner,ParallelOps.defaultPool());
 	}
-	
-	public PersistentMap<Long, V> delete(long key) {
-		IntMap<MapEntry<Long,V>> im = getInner(key);
-		if (im==null) return this;
-		
-		int lo=Bits.lowWord(key);
-		if (!im.containsKey(lo)) return this;
-		IntMap<MapEntry<Long,V>> newInnerMap=im.delete(lo);
-		assert (newInnerMap!=im);
-		IntMap<IntMap<MapEntry<Long, V>>> newData = data.include(Bits.highWord(key),newInnerMap);		
-		return new LongMap<V>(newData,count-1);
+
+	public <R> R parallelReduce(R identity, BiFunction<R,? super Map.Entry<Long,V>,R> accumulator, BinaryOperator<R> combiner, ForkJoinPool pool) {
+		return ParallelOps.reduce(spliterator(),identity,accumulator,combiner,pool);
 	}
 
-	@Override
-	public PersistentMap<Long, V> include(Long key, V value) {
-		IntMap<MapEntry<Long,V>> im = getInner(key);
-		MapEntry<Long,V> entry = new MapEntry<Long, V>(key,value);
-		long newCount=count;
-		int lo=Bits.lowWord(key);
-		if (im==null) {
-			im=IntMap.create(lo,entry);
-			newCount+=1;
-		} else {
-			if (!im.containsKey(lo)) newCount++;
-			im=im.include(lo,entry);
+	/**
+	 * Task to rebuild a node with mapped values. Large child nodes are forked
+	 * as subtasks, smaller ones are mapped sequentially.
+	 */
+	private static final class LMMapValuesTask<R> extends RecursiveTask<LMNode> {
+		private static final long serialVersionUID = -1803456283140577725L;
+
+		private final LMNode node;
+		private final Function<Object,R> f;
+
+		private LMMapValuesTask(LMNode node, Function<Object,R> f) {
+			this.node=node;
+			this.f=f;
 		}
-		
-		IntMap<IntMap<MapEntry<Long, V>>> newData = data.include(Bits.highWord(key),im);
-		if (data==newData) return this;
-		return new LongMap<V>(newData,newCount);
 
+		@Override
+		protected LMNode compute() {
+			if (node.count<=ParallelOps.SPLIT_THRESHOLD) return node.mapValues(f);
+			int n=node.nodes.length;
+			@SuppressWarnings("unchecked")
+			LMMapValuesTask<R>[] tasks=new LMMapValuesTask[n];
+			for (int i=0; i<n; i++) {
+				tasks[i]=new LMMapValuesTask<R>(node.nodes[i],f);
+				tasks[i].fork();
+			}
+			Object[] nvalues=new Object[node.values.length];
+			for (int i=0; i<nvalues.length; i++) {
+				nvalues[i]=f.apply(node.values[i]);
+			}
+			LMNode[] nnodes=new LMNode[n];
+			for (int i=0; i<n; i++) {
+				nnodes[i]=tasks[i].join();
+			}
+			return node.withValues(nvalues,nnodes);
+		}
+	}
+
+	/**
+	 * Returns a new map with the same keys and values transformed by the given function.
+	 *
+	 * The trie is rebuilt in parallel with the same structure as this map, sharing the key arrays.
+	 */
+	public <R> LongMap<R> mapValues(Function<? super V, ? extends R> f) {
+		return mapValues(f,ParallelOps.defaultPool());
 	}
 
+	public <R> LongMap<R> mapValues(final Function<? super V, ? extends R> f, ForkJoinPool pool) {
+		Function<Object,R> vf=new Function<Object,R>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public R apply(Object v) {
+				return f.apply((V)v);
+			}
+		};
+		return new LongMap<R>(pool.invoke(new LMMapValuesTask<R>(root,vf)));
+	}
 }
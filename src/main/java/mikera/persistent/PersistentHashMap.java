@@ -1,11 +1,23 @@
 package mikera.persistent;
 
 import java.io.ObjectStreamException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import mikera.annotations.Immutable;
 import mikera.persistent.impl.KeySetWrapper;
+import mikera.persistent.impl.ParallelOps;
 import mikera.persistent.impl.ValueCollectionWrapper;
 import mikera.util.Bits;
 import mikera.util.Tools;
@@ -61,13 +73,27 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		return new PersistentHashMap<K, V>(new PHMEntry<K, V>(key,value));
 	}
 	
-	@SuppressWarnings("unchecked")
 	public static<K,V> PersistentHashMap<K,V> create(Map<K,V> values) {
-		PersistentHashMap<K,V> pm=(PersistentHashMap<K, V>) PersistentHashMap.EMPTY;
-		for (Map.Entry<K,V> ent: values.entrySet()) {
-			pm=pm.include(ent.getKey(),ent.getValue());
-		}
-		return pm;
+		Builder<K,V> b=builder();
+		b.include(values);
+		return b.toPersistentHashMap();
+	}
+	
+	/**
+	 * Creates a new empty Builder for efficient bulk construction of a PersistentHashMap
+	 */
+	@SuppressWarnings("unchecked")
+	public static<K,V> Builder<K,V> builder() {
+		return new Builder<K,V>((PHMNode<K,V>)EMPTY_NODE_LIST);
+	}
+	
+	/**
+	 * Creates a Builder initially containing all the entries of this map.
+	 * 
+	 * This map is unaffected by subsequent changes to the Builder.
+	 */
+	public Builder<K,V> toBuilder() {
+		return new Builder<K,V>(root);
 	}
 
 	public static <K,V> int countEntries(PHMNode<K,V> node) {
@@ -97,6 +123,19 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		 */
 		protected abstract PHMNode<K,V> include(K key, V value, int hash, int shift);
 		
+		/**
+		 * Includes the given (key,value) pair, mutating nodes in place where they are
+		 * owned by the given edit token. Nodes not owned by the token are never modified.
+		 * 
+		 * Default implementation falls back to the persistent include
+		 * 
+		 * @param edit Ownership token of a Builder, or null
+		 * @return The updated PHMNode, which may be this PHMNode modified in place
+		 */
+		protected PHMNode<K,V> include(Object edit, K key, V value, int hash, int shift) {
+			return include(key,value,hash,shift);
+		}
+		
 		/**
 		 * Returns the entry for the given key value, or null if not found
 		 * 
@@ -167,7 +206,8 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 				
 		private final PHMNode<K,V>[] data;
 		private final int shift;
-		private final int count;	
+		private int count;	
+		private transient Object edit;
 		
 		protected PHMFullNode(PHMNode<K,V>[] newData, int newShift) {
 			data=newData;
@@ -175,6 +215,18 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 			count=countEntries();
 		}
 		
+		private PHMFullNode(PHMNode<K,V>[] newData, int newShift, int newCount, Object newEdit) {
+			data=newData;
+			shift=newShift;
+			count=newCount;
+			edit=newEdit;
+		}
+		
+		private PHMFullNode<K,V> ensureEditable(Object edit) {
+			if ((edit!=null)&&(this.edit==edit)) return this;
+			return new PHMFullNode<K, V>(data.clone(),shift,count,edit);
+		}
+		
 		private static final int slotFromHash(int hash, int shift) {
 			return (hash>>>shift)&LOW_MASK;
 		}
@@ -242,6 +294,19 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 			return replace(i,dn);
 		}
 		
+		@Override
+		protected PHMNode<K, V> include(Object edit, K key, V value, int hash, int shift) {
+			int i=slotFromHash(hash,shift);
+			PHMNode<K,V> n=data[i];
+			int oldSize=n.size();
+			PHMNode<K, V> dn=n.include(edit, key, value, hash, shift+SHIFT_AMOUNT);
+			if ((dn==n)&&(dn.size()==oldSize)) return this;
+			PHMFullNode<K,V> fn=ensureEditable(edit);
+			fn.data[i]=dn;
+			fn.count+=dn.size()-oldSize;
+			return fn;
+		}
+		
 		/*
 		@SuppressWarnings("unchecked")
 		protected static <K,V> PHMFullNode<K,V> concat(PHMNode a, int ha, PHMNode b, int hb, int shift) {
@@ -308,10 +373,12 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		private static final long serialVersionUID = -4936128089990848344L;
 		
 		
-		private final PHMNode<K,V>[] data;
+		// fields are only mutated while the node is owned by a Builder's edit token
+		private PHMNode<K,V>[] data;
 		private final int shift;
-		private final int count;
-		private final int bitmap; // bitmap indicating which slots are present in data array
+		private int count;
+		private int bitmap; // bitmap indicating which slots are present in data array
+		private transient Object edit;
 		
 		
 		private PHMBitMapNode(PHMNode<K,V>[] newData, int newShift, int newBitmap) {
@@ -321,6 +388,18 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 			count=countEntries();
 		}
 		
+		private PHMBitMapNode(PHMNode<K,V>[] newData, int newShift, int newBitmap, int newCount, Object newEdit) {
+			data=newData;
+			shift=newShift;
+			bitmap=newBitmap;
+			count=newCount;
+			edit=newEdit;
+		}
+		
+		private boolean isEditable(Object edit) {
+			return (edit!=null)&&(this.edit==edit);
+		}
+		
 		public static final int indexFromSlot(int slot, int bm) {
 			int mask = (1<<slot) - 1;
 			return Integer.bitCount( bm & mask );
@@ -418,6 +497,38 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 			return replace(i,n.include(key, value, hash, shift+SHIFT_AMOUNT));
 		}
 		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected PHMNode<K, V> include(Object edit, K key, V value, int hash, int shift) {
+			int s=slotFromHash(hash,shift);
+			int i=indexFromSlot(s,bitmap);
+			if (((1<<s)&bitmap)==0) {
+				// new slot, so the data array must grow by one
+				PHMNode<K,V>[] newData=new PHMNode[data.length+1];
+				System.arraycopy(data, 0, newData, 0, i);
+				System.arraycopy(data, i, newData, i+1, data.length-i);
+				newData[i]=new PHMEntry<K, V>(key,value);
+				if (data.length==31) {
+					return new PHMFullNode<K, V>(newData,shift,count+1,edit);
+				}
+				if (!isEditable(edit)) {
+					return new PHMBitMapNode<K, V>(newData,shift,bitmap|(1<<s),count+1,edit);
+				}
+				data=newData;
+				bitmap|=(1<<s);
+				count++;
+				return this;
+			}
+			PHMNode<K,V> n=data[i];
+			int oldSize=n.size();
+			PHMNode<K, V> dn=n.include(edit, key, value, hash, shift+SHIFT_AMOUNT);
+			if ((dn==n)&&(dn.size()==oldSize)) return this;
+			PHMBitMapNode<K,V> bn=isEditable(edit)?this:new PHMBitMapNode<K, V>(data.clone(),shift,bitmap,count,edit);
+			bn.data[i]=dn;
+			bn.count+=dn.size()-oldSize;
+			return bn;
+		}
+		
 		@SuppressWarnings("unchecked")
 		protected PHMNode<K, V> insertSlot(int i, int s, PHMNode<K,V> node) {
 			PHMNode<K,V>[] newData=new PHMNode[data.length+1];
@@ -432,7 +543,7 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		
 		
 		@SuppressWarnings("unchecked")
-		protected static <K,V> PHMBitMapNode<K,V> concat(PHMNode<K,V> a, int ha, PHMNode<K,V> b, int hb, int shift) {
+		protected static <K,V> PHMBitMapNode<K,V> concat(Object edit, PHMNode<K,V> a, int ha, PHMNode<K,V> b, int hb, int shift) {
 			PHMNode<K,V>[] nodes;
 			int sa=slotFromHash(ha,shift);
 			int sb=slotFromHash(hb,shift);
@@ -444,9 +555,9 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 				nodes[1-ia]=b;
 			} else {
 				nodes=new PHMNode[1];
-				nodes[0]=concat(a,ha,b,hb,shift+SHIFT_AMOUNT);
+				nodes[0]=concat(edit,a,ha,b,hb,shift+SHIFT_AMOUNT);
 			}
-			PHMBitMapNode<K,V> fn=new PHMBitMapNode<K, V>(nodes,shift,bitmap);
+			PHMBitMapNode<K,V> fn=new PHMBitMapNode<K, V>(nodes,shift,bitmap,a.size()+b.size(),edit);
 			return fn;
 		}
 
@@ -570,7 +681,7 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		@Override
 		protected PHMNode<K, V> include(K key, V value, int hash, int shift) {
 			if (hashCode!=hash) {
-				return PHMBitMapNode.concat(this,hashCode,new PHMEntry<K, V>(key,value),hash,shift);
+				return PHMBitMapNode.concat(null,this,hashCode,new PHMEntry<K, V>(key,value),hash,shift);
 
 			}
 			
@@ -699,9 +810,14 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 			return getEntry(key);
 		}
 		
-		@SuppressWarnings("unchecked")
 		@Override
 		protected PHMNode<K, V> include(K newkey, V value, int hash, int shift) {
+			return include(null,newkey,value,hash,shift);
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected PHMNode<K, V> include(Object edit, K newkey, V value, int hash, int shift) {
 			if (newkey.equals(this.key)) {
 				// replacement case
 				if (!matchesValue(value)) return new PHMEntry<K, V>(newkey,value);
@@ -715,7 +831,7 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 							new PHMEntry<K, V>(newkey,value)},
 					hash);
 			
-			return PHMBitMapNode.concat(this,hashCode,new PHMEntry<K, V>(newkey,value),hash,shift);
+			return PHMBitMapNode.concat(edit,this,hashCode,new PHMEntry<K, V>(newkey,value),hash,shift);
 		}
 		
 		@Override
@@ -780,6 +896,11 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		public Iterator<Map.Entry<K, V>> iterator() {
 			return new PHMEntrySetIterator<K, V>(PersistentHashMap.this);
 		}
+		
+		@Override
+		public Spliterator<Map.Entry<K, V>> spliterator() {
+			return PersistentHashMap.this.spliterator();
+		}
 
 		@Override
 		public PersistentSet<Map.Entry<K, V>> include(
@@ -803,7 +924,11 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		public int index=0;
 		
 		private PHMEntrySetIterator(PersistentHashMap<K,V> phm) {
-			root=phm.root;
+			this(phm.root);
+		}
+		
+		private PHMEntrySetIterator(PHMNode<K,V> node) {
+			root=node;
 			findNext();
 		}
 
@@ -829,6 +954,275 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		}
 	}
 
+	/**
+	 * Transient builder for efficient bulk construction of a PersistentHashMap.
+	 * 
+	 * Nodes created by the builder are tagged with its edit token, and are mutated
+	 * in place by subsequent includes rather than path-copied. Nodes shared with
+	 * existing maps are copied once on first modification. 
+	 * 
+	 * Not thread safe: a Builder must only be used by one thread at a time.
+	 * 
+	 * @author Mike Anderson
+	 *
+	 * @param <K> Key type
+	 * @param <V> Value type
+	 */
+	public static final class Builder<K,V> {
+		private PHMNode<K,V> root;
+		private Object edit=new Object();
+		
+		private Builder(PHMNode<K,V> root) {
+			this.root=root;
+		}
+		
+		public Builder<K,V> include(K key, V value) {
+			root=root.include(edit,key,value,key.hashCode(),0);
+			return this;
+		}
+		
+		public Builder<K,V> include(Map<K,V> values) {
+			for (Map.Entry<K,V> ent: values.entrySet()) {
+				K key=ent.getKey();
+				root=root.include(edit,key,ent.getValue(),key.hashCode(),0);
+			}
+			return this;
+		}
+		
+		public int size() {
+			return root.size();
+		}
+		
+		/**
+		 * Returns a PersistentHashMap containing the current contents of this Builder, in O(1) time.
+		 * 
+		 * The Builder remains usable, but further changes will not affect the returned map.
+		 */
+		public PersistentHashMap<K,V> toPersistentHashMap() {
+			// release ownership of all existing nodes
+			edit=new Object();
+			return new PersistentHashMap<K, V>(root);
+		}
+	}
+
+	/**
+	 * Spliterator over a range of sibling PHMNodes. 
+	 * 
+	 * Splits by dividing the range of nodes, descending into the child nodes
+	 * when only a single interior node remains.
+	 */
+	private static final class PHMSpliterator<K,V> implements Spliterator<Map.Entry<K,V>> {
+		private PHMNode<K,V>[] nodes;
+		private int from;
+		private int to;
+		private PHMEntrySetIterator<K,V> it=null; // iterator for nodes[from], once started
+		private long remaining;
+		
+		private PHMSpliterator(PHMNode<K,V>[] nodes, int from, int to) {
+			this.nodes=nodes;
+			this.from=from;
+			this.to=to;
+			long n=0;
+			for (int i=from; i<to; i++) {
+				n+=nodes[i].size();
+			}
+			remaining=n;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+			while (true) {
+				if (it!=null) {
+					if (it.hasNext()) {
+						remaining--;
+						action.accept(it.next());
+						return true;
+					}
+					it=null;
+					from++;
+				}
+				if (from>=to) return false;
+				it=new PHMEntrySetIterator<K, V>(nodes[from]);
+			}
+		}
+
+		@Override
+		public Spliterator<Map.Entry<K, V>> trySplit() {
+			if ((it==null)&&(to-from==1)) {
+				PHMNode<K,V> n=nodes[from];
+				if (n.isLeaf()) return null;
+				nodes=childrenOf(n);
+				from=0;
+				to=nodes.length;
+			}
+			// the split is a prefix, so it takes nodes[from] along with its iterator if already being iterated
+			int lo=(it==null)?from:from+1;
+			if ((to-lo)<((it==null)?2:1)) return null;
+			int mid=(lo+to)>>>1;
+			PHMSpliterator<K,V> split=new PHMSpliterator<K, V>(nodes,from,mid);
+			split.it=it;
+			it=null;
+			from=mid;
+			long n=0;
+			for (int i=from; i<to; i++) {
+				n+=nodes[i].size();
+			}
+			split.remaining=remaining-n;
+			remaining=n;
+			return split;
+		}
+
+		@Override
+		public long estimateSize() {
+			return remaining;
+		}
+
+		@Override
+		public int characteristics() {
+			return DISTINCT|SIZED|SUBSIZED|IMMUTABLE|NONNULL;
+		}
+	}
+	
+	/**
+	 * Fork/join task that maps values node by node, preserving the trie structure
+	 * so that no keys need to be re-hashed
+	 */
+	private static final class PHMMapValuesTask<K,V,R> extends RecursiveTask<PHMNode<K,R>> {
+		private static final long serialVersionUID = -7424283069442004521L;
+
+		private final PHMNode<K,V> node;
+		private final Function<? super V, ? extends R> f;
+		
+		private PHMMapValuesTask(PHMNode<K,V> node, Function<? super V, ? extends R> f) {
+			this.node=node;
+			this.f=f;
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected PHMNode<K, R> compute() {
+			if ((node.size()<=ParallelOps.SPLIT_THRESHOLD)||node.isLeaf()) {
+				return mapValues(node,f);
+			}
+			PHMNode<K,V>[] data=childrenOf(node);
+			PHMMapValuesTask<K,V,R>[] tasks=new PHMMapValuesTask[data.length];
+			for (int i=0; i<data.length; i++) {
+				tasks[i]=new PHMMapValuesTask<K, V, R>(data[i],f);
+			}
+			invokeAll(tasks);
+			PHMNode<K,R>[] newData=new PHMNode[data.length];
+			for (int i=0; i<data.length; i++) {
+				newData[i]=tasks[i].join();
+			}
+			return withChildren(node,newData);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <K,V,R> PHMNode<K,R> mapValues(PHMNode<K,V> node, Function<? super V, ? extends R> f) {
+		if (node instanceof PHMEntry<?,?>) {
+			PHMEntry<K,V> e=(PHMEntry<K,V>)node;
+			return new PHMEntry<K, R>(e.key,f.apply(e.value));
+		} 
+		if (node instanceof PHMCollisionList<?,?>) {
+			PHMCollisionList<K,V> cl=(PHMCollisionList<K,V>)node;
+			PHMEntry<K,R>[] entries=new PHMEntry[cl.entries.length];
+			for (int i=0; i<entries.length; i++) {
+				PHMEntry<K,V> e=cl.entries[i];
+				entries[i]=new PHMEntry<K, R>(e.key,f.apply(e.value));
+			}
+			return new PHMCollisionList<K, R>(entries,cl.hashCode);
+		}
+		if (node.size()==0) return (PHMNode<K,R>)EMPTY_NODE_LIST;
+		PHMNode<K,V>[] data=childrenOf(node);
+		PHMNode<K,R>[] newData=new PHMNode[data.length];
+		for (int i=0; i<data.length; i++) {
+			newData[i]=mapValues(data[i],f);
+		}
+		return withChildren(node,newData);
+	}
+	
+	/**
+	 * Creates a new interior node with the same shape as the given node but different children
+	 */
+	private static <K,V,R> PHMNode<K,R> withChildren(PHMNode<K,V> node, PHMNode<K,R>[] newData) {
+		if (node instanceof PHMFullNode<?,?>) {
+			return new PHMFullNode<K, R>(newData,((PHMFullNode<K,V>)node).shift);
+		}
+		PHMBitMapNode<K,V> bn=(PHMBitMapNode<K,V>)node;
+		return new PHMBitMapNode<K, R>(newData,bn.shift,bn.bitmap);
+	}
+	
+	/**
+	 * Reduces the internal trie of this map bottom up with the given reducer.
+	 * 
+	 * Used to write incremental snapshots, where subtrees shared with a previously written
+	 * version of the map do not need to be written again.
+	 */
+	public <R> R reduceTrie(ITrieReducer<K,V,R> reducer) {
+		return reduceTrie(root,reducer);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <K,V,R> R reduceTrie(PHMNode<K,V> node, ITrieReducer<K,V,R> reducer) {
+		R cached=reducer.cached(node);
+		if (cached!=null) return cached;
+		if (node.isLeaf()) {
+			if (node.size()==0) return reducer.leaf(node, Collections.<Map.Entry<K,V>>emptyList());
+			Map.Entry<?,?>[] entries=leafEntries(node);
+			return reducer.leaf(node, (List<Map.Entry<K,V>>)(List<?>)Arrays.asList(entries));
+		}
+		PHMNode<K,V>[] data=childrenOf(node);
+		Object[] results=new Object[data.length];
+		for (int i=0; i<data.length; i++) {
+			results[i]=reduceTrie(data[i],reducer);
+		}
+		return reducer.branch(node, (List<R>)Arrays.asList(results));
+	}
+	
+	/*
+	 * Parallel operations
+	 */
+	
+	@SuppressWarnings("unchecked")
+	public Spliterator<Map.Entry<K,V>> spliterator() {
+		return new PHMSpliterator<K, V>(new PHMNode[] {root},0,1);
+	}
+	
+	public void parallelForEach(BiConsumer<? super K, ? super V> action) {
+		parallelForEach(action,ParallelOps.defaultPool());
+	}
+	
+	public void parallelForEach(final BiConsumer<? super K, ? super V> action, ForkJoinPool pool) {
+		ParallelOps.forEach(spliterator(), new Consumer<Map.Entry<K,V>>() {
+			@Override
+			public void accept(Map.Entry<K, V> e) {
+				action.accept(e.getKey(),e.getValue());
+			}
+		}, pool);
+	}
+	
+	public <R> R parallelReduce(R identity, BiFunction<R,? super Map.Entry<K,V>,R> accumulator, BinaryOperator<R> combiner) {
+		return parallelReduce(identity,accumulator,combiner,ParallelOps.defaultPool());
+	}
+	
+	public <R> R parallelReduce(R identity, BiFunction<R,? super Map.Entry<K,V>,R> accumulator, BinaryOperator<R> combiner, ForkJoinPool pool) {
+		return ParallelOps.reduce(spliterator(),identity,accumulator,combiner,pool);
+	}
+	
+	/**
+	 * Returns a new map with the same keys and values transformed by the given function.
+	 * 
+	 * The result is built in parallel with the same trie structure as this map.
+	 */
+	public <R> PersistentHashMap<K,R> mapValues(Function<? super V, ? extends R> f) {
+		return mapValues(f,ParallelOps.defaultPool());
+	}
+	
+	public <R> PersistentHashMap<K,R> mapValues(Function<? super V, ? extends R> f, ForkJoinPool pool) {
+		return new PersistentHashMap<K, R>(pool.invoke(new PHMMapValuesTask<K, V, R>(root,f)));
+	}
+
 	/*
 	 *  IPersistentMap methods
 	 */
@@ -889,21 +1283,101 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		if (values instanceof PersistentHashMap<?,?>) {
 			return include((PersistentHashMap<K,V>)values);
 		}
+		return includeAll(values);
+	}
+	
+	/**
+	 * Merges the given map into this map, with values in the given map taking priority.
+	 * 
+	 * Works node by node, so subtrees shared between the two maps are retained
+	 * without being traversed.
+	 */
+	public PersistentHashMap<K, V> include(PersistentHashMap<K, V> values) {
+		PHMNode<K,V> newRoot=mergeNodes(root,values.root,0);
+		if (newRoot==root) return this;
+		if (newRoot==values.root) return values;
+		return new PersistentHashMap<K, V>(newRoot);
+	}
+	
+	/**
+	 * Merges two PHMNodes at the same shift level, with entries in b taking priority
+	 */
+	@SuppressWarnings("unchecked")
+	private static <K,V> PHMNode<K,V> mergeNodes(PHMNode<K,V> a, PHMNode<K,V> b, int shift) {
+		if (a==b) return a;
+		if (a.size()==0) return b;
+		if (b.size()==0) return a;
+		if (b.isLeaf()) return includeEntries(a,b,shift,true);
+		if (a.isLeaf()) return includeEntries(b,a,shift,false);
 		
-		PersistentMap<K, V> pm=this;
-		for (Map.Entry<K, V> entry:values.entrySet()) {
-			pm=pm.include(entry.getKey(),entry.getValue());
-		}
-		return pm;
+		// both are interior nodes at the same shift, so slots line up
+		int bma=bitmapOf(a);
+		int bmb=bitmapOf(b);
+		PHMNode<K,V>[] da=childrenOf(a);
+		PHMNode<K,V>[] db=childrenOf(b);
+		int bm=bma|bmb;
+		PHMNode<K,V>[] newData=new PHMNode[Integer.bitCount(bm)];
+		boolean sameAsA=(bm==bma);
+		boolean sameAsB=(bm==bmb);
+		int ia=0; int ib=0;
+		for (int i=0; i<newData.length; i++) {
+			int bit=Bits.lowestSetBit(bm);
+			bm&=~bit;
+			PHMNode<K,V> ca=((bma&bit)!=0)?da[ia++]:null;
+			PHMNode<K,V> cb=((bmb&bit)!=0)?db[ib++]:null;
+			PHMNode<K,V> c;
+			if (ca==null) {
+				c=cb;
+			} else if (cb==null) {
+				c=ca;
+			} else {
+				c=mergeNodes(ca,cb,shift+SHIFT_AMOUNT);
+			}
+			sameAsA&=(c==ca);
+			sameAsB&=(c==cb);
+			newData[i]=c;
+		}
+		if (sameAsA) return a;
+		if (sameAsB) return b;
+		if (newData.length==DATA_SIZE) return new PHMFullNode<K, V>(newData,shift);
+		return new PHMBitMapNode<K, V>(newData,shift,bma|bmb);
 	}
 	
-	public PersistentMap<K, V> include(PersistentHashMap<K, V> values) {
-		// TODO: Consider fast node-level merging implementation
-		PersistentHashMap<K, V> pm=this;
-		for (Map.Entry<K, V> entry:values.entrySet()) {
-			pm=pm.include(entry.getKey(),entry.getValue());
+	/**
+	 * Includes all entries of a leaf node into a target node at the given shift.
+	 * If override is false, existing entries in the target are retained
+	 */
+	private static <K,V> PHMNode<K,V> includeEntries(PHMNode<K,V> target, PHMNode<K,V> leaf, int shift, boolean override) {
+		for (PHMEntry<K,V> e: leafEntries(leaf)) {
+			int hash=e.key.hashCode();
+			if ((!override)&&(target.getEntry(e.key,hash)!=null)) continue;
+			target=target.include(e.key,e.value,hash,shift);
 		}
-		return pm;
+		return target;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <K,V> PHMEntry<K,V>[] leafEntries(PHMNode<K,V> leaf) {
+		if (leaf instanceof PHMCollisionList<?,?>) return ((PHMCollisionList<K,V>)leaf).entries;
+		return new PHMEntry[] {(PHMEntry<K,V>)leaf};
+	}
+	
+	private static int bitmapOf(PHMNode<?,?> node) {
+		if (node instanceof PHMFullNode<?,?>) return 0xFFFFFFFF;
+		return ((PHMBitMapNode<?,?>)node).bitmap;
+	}
+	
+	private static <K,V> PHMNode<K,V>[] childrenOf(PHMNode<K,V> node) {
+		if (node instanceof PHMFullNode<?,?>) return ((PHMFullNode<K,V>)node).data;
+		return ((PHMBitMapNode<K,V>)node).data;
+	}
+	
+	private PersistentHashMap<K, V> includeAll(Map<K, V> values) {
+		if (values.isEmpty()) return this;
+		Builder<K,V> b=toBuilder();
+		b.include(values);
+		if (b.root==root) return this;
+		return b.toPersistentHashMap();
 	}
 
 	@Override
@@ -4,8 +4,14 @@ import java.io.ObjectStreamException;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
 
 import mikera.persistent.impl.BasePersistentSet;
+import mikera.persistent.impl.ParallelOps;
 import mikera.util.Bits;
 import mikera.util.Tools;
 
@@ -754,7 +760,7 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 		
 		@Override
 		protected PHSNode<T> delete(T k, int hash) {
-			if (k.equals(localKey)) return null;
+			if (matches(k)) return null;
 			return this;
 		}
 		
@@ -802,7 +808,11 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 		public int index=0;
 		
 		private PHSIterator(PersistentHashSet<T> PHS) {
-			root=PHS.root;
+			this(PHS.root);
+		}
+		
+		private PHSIterator(PHSNode<T> node) {
+			root=node;
 			findNext();
 		}
 
@@ -836,6 +846,110 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 	
 
 	
+	/**
+	 * Spliterator over a range of sibling PHSNodes. 
+	 * 
+	 * Splits by dividing the range of nodes, descending into the child nodes
+	 * when only a single interior node remains.
+	 */
+	private static final class PHSSpliterator<T> implements Spliterator<T> {
+		private PHSNode<T>[] nodes;
+		private int from;
+		private int to;
+		private PHSIterator<T> it=null; // iterator for nodes[from], once started
+		private long remaining;
+		
+		private PHSSpliterator(PHSNode<T>[] nodes, int from, int to) {
+			this.nodes=nodes;
+			this.from=from;
+			this.to=to;
+			long n=0;
+			for (int i=from; i<to; i++) {
+				n+=nodes[i].size();
+			}
+			remaining=n;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super T> action) {
+			while (true) {
+				if (it!=null) {
+					if (it.hasNext()) {
+						remaining--;
+						action.accept(it.next());
+						return true;
+					}
+					it=null;
+					from++;
+				}
+				if (from>=to) return false;
+				it=new PHSIterator<T>(nodes[from]);
+			}
+		}
+
+		@Override
+		public Spliterator<T> trySplit() {
+			if ((it==null)&&(to-from==1)) {
+				PHSNode<T> n=nodes[from];
+				if (n.isLeaf()) return null;
+				nodes=childrenOf(n);
+				from=0;
+				to=nodes.length;
+			}
+			// the split is a prefix, so it takes nodes[from] along with its iterator if already being iterated
+			int lo=(it==null)?from:from+1;
+			if ((to-lo)<((it==null)?2:1)) return null;
+			int mid=(lo+to)>>>1;
+			PHSSpliterator<T> split=new PHSSpliterator<T>(nodes,from,mid);
+			split.it=it;
+			it=null;
+			from=mid;
+			long n=0;
+			for (int i=from; i<to; i++) {
+				n+=nodes[i].size();
+			}
+			split.remaining=remaining-n;
+			remaining=n;
+			return split;
+		}
+
+		@Override
+		public long estimateSize() {
+			return remaining;
+		}
+
+		@Override
+		public int characteristics() {
+			return DISTINCT|SIZED|SUBSIZED|IMMUTABLE;
+		}
+	}
+	
+	/*
+	 * Parallel operations
+	 */
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public Spliterator<T> spliterator() {
+		return new PHSSpliterator<T>(new PHSNode[] {root},0,1);
+	}
+	
+	public void parallelForEach(Consumer<? super T> action) {
+		parallelForEach(action,ParallelOps.defaultPool());
+	}
+	
+	public void parallelForEach(Consumer<? super T> action, ForkJoinPool pool) {
+		ParallelOps.forEach(spliterator(),action,pool);
+	}
+	
+	public <R> R parallelReduce(R identity, BiFunction<R,? super T,R> accumulator, BinaryOperator<R> combiner) {
+		return parallelReduce(identity,accumulator,combiner,ParallelOps.defaultPool());
+	}
+	
+	public <R> R parallelReduce(R identity, BiFunction<R,? super T,R> accumulator, BinaryOperator<R> combiner, ForkJoinPool pool) {
+		return ParallelOps.reduce(spliterator(),identity,accumulator,combiner,pool);
+	}
+
 	/*
 	 *  IPersistentSet methods
 	 */
@@ -864,12 +978,6 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 		return new PersistentHashSet<T>(newRoot);
 	}
 	
-	private PersistentHashSet<T> include(PHSEntry<T> entry) {
-		PHSNode<T> newRoot=root.include(entry, entry.hash(),0);
-		if (root==newRoot) return this;
-		return new PersistentHashSet<T>(newRoot);
-	}
-	
 	public static<T> int calcHash(T key) {
 		if (key==null) return 0;
 		return key.hashCode();
@@ -888,14 +996,231 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 		return pm;
 	}
 	
+	@Override
+	public PersistentSet<T> includeAll(PersistentSet<T> values) {
+		if (values instanceof PersistentHashSet<?>) {
+			return union((PersistentHashSet<T>)values);
+		}
+		return super.includeAll(values);
+	}
+	
 	public PersistentSet<T> include(PersistentHashSet<T> values) {
-		// TODO: Consider fast node-level merging implementation
-		PersistentHashSet<T> pm=this;
-		PHSIterator<T> it=values.iterator();
-		while (it.hasNext()) {
-			pm=pm.include(it.nextEntry());
+		return union(values);
+	}
+	
+	@Override
+	public PersistentSet<T> deleteAll(PersistentCollection<T> values) {
+		if (values instanceof PersistentHashSet<?>) {
+			return difference((PersistentHashSet<T>)values);
 		}
-		return pm;
+		return super.deleteAll(values);
+	}
+	
+	/**
+	 * Returns the union of this set with another PersistentHashSet.
+	 * 
+	 * Works node by node, so subtrees shared between the two sets are retained
+	 * without being traversed.
+	 */
+	public PersistentHashSet<T> union(PersistentHashSet<T> values) {
+		PHSNode<T> newRoot=unionNodes(root,values.root,0);
+		if (newRoot==root) return this;
+		if (newRoot==values.root) return values;
+		return new PersistentHashSet<T>(newRoot);
+	}
+	
+	/**
+	 * Returns the intersection of this set with another PersistentHashSet.
+	 */
+	public PersistentHashSet<T> intersection(PersistentHashSet<T> values) {
+		PHSNode<T> newRoot=intersectNodes(root,values.root,0);
+		if (newRoot==root) return this;
+		if (newRoot==values.root) return values;
+		return new PersistentHashSet<T>(newRoot);
+	}
+	
+	/**
+	 * Returns a set containing all elements of this set that are not in the given PersistentHashSet.
+	 */
+	public PersistentHashSet<T> difference(PersistentHashSet<T> values) {
+		PHSNode<T> newRoot=differenceNodes(root,values.root,0);
+		if (newRoot==root) return this;
+		return new PersistentHashSet<T>(newRoot);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> PHSNode<T> unionNodes(PHSNode<T> a, PHSNode<T> b, int shift) {
+		if (a==b) return a;
+		if (a.size()==0) return b;
+		if (b.size()==0) return a;
+		if (b.isLeaf()) return includeEntries(a,b,shift);
+		if (a.isLeaf()) return includeEntries(b,a,shift);
+		
+		// both are interior nodes at the same shift, so slots line up
+		int bsa=bitSetOf(a);
+		int bsb=bitSetOf(b);
+		PHSNode<T>[] da=childrenOf(a);
+		PHSNode<T>[] db=childrenOf(b);
+		int bs=bsa|bsb;
+		PHSNode<T>[] newData=new PHSNode[Integer.bitCount(bs)];
+		boolean sameAsA=(bs==bsa);
+		boolean sameAsB=(bs==bsb);
+		int ia=0; int ib=0;
+		for (int i=0; i<newData.length; i++) {
+			int bit=Bits.lowestSetBit(bs);
+			bs&=~bit;
+			PHSNode<T> ca=((bsa&bit)!=0)?da[ia++]:null;
+			PHSNode<T> cb=((bsb&bit)!=0)?db[ib++]:null;
+			PHSNode<T> c;
+			if (ca==null) {
+				c=cb;
+			} else if (cb==null) {
+				c=ca;
+			} else {
+				c=unionNodes(ca,cb,shift+SHIFT_AMOUNT);
+			}
+			sameAsA&=(c==ca);
+			sameAsB&=(c==cb);
+			newData[i]=c;
+		}
+		if (sameAsA) return a;
+		if (sameAsB) return b;
+		return createNode(newData,newData.length,bsa|bsb,shift);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> PHSNode<T> intersectNodes(PHSNode<T> a, PHSNode<T> b, int shift) {
+		if (a==b) return a;
+		if ((a.size()==0)||(b.size()==0)) return null;
+		if (a.isLeaf()) return filterEntries(a,b,true);
+		if (b.isLeaf()) return filterEntries(b,a,true);
+		
+		int bsa=bitSetOf(a);
+		int bsb=bitSetOf(b);
+		PHSNode<T>[] da=childrenOf(a);
+		PHSNode<T>[] db=childrenOf(b);
+		int bs=bsa&bsb;
+		PHSNode<T>[] newData=new PHSNode[Integer.bitCount(bs)];
+		boolean sameAsA=(bs==bsa);
+		int newBitSet=0;
+		int n=0;
+		while (bs!=0) {
+			int bit=Bits.lowestSetBit(bs);
+			bs&=~bit;
+			PHSNode<T> ca=da[Integer.bitCount(bsa&(bit-1))];
+			PHSNode<T> cb=db[Integer.bitCount(bsb&(bit-1))];
+			PHSNode<T> c=intersectNodes(ca,cb,shift+SHIFT_AMOUNT);
+			sameAsA&=(c==ca);
+			if (c==null) continue;
+			newData[n++]=c;
+			newBitSet|=bit;
+		}
+		if (sameAsA) return a;
+		return createNode(newData,n,newBitSet,shift);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> PHSNode<T> differenceNodes(PHSNode<T> a, PHSNode<T> b, int shift) {
+		if (a==b) return null;
+		if (a.size()==0) return null;
+		if (b.size()==0) return a;
+		if (a.isLeaf()) return filterEntries(a,b,false);
+		if (b.isLeaf()) {
+			for (PHSEntry<T> e: leafEntries(b)) {
+				a=a.delete(e.localKey,calcHash(e.localKey));
+				if (a==null) return null;
+			}
+			return a;
+		}
+		
+		int bsa=bitSetOf(a);
+		int bsb=bitSetOf(b);
+		PHSNode<T>[] da=childrenOf(a);
+		PHSNode<T>[] db=childrenOf(b);
+		PHSNode<T>[] newData=new PHSNode[da.length];
+		boolean sameAsA=true;
+		int newBitSet=0;
+		int n=0;
+		int bs=bsa;
+		for (int i=0; i<da.length; i++) {
+			int bit=Bits.lowestSetBit(bs);
+			bs&=~bit;
+			PHSNode<T> ca=da[i];
+			PHSNode<T> c=ca;
+			if ((bsb&bit)!=0) {
+				c=differenceNodes(ca,db[Integer.bitCount(bsb&(bit-1))],shift+SHIFT_AMOUNT);
+				sameAsA&=(c==ca);
+				if (c==null) continue;
+			}
+			newData[n++]=c;
+			newBitSet|=bit;
+		}
+		if (sameAsA) return a;
+		return createNode(newData,n,newBitSet,shift);
+	}
+	
+	/**
+	 * Includes all entries of a leaf node into a target node at the given shift
+	 */
+	private static <T> PHSNode<T> includeEntries(PHSNode<T> target, PHSNode<T> leaf, int shift) {
+		for (PHSEntry<T> e: leafEntries(leaf)) {
+			target=target.include(e,calcHash(e.localKey),shift);
+		}
+		return target;
+	}
+	
+	/**
+	 * Filters the entries of a leaf node according to whether they are present in another node
+	 * 
+	 * @return The filtered leaf node, the same leaf if unchanged, or null if no entries remain
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> PHSNode<T> filterEntries(PHSNode<T> leaf, PHSNode<T> other, boolean keepIfPresent) {
+		PHSEntry<T>[] entries=leafEntries(leaf);
+		PHSEntry<T>[] kept=new PHSEntry[entries.length];
+		int n=0;
+		for (PHSEntry<T> e: entries) {
+			T key=e.localKey;
+			if ((other.getEntry(key,calcHash(key))!=null)==keepIfPresent) kept[n++]=e;
+		}
+		if (n==entries.length) return leaf;
+		if (n==0) return null;
+		if (n==1) return kept[0];
+		PHSEntry<T>[] ndata=new PHSEntry[n];
+		System.arraycopy(kept, 0, ndata, 0, n);
+		return new PHSCollisionList<T>(ndata,calcHash(ndata[0].localKey));
+	}
+	
+	/**
+	 * Creates an interior node from the first n elements of a child node array
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> PHSNode<T> createNode(PHSNode<T>[] data, int n, int bitSet, int shift) {
+		if (n==0) return null;
+		if ((n==1)&&(data[0].isLeaf())) return data[0];
+		if (n<data.length) {
+			PHSNode<T>[] ndata=new PHSNode[n];
+			System.arraycopy(data, 0, ndata, 0, n);
+			data=ndata;
+		}
+		if (n==DATA_SIZE) return new PHSFullNode<T>(data,shift);
+		return new PHSBitSetNode<T>(data,shift,bitSet);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> PHSEntry<T>[] leafEntries(PHSNode<T> leaf) {
+		if (leaf instanceof PHSCollisionList<?>) return ((PHSCollisionList<T>)leaf).entries;
+		return new PHSEntry[] {(PHSEntry<T>)leaf};
+	}
+	
+	private static int bitSetOf(PHSNode<?> node) {
+		if (node instanceof PHSFullNode<?>) return 0xFFFFFFFF;
+		return ((PHSBitSetNode<?>)node).bitSet;
+	}
+	
+	private static <T> PHSNode<T>[] childrenOf(PHSNode<T> node) {
+		if (node instanceof PHSFullNode<?>) return ((PHSFullNode<T>)node).data;
+		return ((PHSBitSetNode<T>)node).data;
 	}
 
 
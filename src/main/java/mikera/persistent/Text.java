@@ -1,6 +1,15 @@
 package mikera.persistent;
 
+import java.io.IOException;
 import java.io.ObjectStreamException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.Iterator;
 
 import mikera.annotations.Immutable;
@@ -17,23 +26,32 @@ import mikera.util.emptyobjects.NullArrays;
  * Initially creates packed blocks, i.e. all blocks full except from final block, although this is not
  * guaranteed to be maintained (especially with concatenation / substring operations)
  * 
- * Also tries to maintain balanced tree as far as possible
+ * The tree is kept height balanced (AVL style) through concatenation, so indexed access,
+ * concatenation and substring operations are O(log n) regardless of how the text was built.
+ * Each node also caches the number of line breaks ('\n') it contains, which supports
+ * O(log n) conversion between character offsets and line numbers.
+ * 
+ * Use TextBuilder to build large Text objects incrementally.
  * 
  * @author Mike
  *
  */
 @Immutable
 public final class Text extends PersistentObject implements CharSequence, Comparable<CharSequence>, Iterable<Character> {
-	private static final long serialVersionUID = 5744895584967327995L;
+	private static final long serialVersionUID = -2269312306823485135L;
 	public static final int BLOCK_SIZE_BITS=6;
 	public static final int BLOCK_SIZE=1<<BLOCK_SIZE_BITS;
 	public static final Text EMPTY_TEXT=new Text(NullArrays.NULL_CHARS);
 	
+	private static final int WRITE_BUFFER_SIZE=4096;
+	
 	private final char[] data;
 	private final Text front;
 	private final Text back;
 	private final int count;
 	private final int hashCode;
+	private final int depth;
+	private final int lines;
 	
 	public static Text create(String s) {
 		return create(s,0,s.length());
@@ -58,7 +76,16 @@ public final class Text extends PersistentObject implements CharSequence, Compar
 		
 		// need to create a Text with multiple blocks
 		int mid=((start+end+(BLOCK_SIZE-1))>>(BLOCK_SIZE_BITS+1))<<(BLOCK_SIZE_BITS);
-		return new Text(create(s,start, mid),create(s,mid, end));
+		return join(create(s,start, mid),create(s,mid, end));
+	}
+	
+	/**
+	 * Creates a single block Text that takes ownership of the given array. The array
+	 * must not be modified afterwards.
+	 */
+	static Text wrapBlock(char[] chars) {
+		if (chars.length==0) return EMPTY_TEXT;
+		return new Text(chars);
 	}
 
 	private Text(Text f, Text b) {
@@ -67,6 +94,8 @@ public final class Text extends PersistentObject implements CharSequence, Compar
 		back=b;
 		count=f.count+b.count;
 		hashCode=calculateConcatenatedHash(f,b);
+		depth=1+Math.max(f.depth,b.depth);
+		lines=f.lines+b.lines;
 	}
 
 	
@@ -76,6 +105,23 @@ public final class Text extends PersistentObject implements CharSequence, Compar
 		back=null;
 		front=null;
 		hashCode=calculateHash(0,charData);
+		depth=0;
+		lines=countLineBreaks(charData,0,charData.length);
+	}
+	
+	private static int countLineBreaks(char[] chars, int start, int end) {
+		int result=0;
+		for (int i=start; i<end; i++) {
+			if (chars[i]=='\n') result++;
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns the depth of the tree, zero for a single block
+	 */
+	public int depth() {
+		return depth;
 	}
 	
 	public Text subText(int start, int end) {
@@ -126,7 +172,10 @@ public final class Text extends PersistentObject implements CharSequence, Compar
 	}
 	
 	/**
-	 * Concatenates two Text objects, balancing the tree as far as possible
+	 * Concatenates two Text objects, keeping the tree balanced
+	 * 
+	 * Small adjacent blocks at the join are merged, so repeated small appends do
+	 * not create a long chain of tiny blocks.
 	 * 
 	 * @param a
 	 * @param b
@@ -143,17 +192,75 @@ public final class Text extends PersistentObject implements CharSequence, Compar
 			return new Text(ndata);
 		}
 		
-		if ((alen<(blen>>1))&&(b.data==null)) {
-			return new Text(concat(a,b.front),b.back);
-		} 
-		
-		if ((blen<(alen>>1))&&(b.data==null)) {
-			return new Text(a.front,concat(a.back,b));	
+		return join(a,b);
+	}
+	
+	/**
+	 * Joins two non-empty trees, descending the spine of the deeper tree so that the
+	 * result is balanced. Runs in O(|depth(a)-depth(b)|) time.
+	 */
+	private static Text join(Text a, Text b) {
+		if ((a.data!=null)&&(b.data!=null)&&(a.count+b.count<=BLOCK_SIZE)) {
+			char[] ndata=new char[a.count+b.count];
+			System.arraycopy(a.data, 0, ndata, 0, a.count);
+			System.arraycopy(b.data, 0, ndata, a.count, b.count);
+			return new Text(ndata);
 		}
 		
+		int da=a.depth;
+		int db=b.depth;
+		if (da>db+1) {
+			return balance(a.front,join(a.back,b));
+		}
+		if (db>da+1) {
+			return balance(join(a,b.front),b.back);
+		}
 		return new Text(a,b);
 	}
 	
+	/**
+	 * Creates a node from two balanced subtrees whose depths differ by at most two,
+	 * rotating as needed to restore the balance invariant.
+	 */
+	private static Text balance(Text f, Text b) {
+		if (f.depth>b.depth+1) {
+			if (f.front.depth>=f.back.depth) {
+				return new Text(f.front,new Text(f.back,b));
+			}
+			Text m=f.back;
+			return new Text(new Text(f.front,m.front),new Text(m.back,b));
+		}
+		if (b.depth>f.depth+1) {
+			if (b.back.depth>=b.front.depth) {
+				return new Text(new Text(f,b.front),b.back);
+			}
+			Text m=b.front;
+			return new Text(new Text(f,m.front),new Text(m.back,b.back));
+		}
+		return new Text(f,b);
+	}
+	
+	/**
+	 * Checks the tree invariants, throwing an Error if any are violated
+	 */
+	@Override
+	public void validate() {
+		super.validate();
+		if (data!=null) {
+			if (count!=data.length) throw new Error("Block count mismatch");
+			if (depth!=0) throw new Error("Block depth must be zero");
+			if (lines!=countLineBreaks(data,0,count)) throw new Error("Line count mismatch");
+			return;
+		}
+		if ((front.count==0)||(back.count==0)) throw new Error("Empty child node");
+		if (count!=front.count+back.count) throw new Error("Node count mismatch");
+		if (lines!=front.lines+back.lines) throw new Error("Line count mismatch");
+		if (depth!=1+Math.max(front.depth,back.depth)) throw new Error("Depth mismatch");
+		if (Math.abs(front.depth-back.depth)>1) throw new Error("Unbalanced node");
+		front.validate();
+		back.validate();
+	}
+	
 	public boolean isPacked() {
 		return isFullyPacked(this,true);
 	}
@@ -204,24 +311,160 @@ public final class Text extends PersistentObject implements CharSequence, Compar
 	public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
 		if ((srcBegin<0)||(srcEnd>count)) throw new IndexOutOfBoundsException();
 		if (srcEnd<=srcBegin) return;
+		getCharsLocal(srcBegin,srcEnd,dst,dstBegin);
+	}
+	
+	private void getCharsLocal(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+		Text t=this;
+		while (t.data==null) {
+			int fc=t.front.count;
+			if (srcEnd<=fc) {
+				t=t.front;
+			} else if (srcBegin>=fc) {
+				srcBegin-=fc;
+				srcEnd-=fc;
+				t=t.back;
+			} else {
+				t.front.getCharsLocal(srcBegin, fc, dst, dstBegin);
+				dstBegin+=fc-srcBegin;
+				srcBegin=0;
+				srcEnd-=fc;
+				t=t.back;
+			}
+		}
+		System.arraycopy(t.data, srcBegin, dst, dstBegin, srcEnd-srcBegin);
+	}
+	
+	/**
+	 * Returns the number of lines in this Text, i.e. one more than the number of line breaks
+	 */
+	public int countLines() {
+		return lines+1;
+	}
+	
+	/**
+	 * Returns the zero-based line number containing the character at the given index.
+	 * An index equal to the length of the text refers to the position after the last character.
+	 */
+	public int lineAt(int index) {
+		if ((index<0)||(index>count)) throw new IndexOutOfBoundsException();
+		int result=0;
+		Text t=this;
+		while (t.data==null) {
+			int fc=t.front.count;
+			if (index<fc) {
+				t=t.front;
+			} else {
+				result+=t.front.lines;
+				index-=fc;
+				t=t.back;
+			}
+		}
+		return result+countLineBreaks(t.data,0,index);
+	}
+	
+	/**
+	 * Returns the index of the first character of the given zero-based line
+	 */
+	public int offsetOfLine(int line) {
+		if ((line<0)||(line>lines)) throw new IndexOutOfBoundsException();
+		if (line==0) return 0;
 		
-		int pos=srcBegin;
-		Text t=getBlock(pos);
-		int tpos=getBlockStartPosition(pos);
-		int tlen=t.length();
-		
-		int offset=dstBegin-srcBegin;
-		while (pos<srcEnd) {
-			dst[pos+offset]=t.data[pos-tpos];
-			pos++;
-			if (pos>=tpos+tlen) {
-				t=getBlock(pos);
-				tpos=getBlockStartPosition(pos);
-				if(t!=null) tlen=t.length();	
+		// find the position of the line break ending the previous line
+		int n=line;
+		int pos=0;
+		Text t=this;
+		while (t.data==null) {
+			int fl=t.front.lines;
+			if (n<=fl) {
+				t=t.front;
+			} else {
+				n-=fl;
+				pos+=t.front.count;
+				t=t.back;
+			}
+		}
+		char[] chars=t.data;
+		for (int i=0; i<chars.length; i++) {
+			if ((chars[i]=='\n')&&(--n==0)) return pos+i+1;
+		}
+		throw new Error("Line count inconsistent with block contents");
+	}
+	
+	/**
+	 * Returns the content of the given zero-based line, excluding the line break
+	 */
+	public Text getLine(int line) {
+		int start=offsetOfLine(line);
+		int end=(line<lines)?offsetOfLine(line+1)-1:count;
+		return subText(start,end);
+	}
+	
+	/**
+	 * Writes the characters of this Text to a Writer, block by block
+	 */
+	public void writeTo(Writer writer) throws IOException {
+		if (data!=null) {
+			writer.write(data,0,count);
+			return;
+		}
+		front.writeTo(writer);
+		back.writeTo(writer);
+	}
+	
+	/**
+	 * Encodes this Text with the given charset and writes it to a channel, using a
+	 * bounded buffer rather than materialising the whole encoded content.
+	 * 
+	 * @return The number of bytes written
+	 */
+	public long writeTo(WritableByteChannel channel, Charset charset) throws IOException {
+		CharsetEncoder encoder=charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer in=CharBuffer.allocate(WRITE_BUFFER_SIZE);
+		ByteBuffer out=ByteBuffer.allocate((int)Math.ceil(WRITE_BUFFER_SIZE*encoder.maxBytesPerChar()));
+		long written=0;
+		int pos=0;
+		while (pos<count) {
+			int n=Math.min(in.remaining(), count-pos);
+			getCharsLocal(pos, pos+n, in.array(), in.position());
+			in.position(in.position()+n);
+			pos+=n;
+			in.flip();
+			// a trailing high surrogate may be left unconsumed until the next chunk arrives
+			written+=encode(encoder,in,out,channel,pos>=count);
+			in.compact();
+		}
+		while (encoder.flush(out)==CoderResult.OVERFLOW) {
+			written+=drain(out,channel);
+		}
+		written+=drain(out,channel);
+		return written;
+	}
+	
+	private static long encode(CharsetEncoder encoder, CharBuffer in, ByteBuffer out, WritableByteChannel channel, boolean endOfInput) throws IOException {
+		long written=0;
+		while (true) {
+			CoderResult r=encoder.encode(in, out, endOfInput);
+			if (r.isOverflow()) {
+				written+=drain(out,channel);
+			} else {
+				return written;
 			}
 		}
 	}
 	
+	private static long drain(ByteBuffer out, WritableByteChannel channel) throws IOException {
+		out.flip();
+		long written=0;
+		while (out.hasRemaining()) {
+			written+=channel.write(out);
+		}
+		out.clear();
+		return written;
+	}
+	
 	/**
 	 * Calculated hashcode based on rolled character values plus the length of the character array
 	 * 
@@ -259,7 +502,7 @@ public final class Text extends PersistentObject implements CharSequence, Compar
 
 	@Override
 	public char charAt(int index) {
-		if ((index<0)||(index>count)) throw new IndexOutOfBoundsException();
+		if ((index<0)||(index>=count)) throw new IndexOutOfBoundsException();
 		return charAtLocal(index);
 	}
 	
@@ -434,7 +677,7 @@ public final class Text extends PersistentObject implements CharSequence, Compar
 	
 	private Object readResolve() throws ObjectStreamException {
 		// needed for deserialisation to the correct static instance
-		if (data.length==0) return EMPTY_TEXT;
+		if (count==0) return EMPTY_TEXT;
 		return this;
 	}
 }
@@ -0,0 +1,201 @@
+package mikera.persistent;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Mutable builder for Text objects
+ *
+ * Characters are appended into a tail block which becomes a leaf of the resulting
+ * Text once full, so each character is copied only once. Completed blocks are combined
+ * into perfectly balanced subtrees as they arrive, in the manner of a binary counter,
+ * making appends amortised O(1).
+ *
+ * The builder is not thread safe. Text objects returned by toText() are immutable and
+ * unaffected by subsequent appends.
+ *
+ * @author Mike Anderson
+ *
+ */
+public final class TextBuilder implements Appendable {
+	private static final int MAX_SPINE=64;
+
+	// completed subtrees in order, with strictly decreasing depth
+	private Text[] spine=new Text[MAX_SPINE];
+	private int spineSize=0;
+	private int spineLength=0;
+
+	private char[] tail=new char[Text.BLOCK_SIZE];
+	private int tailSize=0;
+
+	public TextBuilder() {
+		// nothing to do
+	}
+
+	public TextBuilder(CharSequence initial) {
+		append(initial);
+	}
+
+	public int length() {
+		return spineLength+tailSize;
+	}
+
+	@Override
+	public TextBuilder append(char c) {
+		tail[tailSize++]=c;
+		if (tailSize==Text.BLOCK_SIZE) flushTail();
+		return this;
+	}
+
+	@Override
+	public TextBuilder append(CharSequence cs) {
+		if (cs==null) cs="null";
+		return append(cs,0,cs.length());
+	}
+
+	@Override
+	public TextBuilder append(CharSequence cs, int start, int end) {
+		if (cs==null) cs="null";
+		if ((start<0)||(end>cs.length())||(start>end)) throw new IndexOutOfBoundsException();
+		if (cs instanceof Text) {
+			Text t=(Text)cs;
+			if ((end-start)>=Text.BLOCK_SIZE) {
+				append(t.subText(start, end));
+				return this;
+			}
+			appendChars(t,start,end);
+			return this;
+		}
+		if (cs instanceof String) {
+			String s=(String)cs;
+			while (start<end) {
+				int n=Math.min(end-start, Text.BLOCK_SIZE-tailSize);
+				s.getChars(start, start+n, tail, tailSize);
+				tailSize+=n;
+				start+=n;
+				if (tailSize==Text.BLOCK_SIZE) flushTail();
+			}
+			return this;
+		}
+		for (int i=start; i<end; i++) {
+			append(cs.charAt(i));
+		}
+		return this;
+	}
+
+	public TextBuilder append(char[] chars, int start, int end) {
+		if ((start<0)||(end>chars.length)||(start>end)) throw new IndexOutOfBoundsException();
+		while (start<end) {
+			int n=Math.min(end-start, Text.BLOCK_SIZE-tailSize);
+			System.arraycopy(chars, start, tail, tailSize, n);
+			tailSize+=n;
+			start+=n;
+			if (tailSize==Text.BLOCK_SIZE) flushTail();
+		}
+		return this;
+	}
+
+	/**
+	 * Appends a Text, sharing its structure rather than copying characters
+	 */
+	public TextBuilder append(Text t) {
+		if (t.length()<Text.BLOCK_SIZE) {
+			appendChars(t,0,t.length());
+			return this;
+		}
+		Text current=toText();
+		clear();
+		push(Text.concat(current,t));
+		return this;
+	}
+
+	public TextBuilder append(Object o) {
+		return append(String.valueOf(o));
+	}
+
+	private void appendChars(Text t, int start, int end) {
+		while (start<end) {
+			int n=Math.min(end-start, Text.BLOCK_SIZE-tailSize);
+			t.getChars(start, start+n, tail, tailSize);
+			tailSize+=n;
+			start+=n;
+			if (tailSize==Text.BLOCK_SIZE) flushTail();
+		}
+	}
+
+	private void flushTail() {
+		// the tail array is handed over to the new block, so it is never copied
+		Text block=Text.wrapBlock(tail);
+		tail=new char[Text.BLOCK_SIZE];
+		tailSize=0;
+		push(block);
+	}
+
+	private void push(Text t) {
+		spineLength+=t.length();
+		if ((spineSize>0)&&(spine[spineSize-1].depth()<t.depth())) {
+			// out of order depth, so collapse the spine into a single tree first
+			Text all=collapse();
+			spineSize=0;
+			t=Text.concat(all,t);
+		}
+		while ((spineSize>0)&&(spine[spineSize-1].depth()==t.depth())) {
+			t=Text.concat(spine[--spineSize],t);
+		}
+		spine[spineSize++]=t;
+	}
+
+	private Text collapse() {
+		Text result=Text.EMPTY_TEXT;
+		for (int i=spineSize-1; i>=0; i--) {
+			result=Text.concat(spine[i],result);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the current contents as an immutable Text
+	 */
+	public Text toText() {
+		Text result=collapse();
+		if (tailSize>0) {
+			result=Text.concat(result,Text.wrapBlock(Arrays.copyOf(tail, tailSize)));
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the current contents to a Writer without creating an intermediate String
+	 */
+	public void writeTo(Writer writer) throws IOException {
+		for (int i=0; i<spineSize; i++) {
+			spine[i].writeTo(writer);
+		}
+		writer.write(tail,0,tailSize);
+	}
+
+	/**
+	 * Encodes the current contents and writes them to a channel without creating an
+	 * intermediate String
+	 *
+	 * @return The number of bytes written
+	 */
+	public long writeTo(WritableByteChannel channel, Charset charset) throws IOException {
+		return toText().writeTo(channel, charset);
+	}
+
+	public void clear() {
+		Arrays.fill(spine, 0, spineSize, null);
+		spineSize=0;
+		spineLength=0;
+		tailSize=0;
+	}
+
+	@Override
+	public String toString() {
+		return toText().toString();
+	}
+}
@@ -0,0 +1,730 @@
+package mikera.persistent.impl;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Immutable container for the members of an IntSet that share the same high 16 bits.
+ *
+ * Following the Roaring bitmap layout, each container uses whichever of a sorted
+ * array, a 65536-bit bitmap or a list of runs is smallest for its contents. The
+ * choice depends only on the contents, so equal containers always have the same
+ * representation.
+ *
+ * Containers are never empty: operations return null where the result would be empty,
+ * and return one of their arguments unchanged where possible to preserve sharing.
+ *
+ * @author Mike Anderson
+ */
+public abstract class IntContainer implements Serializable {
+	private static final long serialVersionUID = -6361402837312016573L;
+
+	public static final int BLOCK_BITS=16;
+	public static final int BLOCK_SIZE=1<<BLOCK_BITS;
+	public static final int LOW_MASK=BLOCK_SIZE-1;
+
+	/**
+	 * Maximum cardinality of an array container
+	 */
+	public static final int MAX_ARRAY_SIZE=4096;
+
+	private static final int WORDS=BLOCK_SIZE/64;
+	private static final int BITMAP_BYTES=WORDS*8;
+
+	private static final int ARRAY=0;
+	private static final int BITMAP=1;
+	private static final int RUN=2;
+
+	protected final int key;
+	protected final int hash;
+
+	private IntContainer(int key, int hash) {
+		this.key=key;
+		this.hash=hash;
+	}
+
+	public static int keyOf(int value) {
+		return value>>BLOCK_BITS;
+	}
+
+	public static int lowOf(int value) {
+		return value&LOW_MASK;
+	}
+
+	/**
+	 * Returns the high 16 bits shared by all members of this container, as a signed value
+	 */
+	public final int key() {
+		return key;
+	}
+
+	/**
+	 * Returns the hash of the members in ascending order, as calculated by Tools.hashCode(int[])
+	 */
+	public final int hash() {
+		return hash;
+	}
+
+	public abstract int cardinality();
+
+	public abstract boolean contains(int low);
+
+	/**
+	 * Returns the number of members less than the given low value
+	 */
+	public abstract int rank(int low);
+
+	/**
+	 * Returns the low value of the i-th member
+	 */
+	public abstract int select(int i);
+
+	/**
+	 * Returns the smallest member low value greater than or equal to low, or -1 if there is none
+	 */
+	public abstract int nextLow(int low);
+
+	/**
+	 * Copies all members as full int values into the destination array
+	 */
+	public abstract void copyTo(int[] dest, int offset);
+
+	/**
+	 * ORs the members into a bitmap of 1024 words
+	 */
+	protected abstract void toWords(long[] words);
+
+	/**
+	 * Returns the number of maximal runs of consecutive members
+	 */
+	public abstract int runCount();
+
+	public boolean isSubsetOf(IntContainer b) {
+		if (b==this) return true;
+		if (cardinality()>b.cardinality()) return false;
+		long[] wa=new long[WORDS];
+		long[] wb=new long[WORDS];
+		toWords(wa);
+		b.toWords(wb);
+		for (int i=0; i<WORDS; i++) {
+			if ((wa[i]&~wb[i])!=0) return false;
+		}
+		return true;
+	}
+
+	public IntContainer include(int low) {
+		if (contains(low)) return this;
+		long[] words=new long[WORDS];
+		toWords(words);
+		words[low>>>6]|=1L<<low;
+		return fromWords(key,words);
+	}
+
+	public IntContainer delete(int low) {
+		if (!contains(low)) return this;
+		if (cardinality()==1) return null;
+		long[] words=new long[WORDS];
+		toWords(words);
+		words[low>>>6]&=~(1L<<low);
+		return fromWords(key,words);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/*
+	 * Set operations
+	 */
+
+	public static IntContainer union(IntContainer a, IntContainer b) {
+		if ((a==null)||(a==b)) return b;
+		if (b==null) return a;
+		IntContainer result;
+		if ((a instanceof ArrayContainer)&&(b instanceof ArrayContainer)) {
+			result=ArrayContainer.union((ArrayContainer)a,(ArrayContainer)b);
+		} else {
+			long[] words=new long[WORDS];
+			a.toWords(words);
+			b.toWords(words);
+			result=fromWords(a.key,words);
+		}
+		return share(result,a,b);
+	}
+
+	public static IntContainer intersection(IntContainer a, IntContainer b) {
+		if ((a==null)||(b==null)) return null;
+		if (a==b) return a;
+		IntContainer result;
+		if (a instanceof ArrayContainer) {
+			result=((ArrayContainer)a).filter(b,true);
+		} else if (b instanceof ArrayContainer) {
+			result=((ArrayContainer)b).filter(a,true);
+		} else {
+			long[] wa=new long[WORDS];
+			long[] wb=new long[WORDS];
+			a.toWords(wa);
+			b.toWords(wb);
+			for (int i=0; i<WORDS; i++) {
+				wa[i]&=wb[i];
+			}
+			result=fromWords(a.key,wa);
+		}
+		return share(result,a,b);
+	}
+
+	public static IntContainer difference(IntContainer a, IntContainer b) {
+		if ((a==null)||(a==b)) return null;
+		if (b==null) return a;
+		IntContainer result;
+		if (a instanceof ArrayContainer) {
+			result=((ArrayContainer)a).filter(b,false);
+		} else {
+			long[] wa=new long[WORDS];
+			long[] wb=new long[WORDS];
+			a.toWords(wa);
+			b.toWords(wb);
+			for (int i=0; i<WORDS; i++) {
+				wa[i]&=~wb[i];
+			}
+			result=fromWords(a.key,wa);
+		}
+		return share(result,a,null);
+	}
+
+	// returns an argument in place of an equal result, so untouched containers stay shared
+	private static IntContainer share(IntContainer result, IntContainer a, IntContainer b) {
+		if (result==null) return null;
+		if (result.equals(a)) return a;
+		if ((b!=null)&&result.equals(b)) return b;
+		return result;
+	}
+
+	/*
+	 * Construction
+	 */
+
+	private static int kind(int card, int runs) {
+		int runBytes=4*runs;
+		if ((runBytes<2*card)&&(runBytes<BITMAP_BYTES)) return RUN;
+		if (card<=MAX_ARRAY_SIZE) return ARRAY;
+		return BITMAP;
+	}
+
+	/**
+	 * Creates a container from sorted, distinct values values[from..to) that all share the given key
+	 */
+	public static IntContainer create(int key, int[] values, int from, int to) {
+		int n=to-from;
+		if (n<=0) return null;
+		char[] lows=new char[n];
+		for (int i=0; i<n; i++) {
+			lows[i]=(char)values[from+i];
+		}
+		return fromLows(key,lows,n);
+	}
+
+	/**
+	 * Creates a container holding the inclusive range of low values [lo,hi]
+	 */
+	public static IntContainer createRange(int key, int lo, int hi) {
+		int card=hi-lo+1;
+		if (card<=0) return null;
+		if (kind(card,1)==RUN) return new RunContainer(key,new char[] {(char)lo,(char)(hi-lo)});
+		char[] lows=new char[card];
+		for (int i=0; i<card; i++) {
+			lows[i]=(char)(lo+i);
+		}
+		return new ArrayContainer(key,lows);
+	}
+
+	private static IntContainer fromLows(int key, char[] lows, int n) {
+		if (n==0) return null;
+		int runs=1;
+		for (int i=1; i<n; i++) {
+			if (lows[i]!=lows[i-1]+1) runs++;
+		}
+		switch (kind(n,runs)) {
+			case ARRAY:
+				return new ArrayContainer(key,(lows.length==n)?lows:Arrays.copyOf(lows,n));
+			case RUN: {
+				char[] rs=new char[runs*2];
+				int r=0;
+				int start=lows[0];
+				for (int i=1; i<=n; i++) {
+					if ((i==n)||(lows[i]!=lows[i-1]+1)) {
+						rs[r++]=(char)start;
+						rs[r++]=(char)(lows[i-1]-start);
+						if (i<n) start=lows[i];
+					}
+				}
+				return new RunContainer(key,rs);
+			}
+			default: {
+				long[] words=new long[WORDS];
+				for (int i=0; i<n; i++) {
+					int low=lows[i];
+					words[low>>>6]|=1L<<low;
+				}
+				return new BitmapContainer(key,words,n);
+			}
+		}
+	}
+
+	/**
+	 * Creates a container from a bitmap, taking ownership of the words array
+	 */
+	private static IntContainer fromWords(int key, long[] words) {
+		int card=0;
+		int runs=0;
+		long carry=0;
+		for (int i=0; i<WORDS; i++) {
+			long w=words[i];
+			card+=Long.bitCount(w);
+			runs+=Long.bitCount(w&~((w<<1)|carry));
+			carry=w>>>63;
+		}
+		if (card==0) return null;
+		switch (kind(card,runs)) {
+			case ARRAY: {
+				char[] lows=new char[card];
+				int n=0;
+				for (int i=0; i<WORDS; i++) {
+					long w=words[i];
+					while (w!=0) {
+						lows[n++]=(char)((i<<6)+Long.numberOfTrailingZeros(w));
+						w&=w-1;
+					}
+				}
+				return new ArrayContainer(key,lows);
+			}
+			case RUN: {
+				char[] rs=new char[runs*2];
+				int r=0;
+				int low=BitmapContainer.nextSetBit(words,0);
+				while (low>=0) {
+					int end=BitmapContainer.nextClearBit(words,low);
+					rs[r++]=(char)low;
+					rs[r++]=(char)(end-1-low);
+					low=(end<BLOCK_SIZE)?BitmapContainer.nextSetBit(words,end):-1;
+				}
+				return new RunContainer(key,rs);
+			}
+			default:
+				return new BitmapContainer(key,words,card);
+		}
+	}
+
+	private static int mix(int h, int value) {
+		return Integer.rotateRight(h^value,1);
+	}
+
+	/**
+	 * Container storing members as a sorted array of low values
+	 */
+	private static final class ArrayContainer extends IntContainer {
+		private static final long serialVersionUID = 3519066738209402471L;
+
+		private final char[] lows;
+
+		private ArrayContainer(int key, char[] lows) {
+			super(key,calcHash(key,lows));
+			this.lows=lows;
+		}
+
+		private static int calcHash(int key, char[] lows) {
+			int base=key<<BLOCK_BITS;
+			int h=0;
+			for (char c: lows) {
+				h=mix(h,base|c);
+			}
+			return h;
+		}
+
+		private static IntContainer union(ArrayContainer a, ArrayContainer b) {
+			char[] x=a.lows;
+			char[] y=b.lows;
+			char[] r=new char[x.length+y.length];
+			int i=0, j=0, n=0;
+			while ((i<x.length)&&(j<y.length)) {
+				char cx=x[i];
+				char cy=y[j];
+				if (cx<cy) {
+					r[n++]=cx; i++;
+				} else if (cx>cy) {
+					r[n++]=cy; j++;
+				} else {
+					r[n++]=cx; i++; j++;
+				}
+			}
+			while (i<x.length) r[n++]=x[i++];
+			while (j<y.length) r[n++]=y[j++];
+			return fromLows(a.key,r,n);
+		}
+
+		/**
+		 * Keeps the members that are (or are not) contained in the other container
+		 */
+		private IntContainer filter(IntContainer b, boolean keep) {
+			char[] r=new char[lows.length];
+			int n=0;
+			for (char c: lows) {
+				if (b.contains(c)==keep) r[n++]=c;
+			}
+			if (n==lows.length) return this;
+			return fromLows(key,r,n);
+		}
+
+		@Override
+		public int cardinality() {
+			return lows.length;
+		}
+
+		@Override
+		public boolean contains(int low) {
+			return Arrays.binarySearch(lows,(char)low)>=0;
+		}
+
+		@Override
+		public int rank(int low) {
+			int i=Arrays.binarySearch(lows,(char)low);
+			return (i>=0)?i:-(i+1);
+		}
+
+		@Override
+		public int select(int i) {
+			return lows[i];
+		}
+
+		@Override
+		public int nextLow(int low) {
+			int i=rank(low);
+			return (i<lows.length)?lows[i]:-1;
+		}
+
+		@Override
+		public void copyTo(int[] dest, int offset) {
+			int base=key<<BLOCK_BITS;
+			for (int i=0; i<lows.length; i++) {
+				dest[offset+i]=base|lows[i];
+			}
+		}
+
+		@Override
+		protected void toWords(long[] words) {
+			for (char c: lows) {
+				words[c>>>6]|=1L<<c;
+			}
+		}
+
+		@Override
+		public int runCount() {
+			int runs=1;
+			for (int i=1; i<lows.length; i++) {
+				if (lows[i]!=lows[i-1]+1) runs++;
+			}
+			return runs;
+		}
+
+		@Override
+		public boolean isSubsetOf(IntContainer b) {
+			if (lows.length>b.cardinality()) return false;
+			for (char c: lows) {
+				if (!b.contains(c)) return false;
+			}
+			return true;
+		}
+
+		@Override
+		public IntContainer include(int low) {
+			int i=Arrays.binarySearch(lows,(char)low);
+			if (i>=0) return this;
+			i=-(i+1);
+			char[] r=new char[lows.length+1];
+			System.arraycopy(lows, 0, r, 0, i);
+			r[i]=(char)low;
+			System.arraycopy(lows, i, r, i+1, lows.length-i);
+			return fromLows(key,r,r.length);
+		}
+
+		@Override
+		public IntContainer delete(int low) {
+			int i=Arrays.binarySearch(lows,(char)low);
+			if (i<0) return this;
+			if (lows.length==1) return null;
+			char[] r=new char[lows.length-1];
+			System.arraycopy(lows, 0, r, 0, i);
+			System.arraycopy(lows, i+1, r, i, r.length-i);
+			return fromLows(key,r,r.length);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o==this) return true;
+			if (!(o instanceof ArrayContainer)) return false;
+			ArrayContainer a=(ArrayContainer)o;
+			return (a.key==key)&&(a.hash==hash)&&Arrays.equals(lows,a.lows);
+		}
+	}
+
+	/**
+	 * Container storing members as a bitmap over all 65536 low values
+	 */
+	private static final class BitmapContainer extends IntContainer {
+		private static final long serialVersionUID = -1707401425263557839L;
+
+		private final long[] words;
+		private final int card;
+
+		private BitmapContainer(int key, long[] words, int card) {
+			super(key,calcHash(key,words));
+			this.words=words;
+			this.card=card;
+		}
+
+		private static int calcHash(int key, long[] words) {
+			int base=key<<BLOCK_BITS;
+			int h=0;
+			for (int i=0; i<WORDS; i++) {
+				long w=words[i];
+				while (w!=0) {
+					h=mix(h,base|((i<<6)+Long.numberOfTrailingZeros(w)));
+					w&=w-1;
+				}
+			}
+			return h;
+		}
+
+		private static int nextSetBit(long[] words, int low) {
+			int i=low>>>6;
+			long w=words[i]&(-1L<<low);
+			while (w==0) {
+				if (++i>=WORDS) return -1;
+				w=words[i];
+			}
+			return (i<<6)+Long.numberOfTrailingZeros(w);
+		}
+
+		private static int nextClearBit(long[] words, int low) {
+			int i=low>>>6;
+			long w=~words[i]&(-1L<<low);
+			while (w==0) {
+				if (++i>=WORDS) return BLOCK_SIZE;
+				w=~words[i];
+			}
+			return (i<<6)+Long.numberOfTrailingZeros(w);
+		}
+
+		@Override
+		public int cardinality() {
+			return card;
+		}
+
+		@Override
+		public boolean contains(int low) {
+			return (words[low>>>6]&(1L<<low))!=0;
+		}
+
+		@Override
+		public int rank(int low) {
+			int w=low>>>6;
+			int r=0;
+			for (int i=0; i<w; i++) {
+				r+=Long.bitCount(words[i]);
+			}
+			return r+Long.bitCount(words[w]&((1L<<low)-1));
+		}
+
+		@Override
+		public int select(int i) {
+			for (int w=0; w<WORDS; w++) {
+				long word=words[w];
+				int c=Long.bitCount(word);
+				if (i<c) {
+					for (; i>0; i--) {
+						word&=word-1;
+					}
+					return (w<<6)+Long.numberOfTrailingZeros(word);
+				}
+				i-=c;
+			}
+			throw new IndexOutOfBoundsException();
+		}
+
+		@Override
+		public int nextLow(int low) {
+			return nextSetBit(words,low);
+		}
+
+		@Override
+		public void copyTo(int[] dest, int offset) {
+			int base=key<<BLOCK_BITS;
+			for (int i=0; i<WORDS; i++) {
+				long w=words[i];
+				while (w!=0) {
+					dest[offset++]=base|((i<<6)+Long.numberOfTrailingZeros(w));
+					w&=w-1;
+				}
+			}
+		}
+
+		@Override
+		protected void toWords(long[] dest) {
+			for (int i=0; i<WORDS; i++) {
+				dest[i]|=words[i];
+			}
+		}
+
+		@Override
+		public int runCount() {
+			int runs=0;
+			long carry=0;
+			for (int i=0; i<WORDS; i++) {
+				long w=words[i];
+				runs+=Long.bitCount(w&~((w<<1)|carry));
+				carry=w>>>63;
+			}
+			return runs;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o==this) return true;
+			if (!(o instanceof BitmapContainer)) return false;
+			BitmapContainer b=(BitmapContainer)o;
+			return (b.key==key)&&(b.card==card)&&(b.hash==hash)&&Arrays.equals(words,b.words);
+		}
+	}
+
+	/**
+	 * Container storing members as (start, length-1) pairs of low values
+	 */
+	private static final class RunContainer extends IntContainer {
+		private static final long serialVersionUID = 2165190734823417052L;
+
+		private final char[] runs;
+		private final int card;
+
+		private RunContainer(int key, char[] runs) {
+			super(key,calcHash(key,runs));
+			this.runs=runs;
+			int c=0;
+			for (int i=1; i<runs.length; i+=2) {
+				c+=runs[i]+1;
+			}
+			card=c;
+		}
+
+		private static int calcHash(int key, char[] runs) {
+			int base=key<<BLOCK_BITS;
+			int h=0;
+			for (int i=0; i<runs.length; i+=2) {
+				int end=runs[i]+runs[i+1];
+				for (int low=runs[i]; low<=end; low++) {
+					h=mix(h,base|low);
+				}
+			}
+			return h;
+		}
+
+		// index of the last run starting at or before low, or -1 if none
+		private int findRun(int low) {
+			int lo=0;
+			int hi=(runs.length>>1)-1;
+			while (lo<=hi) {
+				int m=(lo+hi)>>>1;
+				if (runs[2*m]<=low) {
+					lo=m+1;
+				} else {
+					hi=m-1;
+				}
+			}
+			return hi;
+		}
+
+		@Override
+		public int cardinality() {
+			return card;
+		}
+
+		@Override
+		public boolean contains(int low) {
+			int r=findRun(low);
+			return (r>=0)&&(low<=runs[2*r]+runs[2*r+1]);
+		}
+
+		@Override
+		public int rank(int low) {
+			int result=0;
+			for (int i=0; i<runs.length; i+=2) {
+				int start=runs[i];
+				if (start>=low) break;
+				result+=Math.min(runs[i+1]+1,low-start);
+			}
+			return result;
+		}
+
+		@Override
+		public int select(int i) {
+			for (int r=0; r<runs.length; r+=2) {
+				int len=runs[r+1]+1;
+				if (i<len) return runs[r]+i;
+				i-=len;
+			}
+			throw new IndexOutOfBoundsException();
+		}
+
+		@Override
+		public int nextLow(int low) {
+			int r=findRun(low);
+			if ((r>=0)&&(low<=runs[2*r]+runs[2*r+1])) return low;
+			r++;
+			if (2*r>=runs.length) return -1;
+			return runs[2*r];
+		}
+
+		@Override
+		public void copyTo(int[] dest, int offset) {
+			int base=key<<BLOCK_BITS;
+			for (int i=0; i<runs.length; i+=2) {
+				int end=runs[i]+runs[i+1];
+				for (int low=runs[i]; low<=end; low++) {
+					dest[offset++]=base|low;
+				}
+			}
+		}
+
+		@Override
+		protected void toWords(long[] words) {
+			for (int i=0; i<runs.length; i+=2) {
+				int start=runs[i];
+				int end=start+runs[i+1]+1;
+				int sw=start>>>6;
+				int ew=(end-1)>>>6;
+				if (sw==ew) {
+					words[sw]|=(-1L<<start)&(-1L>>>(-end));
+				} else {
+					words[sw]|=-1L<<start;
+					for (int w=sw+1; w<ew; w++) {
+						words[w]=-1L;
+					}
+					words[ew]|=-1L>>>(-end);
+				}
+			}
+		}
+
+		@Override
+		public int runCount() {
+			return runs.length>>1;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o==this) return true;
+			if (!(o instanceof RunContainer)) return false;
+			RunContainer r=(RunContainer)o;
+			return (r.key==key)&&(r.hash==hash)&&Arrays.equals(runs,r.runs);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package mikera.persistent.impl;
+
+import java.util.ArrayList;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+
+/**
+ * Fork/join helpers for parallel traversal of persistent collections.
+ *
+ * Work is divided using Spliterator.trySplit(), so for the persistent tries
+ * tasks are split along node boundaries.
+ *
+ * @author Mike Anderson
+ *
+ */
+public final class ParallelOps {
+	/**
+	 * Estimated number of elements below which a task is processed sequentially
+	 */
+	public static final long SPLIT_THRESHOLD=1024;
+
+	public static ForkJoinPool defaultPool() {
+		return ForkJoinPool.commonPool();
+	}
+
+	public static <T> void forEach(Spliterator<T> s, Consumer<? super T> action, ForkJoinPool pool) {
+		pool.invoke(new ForEachTask<T>(s,action));
+	}
+
+	/**
+	 * Reduces the elements of a spliterator in parallel. Partial results are combined in
+	 * encounter order, so the combiner must be associative but need not be commutative.
+	 * The identity must be an identity for the combiner.
+	 */
+	public static <T,R> R reduce(Spliterator<T> s, R identity, BiFunction<R,? super T,R> accumulator, BinaryOperator<R> combiner, ForkJoinPool pool) {
+		return pool.invoke(new ReduceTask<T,R>(s,identity,accumulator,combiner));
+	}
+
+	private static final class ForEachTask<T> extends RecursiveAction {
+		private static final long serialVersionUID = -3184719440217652218L;
+
+		private final Spliterator<T> source;
+		private final Consumer<? super T> action;
+
+		private ForEachTask(Spliterator<T> source, Consumer<? super T> action) {
+			this.source=source;
+			this.action=action;
+		}
+
+		@Override
+		protected void compute() {
+			ArrayList<ForEachTask<T>> forked=new ArrayList<ForEachTask<T>>();
+			Spliterator<T> split;
+			while ((source.estimateSize()>SPLIT_THRESHOLD)&&((split=source.trySplit())!=null)) {
+				ForEachTask<T> task=new ForEachTask<T>(split,action);
+				task.fork();
+				forked.add(task);
+			}
+			source.forEachRemaining(action);
+			for (ForEachTask<T> task: forked) {
+				task.join();
+			}
+		}
+	}
+
+	private static final class ReduceTask<T,R> extends RecursiveTask<R> implements Consumer<T> {
+		private static final long serialVersionUID = 6911540180573396374L;
+
+		private final Spliterator<T> source;
+		private final R identity;
+		private final BiFunction<R,? super T,R> accumulator;
+		private final BinaryOperator<R> combiner;
+		private R acc;
+
+		private ReduceTask(Spliterator<T> source, R identity, BiFunction<R,? super T,R> accumulator, BinaryOperator<R> combiner) {
+			this.source=source;
+			this.identity=identity;
+			this.accumulator=accumulator;
+			this.combiner=combiner;
+		}
+
+		@Override
+		protected R compute() {
+			ArrayList<ReduceTask<T,R>> forked=new ArrayList<ReduceTask<T,R>>();
+			Spliterator<T> split;
+			while ((source.estimateSize()>SPLIT_THRESHOLD)&&((split=source.trySplit())!=null)) {
+				ReduceTask<T,R> task=new ReduceTask<T,R>(split,identity,accumulator,combiner);
+				task.fork();
+				forked.add(task);
+			}
+
+			acc=identity;
+			source.forEachRemaining(this);
+			if (forked.isEmpty()) return acc;
+
+			// each split is a prefix of what remained, so the forked tasks come first in
+			// encounter order and the local part comes last
+			R result=forked.get(0).join();
+			for (int i=1; i<forked.size(); i++) {
+				result=combiner.apply(result,forked.get(i).join());
+			}
+			return combiner.apply(result,acc);
+		}
+
+		@Override
+		public void accept(T t) {
+			acc=accumulator.apply(acc,t);
+		}
+	}
+}
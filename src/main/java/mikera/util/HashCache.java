@@ -1,51 +1,398 @@
 package mikera.util;
 
-import java.lang.ref.SoftReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Concurrent interning cache, returning a canonical instance for equal values.
+ *
+ * The cache is divided into independently locked segments selected by hash code.
+ * Lookups do not take a lock, while inserts and evictions lock only the affected
+ * segment. Each segment's table grows with the number of entries up to its share
+ * of the maximum size, after which the eviction policy chooses entries to discard.
+ *
+ * Hit, miss and eviction counts are maintained for monitoring.
+ *
+ * @author Mike Anderson
+ *
+ * @param <T> Type of cached values
+ */
 public class HashCache<T> {
-	private SoftReference<T>[] data;
-	
-	// TODO: Implement cache resizing
+	public enum Policy {
+		/**
+		 * Second chance eviction: entries hit since the last sweep of the clock hand survive
+		 */
+		CLOCK,
+		/**
+		 * Evicts the least recently used entry. Recency updates are skipped for hits under contention
+		 */
+		LRU,
+		/**
+		 * Values are weakly referenced and discarded by the garbage collector, with no size bound
+		 */
+		WEAK
+	}
+
+	private static final int SEGMENT_BITS=4;
+	private static final int SEGMENTS=1<<SEGMENT_BITS;
+	private static final int INITIAL_TABLE_SIZE=8;
+	private static final int MAX_TABLE_SIZE=1<<30;
+
+	private final Segment[] segments;
+	private final int maxSize;
+	private final Policy policy;
+
+	private final LongAdder hits=new LongAdder();
+	private final LongAdder misses=new LongAdder();
+	private final LongAdder evictions=new LongAdder();
+
+	public HashCache(int maxSize) {
+		this(maxSize,Policy.CLOCK);
+	}
+
 	@SuppressWarnings("unchecked")
-	public HashCache(int size) {
-		data=new SoftReference[size];
+	public HashCache(int maxSize, Policy policy) {
+		if (maxSize<=0) throw new IllegalArgumentException("Cache size must be positive");
+		this.maxSize=maxSize;
+		this.policy=policy;
+		int segmentSize=(maxSize+SEGMENTS-1)/SEGMENTS;
+		segments=new HashCache.Segment[SEGMENTS];
+		for (int i=0; i<SEGMENTS; i++) {
+			segments[i]=new Segment(segmentSize);
+		}
 	}
-	
+
 	public int getMaxSize() {
-		return data.length;
+		return maxSize;
 	}
-	
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Returns the cached value equal to the given value, or caches and returns the value
+	 * itself if no equal value is present.
+	 */
 	public T cache(T value) {
 		int hc=value.hashCode();
-		int i=getIndex(hc);
-		SoftReference<T> sr= data[i];
-		T result=(sr==null)?null:sr.get();
-		
-		if ((result==null)||(!result.equals(value))) {
-			// cache new value
-			data[i]=new SoftReference<T>(value);
-			return value;
-		}
-		
-		// return cached value
+		Segment s=segmentFor(hc);
+		T result=s.find(hc,value);
+		if (result!=null) {
+			hits.increment();
+			return result;
+		}
+		result=s.intern(hc,value);
+		if (result==value) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
 		return result;
 	}
-	
+
+	/**
+	 * Returns any cached value with the given hash code, or null if there is none.
+	 * Callers must check that the returned value is the one they want.
+	 */
 	public T getCachedValueForHashCode(int hc) {
-		int i=getIndex(hc);	
-		SoftReference<T> sr= data[i];
-		if (sr==null) return null;
-		
-		T result=sr.get();
-		if (result==null) {
-			data[i]=null;
+		return segmentFor(hc).find(hc,null);
+	}
+
+	/**
+	 * Returns the approximate number of values currently cached
+	 */
+	public int size() {
+		int result=0;
+		for (Segment s: segments) {
+			result+=s.size;
 		}
 		return result;
 	}
-	
-	private int getIndex(int hc) {
-		hc=hc&0x7FFFFFFF;
-		int i=hc %(data.length);
-		return i;
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	public double getHitRate() {
+		long h=hits.sum();
+		long total=h+misses.sum();
+		if (total==0) return 0.0;
+		return ((double)h)/total;
+	}
+
+	public void clear() {
+		for (Segment s: segments) {
+			s.clear();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "HashCache[policy="+policy+", size="+size()+", maxSize="+maxSize
+			+", hits="+getHitCount()+", misses="+getMissCount()+", evictions="+getEvictionCount()+"]";
+	}
+
+	private static int spread(int hc) {
+		hc*=0x9E3779B9;
+		return hc^(hc>>>16);
+	}
+
+	private Segment segmentFor(int hc) {
+		return segments[spread(hc)>>>(32-SEGMENT_BITS)];
+	}
+
+	private static int indexFor(int hc, int length) {
+		return spread(hc)&(length-1);
+	}
+
+	private static final class WeakValue<T> extends WeakReference<T> {
+		private final int hash;
+
+		private WeakValue(T value, int hash, ReferenceQueue<T> queue) {
+			super(value,queue);
+			this.hash=hash;
+		}
+	}
+
+	private static final class Entry<T> {
+		private final int hash;
+		private final T value; // null for weak entries
+		private final WeakValue<T> weak;
+		private volatile Entry<T> next;
+		private volatile boolean referenced;
+
+		// LRU list links, guarded by the segment lock
+		private Entry<T> before;
+		private Entry<T> after;
+
+		private Entry(int hash, T value, WeakValue<T> weak, Entry<T> next) {
+			this.hash=hash;
+			this.value=value;
+			this.weak=weak;
+			this.next=next;
+		}
+
+		private T get() {
+			if (weak==null) return value;
+			return weak.get();
+		}
+	}
+
+	/**
+	 * Hash table segment. Readers traverse the bucket chains without locking, so chains
+	 * are only ever modified in ways that keep them acyclic. A reader racing with a
+	 * writer may miss an entry, which only costs a cache miss.
+	 */
+	private final class Segment extends ReentrantLock {
+		private static final long serialVersionUID = -4016530420758618223L;
+
+		private volatile Entry<T>[] table;
+		private volatile int size;
+		private final int maxEntries;
+		private final int maxTableSize;
+		private int hand;
+		private final Entry<T> lru;
+		private final ReferenceQueue<T> queue;
+
+		@SuppressWarnings("unchecked")
+		private Segment(int maxEntries) {
+			this.maxEntries=maxEntries;
+			if (policy==Policy.WEAK) {
+				maxTableSize=MAX_TABLE_SIZE;
+				queue=new ReferenceQueue<T>();
+				lru=null;
+			} else {
+				int target=Math.max(INITIAL_TABLE_SIZE,(int)Math.min(MAX_TABLE_SIZE,(maxEntries*4L)/3));
+				maxTableSize=Integer.highestOneBit(target-1)<<1;
+				queue=null;
+				lru=new Entry<T>(0,null,null,null);
+				lru.before=lru;
+				lru.after=lru;
+			}
+			table=new Entry[INITIAL_TABLE_SIZE];
+		}
+
+		/**
+		 * Finds a cached value with the given hash, equal to the given value if not null
+		 */
+		private T find(int hash, T value) {
+			Entry<T>[] tab=table;
+			for (Entry<T> e=tab[indexFor(hash,tab.length)]; e!=null; e=e.next) {
+				if (e.hash!=hash) continue;
+				T v=e.get();
+				if (v==null) continue;
+				if ((value==null)||(value==v)||value.equals(v)) {
+					touch(e);
+					return v;
+				}
+			}
+			return null;
+		}
+
+		private void touch(Entry<T> e) {
+			if (policy==Policy.CLOCK) {
+				if (!e.referenced) e.referenced=true;
+			} else if (policy==Policy.LRU) {
+				if (tryLock()) {
+					try {
+						if (e.after!=null) {
+							unlinkLRU(e);
+							linkLRU(e);
+						}
+					} finally {
+						unlock();
+					}
+				}
+			}
+		}
+
+		private T intern(int hash, T value) {
+			lock();
+			try {
+				// re-check under the lock so that concurrent interns agree on one instance
+				T existing=find(hash,value);
+				if (existing!=null) return existing;
+
+				if (policy==Policy.WEAK) {
+					purge();
+				} else if (size>=maxEntries) {
+					evict();
+				}
+
+				Entry<T>[] tab=table;
+				if ((size>=(tab.length-(tab.length>>>2)))&&(tab.length<maxTableSize)) {
+					tab=resize(tab);
+				}
+				int i=indexFor(hash,tab.length);
+				Entry<T> e;
+				if (policy==Policy.WEAK) {
+					e=new Entry<T>(hash,null,new WeakValue<T>(value,hash,queue),tab[i]);
+				} else {
+					e=new Entry<T>(hash,value,null,tab[i]);
+				}
+				tab[i]=e;
+				size++;
+				if (policy==Policy.LRU) linkLRU(e);
+				return value;
+			} finally {
+				unlock();
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private Entry<T>[] resize(Entry<T>[] old) {
+			int n=old.length;
+			Entry<T>[] tab=new Entry[n*2];
+			for (int i=0; i<n; i++) {
+				Entry<T> e=old[i];
+				while (e!=null) {
+					Entry<T> next=e.next;
+					int j=indexFor(e.hash,tab.length);
+					e.next=tab[j];
+					tab[j]=e;
+					e=next;
+				}
+			}
+			table=tab;
+			return tab;
+		}
+
+		private void evict() {
+			if (policy==Policy.LRU) {
+				removeEntry(lru.after);
+				evictions.increment();
+				return;
+			}
+
+			// clock sweep over buckets, clearing reference bits until an unreferenced entry is found
+			Entry<T>[] tab=table;
+			while (true) {
+				int i=hand&(tab.length-1);
+				for (Entry<T> e=tab[i]; e!=null; e=e.next) {
+					if (e.referenced) {
+						e.referenced=false;
+						continue;
+					}
+					removeEntry(e);
+					evictions.increment();
+					return;
+				}
+				hand=i+1;
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private void purge() {
+			Reference<? extends T> r;
+			while ((r=queue.poll())!=null) {
+				WeakValue<T> wv=(WeakValue<T>)r;
+				Entry<T>[] tab=table;
+				for (Entry<T> e=tab[indexFor(wv.hash,tab.length)]; e!=null; e=e.next) {
+					if (e.weak==wv) {
+						removeEntry(e);
+						evictions.increment();
+						break;
+					}
+				}
+			}
+		}
+
+		private void removeEntry(Entry<T> e) {
+			Entry<T>[] tab=table;
+			int i=indexFor(e.hash,tab.length);
+			Entry<T> p=tab[i];
+			if (p==e) {
+				tab[i]=e.next;
+			} else {
+				while (p.next!=e) {
+					p=p.next;
+				}
+				p.next=e.next;
+			}
+			size--;
+			if (policy==Policy.LRU) unlinkLRU(e);
+		}
+
+		private void linkLRU(Entry<T> e) {
+			e.before=lru.before;
+			e.after=lru;
+			lru.before.after=e;
+			lru.before=e;
+		}
+
+		private void unlinkLRU(Entry<T> e) {
+			e.before.after=e.after;
+			e.after.before=e.before;
+			e.before=null;
+			e.after=null;
+		}
+
+		@SuppressWarnings("unchecked")
+		private void clear() {
+			lock();
+			try {
+				table=new Entry[INITIAL_TABLE_SIZE];
+				size=0;
+				hand=0;
+				if (lru!=null) {
+					lru.before=lru;
+					lru.after=lru;
+				}
+			} finally {
+				unlock();
+			}
+		}
 	}
 }
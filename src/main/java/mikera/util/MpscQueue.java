@@ -0,0 +1,79 @@
+package mikera.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free queue for many producer threads and a single consumer thread.
+ * 
+ * Producers append with a single atomic swap of the tail pointer and never wait for
+ * each other. Only one thread at a time may call poll() or peek(), so callers must
+ * provide their own mutual exclusion between consumers.
+ * 
+ * A value offered by one producer may briefly be invisible to the consumer while a
+ * concurrent offer is half complete; it becomes visible as soon as that offer links
+ * its node into the list.
+ * 
+ * @author Mike Anderson
+ * @param <T> Type of object held in the queue
+ */
+public final class MpscQueue<T> {
+	private static final class Node<T> {
+		T value;
+		volatile Node<T> next;
+		
+		private Node(T value) {
+			this.value=value;
+		}
+	}
+	
+	private final AtomicReference<Node<T>> tail;
+	
+	// consumer side, only accessed by the consuming thread
+	private Node<T> head;
+	
+	public MpscQueue() {
+		Node<T> stub=new Node<T>(null);
+		head=stub;
+		tail=new AtomicReference<Node<T>>(stub);
+	}
+	
+	/**
+	 * Adds a value to the queue. May be called concurrently from any thread.
+	 */
+	public void offer(T value) {
+		if (value==null) throw new NullPointerException("Null values not permitted");
+		Node<T> node=new Node<T>(value);
+		Node<T> prev=tail.getAndSet(node);
+		prev.next=node;
+	}
+	
+	/**
+	 * Removes and returns the value at the head of the queue, or null if none is visible.
+	 * Consumer thread only.
+	 */
+	public T poll() {
+		Node<T> next=head.next;
+		if (next==null) return null;
+		T value=next.value;
+		next.value=null;
+		head=next;
+		return value;
+	}
+	
+	/**
+	 * Returns the value at the head of the queue without removing it, or null if none is visible.
+	 * Consumer thread only.
+	 */
+	public T peek() {
+		Node<T> next=head.next;
+		return (next==null)?null:next.value;
+	}
+	
+	/**
+	 * Returns true if no values have been offered that are not yet consumed. May be called
+	 * from any thread, but the result is only a snapshot.
+	 */
+	public boolean isEmpty() {
+		return tail.get()==head;
+	}
+}
@@ -266,6 +266,124 @@ public class TestData {
 		}
 	}
 	
+	@Test public void testBulkArrays() {
+		Data d=new Data();
+		d.appendByte((byte)7);
+		int[] is={1,-1,Integer.MAX_VALUE,Integer.MIN_VALUE,0x12345678};
+		long[] ls={Long.MIN_VALUE,-2,3,Long.MAX_VALUE};
+		float[] fs={1.5f,-0.0f,Float.NaN};
+		double[] ds={Math.PI,-1e300};
+		assertEquals(12,d.appendInts(is, 1, 3));
+		d.appendLongs(ls, 0, ls.length);
+		d.appendFloats(fs, 0, fs.length);
+		d.appendDoubles(ds, 0, ds.length);
+		
+		// same format as the single value methods
+		assertEquals(-1,d.getFullInt(1));
+		assertEquals(Long.MIN_VALUE,d.getFullLong(13));
+		
+		int[] ri=new int[5];
+		d.getInts(1, ri, 2, 3);
+		assertEquals(Integer.MAX_VALUE,ri[3]);
+		assertEquals(Integer.MIN_VALUE,ri[4]);
+		
+		DataCursor c=new DataCursor(d,1);
+		int[] ri2=new int[3];
+		c.readInts(ri2, 0, 3);
+		assertEquals(-1,ri2[0]);
+		long[] rl=new long[4];
+		c.readLongs(rl, 0, 4);
+		assertTrue(java.util.Arrays.equals(ls,rl));
+		float[] rf=new float[3];
+		c.readFloats(rf, 0, 3);
+		assertTrue(java.util.Arrays.equals(fs,rf));
+		double[] rd=new double[2];
+		c.readDoubles(rd, 0, 2);
+		assertTrue(java.util.Arrays.equals(ds,rd));
+		assertTrue(!c.hasRemaining());
+		
+		try {
+			d.getInts(d.size()-4, ri, 0, 2);
+			fail();
+		} catch (IndexOutOfBoundsException x) {
+			// OK
+		}
+	}
+	
+	@Test public void testBulkVarInts() {
+		int n=10000;
+		int[] is=new int[n];
+		long[] ls=new long[n];
+		for (int i=0; i<n; i++) {
+			is[i]=Rand.nextInt()>>Rand.r(32);
+			ls[i]=Rand.nextLong()>>Rand.r(64);
+		}
+		Data d=new Data();
+		int isize=d.appendVarInts(is, 0, n);
+		int lsize=d.appendVarLongs(ls, 0, n);
+		assertEquals(isize+lsize,d.size());
+		
+		// compatible with single value methods
+		int pos=0;
+		for (int i=0; i<100; i++) {
+			assertEquals(is[i],d.getVarInt(pos));
+			pos+=Data.sizeOfVarInt(is[i]);
+		}
+		
+		int[] ri=new int[n];
+		long[] rl=new long[n];
+		assertEquals(isize,d.getVarInts(0, ri, 0, n));
+		assertEquals(isize+lsize,d.getVarLongs(isize, rl, 0, n));
+		assertTrue(java.util.Arrays.equals(is,ri));
+		assertTrue(java.util.Arrays.equals(ls,rl));
+		
+		// truncated data is detected in the checked path
+		Data t=d.subset(0, isize-1);
+		try {
+			t.getVarInts(0, ri, 0, n);
+			fail();
+		} catch (IndexOutOfBoundsException x) {
+			// OK
+		}
+	}
+	
+	@Test public void testDataCursor() {
+		Data d=new Data();
+		d.appendVarInt(-300);
+		d.appendVarLong(1L<<40);
+		d.appendString("hello");
+		d.appendVarChar('\u1234');
+		d.appendBoolean(true);
+		d.appendDouble(2.5);
+		d.appendShort((short)-2);
+		
+		DataCursor c=new DataCursor(d);
+		assertEquals(-300,c.readVarInt());
+		assertEquals(1L<<40,c.readVarLong());
+		assertEquals("hello",c.readString());
+		assertEquals('\u1234',c.readVarChar());
+		assertTrue(c.readBoolean());
+		assertEquals(2.5,c.readDouble(),0.0);
+		assertEquals(-2,c.readShort());
+		assertEquals(0,c.remaining());
+		
+		try {
+			c.readVarInt();
+			fail();
+		} catch (IndexOutOfBoundsException x) {
+			// OK
+		}
+		
+		Data bad=new Data();
+		for (int i=0; i<6; i++) bad.appendByte((byte)0x80);
+		try {
+			new DataCursor(bad).readVarInt();
+			fail();
+		} catch (IllegalArgumentException x) {
+			// OK
+		}
+	}
+	
 	@Test public void testDataSize() {
 		Data d=new Data();
 		int total=0;
@@ -0,0 +1,135 @@
+package mikera.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import mikera.util.Rand;
+
+import org.junit.Test;
+
+public class TestDataView {
+	private static Data sampleData(int n) {
+		Data d=new Data();
+		for (int i=0; i<n; i++) {
+			d.appendInt(i*7919);
+			d.appendLong(Rand.nextLong());
+			d.appendFullInt(i);
+			d.appendString("Record "+i+" €");
+			d.appendDouble(i*0.5);
+		}
+		return d;
+	}
+	
+	private static void checkSample(DataView v, int n) {
+		int pos=0;
+		Data d=sampleData(0);
+		for (int i=0; i<n; i++) {
+			int a=v.getInt(pos); pos+=Data.sizeOfInt(a);
+			assertEquals(i*7919,a);
+			long l=v.getLong(pos); pos+=Data.sizeOfLong(l);
+			assertEquals(i,v.getFullInt(pos)); pos+=4;
+			String s=v.getString(pos); pos+=Data.sizeOfString(s);
+			assertEquals("Record "+i+" €",s);
+			assertEquals(i*0.5,v.getDouble(pos),0.0); pos+=8;
+		}
+		assertEquals(0,d.size());
+		assertEquals(v.size(),pos);
+	}
+	
+	@Test public void testDirectBuffer() {
+		Data d=sampleData(100);
+		ByteBuffer bb=ByteBuffer.allocateDirect(d.size()+10);
+		bb.put((byte)99);
+		d.writeToByteBuffer(bb);
+		bb.flip();
+		bb.get();
+		
+		DataView v=DataView.wrap(bb);
+		assertEquals(d.size(),v.size());
+		assertEquals(1,bb.position());
+		assertTrue(v.contentEquals(d));
+		assertEquals(d.hashCode(),v.hashCode());
+		checkSample(v,100);
+		
+		// views share storage with the underlying buffer
+		DataView sub=v.subset(10, 20);
+		assertEquals(v.getByte(10),sub.getByte(0));
+		bb.put(11,(byte)42);
+		assertEquals(42,sub.getByte(0));
+		assertEquals(42,v.getByte(10));
+		
+		try {
+			v.getByte(v.size());
+			fail();
+		} catch (IndexOutOfBoundsException x) {
+			// OK
+		}
+	}
+	
+	@Test public void testAppendSpill() {
+		Data d=sampleData(50);
+		DataView v=DataView.wrap(d);
+		assertTrue(v.isContiguous());
+		
+		Data more=sampleData(500);
+		Data expected=new Data(d);
+		expected.append(more);
+		
+		v.append(more);
+		assertTrue(!v.isContiguous());
+		assertEquals(expected.size(),v.size());
+		assertTrue(v.contentEquals(expected));
+		
+		// primitives written individually across chunk boundaries
+		DataView w=DataView.create();
+		Data e=new Data();
+		for (int i=0; i<5000; i++) {
+			w.appendVarLong(i*1234567891L); e.appendVarLong(i*1234567891L);
+			w.appendFullInt(i); e.appendFullInt(i);
+			w.appendShort((short)i); e.appendShort((short)i);
+			w.appendString("x"+i); e.appendString("x"+i);
+		}
+		assertTrue(w.contentEquals(e));
+		assertEquals(e,w.toData());
+		
+		int start=w.size()/3;
+		int end=w.size()-7;
+		assertTrue(w.subset(start,end).contentEquals(e.subset(start, end)));
+		
+		ByteBuffer target=ByteBuffer.allocate(w.size());
+		w.writeToByteBuffer(target);
+		target.flip();
+		assertEquals(e,Data.create(target));
+		
+		w.release();
+		assertEquals(0,w.size());
+		v.release();
+		assertEquals(d.size(),v.size());
+	}
+	
+	@Test public void testMapped() throws Exception {
+		Data d=sampleData(1000);
+		File f=File.createTempFile("dataview", ".bin");
+		f.deleteOnExit();
+		RandomAccessFile raf=new RandomAccessFile(f,"rw");
+		try {
+			raf.write(d.toNewByteArray());
+			FileChannel fc=raf.getChannel();
+			DataView v=DataView.map(fc, 0, d.size());
+			checkSample(v,1000);
+			assertTrue(v.contentEquals(d));
+			
+			v.appendInt(17);
+			assertEquals(17,v.getInt(d.size()));
+			v.release();
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package mikera.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import mikera.util.Rand;
+
+import org.junit.Test;
+
+public class TestLZ4 {
+	private static byte[] roundTrip(byte[] src) {
+		byte[] compressed=new byte[LZ4.maxCompressedLength(src.length)+3];
+		int n=LZ4.compress(src, 0, src.length, compressed, 3);
+		assertTrue(n<=LZ4.maxCompressedLength(src.length));
+		byte[] result=new byte[src.length];
+		assertEquals(src.length,LZ4.decompress(compressed, 3, n, result, 0, result.length));
+		assertArrayEquals(src,result);
+		return Arrays.copyOfRange(compressed, 3, 3+n);
+	}
+
+	@Test public void testSmall() {
+		for (int len=0; len<40; len++) {
+			byte[] src=new byte[len];
+			for (int i=0; i<len; i++) src[i]=(byte)(i%3);
+			roundTrip(src);
+		}
+	}
+
+	@Test public void testRepetitive() {
+		byte[] src=new byte[100000];
+		for (int i=0; i<src.length; i++) {
+			src[i]=(byte)((i/7)%11);
+		}
+		byte[] c=roundTrip(src);
+		assertTrue(c.length<src.length/20);
+
+		// long runs need extended length bytes
+		byte[] zeros=new byte[70000];
+		assertTrue(roundTrip(zeros).length<400);
+	}
+
+	@Test public void testRandom() {
+		for (int t=0; t<20; t++) {
+			byte[] src=new byte[Rand.r(5000)];
+			for (int i=0; i<src.length; i++) {
+				// mix of random and repeated sections
+				src[i]=((i/64)%2==0)?(byte)Rand.nextInt():(byte)(i&15);
+			}
+			roundTrip(src);
+		}
+	}
+
+	@Test public void testMalformed() {
+		byte[] src=new byte[1000];
+		for (int i=0; i<src.length; i++) src[i]=(byte)(i%13);
+		byte[] c=roundTrip(src);
+
+		try {
+			LZ4.decompress(c, 0, c.length-1, new byte[src.length], 0, src.length);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+
+		try {
+			LZ4.decompress(c, 0, c.length, new byte[src.length-1], 0, src.length-1);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+
+		// match offset pointing before the start of the output
+		byte[] bad={0x00, 0x05, 0x00, 0x10};
+		try {
+			LZ4.decompress(bad, 0, bad.length, new byte[100], 0, 100);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+	}
+}
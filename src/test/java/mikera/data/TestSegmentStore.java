@@ -0,0 +1,205 @@
+package mikera.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import mikera.persistent.IntMap;
+import mikera.persistent.PersistentHashMap;
+
+import org.junit.Test;
+
+public class TestSegmentStore {
+	private static File tempDirectory() throws IOException {
+		File f=File.createTempFile("segments", "");
+		if (!f.delete()||!f.mkdir()) throw new IOException("Unable to create "+f);
+		f.deleteOnExit();
+		return f;
+	}
+
+	private static void delete(File dir) {
+		File[] files=dir.listFiles();
+		if (files!=null) for (File f: files) f.delete();
+		dir.delete();
+	}
+
+	private static Data record(int i) {
+		Data d=new Data();
+		for (int j=0; j<=(i%37); j++) {
+			d.appendVarInt(i*j);
+		}
+		return d;
+	}
+
+	@Test public void testAppendAndReopen() throws IOException {
+		File dir=tempDirectory();
+		try {
+			SegmentStore s=new SegmentStore(dir,1000);
+			ArrayList<Long> addresses=new ArrayList<Long>();
+			for (int i=0; i<500; i++) {
+				addresses.add(s.append(record(i)));
+			}
+			assertEquals(500,s.size());
+			assertTrue(new File(dir,"00000003.seg").exists());
+			assertEquals(record(123),s.get(123));
+			assertEquals(record(321),s.read(addresses.get(321)));
+			s.close();
+
+			try {
+				s.append(record(1));
+				fail();
+			} catch (IllegalStateException e) {
+				// OK
+			}
+
+			s=new SegmentStore(dir,1000);
+			assertEquals(500,s.size());
+			for (int i=0; i<500; i++) {
+				assertEquals(addresses.get(i).longValue(),s.address(i));
+				assertEquals(record(i),s.get(i));
+			}
+
+			// records appended but not flushed are found by scanning the tail
+			s.append(record(500));
+			s.append(record(501));
+			s=new SegmentStore(dir,1000);
+			assertEquals(502,s.size());
+			assertEquals(record(501),s.get(501));
+			s.close();
+
+			try {
+				new SegmentStore(dir,2000);
+				fail();
+			} catch (IOException e) {
+				// OK, segment size does not match
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test public void testTornWrite() throws IOException {
+		File dir=tempDirectory();
+		try {
+			SegmentStore s=new SegmentStore(dir,4096);
+			for (int i=0; i<10; i++) {
+				s.append(record(i));
+			}
+			s.flush();
+			long a=s.append(record(10));
+			s.append(record(11));
+			long end=s.getEndAddress();
+
+			// crash without flushing, and corrupt the first unflushed record
+			RandomAccessFile raf=new RandomAccessFile(new File(dir,"00000000.seg"),"rw");
+			try {
+				raf.seek(a+SegmentStore.HEADER_LENGTH);
+				raf.write(raf.read()^1);
+			} finally {
+				raf.close();
+			}
+
+			s=new SegmentStore(dir,4096);
+			assertEquals(10,s.size());
+			assertTrue(s.getEndAddress()<end);
+			assertEquals(a,s.append(record(12)));
+			s.close();
+
+			s=new SegmentStore(dir,4096);
+			assertEquals(11,s.size());
+			assertEquals(record(12),s.get(10));
+			s.close();
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test public void testInvalid() throws IOException {
+		File dir=tempDirectory();
+		try {
+			SegmentStore s=new SegmentStore(dir,100);
+			try {
+				s.append(new Data(200));
+				fail();
+			} catch (IllegalArgumentException e) {
+				// OK, empty record
+			}
+			try {
+				s.append(new byte[100], 0, 93);
+				fail();
+			} catch (IllegalArgumentException e) {
+				// OK, larger than a segment
+			}
+			s.append(new byte[92], 0, 92);
+			try {
+				s.get(1);
+				fail();
+			} catch (IndexOutOfBoundsException e) {
+				// OK
+			}
+			try {
+				s.read(3);
+				fail();
+			} catch (IllegalArgumentException e) {
+				// OK, not a record
+			}
+			s.close();
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test public void testSnapshots() throws IOException {
+		File dir=tempDirectory();
+		try {
+			SegmentStore s=new SegmentStore(dir,1<<20);
+			SnapshotStore ss=new SnapshotStore(s);
+
+			IntMap<Object> im=IntMap.create();
+			PersistentHashMap<Object,Object> hm=PersistentHashMap.create();
+			for (int i=0; i<5000; i++) {
+				im=im.include(i*7, "v"+i);
+				hm=hm.include("k"+i, Integer.valueOf(i));
+			}
+			long a1=ss.write(im);
+			long h1=ss.write(hm);
+			ss.commit();
+			long written=ss.getNodesWritten();
+			long end=s.getEndAddress();
+
+			// a small change only writes the path to the changed entry
+			IntMap<Object> im2=im.include(35, "changed").delete(70);
+			long a2=ss.write(im2);
+			ss.commit();
+			assertTrue(ss.getNodesWritten()-written<=8);
+			assertTrue(s.getEndAddress()-end<(end/50));
+			assertTrue(ss.getNodesReused()>0);
+
+			assertEquals(im,ss.readIntMap(a1));
+			assertEquals(im2,ss.readIntMap(a2));
+			assertEquals(hm,ss.readHashMap(h1));
+			s.close();
+
+			// snapshots can be read after reopening
+			s=new SegmentStore(dir,1<<20);
+			ss=new SnapshotStore(s);
+			assertEquals(im2,ss.readIntMap(a2));
+			assertEquals(hm,ss.readHashMap(h1));
+			assertEquals(IntMap.create(),ss.readIntMap(ss.write(IntMap.create())));
+			try {
+				ss.readHashMap(a2);
+				fail();
+			} catch (IllegalArgumentException e) {
+				// OK, wrong type
+			}
+			s.close();
+		} finally {
+			delete(dir);
+		}
+	}
+}
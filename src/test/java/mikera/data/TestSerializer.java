@@ -0,0 +1,248 @@
+package mikera.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+
+import mikera.engine.ArrayGrid;
+import mikera.engine.BitGrid;
+import mikera.engine.ByteGrid;
+import mikera.engine.IntGrid;
+import mikera.engine.PaletteGrid;
+import mikera.engine.PersistentTreeGrid;
+import mikera.engine.ShortGrid;
+import mikera.engine.SparseGrid;
+import mikera.engine.TreeGrid;
+import mikera.persistent.IntMap;
+import mikera.persistent.IntSet;
+import mikera.persistent.ListFactory;
+import mikera.persistent.PersistentHashMap;
+import mikera.persistent.PersistentList;
+import mikera.persistent.Text;
+
+import org.junit.Test;
+
+public class TestSerializer {
+	private static Object roundTrip(Serializer s, Object o) {
+		Data d=new Data();
+		d.appendByte((byte)99); // check that reads start at the given position
+		int n=s.write(d, o);
+		assertEquals(d.size()-1,n);
+		Object result=s.read(d, 1);
+		assertEquals(d.size(),s.getPosition());
+		return result;
+	}
+
+	@Test public void testPrimitives() {
+		Serializer s=new Serializer();
+		Object[] values={null, true, 0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MIN_VALUE, 3L,
+				1.5, -2.5f, "", "Hello\u1234", new byte[] {1,2,3}, new int[] {-5,0,100000}};
+		for (Object o: values) {
+			Object r=roundTrip(s,o);
+			if (o instanceof byte[]) {
+				assertTrue(java.util.Arrays.equals((byte[])o,(byte[])r));
+			} else if (o instanceof int[]) {
+				assertTrue(java.util.Arrays.equals((int[])o,(int[])r));
+			} else {
+				assertEquals(o,r);
+			}
+		}
+		Data d=new Data();
+		d.appendFullLong(1234567890123L);
+		assertEquals(d,roundTrip(s,d));
+	}
+
+	@Test public void testText() {
+		Serializer s=new Serializer();
+		StringBuilder sb=new StringBuilder();
+		for (int i=0; i<5000; i++) {
+			sb.append((char)('a'+(i%26)));
+			if ((i%70)==0) sb.append('\n');
+		}
+		Text t=Text.create(sb.toString());
+		Text r=(Text)roundTrip(s,t);
+		assertEquals(t.toString(),r.toString());
+		r.validate();
+	}
+
+	@Test public void testCollections() {
+		Serializer s=new Serializer();
+
+		IntMap<Object> im=IntMap.create();
+		PersistentHashMap<Object,Object> hm=PersistentHashMap.create();
+		for (int i=-50; i<200; i++) {
+			im=im.include(i*13, "v"+i);
+			hm=hm.include("k"+i, Integer.valueOf(i));
+		}
+		assertEquals(im,roundTrip(s,im));
+		assertEquals(hm,roundTrip(s,hm));
+
+		IntSet is=IntSet.create(new int[] {Integer.MIN_VALUE, -3, 0, 7, 1000000, Integer.MAX_VALUE});
+		assertEquals(is,roundTrip(s,is));
+		assertEquals(IntSet.EMPTY_INTSET,roundTrip(s,IntSet.EMPTY_INTSET));
+
+		PersistentList<Object> small=ListFactory.create((Object)"a", (Object)Integer.valueOf(1));
+		assertEquals(small,roundTrip(s,small));
+		ArrayList<Object> values=new ArrayList<Object>();
+		for (int i=0; i<1000; i++) values.add((i%3==0)?null:Integer.valueOf(i));
+		PersistentList<Object> big=ListFactory.createFromCollection(values);
+		assertEquals(big,roundTrip(s,big));
+
+		// nested collections
+		PersistentHashMap<Object,Object> nested=PersistentHashMap.create();
+		nested=nested.include("map", im).include("set", is).include("list", big);
+		assertEquals(nested,roundTrip(s,nested));
+	}
+
+	@Test public void testGrids() {
+		Serializer s=new Serializer();
+
+		IntGrid ig=new IntGrid();
+		ig.set(-3, 4, 5, 17);
+		ig.set(10, -2, 0, -1000);
+		Data d=new Data();
+		s.write(d, ig);
+		IntGrid target=new IntGrid();
+		target.set(-3, -2, 0, 1);
+		target.set(10, 4, 5, 1);
+		assertTrue(target==s.read(d, 0, target));
+		assertEquals(17,target.get(-3, 4, 5));
+		assertEquals(-1000,target.get(10, -2, 0));
+		assertEquals(2,target.countNonZero());
+		assertEquals(0,((IntGrid)roundTrip(s,new IntGrid())).dataLength());
+
+		BitGrid bg=new BitGrid();
+		bg.set(1, 2, 3, true);
+		bg.set(-20, 5, 9, true);
+		BitGrid rbg=(BitGrid)roundTrip(s,bg);
+		assertEquals(2,rbg.countSetBits());
+		assertTrue(rbg.test(-20, 5, 9));
+		rbg.validate();
+
+		ArrayGrid<Object> ag=new ArrayGrid<Object>();
+		ag.set(0, 0, 0, "x");
+		ag.set(3, 1, 2, Integer.valueOf(7));
+		@SuppressWarnings("unchecked")
+		ArrayGrid<Object> rag=(ArrayGrid<Object>)roundTrip(s,ag);
+		assertEquals("x",rag.get(0, 0, 0));
+		assertEquals(Integer.valueOf(7),rag.get(3, 1, 2));
+		assertEquals(2,rag.countNonNull());
+
+		SparseGrid<Object> sg=new SparseGrid<Object>();
+		sg.set(5, 6, 7, "s");
+		assertEquals("s",((SparseGrid<?>)roundTrip(s,sg)).get(5, 6, 7));
+
+		TreeGrid<Object> tg=new TreeGrid<Object>();
+		tg.setBlock(0, 0, 0, 15, 15, 15, "block");
+		tg.set(100, 0, 0, "point");
+		TreeGrid<?> rtg=(TreeGrid<?>)roundTrip(s,tg);
+		assertEquals(tg.countNonNull(),rtg.countNonNull());
+		assertEquals("block",rtg.get(7, 8, 9));
+		assertEquals("point",rtg.get(100, 0, 0));
+
+		PersistentTreeGrid<Object> pg=new PersistentTreeGrid<Object>();
+		pg=pg.setBlock(-4, -4, -4, 3, 3, 3, Integer.valueOf(1));
+		PersistentTreeGrid<?> rpg=(PersistentTreeGrid<?>)roundTrip(s,pg);
+		assertEquals(pg.countNonNull(),rpg.countNonNull());
+		assertEquals(Integer.valueOf(1),rpg.get(-1, 2, 0));
+
+		ByteGrid byg=new ByteGrid();
+		byg.setBlock(-1, 0, 0, 1, 2, 3, (byte)9);
+		ByteGrid rbyg=(ByteGrid)roundTrip(s,byg);
+		assertEquals(36,rbyg.countNonNull());
+		assertEquals(9,rbyg.getByte(1, 2, 3));
+
+		ShortGrid shg=new ShortGrid();
+		shg.set(4, 5, 6, (short)-1234);
+		assertEquals(-1234,((ShortGrid)roundTrip(s,shg)).getShort(4, 5, 6));
+
+		PaletteGrid<Object> plg=new PaletteGrid<Object>();
+		plg.setBlock(0, 0, 0, 20, 3, 3, "stone");
+		plg.set(-5, 0, 0, Short.valueOf((short)12));
+		plg.set(2, 2, 2, Byte.valueOf((byte)3));
+		@SuppressWarnings("unchecked")
+		PaletteGrid<Object> rplg=(PaletteGrid<Object>)roundTrip(s,plg);
+		rplg.validate();
+		assertEquals(plg.countNonNull(),rplg.countNonNull());
+		assertEquals("stone",rplg.get(20, 3, 3));
+		assertEquals(Short.valueOf((short)12),rplg.get(-5, 0, 0));
+		assertEquals(Byte.valueOf((byte)3),rplg.get(2, 2, 2));
+	}
+
+	private static final class Point {
+		final int x;
+		final int y;
+
+		Point(int x, int y) {
+			this.x=x;
+			this.y=y;
+		}
+	}
+
+	@Test public void testUserCodec() {
+		Serializer s=new Serializer();
+		try {
+			s.write(new Data(), new Point(1,2));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// OK, not registered
+		}
+
+		s.register(Serializer.FIRST_USER_TYPE_ID, Point.class, new Codec<Point>() {
+			@Override
+			public void write(Serializer ser, Point p) {
+				ser.writeVarInt(p.x);
+				ser.writeVarInt(p.y);
+			}
+
+			@Override
+			public Point read(Serializer ser, Point reuse) {
+				int x=ser.readVarInt();
+				return new Point(x, ser.readVarInt());
+			}
+		});
+		Point p=(Point)roundTrip(s,new Point(-5,300));
+		assertEquals(-5,p.x);
+		assertEquals(300,p.y);
+
+		try {
+			s.register(Serializer.FIRST_USER_TYPE_ID, String.class, null);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// OK, duplicate id
+		}
+
+		Data d=new Data();
+		d.appendVarInt(1000);
+		try {
+			s.read(d, 0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// OK, unknown id
+		}
+
+		Data nd=new Data();
+		assertEquals(1,s.write(nd, null));
+		assertNull(s.read(nd, 0));
+	}
+
+	@Test public void testCompactness() throws Exception {
+		IntMap<Object> im=IntMap.create();
+		for (int i=0; i<1000; i++) {
+			im=im.include(i, Integer.valueOf(i*2));
+		}
+		Data d=new Data();
+		new Serializer().write(d, im);
+
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		ObjectOutputStream oos=new ObjectOutputStream(bos);
+		oos.writeObject(im);
+		oos.close();
+		assertTrue(d.size()*4<bos.size());
+	}
+}
@@ -0,0 +1,221 @@
+package mikera.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import mikera.data.SegmentStore;
+import mikera.data.Serializer;
+import mikera.util.Rand;
+
+import org.junit.Test;
+
+public class TestChunkedGrid {
+	private static File tempDirectory() throws IOException {
+		File f=File.createTempFile("chunks", "");
+		if (!f.delete()||!f.mkdir()) throw new IOException("Unable to create "+f);
+		f.deleteOnExit();
+		return f;
+	}
+
+	private static void delete(File dir) {
+		File[] files=dir.listFiles();
+		if (files!=null) for (File f: files) f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * Compares contents by copying the chunked grid, which visits it chunk by chunk
+	 * rather than paging chunks in for each point
+	 */
+	private static void assertSameContents(Grid<Integer> expected, ChunkedGrid<Integer> g) {
+		final SparseGrid<Integer> copy=new SparseGrid<Integer>();
+		copy.paste(g);
+		assertEquals(expected.countNonNull(),g.countNonNull());
+		assertEquals(expected.countNonNull(),copy.countNonNull());
+		expected.visitPoints(new PointVisitor<Integer>() {
+			@Override
+			public Object visit(int x, int y, int z, Integer value) {
+				assertEquals(value,copy.get(x, y, z));
+				return null;
+			}
+		});
+	}
+
+	@Test public void testPaging() throws IOException {
+		File dir=tempDirectory();
+		try {
+			SegmentStore s=new SegmentStore(dir,1<<20);
+			ChunkedGrid<Integer> g=new ChunkedGrid<Integer>(s,new Serializer(),4);
+			SparseGrid<Integer> expected=new SparseGrid<Integer>();
+			for (int i=0; i<2000; i++) {
+				int x=Rand.range(-100, 100);
+				int y=Rand.range(-100, 100);
+				int z=Rand.range(-40, 40);
+				Integer v=(Rand.d(4)==1)?null:Integer.valueOf(Rand.r(5));
+				g.set(x, y, z, v);
+				expected.set(x, y, z, v);
+			}
+			g.setBlock(-20, -20, -20, 20, 20, 20, 3);
+			expected.setBlock(-20, -20, -20, 20, 20, 20, 3);
+			g.setBlock(-10, -10, -10, 70, 10, 10, null);
+			expected.setBlock(-10, -10, -10, 70, 10, 10, null);
+			assertTrue(g.getLoadedChunkCount()<=4);
+			g.validate();
+			assertSameContents(expected,g);
+
+			g.flush();
+			s.close();
+
+			// all chunks are found again after reopening
+			s=new SegmentStore(dir,1<<20);
+			g=new ChunkedGrid<Integer>(s,new Serializer(),4);
+			assertEquals(0,g.getLoadedChunkCount());
+			assertSameContents(expected,g);
+
+			// emptied chunks are removed from the store
+			int chunks=g.countNodes();
+			g.setBlock(-32, -32, -32, 31, 31, 31, null);
+			g.flush();
+			assertEquals(chunks-8,new ChunkedGrid<Integer>(s,new Serializer(),4).countNodes());
+
+			g.clear();
+			g.set(1, 2, 3, 4);
+			g.flush();
+			g=new ChunkedGrid<Integer>(s,new Serializer(),4);
+			assertEquals(1,g.countNonNull());
+			assertEquals(4,(int)g.get(1, 2, 3));
+			s.close();
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test public void testEviction() throws IOException {
+		File dir=tempDirectory();
+		try {
+			SegmentStore s=new SegmentStore(dir,1<<20);
+			ChunkedGrid<Integer> g=new ChunkedGrid<Integer>(s,new Serializer(),2);
+			for (int i=0; i<6; i++) {
+				g.set(i*32, 0, 1, i);
+				assertTrue(g.getLoadedChunkCount()<=2);
+			}
+			// earlier chunks were written out when evicted, and are read back
+			assertEquals(4,s.size());
+			for (int i=0; i<6; i++) {
+				assertEquals(i,(int)g.get(i*32, 0, 1));
+				assertNull(g.get(i*32+1, 0, 1));
+			}
+			g.set(0, 0, 1, 10);
+			g.set(0, 0, 2, 11);
+			g.get(64, 0, 0);
+			g.get(96, 0, 0);
+			assertEquals(10,(int)g.get(0, 0, 1));
+			assertEquals(11,(int)g.get(0, 0, 2));
+			assertEquals(7,g.countNonNull());
+			g.validate();
+
+			// chunks evicted after the last flush are found after the index
+			g.flush();
+			g.set(160, 0, 1, 20);
+			g.get(0, 0, 0);
+			g.get(32, 0, 0);
+			s.close();
+			s=new SegmentStore(dir,1<<20);
+			g=new ChunkedGrid<Integer>(s,new Serializer(),2);
+			assertEquals(7,g.countNonNull());
+			assertEquals(20,(int)g.get(160, 0, 1));
+			assertEquals(11,(int)g.get(0, 0, 2));
+			s.close();
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test public void testEqualValues() throws IOException {
+		File dir=tempDirectory();
+		try {
+			SegmentStore s=new SegmentStore(dir,1<<20);
+			ChunkedGrid<Integer> g=new ChunkedGrid<Integer>(s,new Serializer(),4);
+			g.set(1, 2, 3, Integer.valueOf(1000));
+			g.flush();
+			int records=s.size();
+
+			// an equal value does not change the chunk, so nothing more is written
+			g.set(1, 2, 3, Integer.valueOf(1000));
+			g.flush();
+			assertEquals(records,s.size());
+			s.close();
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test public void testCompaction() throws IOException {
+		File dir=tempDirectory();
+		File dir2=tempDirectory();
+		try {
+			SegmentStore s=new SegmentStore(dir,1<<20);
+			ChunkedGrid<Integer> g=new ChunkedGrid<Integer>(s,new Serializer(),1);
+			SparseGrid<Integer> expected=new SparseGrid<Integer>();
+			// alternating between chunks rewrites them on every eviction
+			for (int i=0; i<200; i++) {
+				int x=(i%4)*32;
+				g.set(x, i, 0, i);
+				expected.set(x, i, 0, i);
+			}
+			g.flush();
+			assertTrue(g.getLiveBytes()*4<s.getEndAddress());
+
+			SegmentStore s2=new SegmentStore(dir2,1<<20);
+			g.compactTo(s2);
+			s.close();
+			assertTrue(s2==g.getStore());
+			assertTrue(s2.getEndAddress()<2*g.getLiveBytes());
+			assertSameContents(expected,g);
+
+			g.set(200, 0, 0, 1);
+			expected.set(200, 0, 0, 1);
+			g.flush();
+			s2.close();
+			s2=new SegmentStore(dir2,1<<20);
+			g=new ChunkedGrid<Integer>(s2,new Serializer(),1);
+			assertSameContents(expected,g);
+			s2.close();
+		} finally {
+			delete(dir);
+			delete(dir2);
+		}
+	}
+
+	@Test public void testRange() {
+		ChunkedGrid<Integer> g=new ChunkedGrid<Integer>();
+		g.set(ChunkedGrid.MIN_COORD, ChunkedGrid.MAX_COORD, -1, 1);
+		g.set(ChunkedGrid.MAX_COORD, ChunkedGrid.MIN_COORD, 0, 2);
+		assertEquals(1,(int)g.get(ChunkedGrid.MIN_COORD, ChunkedGrid.MAX_COORD, -1));
+		assertEquals(2,(int)g.get(ChunkedGrid.MAX_COORD, ChunkedGrid.MIN_COORD, 0));
+		assertNull(g.get(ChunkedGrid.MAX_COORD+1, 0, 0));
+		assertEquals(2,g.countNodes());
+
+		final int[] count=new int[1];
+		g.visitBlocks(new BlockVisitor<Integer>() {
+			@Override
+			public Object visit(int x1, int y1, int z1, int x2, int y2, int z2, Integer value) {
+				count[0]++;
+				return null;
+			}
+		});
+		assertEquals(2,count[0]);
+
+		try {
+			g.set(0, ChunkedGrid.MIN_COORD-1, 0, 1);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// OK
+		}
+	}
+}
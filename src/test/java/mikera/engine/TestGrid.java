@@ -20,6 +20,9 @@ public class TestGrid {
 		testGrid(new TreeGrid<Integer>());
 		testGrid(new SparseGrid<Integer>());
 		testGrid(new PersistentTreeGrid<Integer>());
+		testGrid(new SnapshotGrid<Integer>());
+		testGrid(new ChunkedGrid<Integer>());
+		testGrid(new PaletteGrid<Integer>());
 	}
 	
 	public void testGrid(Grid<Integer> g) {
@@ -234,6 +237,61 @@ public class TestGrid {
 	}
 
 	
+	@Test public void testByteGrid() {
+		ByteGrid bg=new ByteGrid();
+		bg.set(1, 2, 3, (byte)5);
+		bg.setBlock(-2, 0, 0, 2, 0, 0, (byte)-7);
+		assertEquals(6,bg.countNonNull());
+		assertEquals(5,bg.getByte(1, 2, 3));
+		assertEquals(Byte.valueOf((byte)-7),bg.get(-2, 0, 0));
+		assertNull(bg.get(0, 1, 0));
+		assertEquals(0,bg.getByte(100, 100, 100));
+
+		// setting zero never grows the grid
+		int len=bg.dataLength();
+		bg.set(50, 50, 50, (byte)0);
+		bg.setBlock(-10, -10, -10, 10, 10, 10, null);
+		assertEquals(len,bg.dataLength());
+		assertEquals(0,bg.countNonNull());
+
+		bg.setBlock(0, 0, 0, 3, 1, 0, (byte)1);
+		bg.set(2, 0, 0, (byte)2);
+		final int[] counts=new int[2];
+		bg.visitBlocks(new BlockVisitor<Byte>() {
+			@Override
+			public Object visit(int x1, int y1, int z1, int x2, int y2, int z2, Byte value) {
+				counts[0]++;
+				counts[1]+=x2-x1+1;
+				return null;
+			}
+		});
+		assertEquals(4,counts[0]);
+		assertEquals(8,counts[1]);
+
+		ByteGrid copy=bg.clone();
+		bg.clearContents();
+		assertEquals(8,copy.countNonNull());
+		assertEquals(0,bg.countNonNull());
+	}
+
+	@Test public void testShortGrid() {
+		ShortGrid sg=new ShortGrid();
+		sg.set(0, 0, 0, (short)4000);
+		sg.setBlock(-3, -3, -3, -1, -1, -1, Short.valueOf((short)-300));
+		assertEquals(28,sg.countNonNull());
+		assertEquals(4000,sg.getShort(0, 0, 0));
+		assertEquals(Short.valueOf((short)-300),sg.get(-2, -2, -2));
+		assertEquals(64,sg.dataLength());
+
+		SparseGrid<Short> sp=new SparseGrid<Short>();
+		sp.paste(sg);
+		assertEquals(28,sp.countNonNull());
+		sg.clear();
+		sg.paste(sp,10,0,0);
+		assertEquals(4000,sg.getShort(10, 0, 0));
+		assertEquals(28,sg.countNonNull());
+	}
+
 	@Test public void testTreeGidBlockSet() {
 		TreeGrid<Integer> tg=new TreeGrid<Integer>();
 		
@@ -5,6 +5,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 
@@ -517,4 +518,118 @@ public class TestOctreap {
 
 		}
 	}
+	
+	private static Octreap<Integer> hollowBox(int a, int b) {
+		Octreap<Integer> m=new Octreap<Integer>();
+		m.setBlock(a,a,a,b,b,b,1);
+		m.setBlock(a+1,a+1,a+1,b-1,b-1,b-1,null);
+		return m;
+	}
+	
+	@Test public void testFloodFill() {
+		Octreap<Integer> m=hollowBox(-5,4);
+		m.floodFill(0, 0, 0, 2);
+		assertTrue(m.check());
+		assertEquals(2,(int)m.get(-4,-4,-4));
+		assertEquals(2,(int)m.get(3,3,3));
+		assertEquals(1,(int)m.get(4,0,0));
+		assertEquals(null,m.get(5,0,0));
+		assertEquals(1000,m.countArea());
+		
+		// the filled cavity is a single block, so merges to few nodes
+		m.floodFill(0, 0, 0, 3, 2);
+		assertEquals(3,(int)m.get(-4,3,0));
+		m.floodFill(0, 0, 0, null);
+		assertEquals(1000-512,m.countArea());
+		
+		// no change if start cell does not match
+		m.floodFill(0, 0, 0, 3, 1);
+		assertEquals(null,m.get(0,0,0));
+	}
+	
+	@Test public void testFloodFillRandom() {
+		for (int t=0; t<20; t++) {
+			Octreap<Integer> m=new Octreap<Integer>();
+			int[][][] cells=new int[8][8][8];
+			for (int x=0; x<8; x++) for (int y=0; y<8; y++) for (int z=0; z<8; z++) {
+				int v=(Rand.d(3)==1)?2:1;
+				cells[x][y][z]=v;
+				m.set(x-4, y-4, z-4, v);
+			}
+			int sx=Rand.r(8), sy=Rand.r(8), sz=Rand.r(8);
+			int from=cells[sx][sy][sz];
+			
+			// brute force fill for comparison
+			java.util.ArrayDeque<int[]> q=new java.util.ArrayDeque<int[]>();
+			cells[sx][sy][sz]=3;
+			q.add(new int[] {sx,sy,sz});
+			int volume=0;
+			while (!q.isEmpty()) {
+				int[] c=q.poll();
+				volume++;
+				int[][] ds={{1,0,0},{-1,0,0},{0,1,0},{0,-1,0},{0,0,1},{0,0,-1}};
+				for (int[] d: ds) {
+					int x=c[0]+d[0], y=c[1]+d[1], z=c[2]+d[2];
+					if ((x<0)||(y<0)||(z<0)||(x>=8)||(y>=8)||(z>=8)) continue;
+					if (cells[x][y][z]!=from) continue;
+					cells[x][y][z]=3;
+					q.add(new int[] {x,y,z});
+				}
+			}
+			
+			assertEquals(volume,m.getRegion(sx-4, sy-4, sz-4).volume);
+			m.floodFill(sx-4, sy-4, sz-4, 3);
+			assertTrue(m.check());
+			for (int x=0; x<8; x++) for (int y=0; y<8; y++) for (int z=0; z<8; z++) {
+				assertEquals(cells[x][y][z],(int)m.get(x-4, y-4, z-4));
+			}
+		}
+	}
+	
+	@Test public void testRegions() {
+		Octreap<Integer> m=hollowBox(-32,31);
+		Octreap.Region r=m.getRegion(0, 0, 0);
+		assertEquals(62*62*62,r.volume);
+		assertEquals(-31,r.x1);
+		assertEquals(30,r.z2);
+		
+		// large fills work with blocks, not cells
+		int nodes=m.countNodes();
+		m.floodFill(0, 0, 0, 2);
+		assertEquals(2,(int)m.get(30,-31,7));
+		assertTrue(m.countNodes()<3*nodes);
+		
+		// empty space outside is unbounded
+		assertEquals(Octreap.MAX_ZVALUE+1-64*64*64,m.getRegion(100, 0, 0).volume);
+	}
+	
+	@Test public void testLabelComponents() {
+		Octreap<Integer> m=new Octreap<Integer>();
+		m.setBlock(0,0,0,3,3,3,1);
+		m.setBlock(4,4,4,5,5,5,1); // touches the first only at a corner
+		m.setBlock(-10,-2,-2,-3,2,2,1);
+		m.setBlock(-3,0,0,0,0,0,1); // bridge between first and third
+		m.set(20,20,20,1);
+		m.set(21,20,20,2);
+		
+		ArrayList<Octreap.Region> regions=new ArrayList<Octreap.Region>();
+		Octreap<Integer> labels=m.labelComponents(1,regions);
+		assertEquals(3,regions.size());
+		assertEquals(m.countArea()-1,labels.countArea());
+		assertEquals(labels.get(0,0,0),labels.get(-10,-2,-2));
+		assertTrue(!labels.get(0,0,0).equals(labels.get(5,5,5)));
+		assertTrue(!labels.get(0,0,0).equals(labels.get(20,20,20)));
+		assertEquals(null,labels.get(21,20,20));
+		
+		long total=0;
+		for (Octreap.Region r: regions) total+=r.volume;
+		assertEquals(m.countArea()-1,total);
+		Octreap.Region big=regions.get(labels.get(0,0,0));
+		assertEquals(64+8*5*5+2,big.volume);
+		assertEquals(-10,big.x1);
+		assertEquals(-2,big.y1);
+		assertEquals(3,big.x2);
+		assertEquals(3,big.z2);
+		assertEquals(8,regions.get(labels.get(4,4,4)).volume);
+	}
 }
@@ -0,0 +1,87 @@
+package mikera.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import mikera.util.Rand;
+
+import org.junit.Test;
+
+public class TestPaletteGrid {
+	@Test public void testPaletteWidth() {
+		PaletteGrid<Integer> g=new PaletteGrid<Integer>();
+		g.set(0, 0, 0, 1000);
+		assertEquals(512,g.dataBytes());
+
+		// 16 distinct values plus null need 8 bits per cell
+		for (int i=0; i<16; i++) {
+			g.set(i, 1, 0, 2000+i);
+		}
+		assertEquals(4096,g.dataBytes());
+		assertEquals(1000,(int)g.get(0, 0, 0));
+		assertEquals(2015,(int)g.get(15, 1, 0));
+
+		// freed palette entries are reused, and compact() narrows the chunk again
+		g.setBlock(0, 1, 0, 15, 1, 0, 1000);
+		assertEquals(4096,g.dataBytes());
+		g.compact();
+		assertEquals(512,g.dataBytes());
+		assertEquals(17,g.countNonNull());
+		g.validate();
+
+		// more than 256 values
+		for (int i=0; i<300; i++) {
+			g.set(i&15, (i>>4)&15, 5, Integer.valueOf(i));
+		}
+		assertEquals(8192,g.dataBytes());
+		assertEquals(299,(int)g.get(11, 2, 5));
+		g.validate();
+
+		// filling a whole chunk makes it uniform
+		g.setBlock(0, 0, 0, 15, 15, 15, 7);
+		assertEquals(512,g.dataBytes());
+		assertEquals(4096,g.countNonNull());
+		g.setBlock(0, 0, 0, 15, 15, 15, null);
+		assertEquals(0,g.countNodes());
+		g.validate();
+	}
+
+	@Test public void testRandom() {
+		PaletteGrid<Integer> g=new PaletteGrid<Integer>();
+		SparseGrid<Integer> expected=new SparseGrid<Integer>();
+		for (int i=0; i<3000; i++) {
+			int x=Rand.range(-40, 40);
+			int y=Rand.range(-40, 40);
+			int z=Rand.range(-5, 5);
+			Integer v=(Rand.d(3)==1)?null:Integer.valueOf(Rand.r(6));
+			if (Rand.d(50)==1) {
+				int s=Rand.r(20);
+				g.setBlock(x, y, z, x+s, y+s, z+s, v);
+				expected.setBlock(x, y, z, x+s, y+s, z+s, v);
+			} else {
+				g.set(x, y, z, v);
+				expected.set(x, y, z, v);
+			}
+		}
+		g.validate();
+		assertEquals(expected.countNonNull(),g.countNonNull());
+
+		final PaletteGrid<Integer> pg=g;
+		expected.visitPoints(new PointVisitor<Integer>() {
+			@Override
+			public Object visit(int x, int y, int z, Integer value) {
+				assertEquals(value,pg.get(x, y, z));
+				return null;
+			}
+		});
+
+		PaletteGrid<Integer> copy=new PaletteGrid<Integer>();
+		copy.paste(g);
+		copy.compact();
+		copy.validate();
+		assertEquals(g.countNonNull(),copy.countNonNull());
+		assertTrue(copy.dataBytes()<=g.dataBytes());
+		assertNull(copy.get(1000, 0, 0));
+	}
+}
@@ -0,0 +1,105 @@
+package mikera.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestSnapshotGrid {
+	@Test public void testPublish() {
+		SnapshotGrid<Integer> g=new SnapshotGrid<Integer>();
+		PersistentTreeGrid<Integer> s0=g.snapshot();
+		assertEquals(0,g.getVersion());
+		assertFalse(g.isModified());
+
+		g.set(1, 2, 3, 7);
+		g.setBlock(0, 0, 0, 3, 3, 3, 1);
+		g.set(10, 10, 10, 2);
+		assertTrue(g.isModified());
+		assertEquals(2,(int)g.get(10, 10, 10));
+
+		// readers do not see unpublished writes
+		assertSame(s0,g.snapshot());
+		assertNull(g.snapshot().get(10, 10, 10));
+		assertEquals(0,g.getVersion());
+
+		PersistentTreeGrid<Integer> s1=g.publish();
+		assertSame(s1,g.snapshot());
+		assertEquals(1,g.getVersion());
+		assertEquals(65,s1.countNonNull());
+
+		// publishing with no changes keeps the version
+		assertSame(s1,g.publish());
+		assertEquals(1,g.getVersion());
+
+		// old snapshots are unaffected by later writes
+		g.clear();
+		g.publish();
+		assertEquals(0,g.snapshot().countNonNull());
+		assertEquals(65,s1.countNonNull());
+		assertEquals(0,s0.countNonNull());
+		assertEquals(2,g.getVersion());
+
+		g.set(5, 5, 5, 3);
+		g.rollback();
+		assertFalse(g.isModified());
+		assertNull(g.get(5, 5, 5));
+		g.validate();
+	}
+
+	@Test public void testConcurrentReaders() throws InterruptedException {
+		final SnapshotGrid<Integer> g=new SnapshotGrid<Integer>();
+		final AtomicBoolean done=new AtomicBoolean(false);
+		final AtomicInteger errors=new AtomicInteger(0);
+		final AtomicInteger reads=new AtomicInteger(0);
+
+		// each batch fills the same 4*4*4 block with a single value, so any snapshot must
+		// hold one value throughout the block
+		Thread[] readers=new Thread[16];
+		for (int i=0; i<readers.length; i++) {
+			readers[i]=new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (!done.get()) {
+						PersistentTreeGrid<Integer> s=g.snapshot();
+						Integer v=s.get(0, 0, 0);
+						for (int z=0; z<4; z++) {
+							for (int y=0; y<4; y++) {
+								for (int x=0; x<4; x++) {
+									Integer w=s.get(x, y, z);
+									if ((w==null)?(v!=null):!w.equals(v)) errors.incrementAndGet();
+								}
+							}
+						}
+						reads.incrementAndGet();
+					}
+				}
+			});
+			readers[i].start();
+		}
+
+		for (int i=1; i<=2000; i++) {
+			for (int z=0; z<4; z++) {
+				for (int y=0; y<4; y++) {
+					for (int x=0; x<4; x++) {
+						g.set(x, y, z, i);
+					}
+				}
+			}
+			g.publish();
+		}
+		done.set(true);
+		for (Thread t: readers) t.join();
+
+		assertEquals(0,errors.get());
+		assertTrue(reads.get()>0);
+		assertEquals(2000,g.getVersion());
+		assertEquals(2000,(int)g.snapshot().get(3, 3, 3));
+	}
+}
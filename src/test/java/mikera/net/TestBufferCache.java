@@ -0,0 +1,107 @@
+package mikera.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class TestBufferCache {
+	@Test public void testSizeClasses() {
+		BufferCache bc=new BufferCache(1<<20);
+		ByteBuffer a=bc.getBuffer(100);
+		ByteBuffer b=bc.getBuffer(100);
+		assertEquals(128,a.capacity());
+		assertTrue(a.isDirect());
+		assertTrue(a!=b);
+		assertEquals(256,bc.getOutstandingBytes());
+		
+		// two buffers of the same size must both be kept
+		bc.recycleBuffer(a);
+		bc.recycleBuffer(b);
+		assertEquals(0,bc.getOutstandingBytes());
+		ByteBuffer c=bc.getBuffer(120);
+		ByteBuffer d=bc.getBuffer(65);
+		assertTrue((c==a)||(c==b));
+		assertTrue((d==a)||(d==b));
+		assertTrue(c!=d);
+		assertEquals(2,bc.getAllocationCount());
+		assertEquals(2,bc.getReuseCount());
+		assertEquals(0,c.position());
+		assertEquals(c.capacity(),c.limit());
+		
+		ByteBuffer e=bc.getBuffer(0);
+		assertEquals(64,e.capacity());
+		
+		// oversized buffers are never pooled
+		ByteBuffer big=bc.getBuffer(1<<25);
+		assertEquals(1<<25,big.capacity());
+		bc.recycleBuffer(big);
+		assertEquals(1,bc.getDiscardCount());
+	}
+	
+	@Test public void testBoundedPool() {
+		BufferCache bc=new BufferCache(4096);
+		ArrayList<ByteBuffer> bufs=new ArrayList<ByteBuffer>();
+		for (int i=0; i<100; i++) {
+			bufs.add(bc.getBuffer(1024));
+		}
+		for (ByteBuffer bb: bufs) {
+			bc.recycleBuffer(bb);
+		}
+		// 4 in the shared list plus at most a magazine's worth on this thread
+		long pooled=bc.getRecycleCount()-bc.getDiscardCount();
+		assertTrue(pooled<=4+8);
+		assertTrue(bc.getDiscardCount()>=100-12);
+	}
+	
+	@Test public void testCrossThread() throws Exception {
+		final BufferCache bc=new BufferCache(1<<20);
+		final ArrayList<ByteBuffer> bufs=new ArrayList<ByteBuffer>();
+		for (int i=0; i<40; i++) {
+			bufs.add(bc.getBuffer(4000));
+		}
+		Thread t=new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (ByteBuffer bb: bufs) {
+					bc.recycleBuffer(bb);
+				}
+			}
+		});
+		t.start();
+		t.join();
+		
+		// buffers overflowing the other thread's magazine are available here
+		long before=bc.getAllocationCount();
+		for (int i=0; i<20; i++) {
+			bc.getBuffer(4000);
+		}
+		assertTrue(bc.getAllocationCount()-before<20);
+	}
+	
+	@Test public void testLeakTracking() throws Exception {
+		BufferCache bc=new BufferCache(1<<20);
+		bc.setLeakTracking(true);
+		ByteBuffer a=bc.getBuffer(100);
+		assertEquals(1,bc.getTrackedCount());
+		bc.recycleBuffer(a);
+		assertEquals(0,bc.getTrackedCount());
+		
+		// double recycle is detected and the buffer is not pooled twice
+		bc.recycleBuffer(a);
+		assertEquals(1,bc.getInvalidRecycleCount());
+		
+		bc.getBuffer(1000);
+		int wait=0;
+		while (bc.getLeakCount()==0) {
+			System.gc();
+			if (wait++>50) break;
+			Thread.sleep(10);
+		}
+		assertEquals(1,bc.getLeakCount());
+		assertEquals(1,bc.drainLeakReports().size());
+	}
+}
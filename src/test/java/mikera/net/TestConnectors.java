@@ -2,9 +2,24 @@ package mikera.net;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import mikera.data.Data;
 import mikera.net.BufferCache;
 import mikera.net.ByteBufferOutputStream;
 import mikera.net.ClientConnector;
@@ -107,6 +122,560 @@ public class TestConnectors {
 		}
 	}
 	
+	private static class OrderedReceiver implements MessageHandler {
+		final List<Integer> values=new ArrayList<Integer>();
+		
+		@Override
+		public boolean handleMessage(ByteBuffer data, Connection c) {
+			synchronized (values) {
+				values.add(data.getInt());
+			}
+			return true;
+		}
+		
+		int count() {
+			synchronized (values) {
+				return values.size();
+			}
+		}
+	}
+	
+	@Test public void testMultiReactor() throws Exception {
+		ExecutorService pool=Executors.newFixedThreadPool(4);
+		ServerConnector sc=new ServerConnector(3,pool);
+		int clients=12;
+		int messages=50;
+		ClientConnector[] ccs=new ClientConnector[clients];
+		OrderedReceiver[] receivers=new OrderedReceiver[clients];
+		try {
+			sc.setMessageHandler(ServerConnector.ECHO_HANDLER);
+			sc.startListening(1901);
+			
+			for (int i=0; i<clients; i++) {
+				ccs[i]=new ClientConnector();
+				receivers[i]=new OrderedReceiver();
+				ccs[i].setMessageHandler(receivers[i]);
+				ccs[i].connect("127.0.0.1", 1901);
+			}
+			
+			for (int j=0; j<messages; j++) {
+				for (int i=0; i<clients; i++) {
+					ByteBuffer bb=ByteBuffer.allocate(4);
+					bb.putInt(j);
+					bb.flip();
+					ccs[i].getConnection().write(bb);
+				}
+			}
+			
+			for (int i=0; i<clients; i++) {
+				int wait=0;
+				while (receivers[i].count()<messages) {
+					if (wait++>500) throw new Error("Client "+i+" only received "+receivers[i].count());
+					Thread.sleep(10);
+				}
+				for (int j=0; j<messages; j++) {
+					assertEquals(Integer.valueOf(j),receivers[i].values.get(j));
+				}
+			}
+			assertEquals(clients,sc.countConnections());
+		} finally {
+			for (ClientConnector cc: ccs) {
+				if (cc!=null) cc.close();
+			}
+			sc.close();
+			pool.shutdown();
+		}
+	}
+	
+	@Test public void testBroadcastAndBackPressure() throws Exception {
+		ServerConnector sc=new ServerConnector(2,null);
+		int clients=5;
+		ClientConnector[] ccs=new ClientConnector[clients];
+		OrderedReceiver[] receivers=new OrderedReceiver[clients];
+		try {
+			sc.setMessageHandler(ServerConnector.ECHO_HANDLER);
+			sc.startListening(1902);
+			for (int i=0; i<clients; i++) {
+				ccs[i]=new ClientConnector();
+				receivers[i]=new OrderedReceiver();
+				ccs[i].setMessageHandler(receivers[i]);
+				ccs[i].connect("127.0.0.1", 1902);
+			}
+			int wait=0;
+			while (sc.countConnections()<clients) {
+				if (wait++>500) throw new Error("Clients not connected");
+				Thread.sleep(10);
+			}
+			
+			// many small broadcast messages sharing one frame each
+			for (int j=0; j<200; j++) {
+				ByteBuffer bb=ByteBuffer.allocate(4);
+				bb.putInt(j);
+				bb.flip();
+				assertEquals(clients,sc.broadcast(bb));
+			}
+			
+			// large messages from one client, more than the socket buffers can hold at once
+			ByteBuffer big=ByteBuffer.allocate(200000);
+			for (int j=0; j<50; j++) {
+				big.clear();
+				big.putInt(1000+j);
+				big.position(big.capacity());
+				big.flip();
+				ccs[0].getConnection().write(big);
+			}
+			
+			for (int i=0; i<clients; i++) {
+				int expected=(i==0)?250:200;
+				wait=0;
+				while (receivers[i].count()<expected) {
+					if (wait++>1000) throw new Error("Client "+i+" only received "+receivers[i].count());
+					Thread.sleep(10);
+				}
+				for (int j=0; j<200; j++) {
+					assertEquals(Integer.valueOf(j),receivers[i].values.get(j));
+				}
+			}
+			for (int j=0; j<50; j++) {
+				assertEquals(Integer.valueOf(1000+j),receivers[0].values.get(200+j));
+			}
+			assertEquals(0,ccs[0].getConnection().getQueuedMessageCount());
+			
+			// closed connections are removed, and no longer broadcast to
+			for (int i=1; i<clients; i++) {
+				ccs[i].getConnection().close();
+			}
+			wait=0;
+			while (sc.countConnections()>1) {
+				if (wait++>500) throw new Error("Closed connections not removed: "+sc.countConnections());
+				Thread.sleep(10);
+			}
+			ByteBuffer bb=ByteBuffer.allocate(4);
+			bb.putInt(-1);
+			bb.flip();
+			assertEquals(1,sc.broadcast(bb));
+		} finally {
+			for (ClientConnector cc: ccs) {
+				if (cc!=null) cc.close();
+			}
+			sc.close();
+		}
+	}
+	
+	private static class BatchReceiver implements BatchMessageHandler {
+		final List<Integer> values=new ArrayList<Integer>();
+		int batches=0;
+		int maxBatch=0;
+		
+		@Override
+		public synchronized void handleMessages(List<ByteBuffer> messages, Connection c) {
+			batches++;
+			maxBatch=Math.max(maxBatch,messages.size());
+			for (ByteBuffer bb: messages) {
+				assertEquals(8,bb.remaining());
+				values.add(bb.getInt());
+				assertEquals(-1,bb.getInt());
+			}
+		}
+		
+		synchronized int count() {
+			return values.size();
+		}
+	}
+	
+	@Test public void testBatchingAndCoalescing() throws Exception {
+		ServerConnector sc=new ServerConnector();
+		ClientConnector cc=new ClientConnector();
+		BatchReceiver receiver=new BatchReceiver();
+		try {
+			sc.setMessageHandler(ServerConnector.ECHO_HANDLER);
+			sc.startListening(1903);
+			cc.setBatchMessageHandler(receiver);
+			Connection c=cc.connect("127.0.0.1", 1903);
+			
+			int wait=0;
+			while (sc.countConnections()<1) {
+				if (wait++>500) throw new Error("Client not connected");
+				Thread.sleep(10);
+			}
+			sc.setCoalescing(20000, 1<<20);
+			
+			// messages from the client are coalesced and echoed
+			c.setCoalescing(20000, 1<<20);
+			int n=500;
+			for (int i=0; i<n; i++) {
+				ByteBuffer bb=ByteBuffer.allocate(8);
+				bb.putInt(i);
+				bb.putInt(-1);
+				bb.flip();
+				c.write(bb);
+			}
+			assertTrue(c.getQueuedMessageCount()>0);
+			
+			wait=0;
+			while (receiver.count()<n) {
+				if (wait++>500) throw new Error("Only received "+receiver.count());
+				Thread.sleep(10);
+			}
+			synchronized (receiver) {
+				for (int i=0; i<n; i++) {
+					assertEquals(Integer.valueOf(i),receiver.values.get(i));
+				}
+				assertTrue(receiver.maxBatch>1);
+				assertTrue(receiver.batches<n);
+			}
+			assertEquals(0,c.getQueuedBytes());
+		} finally {
+			cc.close();
+			sc.close();
+		}
+	}
+	
+	private static ByteBuffer sampleMessage(int i) {
+		// mostly unchanged from one message to the next, as for a game state update
+		ByteBuffer bb=ByteBuffer.allocate(1000);
+		for (int j=0; j<250; j++) {
+			bb.putInt(j*31+((j==i%250)?i:0));
+		}
+		bb.flip();
+		return bb;
+	}
+	
+	@Test public void testPayloadCodec() {
+		PayloadCodec enc=new PayloadCodec(PayloadCodec.ALL_FEATURES);
+		PayloadCodec dec=new PayloadCodec(PayloadCodec.ALL_FEATURES);
+		ByteBuffer wire=ByteBuffer.allocate(PayloadCodec.maxEncodedLength(1000));
+		int total=0;
+		for (int i=0; i<100; i++) {
+			wire.clear();
+			int n=enc.encode(i%2, sampleMessage(i), wire);
+			total+=n;
+			wire.flip();
+			ByteBuffer bb=dec.decode(wire, 1000);
+			assertEquals(sampleMessage(i),bb);
+			BufferCache.recycle(bb);
+		}
+		// delta encoding makes repeated updates very small
+		assertTrue(total<100*100);
+		
+		// short messages and negative channels bypass compression and history
+		wire.clear();
+		ByteBuffer small=ByteBuffer.wrap(new byte[] {1,2,3});
+		assertEquals(6,enc.encode(-1, small, wire));
+		wire.flip();
+		ByteBuffer bb=dec.decode(wire, 1000);
+		assertEquals(ByteBuffer.wrap(new byte[] {1,2,3}),bb);
+		BufferCache.recycle(bb);
+		
+		// a delta message cannot be decoded without the previous message
+		wire.clear();
+		enc.encode(0, sampleMessage(100), wire);
+		wire.flip();
+		try {
+			new PayloadCodec(PayloadCodec.ALL_FEATURES).decode(wire, 1000);
+			throw new Error("Delta message decoded without history");
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+	}
+	
+	private static class CodecReceiver implements MessageHandler {
+		int count=0;
+		int errors=0;
+		
+		@Override
+		public synchronized boolean handleMessage(ByteBuffer data, Connection c) {
+			ByteBuffer expected=sampleMessage(count);
+			expected.putInt(0, count);
+			if (!expected.equals(data)) errors++;
+			count++;
+			return true;
+		}
+		
+		synchronized int count() {
+			return count;
+		}
+	}
+	
+	@Test public void testCodecNegotiation() throws Exception {
+		ServerConnector sc=new ServerConnector();
+		ClientConnector cc=new ClientConnector();
+		CodecReceiver receiver=new CodecReceiver();
+		try {
+			sc.setMessageHandler(ServerConnector.ECHO_HANDLER);
+			sc.startListening(1904);
+			cc.setMessageHandler(receiver);
+			Connection c=cc.connect("127.0.0.1", 1904);
+			
+			int wait=0;
+			while (sc.countConnections()<1) {
+				if (wait++>500) throw new Error("Client not connected");
+				Thread.sleep(10);
+			}
+			
+			// messages written before and during negotiation arrive unchanged
+			int n=300;
+			for (int i=0; i<n; i++) {
+				if (i==10) c.requestCodec(PayloadCodec.ALL_FEATURES);
+				ByteBuffer bb=sampleMessage(i);
+				bb.putInt(0, i);
+				c.write(i%3, bb);
+			}
+			
+			wait=0;
+			while (receiver.count()<n) {
+				if (wait++>500) throw new Error("Only received "+receiver.count());
+				Thread.sleep(10);
+			}
+			synchronized (receiver) {
+				assertEquals(0,receiver.errors);
+			}
+			assertEquals(PayloadCodec.ALL_FEATURES,c.getCodecFeatures());
+		} finally {
+			cc.close();
+			sc.close();
+		}
+	}
+	
+	private static ByteBuffer idMessage(int id, int size) {
+		ByteBuffer bb=ByteBuffer.allocate(size);
+		bb.putInt(id);
+		bb.position(size);
+		bb.flip();
+		return bb;
+	}
+	
+	private static int readId(DataInputStream in) throws IOException {
+		int length=in.readInt();
+		int id=in.readInt();
+		in.readFully(new byte[length-8]);
+		return id;
+	}
+	
+	private static class WritabilityRecorder implements WritabilityListener {
+		int unwritable=0;
+		int writable=0;
+		
+		@Override
+		public synchronized void writabilityChanged(Connection c, boolean isWritable) {
+			if (isWritable) writable++; else unwritable++;
+		}
+	}
+	
+	@Test public void testFlowControl() throws Exception {
+		ServerSocket ss=new ServerSocket(1905);
+		ClientConnector cc=new ClientConnector();
+		try {
+			final Connection c=cc.connect("127.0.0.1", 1905);
+			Socket s=ss.accept();
+			s.setSoTimeout(10000);
+			final DataInputStream in=new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			WritabilityRecorder recorder=new WritabilityRecorder();
+			c.setWritabilityListener(recorder);
+			c.setWatermarks(100000, 400000);
+			int size=20000;
+			
+			// writers block while a slow reader catches up, so the queue stays bounded
+			final int n=200;
+			final int[] read=new int[1];
+			Thread reader=new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i=0; i<n; i++) {
+							if (readId(in)!=i) return;
+							read[0]++;
+							if ((i%20)==0) Thread.sleep(5);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			reader.start();
+			for (int i=0; i<n; i++) {
+				c.write(idMessage(i, size));
+			}
+			reader.join(10000);
+			assertEquals(n,read[0]);
+			assertTrue(c.getPeakQueuedBytes()<400000+size+4);
+			assertTrue(c.getMaxWriteLatencyNanos()>0);
+			
+			// with nobody reading, old messages are dropped to stay under the high watermark
+			c.setOverflowPolicy(Connection.OverflowPolicy.DROP_OLDEST);
+			for (int i=0; i<2000; i++) {
+				c.write(idMessage(1000+i, size));
+				assertTrue(c.getQueuedBytes()<400000);
+			}
+			assertTrue(c.getDroppedMessageCount()>0);
+			assertTrue(!c.isWritable());
+			
+			// while full, keyed messages replace each other
+			c.setOverflowPolicy(Connection.OverflowPolicy.COALESCE_BY_KEY);
+			for (int i=0; i<30; i++) {
+				c.writeCoalesced(Integer.valueOf(i%3), idMessage(100000+i, size));
+			}
+			assertEquals(27,c.getCoalescedMessageCount());
+			
+			// draining makes the connection writable and sends the latest keyed messages
+			ArrayList<Integer> latest=new ArrayList<Integer>();
+			while (latest.size()<3) {
+				int id=readId(in);
+				if (id>=100000) latest.add(id);
+			}
+			assertEquals(Integer.valueOf(100027),latest.get(0));
+			assertEquals(Integer.valueOf(100028),latest.get(1));
+			assertEquals(Integer.valueOf(100029),latest.get(2));
+			assertTrue(c.isWritable());
+			synchronized (recorder) {
+				assertTrue(recorder.unwritable>0);
+				assertTrue(recorder.writable>0);
+			}
+			
+			// a client that stops reading can be disconnected instead
+			c.setOverflowPolicy(Connection.OverflowPolicy.DISCONNECT);
+			try {
+				for (int i=0; i<2000; i++) {
+					c.write(idMessage(i, size));
+				}
+				throw new Error("Connection not closed");
+			} catch (Error e) {
+				assertTrue(!c.getChannel().isOpen());
+			}
+			assertEquals(0,c.getQueuedBytes());
+			assertEquals(0,c.getQueuedMessageCount());
+			s.close();
+		} finally {
+			cc.close();
+			ss.close();
+		}
+	}
+	
+	@Test public void testRequests() throws Exception {
+		ServerConnector sc=new ServerConnector();
+		ClientConnector cc=new ClientConnector();
+		RequestDispatcher server=new RequestDispatcher();
+		RequestDispatcher client=new RequestDispatcher();
+		try {
+			server.setRequestHandler(new RequestHandler() {
+				@Override
+				public Data handleRequest(ByteBuffer request, Connection c) {
+					int v=request.getInt();
+					if (v==-2) c.close(); // disconnect without answering
+					if (v<0) return null; // never answered
+					if (v==13) throw new IllegalArgumentException("Unlucky");
+					Data d=new Data();
+					d.appendFullInt(v*2);
+					return d;
+				}
+			});
+			server.setMessageHandler(ServerConnector.ECHO_HANDLER);
+			sc.setMessageHandler(server);
+			sc.startListening(1906);
+			final ArrayList<Integer> plain=new ArrayList<Integer>();
+			client.setMessageHandler(new MessageHandler() {
+				@Override
+				public boolean handleMessage(ByteBuffer data, Connection c) {
+					synchronized (plain) {
+						plain.add(data.getInt());
+					}
+					return true;
+				}
+			});
+			cc.setMessageHandler(client);
+			Connection c=cc.connect("127.0.0.1", 1906);
+			
+			// many pipelined requests in flight at once
+			int n=2000;
+			ArrayList<CompletableFuture<Data>> futures=new ArrayList<CompletableFuture<Data>>();
+			for (int i=0; i<n; i++) {
+				Data d=new Data();
+				d.appendFullInt(i);
+				futures.add(client.request(c, d));
+			}
+			for (int i=0; i<n; i++) {
+				if (i==13) continue;
+				assertEquals(i*2,futures.get(i).get(10, TimeUnit.SECONDS).getFullInt(0));
+			}
+			try {
+				futures.get(13).get(10, TimeUnit.SECONDS);
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause().getMessage().contains("Unlucky"));
+			}
+			
+			// unanswered requests time out
+			Data d=new Data();
+			d.appendFullInt(-1);
+			CompletableFuture<Data> f=client.request(c, d, 50, TimeUnit.MILLISECONDS);
+			try {
+				f.get(10, TimeUnit.SECONDS);
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof TimeoutException);
+			}
+			assertEquals(0,client.getPendingCount());
+			
+			// other messages pass through to the message handlers, and are echoed back
+			Data m=new Data();
+			m.appendFullInt(1234);
+			c.write(m);
+			int wait=0;
+			while (true) {
+				synchronized (plain) {
+					if (plain.size()>0) break;
+				}
+				if (wait++>500) throw new Error("Message not received");
+				Thread.sleep(10);
+			}
+			assertEquals(Integer.valueOf(1234),plain.get(0));
+			
+			// requests on a closed connection fail
+			d.clear();
+			d.appendFullInt(-1);
+			CompletableFuture<Data> pending=client.request(c, d);
+			client.failPending(c, new Error("Closed"));
+			assertTrue(pending.isCompletedExceptionally());
+			
+			// responses arriving on another connection do not complete a request
+			ClientConnector cc2=new ClientConnector();
+			try {
+				Connection c2=cc2.connect("127.0.0.1", 1906);
+				RequestDispatcher rd=new RequestDispatcher();
+				d.clear();
+				d.appendFullInt(-1);
+				CompletableFuture<Data> first=rd.request(c, d);
+				ByteBuffer response=ByteBuffer.allocate(RequestDispatcher.REQUEST_HEADER_LENGTH+4);
+				response.put(CommonMessages.RESPONSE);
+				response.putInt(1);
+				response.putInt(99);
+				response.flip();
+				rd.handleMessage(response.duplicate(), c2);
+				assertTrue(!first.isDone());
+				rd.handleMessage(response.duplicate(), c);
+				assertEquals(99,first.get(10, TimeUnit.SECONDS).getFullInt(0));
+			} finally {
+				if (cc2.getConnection()!=null) cc2.getConnection().close();
+				cc2.close();
+			}
+			
+			// requests fail as soon as the remote side disconnects, without waiting to time out
+			d.clear();
+			d.appendFullInt(-2);
+			CompletableFuture<Data> dropped=client.request(c, d, 60, TimeUnit.SECONDS);
+			try {
+				dropped.get(10, TimeUnit.SECONDS);
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(!(e.getCause() instanceof TimeoutException));
+			}
+			assertEquals(0,client.getPendingCount());
+		} finally {
+			cc.close();
+			sc.close();
+		}
+	}
+	
 	@Test public void testByteBufferOutputStream() {
 		ByteBufferOutputStream bbos=new ByteBufferOutputStream();
 		
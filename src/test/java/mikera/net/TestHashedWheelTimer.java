@@ -0,0 +1,56 @@
+package mikera.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestHashedWheelTimer {
+	@Test public void testExpiryAndCancel() throws Exception {
+		HashedWheelTimer timer=new HashedWheelTimer(1,TimeUnit.MILLISECONDS,8);
+		try {
+			final AtomicInteger runs=new AtomicInteger(0);
+			final CountDownLatch latch=new CountDownLatch(1);
+			Runnable task=new Runnable() {
+				@Override
+				public void run() {
+					runs.incrementAndGet();
+				}
+			};
+			
+			// more rounds than the wheel has buckets
+			long start=System.nanoTime();
+			HashedWheelTimer.Timeout last=timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					latch.countDown();
+				}
+			}, 40, TimeUnit.MILLISECONDS);
+			HashedWheelTimer.Timeout[] ts=new HashedWheelTimer.Timeout[100];
+			for (int i=0; i<ts.length; i++) {
+				ts[i]=timer.schedule(task, i%20, TimeUnit.MILLISECONDS);
+			}
+			for (int i=0; i<ts.length; i+=2) {
+				ts[i].cancel();
+			}
+			
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			assertTrue(System.nanoTime()-start>=TimeUnit.MILLISECONDS.toNanos(40));
+			assertTrue(last.isExpired());
+			assertEquals(50,runs.get());
+			for (int i=0; i<ts.length; i++) {
+				assertEquals(i%2==0,ts[i].isCancelled());
+				assertEquals(i%2==1,ts[i].isExpired());
+			}
+			assertFalse(last.cancel());
+			assertEquals(0,timer.pendingTimeouts());
+		} finally {
+			timer.stop();
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package mikera.performance;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all JMH benchmarks in this package, writing results as JSON for comparison
+ * between builds.
+ * 
+ * Usage: Benchmarks [resultFile] [benchmarkRegex]
+ * 
+ * Run via Maven with: mvn -Pbenchmark verify
+ * 
+ * @author Mike Anderson
+ */
+public class Benchmarks {
+	public static final String DEFAULT_RESULT_FILE="target/jmh-result.json";
+
+	public static void main(String[] args) throws RunnerException {
+		String resultFile=(args.length>0)?args[0]:DEFAULT_RESULT_FILE;
+		String include=(args.length>1)?args[1]:Benchmarks.class.getPackage().getName()+".*";
+		
+		Options opts=new OptionsBuilder()
+			.include(include)
+			.resultFormat(ResultFormatType.JSON)
+			.result(resultFile)
+			.build();
+		new Runner(opts).run();
+	}
+}
@@ -0,0 +1,92 @@
+package mikera.performance;
+
+import java.util.concurrent.TimeUnit;
+
+import mikera.data.Data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for appending to and reading from Data buffers
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class DataBenchmark {
+	@Param({"1000","100000"})
+	public int count;
+	
+	private Data fullInts;
+	private Data varInts;
+	private int[] varIntPositions;
+	
+	@Setup
+	public void setup() {
+		fullInts=new Data();
+		varInts=new Data();
+		varIntPositions=new int[count];
+		for (int j=0; j<count; j++) {
+			fullInts.appendFullInt(j*31);
+			varIntPositions[j]=varInts.size();
+			varInts.appendInt(j*31);
+		}
+	}
+
+	@Benchmark
+	public Data appendFullInt() {
+		Data d=new Data();
+		for (int j=0; j<count; j++) {
+			d.appendFullInt(j);
+		}
+		return d;
+	}
+	
+	@Benchmark
+	public Data appendVarInt() {
+		Data d=new Data();
+		for (int j=0; j<count; j++) {
+			d.appendInt(j*31);
+		}
+		return d;
+	}
+	
+	@Benchmark
+	public Data appendFullLong() {
+		Data d=new Data();
+		for (int j=0; j<count; j++) {
+			d.appendFullLong(j);
+		}
+		return d;
+	}
+	
+	@Benchmark
+	public long getFullInt() {
+		long sum=0;
+		for (int j=0; j<count; j++) {
+			sum+=fullInts.getFullInt(j*4);
+		}
+		return sum;
+	}
+	
+	@Benchmark
+	public long getVarInt() {
+		long sum=0;
+		for (int j=0; j<count; j++) {
+			sum+=varInts.getInt(varIntPositions[j]);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,99 @@
+package mikera.performance;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import mikera.engine.ArrayGrid;
+import mikera.engine.BlockVisitor;
+import mikera.engine.Grid;
+import mikera.engine.Octreap;
+import mikera.engine.SparseGrid;
+import mikera.engine.TreeGrid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for set/get/visitBlocks on the Grid implementations
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class GridBenchmark {
+	private static final int POINTS=1024;
+	private static final int EXTENT=64;
+	
+	@Param({"Octreap","TreeGrid","SparseGrid","ArrayGrid"})
+	public String type;
+	
+	private Grid<Integer> grid;
+	private int[] xs=new int[POINTS];
+	private int[] ys=new int[POINTS];
+	private int[] zs=new int[POINTS];
+	private int i;
+	
+	private final BlockVisitor<Integer> counter=new BlockVisitor<Integer>() {
+		@Override
+		public Object visit(int x1, int y1, int z1, int x2, int y2, int z2, Integer value) {
+			i+=value;
+			return null;
+		}
+	};
+	
+	@Setup
+	public void setup() {
+		Random r=new Random(1234);
+		grid=create();
+		// a few solid regions plus scattered points
+		grid=grid.setBlock(0,0,0,EXTENT/2-1,EXTENT/2-1,3,Integer.valueOf(1));
+		grid=grid.setBlock(8,8,8,23,23,23,Integer.valueOf(2));
+		for (int j=0; j<POINTS; j++) {
+			xs[j]=r.nextInt(EXTENT);
+			ys[j]=r.nextInt(EXTENT);
+			zs[j]=r.nextInt(EXTENT);
+			grid=grid.set(xs[j],ys[j],zs[j],Integer.valueOf(j&7));
+		}
+	}
+	
+	private Grid<Integer> create() {
+		if (type.equals("TreeGrid")) return new TreeGrid<Integer>();
+		if (type.equals("SparseGrid")) return new SparseGrid<Integer>();
+		if (type.equals("ArrayGrid")) return new ArrayGrid<Integer>();
+		return new Octreap<Integer>();
+	}
+	
+	private int next() {
+		return (i++)&(POINTS-1);
+	}
+
+	@Benchmark
+	public Integer get() {
+		int j=next();
+		return grid.get(xs[j],ys[j],zs[j]);
+	}
+	
+	@Benchmark
+	public Grid<Integer> set() {
+		int j=next();
+		grid=grid.set(xs[j],ys[j],zs[j],Integer.valueOf(i&7));
+		return grid;
+	}
+	
+	@Benchmark
+	public int visitBlocks() {
+		grid.visitBlocks(counter);
+		return i;
+	}
+}
@@ -0,0 +1,73 @@
+package mikera.performance;
+
+import java.util.concurrent.TimeUnit;
+
+import mikera.math.Noise;
+import mikera.math.PerlinNoise;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the Noise and PerlinNoise generators
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class NoiseBenchmark {
+	private final Noise noise=new Noise();
+	private final PerlinNoise perlin=new PerlinNoise(1234);
+	private float x=0.1f;
+	
+	private float step() {
+		x+=0.37f;
+		if (x>1000f) x-=1000f;
+		return x;
+	}
+
+	@Benchmark
+	public float noise2() {
+		float v=step();
+		return noise.noise(v,v*0.5f);
+	}
+	
+	@Benchmark
+	public float noise3() {
+		float v=step();
+		return noise.noise(v,v*0.5f,v*0.25f);
+	}
+	
+	@Benchmark
+	public float clouds3() {
+		float v=step();
+		return noise.clouds(v,v*0.5f,v*0.25f);
+	}
+	
+	@Benchmark
+	public float perlinNoise3() {
+		float v=step();
+		return perlin.noise3(v,v*0.5f,v*0.25f);
+	}
+	
+	@Benchmark
+	public double perlinImprovedNoise() {
+		float v=step();
+		return perlin.improvedNoise(v,v*0.5,v*0.25);
+	}
+	
+	@Benchmark
+	public float perlinTurbulence3() {
+		float v=step();
+		return perlin.turbulence3(v,v*0.5f,v*0.25f,4.0f);
+	}
+}
@@ -0,0 +1,87 @@
+package mikera.performance;
+
+import java.util.concurrent.TimeUnit;
+
+import mikera.persistent.PersistentList;
+import mikera.persistent.impl.BlockList;
+import mikera.persistent.impl.CompositeList;
+import mikera.persistent.impl.Tuple;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the PersistentList implementations
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class PersistentListBenchmark {
+	@Param({"Tuple","BlockList","CompositeList"})
+	public String type;
+	
+	@Param({"32","10000"})
+	public int size;
+	
+	private PersistentList<Integer> list;
+	private PersistentList<Integer> other;
+	private int i;
+	
+	@Setup
+	public void setup() {
+		Integer[] values=new Integer[size];
+		for (int j=0; j<size; j++) {
+			values[j]=Integer.valueOf(j);
+		}
+		list=create(values);
+		other=create(values);
+	}
+	
+	private PersistentList<Integer> create(Integer[] values) {
+		if (type.equals("BlockList")) return BlockList.create(values,0,values.length);
+		if (type.equals("CompositeList")) return CompositeList.create(values,0,values.length);
+		return Tuple.create(values);
+	}
+
+	@Benchmark
+	public Integer get() {
+		i=(i+7919)%size;
+		return list.get(i);
+	}
+	
+	@Benchmark
+	public long iterate() {
+		long sum=0;
+		for (Integer v: list) {
+			sum+=v;
+		}
+		return sum;
+	}
+	
+	@Benchmark
+	public PersistentList<Integer> append() {
+		return list.append(Integer.valueOf(i));
+	}
+	
+	@Benchmark
+	public PersistentList<Integer> concat() {
+		return list.append(other);
+	}
+	
+	@Benchmark
+	public PersistentList<Integer> subList() {
+		return list.subList(size/4,size-size/4);
+	}
+}
@@ -0,0 +1,108 @@
+package mikera.performance;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import mikera.persistent.IntMap;
+import mikera.persistent.LongMap;
+import mikera.persistent.PersistentHashMap;
+import mikera.persistent.PersistentMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for include/get/delete on the persistent map implementations
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class PersistentMapBenchmark {
+	private static final int KEYS=1024;
+	
+	@Param({"PersistentHashMap","IntMap","LongMap"})
+	public String type;
+	
+	@Param({"1000","100000"})
+	public int size;
+	
+	private PersistentMap<Object,Integer> map;
+	private Object[] presentKeys;
+	private Object[] absentKeys;
+	private int i;
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Setup
+	public void setup() {
+		Random r=new Random(1234);
+		PersistentMap m;
+		if (type.equals("IntMap")) {
+			m=IntMap.EMPTY;
+		} else if (type.equals("LongMap")) {
+			m=LongMap.EMPTY;
+		} else {
+			m=PersistentHashMap.create();
+		}
+		presentKeys=new Object[Math.min(KEYS,size)];
+		absentKeys=new Object[KEYS];
+		for (int j=0; j<size; j++) {
+			Object k=key(2*r.nextInt(Integer.MAX_VALUE/2));
+			m=m.include(k,Integer.valueOf(j));
+			presentKeys[j%presentKeys.length]=k;
+		}
+		for (int j=0; j<KEYS; j++) {
+			absentKeys[j]=key(2*r.nextInt(Integer.MAX_VALUE/2)+1);
+		}
+		map=m;
+	}
+	
+	private Object key(int k) {
+		if (type.equals("LongMap")) return Long.valueOf(k);
+		return Integer.valueOf(k);
+	}
+	
+	private Object present() {
+		return presentKeys[(i++)%presentKeys.length];
+	}
+	
+	private Object absent() {
+		return absentKeys[(i++)&(KEYS-1)];
+	}
+
+	@Benchmark
+	public Integer get() {
+		return map.get(present());
+	}
+	
+	@Benchmark
+	public Integer getMissing() {
+		return map.get(absent());
+	}
+	
+	@Benchmark
+	public PersistentMap<Object,Integer> include() {
+		return map.include(absent(),Integer.valueOf(i));
+	}
+	
+	@Benchmark
+	public PersistentMap<Object,Integer> replace() {
+		return map.include(present(),Integer.valueOf(i));
+	}
+	
+	@Benchmark
+	public PersistentMap<Object,Integer> delete() {
+		return map.delete(present());
+	}
+}
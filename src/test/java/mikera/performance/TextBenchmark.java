@@ -0,0 +1,77 @@
+package mikera.performance;
+
+import java.util.concurrent.TimeUnit;
+
+import mikera.persistent.Text;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for Text concatenation and character access
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class TextBenchmark {
+	@Param({"100","100000"})
+	public int length;
+	
+	private Text text;
+	private Text small;
+	private int i;
+	
+	@Setup
+	public void setup() {
+		StringBuilder sb=new StringBuilder();
+		for (int j=0; j<length; j++) {
+			sb.append((char)('a'+(j%26)));
+		}
+		// build from many pieces so that the text has a realistic tree structure
+		Text t=Text.EMPTY_TEXT;
+		for (int j=0; j<length; j+=37) {
+			t=t.concat(Text.create(sb.substring(j,Math.min(length,j+37))));
+		}
+		text=t;
+		small=Text.create("Hello World");
+	}
+
+	@Benchmark
+	public char charAt() {
+		i=(i+7919)%length;
+		return text.charAt(i);
+	}
+	
+	@Benchmark
+	public Text concatSmall() {
+		return text.concat(small);
+	}
+	
+	@Benchmark
+	public Text concatSelf() {
+		return text.concat(text);
+	}
+	
+	@Benchmark
+	public Text insert() {
+		i=(i+7919)%length;
+		return text.insert(i,small);
+	}
+	
+	@Benchmark
+	public String toStringAll() {
+		return text.toString();
+	}
+}
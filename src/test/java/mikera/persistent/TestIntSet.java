@@ -3,8 +3,12 @@ package mikera.persistent;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import java.util.Iterator;
+import java.util.TreeSet;
+
 import mikera.persistent.IntSet;
 import mikera.util.Rand;
+import mikera.util.Tools;
 
 import org.junit.Test;
 
@@ -126,4 +130,103 @@ public class TestIntSet {
 	}
 
 
+
+	private IntSet randomSet(TreeSet<Integer> ts) {
+		// mix of sparse, dense and run-heavy blocks, including negative values
+		int[] bases={-200000,-70000,0,65536*3,65536*7};
+		for (int base: bases) {
+			switch (Rand.r(3)) {
+				case 0:
+					for (int i=0; i<Rand.r(100); i++) ts.add(base+Rand.r(65536));
+					break;
+				case 1:
+					for (int i=0; i<10000; i++) ts.add(base+Rand.r(40000));
+					break;
+				default:
+					int start=base+Rand.r(1000);
+					for (int i=0; i<Rand.r(50000); i++) ts.add(start+i);
+			}
+		}
+		return IntSet.create(ts);
+	}
+	
+	private void checkSame(TreeSet<Integer> ts, IntSet is) {
+		is.validate();
+		assertEquals(ts.size(),is.size());
+		int[] expected=new int[ts.size()];
+		int i=0;
+		Iterator<Integer> it=is.iterator();
+		for (Integer v: ts) {
+			assertEquals(v,it.next());
+			expected[i++]=v;
+		}
+		assertFalse(it.hasNext());
+		assertTrue(java.util.Arrays.equals(expected,is.toIntArray()));
+		assertEquals(Tools.hashCode(expected),is.hashCode());
+		for (int j=0; j<20; j++) {
+			if (expected.length==0) break;
+			int k=Rand.r(expected.length);
+			assertEquals(expected[k],is.getIndex(k));
+			assertEquals(k,is.findIndex(expected[k]));
+		}
+	}
+	
+	@Test public void testContainerAlgebra() {
+		for (int trial=0; trial<5; trial++) {
+			TreeSet<Integer> ta=new TreeSet<Integer>();
+			TreeSet<Integer> tb=new TreeSet<Integer>();
+			IntSet a=randomSet(ta);
+			IntSet b=randomSet(tb);
+			checkSame(ta,a);
+			checkSame(tb,b);
+			
+			TreeSet<Integer> union=new TreeSet<Integer>(ta);
+			union.addAll(tb);
+			checkSame(union,a.include(b));
+			
+			TreeSet<Integer> inter=new TreeSet<Integer>(ta);
+			inter.retainAll(tb);
+			checkSame(inter,a.intersection(b));
+			
+			TreeSet<Integer> diff=new TreeSet<Integer>(ta);
+			diff.removeAll(tb);
+			checkSame(diff,a.deleteAll(b));
+			
+			assertTrue(a.include(b).containsAll(a));
+			assertEquals(tb.containsAll(ta),b.containsAll(a));
+			
+			int v=-70000+Rand.r(100000);
+			TreeSet<Integer> tv=new TreeSet<Integer>(ta);
+			tv.add(v);
+			checkSame(tv,a.include(v));
+			tv.remove(v);
+			checkSame(tv,a.include(v).delete(v));
+		}
+	}
+	
+	@Test public void testRanges() {
+		IntSet r=IntSet.createRange(-100000,1000000);
+		assertEquals(1100000,r.size());
+		assertTrue(r.contains(-100000));
+		assertTrue(r.contains(999999));
+		assertFalse(r.contains(1000000));
+		assertEquals(0,r.findIndex(-100000));
+		assertEquals(100000,r.findIndex(0));
+		assertEquals(500,r.getIndex(100500));
+		
+		IntSet holes=r.deleteAll(IntSet.create(new int[] {5,6,7,200000}));
+		assertEquals(r.size()-4,holes.size());
+		assertFalse(holes.contains(6));
+		assertTrue(holes.contains(8));
+		assertTrue(r.containsAll(holes));
+		assertFalse(holes.containsAll(r));
+		assertEquals(r,holes.include(IntSet.create(new int[] {5,6,7,200000})));
+		
+		// untouched containers are shared with the source set
+		assertTrue(r.containerFor(700000)==holes.containerFor(700000));
+		assertTrue(r.containerFor(-100000)==r.include(500).containerFor(-100000));
+		
+		assertEquals(IntSet.EMPTY_INTSET,IntSet.createRange(5,5));
+		assertEquals(IntSet.create(new int[] {5,6}),IntSet.createRange(5,7));
+	}
 }
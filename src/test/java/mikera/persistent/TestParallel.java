@@ -0,0 +1,190 @@
+package mikera.persistent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.StreamSupport;
+
+import mikera.persistent.impl.ParallelOps;
+import mikera.util.Rand;
+
+import org.junit.Test;
+
+public class TestParallel {
+	private static final int N=20000;
+	
+	@Test public void testPersistentHashMap() {
+		PersistentHashMap.Builder<Integer,Integer> b=PersistentHashMap.builder();
+		long sum=0;
+		for (int i=0; i<N; i++) {
+			b.include(i,i*3);
+			sum+=i*3;
+		}
+		PersistentHashMap<Integer,Integer> pm=b.toPersistentHashMap();
+		
+		assertEquals(N,StreamSupport.stream(pm.spliterator(),true).count());
+		assertEquals(N,StreamSupport.stream(pm.entrySet().spliterator(),true).distinct().count());
+		assertEquals(Long.valueOf(sum),pm.parallelReduce(0L,(Long acc, Map.Entry<Integer,Integer> e) -> acc+e.getValue(),(x,y) -> x+y));
+		
+		final AtomicLong total=new AtomicLong();
+		pm.parallelForEach((k,v) -> total.addAndGet(v));
+		assertEquals(sum,total.get());
+		
+		ForkJoinPool pool=new ForkJoinPool(4);
+		PersistentHashMap<Integer,String> mapped;
+		try {
+			mapped=pm.mapValues((Integer v) -> String.valueOf(v), pool);
+		} finally {
+			pool.shutdown();
+		}
+		mapped.validate();
+		assertEquals(N,mapped.size());
+		for (int i=0; i<100; i++) {
+			int k=Rand.r(N);
+			assertEquals(String.valueOf(k*3),mapped.get(k));
+		}
+		
+		assertReducesInOrder(pm.spliterator(),pm.entrySet());
+		assertSplitsInOrder(pm.spliterator(),pm.entrySet());
+	}
+	
+	@Test public void testIntMap() {
+		IntMap<Integer> im=IntMap.create();
+		long sum=0;
+		for (int i=0; i<N; i++) {
+			int k=Rand.nextInt();
+			if (im.containsKey(k)) continue;
+			im=im.include(k,Integer.valueOf(i));
+			sum+=i;
+		}
+		
+		assertEquals(im.size(),StreamSupport.stream(im.spliterator(),true).count());
+		assertEquals(Long.valueOf(sum),im.parallelReduce(0L,(Long acc, Map.Entry<Integer,Integer> e) -> acc+e.getValue(),(x,y) -> x+y));
+		
+		IntMap<Integer> doubled=im.mapValues((Integer v) -> v*2);
+		doubled.validate();
+		assertEquals(im.size(),doubled.size());
+		for (Map.Entry<Integer,Integer> e: im.entrySet()) {
+			assertEquals(e.getValue()*2,(int)doubled.get(e.getKey().intValue()));
+		}
+		
+		assertReducesInOrder(im.spliterator(),im.entrySet());
+		assertSplitsInOrder(im.spliterator(),im.entrySet());
+	}
+	
+	@Test public void testPersistentHashSet() {
+		PersistentHashSet<Integer> ps=PersistentHashSet.create();
+		for (int i=0; i<N; i++) {
+			ps=ps.include(i);
+		}
+		assertEquals(N,ps.stream().count());
+		assertEquals(N,ps.parallelStream().distinct().count());
+		assertEquals(Long.valueOf(((long)N)*(N-1)/2),ps.parallelReduce(0L,(Long acc, Integer v) -> acc+v,(x,y) -> x+y));
+		
+		final AtomicLong count=new AtomicLong();
+		ps.parallelForEach(v -> count.incrementAndGet());
+		assertEquals(N,count.get());
+		
+		assertReducesInOrder(ps.spliterator(),ps);
+		assertSplitsInOrder(ps.spliterator(),ps);
+	}
+	
+	@Test public void testLongMap() {
+		LongMap<Integer> lm=LongMap.create();
+		long sum=0;
+		for (int i=0; i<N; i++) {
+			// mostly clustered timestamps, with some keys in other high words
+			long k=(i%10==0)?Rand.nextLong():1400000000000L+i;
+			if (lm.containsKey(k)) continue;
+			lm=lm.include(k,Integer.valueOf(i));
+			sum+=i;
+		}
+		
+		assertEquals(lm.size(),StreamSupport.stream(lm.spliterator(),true).count());
+		assertEquals(Long.valueOf(sum),lm.parallelReduce(0L,(Long acc, Map.Entry<Long,Integer> e) -> acc+e.getValue(),(x,y) -> x+y));
+		
+		final AtomicLong total=new AtomicLong();
+		lm.parallelForEach((k,v) -> total.addAndGet(v));
+		assertEquals(sum,total.get());
+		
+		assertReducesInOrder(lm.spliterator(),lm.entrySet());
+		assertSplitsInOrder(lm.spliterator(),lm.entrySet());
+		assertTrue(lm.spliterator().hasCharacteristics(Spliterator.ORDERED));
+		
+		LongMap<Integer> negated=lm.mapValues((Integer v) -> -v);
+		assertEquals(lm.size(),negated.size());
+		assertEquals(Integer.valueOf(-5),negated.get(1400000000005L));
+	}
+	
+	@Test public void testReduceOrder() {
+		ArrayList<Integer> list=new ArrayList<Integer>();
+		for (int i=0; i<N; i++) {
+			list.add(Rand.r(1000));
+		}
+		assertReducesInOrder(list.spliterator(),list);
+	}
+	
+	/**
+	 * Reduces with a polynomial hash, which is associative but not commutative, and
+	 * checks the result against the hash of the expected sequence
+	 */
+	static <T> void assertReducesInOrder(Spliterator<T> s, Iterable<T> expected) {
+		long[] hash=new long[] {0,1};
+		for (T e: expected) {
+			hash=new long[] {hash[0]*31+e.hashCode(),hash[1]*31};
+		}
+		ForkJoinPool pool=new ForkJoinPool(4);
+		try {
+			long[] result=ParallelOps.reduce(s,new long[] {0,1},
+					(long[] acc, T e) -> new long[] {acc[0]*31+e.hashCode(),acc[1]*31},
+					(x,y) -> new long[] {x[0]*y[1]+y[0],x[1]*y[1]},
+					pool);
+			assertEquals(hash[0],result[0]);
+			assertEquals(hash[1],result[1]);
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Splits a spliterator after advancing part way into its first node, and checks
+	 * that draining each prefix in turn gives the expected sequence
+	 */
+	static <T> void assertSplitsInOrder(Spliterator<T> s, Iterable<T> expected) {
+		final ArrayList<T> seen=new ArrayList<T>();
+		for (int i=0; i<3; i++) {
+			s.tryAdvance(e -> seen.add(e));
+		}
+		Spliterator<T> prefix;
+		while ((prefix=s.trySplit())!=null) {
+			prefix.forEachRemaining(e -> seen.add(e));
+			s.tryAdvance(e -> seen.add(e));
+		}
+		s.forEachRemaining(e -> seen.add(e));
+		
+		int i=0;
+		for (T e: expected) {
+			assertEquals(e,seen.get(i++));
+		}
+		assertEquals(i,seen.size());
+	}
+	
+	@Test public void testSmallSplits() {
+		PersistentHashMap<Integer,Integer> pm=PersistentHashMap.create(1,2);
+		Spliterator<Map.Entry<Integer,Integer>> s=pm.spliterator();
+		assertNull(s.trySplit());
+		assertEquals(1,s.estimateSize());
+		assertTrue(s.tryAdvance(e -> assertEquals(Integer.valueOf(2),e.getValue())));
+		assertEquals(0,s.estimateSize());
+		
+		PersistentHashMap<Integer,Integer> empty=PersistentHashMap.create();
+		assertEquals(0,empty.mapValues((Integer v) -> v).size());
+		assertEquals(0,StreamSupport.stream(empty.spliterator(),true).count());
+	}
+}
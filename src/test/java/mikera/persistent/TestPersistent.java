@@ -6,6 +6,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 
 import mikera.data.CommonTests;
 import mikera.persistent.IntSet;
@@ -426,6 +427,42 @@ public class TestPersistent {
 		assertEquals(ol,pl);
 		assertEquals(ol,tl.deleteAt(1).deleteAt(2));
 	}
+	
+	@Test public void testHashSetAlgebra() {
+		HashSet<Integer> ha=new HashSet<Integer>();
+		HashSet<Integer> hb=new HashSet<Integer>();
+		for (int i=0; i<500; i++) {
+			ha.add(Rand.r(1000));
+			hb.add(Rand.r(1000));
+		}
+		PersistentHashSet<Integer> a=PersistentHashSet.createFromSet(ha);
+		PersistentHashSet<Integer> b=PersistentHashSet.createFromSet(hb);
+		
+		HashSet<Integer> union=new HashSet<Integer>(ha);
+		union.addAll(hb);
+		HashSet<Integer> intersection=new HashSet<Integer>(ha);
+		intersection.retainAll(hb);
+		HashSet<Integer> difference=new HashSet<Integer>(ha);
+		difference.removeAll(hb);
+		
+		PersistentHashSet<Integer> u=a.union(b);
+		PersistentHashSet<Integer> i=a.intersection(b);
+		PersistentHashSet<Integer> d=a.difference(b);
+		u.validate();
+		i.validate();
+		d.validate();
+		assertEquals(union,new HashSet<Integer>(u));
+		assertEquals(intersection,new HashSet<Integer>(i));
+		assertEquals(difference,new HashSet<Integer>(d));
+		
+		// shared structure should be returned by identity
+		PersistentHashSet<Integer> a2=a.include(-1);
+		assertTrue(a==a.union(a));
+		assertTrue(a2==a2.union(a));
+		assertTrue(a==a.intersection(a2));
+		assertEquals(0,a.difference(a2).size());
+		assertEquals(PersistentHashSet.createSingleValueSet(-1),a2.difference(a));
+	}
 
 
 }
\ No newline at end of file
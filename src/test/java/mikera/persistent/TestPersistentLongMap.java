@@ -5,7 +5,9 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.TreeMap;
 
 import mikera.data.CommonTests;
 import mikera.persistent.ListFactory;
@@ -42,6 +44,11 @@ public class TestPersistentLongMap {
 		assertFalse(pm.entrySet().iterator().hasNext());
 		
 		assertEquals(null, pm.get(0L));
+		
+		LongMap<String> lm=new LongMap<String>();
+		assertEquals(0,lm.size());
+		assertEquals(pm,lm);
+		assertEquals("Hello",lm.include(1L,"Hello").get(1L));
 	}
 	
 	private PersistentMap<Long, String> addRandomMaps(PersistentMap<Long,String> lm) {
@@ -139,6 +146,96 @@ public class TestPersistentLongMap {
 		testMap(pm);
 	}
 	
+	@Test public void testOrderedIteration() {
+		LongMap<Integer> lm=LongMap.create();
+		TreeMap<Long,Integer> tm=new TreeMap<Long,Integer>();
+		long[] specials={Long.MIN_VALUE,Long.MAX_VALUE,-1L,0L,1L,1L<<32,-(1L<<40)};
+		for (int i=0; i<specials.length; i++) {
+			lm=lm.include(specials[i],Integer.valueOf(i));
+			tm.put(specials[i],i);
+		}
+		for (int i=0; i<1000; i++) {
+			long k=Rand.nextLong()>>Rand.r(64);
+			lm=lm.include(k,Integer.valueOf(i));
+			tm.put(k,i);
+		}
+		lm.validate();
+		assertEquals(tm.size(),lm.size());
+		Iterator<Map.Entry<Long,Integer>> it=lm.entrySetIterator();
+		for (Map.Entry<Long,Integer> e: tm.entrySet()) {
+			assertEquals(e,it.next());
+		}
+		assertFalse(it.hasNext());
+		assertEquals(tm.firstEntry(),lm.firstEntry());
+		assertEquals(tm.lastEntry(),lm.lastEntry());
+		
+		for (int i=0; i<50; i++) {
+			long a=Rand.nextLong()>>Rand.r(64);
+			long b=Rand.nextLong()>>Rand.r(64);
+			long from=Math.min(a,b);
+			long to=Math.max(a,b);
+			Iterator<Map.Entry<Long,Integer>> rit=lm.rangeIterator(from,to);
+			for (Map.Entry<Long,Integer> e: tm.subMap(from,to).entrySet()) {
+				assertEquals(e,rit.next());
+			}
+			assertFalse(rit.hasNext());
+			
+			LongMap<Integer> sub=lm.subMap(from,to);
+			sub.validate();
+			assertEquals(tm.subMap(from,to),sub);
+		}
+		assertFalse(lm.rangeIterator(0,0).hasNext());
+		assertFalse(lm.rangeIterator(5,Long.MIN_VALUE).hasNext());
+		
+		for (Long k: tm.keySet().toArray(new Long[0])) {
+			if (Rand.chance(0.5)) {
+				lm=lm.delete(k.longValue());
+				tm.remove(k);
+			}
+		}
+		lm.validate();
+		assertEquals(tm,lm);
+	}
+	
+	@Test public void testBulkOperations() {
+		int n=5000;
+		long base=1500000000000L;
+		long[] keys=new long[n];
+		Integer[] values=new Integer[n];
+		TreeMap<Long,Integer> tm=new TreeMap<Long,Integer>();
+		for (int i=0; i<n; i++) {
+			keys[i]=base+Rand.r(n*4);
+			values[i]=i;
+			tm.put(keys[i],i);
+		}
+		LongMap<Integer> lm=LongMap.create(keys,values);
+		lm.validate();
+		assertEquals(tm,lm);
+		
+		// small batch into a large map uses individual includes
+		LongMap<Integer> lm2=lm.includeAll(new long[] {-7L,keys[0]},new Integer[] {-1,-2});
+		lm2.validate();
+		assertEquals(Integer.valueOf(-1),lm2.get(-7L));
+		assertEquals(Integer.valueOf(-2),lm2.get(keys[0]));
+		assertEquals(lm.size()+1,lm2.size());
+		
+		// large batch merges with existing entries
+		LongMap<Integer> lm3=lm2.includeAll(keys,values);
+		lm3.validate();
+		tm.put(-7L,-1);
+		assertEquals(tm,lm3);
+		
+		Integer[] out=new Integer[n+1];
+		long[] lookups=new long[n+1];
+		System.arraycopy(keys, 0, lookups, 0, n);
+		lookups[n]=base-1;
+		assertEquals(n,lm.getAll(lookups,out));
+		for (int i=0; i<n; i++) {
+			assertEquals(tm.get(keys[i]),out[i]);
+		}
+		assertEquals(null,out[n]);
+	}
+	
 	public void testMap(PersistentMap<Long,String> pm) {
 		pm.validate();
 		testIterator(pm);
@@ -101,6 +101,61 @@ public class TestPersistentMap {
 		assertEquals(4,mm.size());
 	}
 	
+	@Test public void testBuilder() {
+		HashMap<Integer,String> hm=new HashMap<Integer, String>();
+		for (int i=0; i<1000; i++) {
+			hm.put(Rand.r(2000), Rand.nextString());
+		}
+		PersistentHashMap<Integer,String> pm=PersistentHashMap.create(hm);
+		pm.validate();
+		assertEquals(hm,pm.toHashMap());
+		
+		PersistentHashMap.Builder<Integer,String> b=pm.toBuilder();
+		b.include(-1,"Foo");
+		PersistentHashMap<Integer,String> pm2=b.toPersistentHashMap();
+		b.include(-2,"Bar");
+		b.include(-1,"Baz");
+		PersistentHashMap<Integer,String> pm3=b.toPersistentHashMap();
+		
+		// earlier maps must be unaffected by later builder changes
+		assertEquals(hm.size(),pm.size());
+		assertEquals(hm.size()+1,pm2.size());
+		assertEquals("Foo",pm2.get(-1));
+		assertEquals(null,pm2.get(-2));
+		assertEquals(hm.size()+2,pm3.size());
+		assertEquals("Baz",pm3.get(-1));
+		pm2.validate();
+		pm3.validate();
+		
+		assertTrue(pm==pm.include(new HashMap<Integer,String>()));
+		testMap(pm3);
+	}
+	
+	@Test public void testStructuralMerge() {
+		PersistentHashMap<Integer,String> pm=PersistentHashMap.create();
+		for (int i=0; i<1000; i++) {
+			pm=pm.include(i, Rand.nextString());
+		}
+		PersistentHashMap<Integer,String> pm2=(PersistentHashMap<Integer,String>)pm.include(3, "Foo").include(2000, "Bar").delete(7);
+		pm2=pm2.include(8,pm.get(8));
+		
+		PersistentHashMap<Integer,String> mm=(PersistentHashMap<Integer,String>)pm.include(pm2);
+		mm.validate();
+		assertEquals(1001,mm.size());
+		assertEquals("Foo",mm.get(3));
+		assertEquals("Bar",mm.get(2000));
+		assertEquals(pm.get(7),mm.get(7));
+		
+		PersistentHashMap<Integer,String> mm2=(PersistentHashMap<Integer,String>)pm2.include(pm);
+		mm2.validate();
+		assertEquals(1001,mm2.size());
+		assertEquals(pm.get(3),mm2.get(3));
+		
+		assertTrue(pm==pm.include(pm));
+		PersistentHashMap<Integer,String> empty=PersistentHashMap.create();
+		assertTrue(pm==empty.include(pm));
+	}
+	
 	@Test public void testToString() {
 		HashMap<Integer,String> hm=new HashMap<Integer, String>();
 		hm.put(1, "Hello");
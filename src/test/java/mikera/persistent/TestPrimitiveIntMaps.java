@@ -0,0 +1,122 @@
+package mikera.persistent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import mikera.data.CommonTests;
+import mikera.util.Rand;
+
+import org.junit.Test;
+
+public class TestPrimitiveIntMaps {
+	@Test public void testIntIntMap() {
+		IntIntMap m=IntIntMap.create();
+		HashMap<Integer,Integer> hm=new HashMap<Integer, Integer>();
+		for (int i=0; i<2000; i++) {
+			int key=randomKey();
+			int value=Rand.nextInt();
+			m=m.include(key,value);
+			hm.put(key,value);
+			
+			int delKey=randomKey();
+			m=m.delete(delKey);
+			hm.remove(delKey);
+		}
+		m.validate();
+		assertEquals(hm.size(),m.size());
+		for (Map.Entry<Integer,Integer> ent: hm.entrySet()) {
+			assertTrue(m.containsKey(ent.getKey().intValue()));
+			assertEquals(ent.getValue().intValue(),m.get(ent.getKey().intValue()));
+		}
+		assertEquals(hm,m.toHashMap());
+		assertEquals(MapFactory.create(hm),m);
+		assertEquals(-1,m.get(Integer.MIN_VALUE+7,-1));
+		CommonTests.testCommonData(m);
+		
+		for (Integer k: hm.keySet()) {
+			m=m.delete(k.intValue());
+		}
+		m.validate();
+		assertTrue(m==IntIntMap.EMPTY);
+	}
+	
+	@Test public void testIntLongMap() {
+		IntLongMap m=IntLongMap.create();
+		HashMap<Integer,Long> hm=new HashMap<Integer, Long>();
+		for (int i=0; i<2000; i++) {
+			int key=randomKey();
+			long value=Rand.nextLong();
+			m=m.include(key,value);
+			hm.put(key,value);
+			
+			int delKey=randomKey();
+			m=m.delete(delKey);
+			hm.remove(delKey);
+		}
+		m.validate();
+		assertEquals(hm,m.toHashMap());
+		assertEquals(m,IntLongMap.create(hm));
+		CommonTests.testCommonData(m);
+	}
+	
+	@Test public void testIntDoubleMap() {
+		IntDoubleMap m=IntDoubleMap.create();
+		HashMap<Integer,Double> hm=new HashMap<Integer, Double>();
+		for (int i=0; i<2000; i++) {
+			int key=randomKey();
+			double value=Rand.nextDouble();
+			m=m.include(key,value);
+			hm.put(key,value);
+			
+			int delKey=randomKey();
+			m=m.delete(delKey);
+			hm.remove(delKey);
+		}
+		m.validate();
+		assertEquals(hm,m.toHashMap());
+		assertEquals(0.0,m.get(Integer.MAX_VALUE),0.0);
+		CommonTests.testCommonData(m);
+	}
+	
+	@Test public void testUnchanged() {
+		IntIntMap m=IntIntMap.create(3,4);
+		assertTrue(m==m.include(3,4));
+		assertTrue(m==m.delete(5));
+		assertFalse(m.containsKey(5));
+		assertEquals(Integer.valueOf(4),m.get((Object)Integer.valueOf(3)));
+		assertEquals(null,m.get((Object)Integer.valueOf(5)));
+		
+		IntDoubleMap dm=IntDoubleMap.create(1,Double.NaN);
+		assertTrue(dm==dm.include(1,Double.NaN));
+		assertFalse(dm==dm.include(1,-0.0));
+	}
+	
+	@Test public void testDeepKeys() {
+		// keys differing only in their top bits share a path down to the deepest level
+		int[] keys=new int[] {0,1<<30,1<<31,(1<<30)|(1<<31)};
+		IntLongMap m=IntLongMap.create();
+		for (int i=0; i<keys.length; i++) {
+			m=m.include(keys[i],i);
+		}
+		m.validate();
+		assertEquals(keys.length,m.size());
+		assertEquals(keys.length,m.toHashMap().size());
+		for (int i=0; i<keys.length; i++) {
+			assertEquals(i,m.get(keys[i],-1L));
+		}
+		for (int i=0; i<keys.length; i++) {
+			m=m.delete(keys[i]);
+			m.validate();
+		}
+		assertTrue(m==IntLongMap.EMPTY);
+	}
+	
+	private static int randomKey() {
+		// mix of small clustered keys and keys spread over the whole int range
+		return Rand.chance(0.5)?Rand.r(1000):Rand.nextInt();
+	}
+}
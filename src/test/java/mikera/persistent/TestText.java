@@ -4,6 +4,12 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+
 import mikera.persistent.Text;
 import mikera.util.Rand;
 import mikera.util.TextUtils;
@@ -142,6 +148,103 @@ public class TestText {
 		assertTrue(t.toString().contentEquals(t));
 	}
 	
+	@Test public void testBalancedAppend() {
+		Text t=Text.EMPTY_TEXT;
+		StringBuilder sb=new StringBuilder();
+		for (int i=0; i<5000; i++) {
+			String s=Integer.toString(i)+((i%7==0)?"\n":" ");
+			sb.append(s);
+			t=t.append(s);
+		}
+		t.validate();
+		assertEquals(sb.toString(),t.toString());
+		assertTrue(t.depth()<=2*(32-Integer.numberOfLeadingZeros(t.countBlocks())));
+		
+		Text u=Text.EMPTY_TEXT;
+		for (int i=0; i<200; i++) {
+			u=Text.concat(Text.create(TextUtils.whiteSpace(i%100)),u);
+		}
+		u.validate();
+		
+		Text v=t.insert(1234, u).deleteRange(50, 4000);
+		v.validate();
+		String vs=sb.toString();
+		vs=vs.substring(0,1234)+u.toString()+vs.substring(1234);
+		vs=vs.substring(0,50)+vs.substring(4000);
+		assertEquals(vs,v.toString());
+		assertEquals(Text.create(vs),v);
+	}
+	
+	@Test public void testLines() {
+		String s="first\nsecond line\n\n"+TextUtils.whiteSpace(200)+"\nlast";
+		Text t=Text.EMPTY_TEXT;
+		for (int i=0; i<s.length(); i+=5) {
+			t=t.append(s.substring(i,Math.min(s.length(),i+5)));
+		}
+		assertEquals(5,t.countLines());
+		assertEquals(0,t.lineAt(0));
+		assertEquals(0,t.lineAt(5));
+		assertEquals(1,t.lineAt(6));
+		assertEquals(4,t.lineAt(t.length()));
+		assertEquals(0,t.offsetOfLine(0));
+		assertEquals(6,t.offsetOfLine(1));
+		assertEquals(18,t.offsetOfLine(2));
+		assertEquals("second line",t.getLine(1).toString());
+		assertEquals("",t.getLine(2).toString());
+		assertEquals("last",t.getLine(4).toString());
+		
+		for (int i=0; i<=t.length(); i++) {
+			int line=t.lineAt(i);
+			assertTrue(t.offsetOfLine(line)<=i);
+			if (line<4) assertTrue(t.offsetOfLine(line+1)>i);
+		}
+		
+		assertEquals(1,Text.EMPTY_TEXT.countLines());
+		assertEquals(0,Text.EMPTY_TEXT.lineAt(0));
+	}
+	
+	@Test public void testTextBuilder() throws Exception {
+		TextBuilder tb=new TextBuilder();
+		StringBuilder sb=new StringBuilder();
+		for (int i=0; i<3000; i++) {
+			switch (i%4) {
+				case 0: tb.append('x'); sb.append('x'); break;
+				case 1: tb.append("line "+i+"\n"); sb.append("line "+i+"\n"); break;
+				case 2: tb.append(Text.create(TextUtils.whiteSpace(i%150))); sb.append(TextUtils.whiteSpace(i%150)); break;
+				default: tb.append(new StringBuilder("\u00e9\u20ac"),0,2); sb.append("\u00e9\u20ac"); break;
+			}
+			assertEquals(sb.length(),tb.length());
+		}
+		Text t=tb.toText();
+		t.validate();
+		assertEquals(sb.toString(),t.toString());
+		assertEquals(sb.toString(),tb.toString());
+		
+		StringWriter sw=new StringWriter();
+		tb.writeTo(sw);
+		assertEquals(sb.toString(),sw.toString());
+		
+		Charset utf8=Charset.forName("UTF-8");
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		long n=tb.writeTo(Channels.newChannel(bos),utf8);
+		byte[] expected=sb.toString().getBytes(utf8);
+		assertEquals(expected.length,n);
+		assertEquals(sb.toString(),new String(bos.toByteArray(),utf8));
+		
+		// surrogate pairs split across encoding chunks
+		TextBuilder tb2=new TextBuilder();
+		for (int i=0; i<5000; i++) {
+			tb2.append("\ud83d\ude00");
+		}
+		bos.reset();
+		tb2.toText().writeTo(Channels.newChannel(bos),utf8);
+		assertEquals(tb2.toString(),new String(bos.toByteArray(),utf8));
+		
+		tb.clear();
+		assertEquals(0,tb.length());
+		assertEquals(Text.EMPTY_TEXT,tb.toText());
+	}
+	
 	public void testTextObject(Text t) {
 		int len=t.length();
 		
@@ -153,6 +256,7 @@ public class TestText {
 			assertNotNull(t.getBlock(len-1));
 		}
 		t.isPacked();
+		t.validate();
 		assertTrue(t.countNodes()>=t.countBlocks());
 		assertEquals(len*2,Text.concat(t, t).length());
 	}
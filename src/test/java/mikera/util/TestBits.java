@@ -366,6 +366,135 @@ public class TestBits {
 
 	}
 	
+	private static BitGrid randomBitGrid(int n, int range) {
+		BitGrid bg=new BitGrid();
+		for (int i=0; i<n; i++) {
+			bg.set(Rand.range(-range, range),Rand.range(-range, range),Rand.range(-range, range),true);
+		}
+		return bg;
+	}
+	
+	@Test public void testBitGridBooleanOps() {
+		for (int t=0; t<20; t++) {
+			BitGrid a=randomBitGrid(60,6);
+			BitGrid b=randomBitGrid(60,6);
+			b.set(Rand.range(-20, 20),Rand.range(-20, 20),Rand.range(-20, 20),true);
+			BitGrid and=a.clone().and(b);
+			BitGrid or=a.clone().or(b);
+			BitGrid xor=a.clone().xor(b);
+			BitGrid andNot=a.clone().andNot(b);
+			int[] counts=new int[4];
+			for (int z=-21; z<=21; z++) {
+				for (int y=-21; y<=21; y++) {
+					for (int x=-21; x<=21; x++) {
+						boolean av=a.test(x, y, z);
+						boolean bv=b.test(x, y, z);
+						assertEquals(av&&bv,and.test(x, y, z));
+						assertEquals(av||bv,or.test(x, y, z));
+						assertEquals(av^bv,xor.test(x, y, z));
+						assertEquals(av&&!bv,andNot.test(x, y, z));
+						if (av&&bv) counts[0]++;
+						if (av||bv) counts[1]++;
+						if (av^bv) counts[2]++;
+						if (av&&!bv) counts[3]++;
+					}
+				}
+			}
+			assertEquals(counts[0],and.countSetBits());
+			assertEquals(counts[1],or.countSetBits());
+			assertEquals(counts[2],xor.countSetBits());
+			assertEquals(counts[3],andNot.countSetBits());
+			or.validate();
+			xor.validate();
+		}
+		
+		BitGrid a=randomBitGrid(20,5);
+		assertEquals(0,a.clone().xor(a.clone()).countSetBits());
+		assertEquals(0,a.clone().andNot(a).countSetBits());
+		assertEquals(a.countSetBits(),new BitGrid().or(a).countSetBits());
+		assertEquals(0,a.clone().and(new BitGrid()).countSetBits());
+	}
+	
+	@Test public void testBitGridRegionCount() {
+		BitGrid bg=randomBitGrid(200,8);
+		for (int t=0; t<50; t++) {
+			int x1=Rand.range(-10, 10); int x2=x1+Rand.r(10);
+			int y1=Rand.range(-10, 10); int y2=y1+Rand.r(10);
+			int z1=Rand.range(-10, 10); int z2=z1+Rand.r(10);
+			int n=0;
+			for (int z=z1; z<=z2; z++) {
+				for (int y=y1; y<=y2; y++) {
+					for (int x=x1; x<=x2; x++) {
+						if (bg.test(x, y, z)) n++;
+					}
+				}
+			}
+			assertEquals(n,bg.countSetBits(x1, y1, z1, x2, y2, z2));
+		}
+	}
+	
+	@Test public void testBitGridMorphology() {
+		BitGrid bg=new BitGrid();
+		bg.set(0, 0, 0, true);
+		assertEquals(7,bg.clone().dilate(6).countSetBits());
+		assertEquals(27,bg.clone().dilate(26).countSetBits());
+		assertEquals(0,bg.clone().erode(6).countSetBits());
+		
+		bg.setBlock(-3, -3, -3, 3, 3, 3, true);
+		assertEquals(125,bg.clone().erode(26).countSetBits());
+		assertEquals(125,bg.clone().erode(6).countSetBits());
+		assertEquals(9*9*9,bg.clone().dilate(26).countSetBits());
+		
+		for (int t=0; t<10; t++) {
+			BitGrid a=randomBitGrid(40,5);
+			BitGrid d6=a.clone().dilate(6);
+			BitGrid d26=a.clone().dilate(26);
+			BitGrid e6=a.clone().erode(6);
+			BitGrid e26=a.clone().erode(26);
+			d6.validate();
+			for (int z=-8; z<=8; z++) {
+				for (int y=-8; y<=8; y++) {
+					for (int x=-8; x<=8; x++) {
+						boolean any6=a.test(x, y, z)||a.test(x-1, y, z)||a.test(x+1, y, z)||a.test(x, y-1, z)||a.test(x, y+1, z)||a.test(x, y, z-1)||a.test(x, y, z+1);
+						boolean all6=a.test(x, y, z)&&a.test(x-1, y, z)&&a.test(x+1, y, z)&&a.test(x, y-1, z)&&a.test(x, y+1, z)&&a.test(x, y, z-1)&&a.test(x, y, z+1);
+						boolean any26=false;
+						boolean all26=true;
+						for (int dz=-1; dz<=1; dz++) {
+							for (int dy=-1; dy<=1; dy++) {
+								for (int dx=-1; dx<=1; dx++) {
+									boolean v=a.test(x+dx, y+dy, z+dz);
+									any26|=v;
+									all26&=v;
+								}
+							}
+						}
+						assertEquals(any6,d6.test(x, y, z));
+						assertEquals(any26,d26.test(x, y, z));
+						assertEquals(all6,e6.test(x, y, z));
+						assertEquals(all26,e26.test(x, y, z));
+					}
+				}
+			}
+		}
+	}
+	
+	@Test public void testBitGridNextSetBit() {
+		BitGrid bg=randomBitGrid(100,10);
+		final BitGrid seen=new BitGrid();
+		int n=0;
+		for (long i=bg.nextSetBit(0); i>=0; i=bg.nextSetBit(i+1)) {
+			int x=bg.indexX(i);
+			int y=bg.indexY(i);
+			int z=bg.indexZ(i);
+			assertTrue(bg.test(x, y, z));
+			assertTrue(!seen.test(x, y, z));
+			seen.set(x, y, z, true);
+			n++;
+		}
+		assertEquals(bg.countSetBits(),n);
+		assertEquals(-1,new BitGrid().nextSetBit(0));
+	}
+	
 	@Test public void testBinaryString() {
 		assertEquals("00000000000000001111111100000000",Bits.toBinaryString(0xFF00));
 		assertEquals("11111111111111111111111111111111",Bits.toBinaryString(-1));
@@ -0,0 +1,103 @@
+package mikera.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mikera.persistent.IntSet;
+
+import org.junit.Test;
+
+public class TestHashCache {
+	@Test public void testInterning() {
+		for (HashCache.Policy p: HashCache.Policy.values()) {
+			HashCache<String> h=new HashCache<String>(100,p);
+			String a=new String("foo");
+			String b=new String("foo");
+			assertTrue(a==h.cache(a));
+			assertTrue(a==h.cache(b));
+			assertEquals(1,h.getMissCount());
+			assertEquals(1,h.getHitCount());
+			assertTrue(a==h.getCachedValueForHashCode(a.hashCode()));
+			assertEquals(1,h.size());
+			
+			h.clear();
+			assertEquals(0,h.size());
+			assertTrue(b==h.cache(b));
+		}
+	}
+	
+	@Test public void testGrowth() {
+		HashCache<Integer> h=new HashCache<Integer>(10000);
+		for (int i=0; i<5000; i++) {
+			h.cache(Integer.valueOf(i+1000));
+		}
+		assertEquals(5000,h.size());
+		assertEquals(0,h.getEvictionCount());
+		for (int i=0; i<5000; i++) {
+			h.cache(Integer.valueOf(i+1000));
+		}
+		assertEquals(5000,h.getHitCount());
+	}
+	
+	@Test public void testEviction() {
+		for (HashCache.Policy p: new HashCache.Policy[] {HashCache.Policy.CLOCK,HashCache.Policy.LRU}) {
+			HashCache<Integer> h=new HashCache<Integer>(160,p);
+			for (int i=0; i<10000; i++) {
+				h.cache(Integer.valueOf(i+1000));
+			}
+			assertTrue(h.size()<=h.getMaxSize());
+			assertEquals(10000,h.getMissCount());
+			assertEquals(10000-h.size(),h.getEvictionCount());
+		}
+	}
+	
+	@Test public void testLRUKeepsRecentValues() {
+		HashCache<Integer> h=new HashCache<Integer>(16*8,HashCache.Policy.LRU);
+		// outside the small Integer cache, so each valueOf gives a distinct equal instance
+		Integer hot=Integer.valueOf(-1000);
+		h.cache(hot);
+		for (int i=0; i<10000; i++) {
+			assertTrue(hot==h.cache(Integer.valueOf(-1000)));
+			h.cache(Integer.valueOf(i+1000));
+		}
+	}
+	
+	@Test public void testConcurrentInterning() throws InterruptedException {
+		final HashCache<Integer> h=new HashCache<Integer>(100000);
+		final Integer[] canonical=new Integer[1000];
+		final AtomicInteger failures=new AtomicInteger();
+		Thread[] threads=new Thread[8];
+		for (int t=0; t<threads.length; t++) {
+			threads[t]=new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i=0; i<canonical.length; i++) {
+						Integer v=h.cache(Integer.valueOf(i+1000));
+						synchronized (canonical) {
+							if (canonical[i]==null) canonical[i]=v;
+							if (canonical[i]!=v) failures.incrementAndGet();
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t: threads) {
+			t.join();
+		}
+		assertEquals(0,failures.get());
+		assertEquals(canonical.length,h.size());
+		assertEquals(canonical.length,h.getMissCount());
+	}
+	
+	@Test public void testIntSetCache() {
+		HashCache<IntSet> c=IntSet.getInternCache();
+		long hits=c.getHitCount();
+		IntSet a=IntSet.create(new int[] {1,5,9});
+		IntSet b=IntSet.create(new int[] {9,5,1});
+		assertTrue(a==b);
+		assertTrue(c.getHitCount()>hits);
+	}
+}
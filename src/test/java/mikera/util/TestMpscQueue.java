@@ -0,0 +1,58 @@
+package mikera.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestMpscQueue {
+	@Test public void testSingleThread() {
+		MpscQueue<String> q=new MpscQueue<String>();
+		assertTrue(q.isEmpty());
+		assertNull(q.poll());
+		q.offer("a");
+		q.offer("b");
+		assertTrue(!q.isEmpty());
+		assertEquals("a",q.peek());
+		assertEquals("a",q.poll());
+		assertEquals("b",q.poll());
+		assertNull(q.poll());
+		assertTrue(q.isEmpty());
+	}
+	
+	@Test public void testProducers() throws Exception {
+		final MpscQueue<Integer> q=new MpscQueue<Integer>();
+		final int producers=4;
+		final int perProducer=20000;
+		Thread[] threads=new Thread[producers];
+		for (int t=0; t<producers; t++) {
+			final int base=t*perProducer;
+			threads[t]=new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i=0; i<perProducer; i++) {
+						q.offer(base+i);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		
+		// values from each producer must arrive in order
+		int[] next=new int[producers];
+		int received=0;
+		while (received<producers*perProducer) {
+			Integer v=q.poll();
+			if (v==null) continue;
+			int p=v/perProducer;
+			assertEquals(next[p],v%perProducer);
+			next[p]++;
+			received++;
+		}
+		for (Thread t: threads) {
+			t.join();
+		}
+		assertNull(q.poll());
+	}
+}